@@ -0,0 +1,358 @@
+package com.tritonsvc;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs os commands for the whole agent.
+ *
+ * At most maxRunning commands are alive at once, callers beyond that wait for a slot and give up after the
+ * queue timeout, so a burst of callers can't fill the process table. Every command has a timeout after which
+ * it is killed, stdout and stderr are merged and kept up to the output cap. Spawns, latency, timeouts and
+ * rejections are counted per caller.
+ */
+public final class CommandRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandRunner.class);
+    private static final int DEFAULT_MAX_RUNNING = 4;
+    private static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 10000;
+    private static final int DEFAULT_OUTPUT_CAP_BYTES = 64 * 1024;
+    private static final File DISCARD = new File("/dev/null");
+    private static CommandRunner commandRunner;
+
+    private final int maxRunning;
+    private final long queueTimeoutMillis;
+    private final int outputCapBytes;
+    private final Semaphore slots;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger peakRunning = new AtomicInteger();
+    private final Map<String, CallerStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param maxRunning
+     * @param queueTimeoutMillis how long a caller waits for a free slot before its command is rejected
+     * @param outputCapBytes
+     */
+    @VisibleForTesting
+    CommandRunner(int maxRunning, long queueTimeoutMillis, int outputCapBytes) {
+        this.maxRunning = maxRunning;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.outputCapBytes = outputCapBytes;
+        this.slots = new Semaphore(maxRunning, true);
+    }
+
+    public static synchronized CommandRunner instance() {
+        if (commandRunner == null) {
+            commandRunner = new CommandRunner(DEFAULT_MAX_RUNNING, DEFAULT_QUEUE_TIMEOUT_MILLIS, DEFAULT_OUTPUT_CAP_BYTES);
+        }
+        return commandRunner;
+    }
+
+    /**
+     * run a command and wait for it to finish
+     *
+     * @param caller name the spawn is counted under
+     * @param command
+     * @param timeoutMillis
+     * @return
+     */
+    public CommandResult run(String caller, String command, long timeoutMillis) {
+        CallerStats callerStats = getCallerStats(caller);
+        try {
+            if (!slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                callerStats.rejected.incrementAndGet();
+                LOGGER.error("rejected command '{}' from {}, {} commands already running", command, caller, maxRunning);
+                return CommandResult.rejected();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            callerStats.rejected.incrementAndGet();
+            return CommandResult.rejected();
+        }
+
+        peakRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        long start = System.nanoTime();
+        try {
+            return execute(callerStats, command, timeoutMillis);
+        } finally {
+            running.decrementAndGet();
+            slots.release();
+            callerStats.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * start a command without waiting for it, for daemons and scripts that outlive the call. These don't take a slot
+     * and have no timeout, a daemon would hold its slot for good and killing it after a timeout is not wanted.
+     * Their output is discarded, so an unread pipe can't block them.
+     *
+     * @param caller
+     * @param command
+     * @throws IOException
+     */
+    public void spawn(String caller, String command) throws IOException {
+        CallerStats callerStats = getCallerStats(caller);
+        callerStats.spawns.incrementAndGet();
+        try {
+            new ProcessBuilder(tokenize(command))
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(DISCARD))
+                    .start()
+                    .getOutputStream()
+                    .close();
+        } catch (IOException ex) {
+            callerStats.failures.incrementAndGet();
+            throw ex;
+        }
+    }
+
+    /**
+     * counters per caller
+     *
+     * @return
+     */
+    public Map<String, CallerStats> getStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * most commands ever alive at the same time
+     *
+     * @return
+     */
+    public int getPeakRunning() {
+        return peakRunning.get();
+    }
+
+    /**
+     * flatten current values into name/value pairs for reporting
+     *
+     * @return
+     */
+    public Map<String, String> toMetadata() {
+        Map<String, String> metadata = new TreeMap<>();
+        metadata.put("running", Integer.toString(running.get()));
+        metadata.put("peakRunning", Integer.toString(getPeakRunning()));
+        for (Map.Entry<String, CallerStats> entry : stats.entrySet()) {
+            metadata.put("caller." + entry.getKey(), entry.getValue().toString());
+        }
+        return metadata;
+    }
+
+    private CommandResult execute(CallerStats callerStats, String command, long timeoutMillis) {
+        Process proc;
+        try {
+            callerStats.spawns.incrementAndGet();
+            proc = new ProcessBuilder(tokenize(command)).redirectErrorStream(true).start();
+        } catch (IOException ex) {
+            callerStats.failures.incrementAndGet();
+            LOGGER.error("unable to run command '{}'", command, ex);
+            return CommandResult.failed(ex.getMessage());
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        boolean[] truncated = new boolean[1];
+        boolean timedOut = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // only read what is available, a daemon that inherited stdout must not keep the caller blocked
+        try (InputStream input = proc.getInputStream()) {
+            while (true) {
+                drain(input, output, truncated);
+                if (proc.waitFor(10, TimeUnit.MILLISECONDS)) {
+                    drain(input, output, truncated);
+                    break;
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    timedOut = true;
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.error("problem reading output of command '{}'", command, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (proc.isAlive()) {
+                proc.destroyForcibly();
+            }
+        }
+
+        String text = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        if (timedOut || !hasExited(proc)) {
+            callerStats.timeouts.incrementAndGet();
+            LOGGER.error("command '{}' did not finish within {} ms", command, timeoutMillis);
+            return new CommandResult(null, text, truncated[0], true, false);
+        }
+        if (proc.exitValue() != 0) {
+            callerStats.failures.incrementAndGet();
+        }
+        return new CommandResult(proc.exitValue(), text, truncated[0], false, false);
+    }
+
+    private void drain(InputStream input, ByteArrayOutputStream output, boolean[] truncated) throws IOException {
+        byte[] buffer = new byte[4096];
+        int available;
+        while ((available = input.available()) > 0) {
+            int read = input.read(buffer, 0, Math.min(available, buffer.length));
+            if (read == -1) {
+                return;
+            }
+            int keep = Math.min(read, outputCapBytes - output.size());
+            if (keep > 0) {
+                output.write(buffer, 0, keep);
+            }
+            truncated[0] |= keep < read;
+        }
+    }
+
+    private static boolean hasExited(Process proc) {
+        try {
+            proc.exitValue();
+            return true;
+        } catch (IllegalThreadStateException ex) {
+            return false;
+        }
+    }
+
+    private CallerStats getCallerStats(String caller) {
+        return stats.computeIfAbsent(caller, name -> new CallerStats());
+    }
+
+    /**
+     * split the same way Runtime.exec(String) does
+     */
+    private static String[] tokenize(String command) {
+        StringTokenizer tokenizer = new StringTokenizer(command);
+        String[] tokens = new String[tokenizer.countTokens()];
+        for (int i = 0; tokenizer.hasMoreTokens(); i++) {
+            tokens[i] = tokenizer.nextToken();
+        }
+        return tokens;
+    }
+
+    /**
+     * outcome of one command
+     */
+    public static class CommandResult {
+        private final Integer exitCode;
+        private final String output;
+        private final boolean truncated;
+        private final boolean timedOut;
+        private final boolean rejected;
+
+        /**
+         * Constructor
+         *
+         * @param exitCode null if the command never finished
+         * @param output
+         * @param truncated
+         * @param timedOut
+         * @param rejected
+         */
+        public CommandResult(Integer exitCode, String output, boolean truncated, boolean timedOut, boolean rejected) {
+            this.exitCode = exitCode;
+            this.output = output;
+            this.truncated = truncated;
+            this.timedOut = timedOut;
+            this.rejected = rejected;
+        }
+
+        static CommandResult rejected() {
+            return new CommandResult(null, "", false, false, true);
+        }
+
+        static CommandResult failed(String message) {
+            return new CommandResult(null, message != null ? message : "", false, false, false);
+        }
+
+        public boolean isSuccess() {
+            return exitCode != null && exitCode == 0;
+        }
+
+        public Integer getExitCode() {
+            return exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isRejected() {
+            return rejected;
+        }
+    }
+
+    /**
+     * spawn and latency counters of one caller
+     */
+    public static class CallerStats {
+        private final AtomicLong spawns = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+
+        private void recordLatency(long millis) {
+            totalMillis.addAndGet(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+        }
+
+        public long getSpawns() {
+            return spawns.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getTotalMillis() {
+            return totalMillis.get();
+        }
+
+        public long getMaxMillis() {
+            return maxMillis.get();
+        }
+
+        @Override
+        public String toString() {
+            return "spawns=" + getSpawns() + ", timeouts=" + getTimeouts() +
+                    ", rejected=" + getRejected() + ", failures=" + getFailures() + ", totalMillis=" + getTotalMillis() +
+                    ", maxMillis=" + getMaxMillis();
+        }
+    }
+}
@@ -3,11 +3,6 @@ package com.tritonsvc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.concurrent.TimeUnit;
-
 /**
  * Helps with os command execution.
  */
@@ -22,7 +17,6 @@ public final class HostUtils {
     private final boolean isSystemD;
     private final boolean isRunit;
     private final String osType;
-    private final boolean isFast;
 
     private HostUtils() {
         uname = unameCmd().toLowerCase();
@@ -30,13 +24,10 @@ public final class HostUtils {
         isRunit = (uname.contains(BWG));
         if (uname.contains(HostUtils.TS_IMX6)) {
             osType = HostUtils.TS_IMX6;
-            isFast = true;
         } else if (uname.contains(HostUtils.BEAGLEBONE)) {
             osType = HostUtils.BEAGLEBONE;
-            isFast = true;
         } else {
             osType = HostUtils.BWG;
-            isFast = false;
         }
     }
 
@@ -48,8 +39,6 @@ public final class HostUtils {
         return isRunit;
     }
 
-    public boolean isFastProcessor() { return isFast; }
-
     public String getOsType() {
         return osType;
     }
@@ -62,23 +51,10 @@ public final class HostUtils {
     }
 
     private static String unameCmd() {
-        final StringBuilder sb = new StringBuilder();
-        try {
-            Process proc = executeUnixCommand("uname -a");
-            proc.waitFor(2, TimeUnit.SECONDS);
-            String line;
-            try (final BufferedReader iwconfigInput = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
-                while ((line = iwconfigInput.readLine()) != null) {
-                    sb.append(line);
-                }
-            }
-        } catch (final Exception ex) {
-            LOGGER.error("problem getting os type", ex);
+        CommandRunner.CommandResult uname = CommandRunner.instance().run("host", "uname -a", 2000);
+        if (!uname.isSuccess()) {
+            return "";
         }
-        return sb.toString();
-    }
-
-    private static Process executeUnixCommand(final String command) throws IOException {
-        return Runtime.getRuntime().exec(command);
+        return uname.getOutput().replaceAll("[\\r\\n]", "");
     }
 }
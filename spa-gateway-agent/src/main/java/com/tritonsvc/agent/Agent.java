@@ -3,7 +3,9 @@ package com.tritonsvc.agent;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 import com.google.protobuf.AbstractMessageLite;
+import com.tritonsvc.CommandRunner;
 import com.tritonsvc.HostUtils;
 import com.tritonsvc.spa.communication.proto.Bwg.CommandType;
 import com.tritonsvc.spa.communication.proto.Bwg.Header;
@@ -31,7 +33,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.security.KeyFactory;
 import java.security.KeyStore;
@@ -47,10 +48,13 @@ import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.stream.Collectors.toList;
@@ -78,6 +82,8 @@ public class Agent {
     private static final int DEFAULT_MQTTS_PORT = 8883;
     private static final short DEFAULT_MQTT_KEEPALIVE = 30;
     private static final String DEFAULT_MQTT_HOSTNAME = "localhost";
+    private static final long MQTT_RECONNECT_DELAY_MILLIS = 1000;
+    private static final long DEFAULT_MQTT_RECONNECT_MAX_DELAY_SECONDS = 120;
 
 	/** Command processor Java classname */
 	private String commandProcessorClassname;
@@ -103,6 +109,12 @@ public class Agent {
     /** MQTT keep alive **/
     private short mqttKeepaliveSeconds;
 
+    /** MQTT reconnect back-off cap **/
+    private long mqttReconnectMaxDelaySeconds;
+
+    /** MQTT broker keeps subscriptions and unacked QoS 1/2 messages across reconnects **/
+    private boolean mqttPersistentSession;
+
 	/** Outbound MQTT topic */
 	private String outboundTopic;
 
@@ -132,12 +144,22 @@ public class Agent {
     private X509Certificate caRoot;
     private X509Certificate gatewayPublic;
     private PrivateKey gatewayPrivate;
+    private String homePath;
+    private volatile String pkiFingerprint;
 
     /** uplink retry queue **/
     private ConcurrentLinkedQueue<QueuedUplink> retryUplinks = new ConcurrentLinkedQueue();
     private static final int MAX_FAILED_SIZE = 500;
-    private AtomicLong lastConnectAttempt = new AtomicLong(0);
+    private static final int MAX_INFLIGHT_UPLINKS = 8;
+    private static final int MAX_QUEUED_DOWNLINKS = 50;
     private AtomicLong lastSubReceived = new AtomicLong(0);
+    private ReconnectBackoff outboundBackoff;
+    private ReconnectBackoff inboundBackoff;
+    private ConnectivityProbe connectivityProbe;
+    private final StartupTimer startupTimer = new StartupTimer();
+    private boolean mqttSingleConnection;
+    private MQTTMultiplexedConnection sharedConnection;
+    private final AtomicBoolean uplinkDelivered = new AtomicBoolean(false);
 
     private String threadId;
 
@@ -150,19 +172,23 @@ public class Agent {
 	public void start(String homePath) {
 		LOGGER.info("BWG agent starting...");
         Properties props;
+        this.homePath = homePath;
 
 		this.mqttSub = createMQTT();
         this.mqttPub = createMQTT();
 		try {
-            obtainPKIArtifacts(homePath);
-            props = loadProperties(homePath);
+            // parsing the pki material doesn't need the config file, read it meanwhile
+            CompletableFuture<Void> pki = CompletableFuture.runAsync(() -> startupTimer.time("pki", () -> obtainPKIArtifacts(homePath)));
+            props = startupTimer.time("config-read", () -> readProperties(homePath));
+            pki.join();
+            load(props);
 
             if (gwSerialNumber == null) {
                 throw new IllegalStateException("no gateway serial number was found in properties or from a certificate, cannot continue");
             }
             //tcp://host:port or tls://host:port
             mqttSub.setHost( getProtocolPrefix() + mqttHostname + ":" + mqttPort);
-            mqttSub.setCleanSession(true);
+            configureSession(mqttSub, gwSerialNumber);
             mqttSub.setKeepAlive(mqttKeepaliveSeconds);
             mqttSub.setSslContext(sslContext);
 
@@ -177,7 +203,7 @@ public class Agent {
             }
 
             mqttPub.setHost(getProtocolPrefix() + mqttHostname + ":" + mqttPort);
-            mqttPub.setCleanSession(true);
+            configureSession(mqttPub, gwSerialNumber + "-up");
             mqttPub.setKeepAlive(mqttKeepaliveSeconds);
             mqttPub.setSslContext(sslContext);
             mqttPub.setConnectAttemptsMax(1);
@@ -206,21 +232,31 @@ public class Agent {
 			throw Throwables.propagate(e);
 		}
 		LOGGER.info("Connecting to MQTT broker at '" + mqttHostname + ":" + mqttPort + "'...");
+        outboundBackoff = new ReconnectBackoff(MQTT_RECONNECT_DELAY_MILLIS, TimeUnit.SECONDS.toMillis(mqttReconnectMaxDelaySeconds));
+        inboundBackoff = new ReconnectBackoff(MQTT_RECONNECT_DELAY_MILLIS, TimeUnit.SECONDS.toMillis(mqttReconnectMaxDelaySeconds));
+        connectivityProbe = createConnectivityProbe();
+
+        if (mqttSingleConnection) {
+            // the subscriber settings keep reconnecting on their own, uplinks and downlinks both ride on them
+            sharedConnection = new MQTTMultiplexedConnection(mqttSub, inboundTopic, MAX_INFLIGHT_UPLINKS, MAX_QUEUED_DOWNLINKS);
+            sharedConnection.connect();
+        }
 
 		// Create outbound message processor.
-		outbound = new MQTTOutbound(mqttPub, outboundTopic);
+		outbound = startupTimer.time("mqtt-outbound", () -> new MQTTOutbound(mqttPub, outboundTopic));
 
         // data path
         final String dataPath = props.getProperty("dataPath", homePath);
 
         // Create an instance of the command processor.
-        processor = createProcessor();
+        processor = startupTimer.time("processor-create", this::createProcessor);
 		processor.setGwSerialNumber(gwSerialNumber);
         processor.setConfigProps(props);
         processor.setHomePath(homePath);
         processor.setDataPath(dataPath);
         processor.setEventDispatcher(outbound);
         processor.setPKI(gatewayPublic, gatewayPrivate);
+        processor.setStartupTimer(startupTimer);
 
 		// Create inbound message processing thread.
 		inbound = new MQTTInbound(mqttSub, inboundTopic, processor);
@@ -234,9 +270,15 @@ public class Agent {
 		// Executes any custom startup logic.
 		processor.executeStartup();
 
-		LOGGER.info("BWG agent started.");
+		LOGGER.info("BWG agent started in {} ms.", startupTimer.getElapsedMillis());
 	}
 
+    /**
+     * the ssl context built here is kept on the mqtt settings, every reconnect reuses it along with its session cache
+     * so the broker can resume the previous tls session, only a change to one of the files builds a new one
+     *
+     * @param homePath
+     */
     private void obtainPKIArtifacts(String homePath) {
         File caRootCert = new File(homePath + File.separator + CA_ROOT_PUBKEY_FILE);
         File gatewayPubCert = new File(homePath + File.separator + GATEWAY_PUBKEY_FILE);
@@ -245,6 +287,7 @@ public class Agent {
         TrustManagerFactory tmf;
         CertificateFactory fact;
         KeyManagerFactory kmf = null;
+        pkiFingerprint = pkiFingerprint(caRootCert, gatewayPubCert, gatewayPrivKey);
 
         if (!caRootCert.exists()) {
             return;
@@ -309,6 +352,52 @@ public class Agent {
         }
     }
 
+    /**
+     * pick up rotated certificates or keys before a new connection is made, a tls setup that fails to load from the new
+     * files leaves the current one in place. Switching between tcp and tls still takes a restart.
+     */
+    @VisibleForTesting
+    synchronized void refreshPKIIfChanged() {
+        if (sslContext == null || homePath == null ||
+                pkiFingerprint(new File(homePath, CA_ROOT_PUBKEY_FILE), new File(homePath, GATEWAY_PUBKEY_FILE), new File(homePath, GATEWAY_PRIVKEY_FILE)).equals(pkiFingerprint)) {
+            return;
+        }
+        LOGGER.info("certificate or key files changed, reloading crypto");
+        SSLContext oldSslContext = sslContext;
+        X509Certificate oldCaRoot = caRoot;
+        X509Certificate oldGatewayPublic = gatewayPublic;
+        PrivateKey oldGatewayPrivate = gatewayPrivate;
+        String serialNumber = gwSerialNumber;
+
+        sslContext = null;
+        obtainPKIArtifacts(homePath);
+        // the topics were derived from the serial number, a new cert doesn't change it
+        gwSerialNumber = serialNumber;
+        if (sslContext == null || caRoot == null || (oldGatewayPublic != null && gatewayPublic == null)) {
+            LOGGER.warn("unable to load the changed crypto, keeping the current one");
+            sslContext = oldSslContext;
+            caRoot = oldCaRoot;
+            gatewayPublic = oldGatewayPublic;
+            gatewayPrivate = oldGatewayPrivate;
+            return;
+        }
+        mqttSub.setSslContext(sslContext);
+        mqttPub.setSslContext(sslContext);
+        processor.setPKI(gatewayPublic, gatewayPrivate);
+    }
+
+    private static String pkiFingerprint(File... files) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (File file : files) {
+            fingerprint.append(file.getName()).append('=');
+            if (file.exists()) {
+                fingerprint.append(file.lastModified()).append('/').append(file.length());
+            }
+            fingerprint.append(';');
+        }
+        return fingerprint.toString();
+    }
+
     private TrustManager[] ignoreExpiredErrors(TrustManager[] origTrustManagers) {
         final X509TrustManager origTrustmanager = (X509TrustManager)origTrustManagers[0];
 
@@ -344,7 +433,7 @@ public class Agent {
         return (sslContext != null ? "tls://" : "tcp://");
     }
 
-    private Properties loadProperties(String homePath) {
+    private Properties readProperties(String homePath) {
         String propsFile;
         if (homePath != null) {
             propsFile = homePath + File.separator + DEFAULT_CONFIG_FILENAME;
@@ -357,7 +446,6 @@ public class Agent {
         Properties props = new Properties();
         try (FileInputStream in = new FileInputStream(propsFile)) {
             props.load(in);
-            load(props);
             return props;
         } catch (Exception e) {
             throw Throwables.propagate(e);
@@ -434,8 +522,10 @@ public class Agent {
 		public MQTTOutbound(MQTT mqttPub, String topic) {
             this.mqttPub = mqttPub;
 			this.topic = topic;
-            this.connection = mqttPub.futureConnection();
-            this.connection.connect();
+            if (sharedConnection == null) {
+                this.connection = mqttPub.futureConnection();
+                this.connection.connect();
+            }
 		}
 
         @Override
@@ -472,9 +562,12 @@ public class Agent {
                     uplink.getMsg().writeDelimitedTo(out);
                 }
 
-                Future<Void> attempt = connection.publish(topic, out.toByteArray(), QoS.EXACTLY_ONCE, false);
                 try {
-                    attempt.await(15, TimeUnit.SECONDS);
+                    publish(out.toByteArray());
+                    if (uplinkDelivered.compareAndSet(false, true)) {
+                        startupTimer.milestone("first-uplink");
+                        processor.executeDeferredStartup();
+                    }
                     if (!uplink.isCached()) {
                         if (retryUplinks.size() > 0) {
                             drainRetry();
@@ -484,13 +577,16 @@ public class Agent {
                         if(LOGGER.isDebugEnabled()) LOGGER.debug("resent and removed cached uplink for {}", uplink.getUplinkCommandType().name());
                     }
                     killAttempts = 0;
+                    outboundBackoff.reset();
                 } catch (Exception te) {
                     LOGGER.warn("Unable to publish message {}, retry={}, cannot connect to broker", uplink.getUplinkCommandType().name(), uplink.getAttempts());
                     if (retryOnFailure) {
                         addUplinkRetry(uplink);
                     }
-                    if (System.currentTimeMillis() - lastConnectAttempt.get() > 20000) {
-                        lastConnectAttempt.set(System.currentTimeMillis());
+                    if (sharedConnection == null && outboundBackoff.isAttemptDue()) {
+                        long delay = outboundBackoff.nextDelayMillis();
+                        LOGGER.info("reconnecting uplink connection, next attempt no sooner than {} ms", delay);
+                        refreshPKIIfChanged();
                         if (killAttempts > 4) {
                             killAttempts = 0;
                             connection = mqttPub.futureConnection();
@@ -522,7 +618,19 @@ public class Agent {
         }
 
         public void cleanUp(int timeout) throws Exception {
-            connection.kill().await(timeout, TimeUnit.SECONDS);
+            if (sharedConnection != null) {
+                sharedConnection.kill(timeout);
+            } else {
+                connection.kill().await(timeout, TimeUnit.SECONDS);
+            }
+        }
+
+        private void publish(byte[] payload) throws Exception {
+            if (sharedConnection == null) {
+                connection.publish(topic, payload, QoS.EXACTLY_ONCE, false).await(15, TimeUnit.SECONDS);
+            } else if (!sharedConnection.publish(topic, payload, QoS.EXACTLY_ONCE, 15000)) {
+                throw new TimeoutException("broker did not acknowledge uplink");
+            }
         }
     }
 
@@ -547,6 +655,11 @@ public class Agent {
 
 		@Override
 		public void run() {
+            if (sharedConnection != null) {
+                receiveShared();
+                return;
+            }
+
 			// Subscribe to chosen topic.
 			Topic[] topics = {new Topic(topic, QoS.AT_LEAST_ONCE)};
             running = true;
@@ -557,13 +670,14 @@ public class Agent {
                         connection.kill().await(10, TimeUnit.SECONDS);
                     } catch (Exception ex) {
                         LOGGER.debug("unable to terminate stale old connection");
-                        try {Thread.sleep(5000);} catch(InterruptedException ie) {break;}
+                        try {Thread.sleep(inboundBackoff.nextDelayMillis());} catch(InterruptedException ie) {break;}
                         if (killAttempts++ < 5) {
                             continue;
                         }
                     }
                 }
                 killAttempts = 0;
+                refreshPKIIfChanged();
                 connection = mqtt.futureConnection();
                 connection.connect();
                 connection.subscribe(topics);
@@ -578,6 +692,7 @@ public class Agent {
                             continue;
                         }
                         lastSubReceived.set(System.currentTimeMillis());
+                        inboundBackoff.reset();
                         message.ack();
                         processor.processDownlinkCommand(message.getPayload());
                     } catch (InterruptedException e) {
@@ -587,7 +702,11 @@ public class Agent {
                     } catch (Throwable e) {
                         if (System.currentTimeMillis() - lastSubReceived.get() > MAX_SUBSCRIPTION_INACTIVITY_TIME) {
                             LOGGER.error("Have not received a downlink in {} seconds, recreating mqtt session", MAX_SUBSCRIPTION_INACTIVITY_TIME / 1000);
-                            restartLinuxWPA();
+                            try {
+                                recoverFromInactivity();
+                            } catch (InterruptedException ie) {
+                                running = false;
+                            }
                             break;
                         }
                     }
@@ -601,6 +720,35 @@ public class Agent {
             }
 		}
 
+        /**
+         * the shared connection subscribes and reconnects by itself, this only hands downlinks to the processor
+         */
+        private void receiveShared() {
+            running = true;
+            lastSubReceived.set(System.currentTimeMillis());
+            while (!Thread.currentThread().isInterrupted() && running) {
+                try {
+                    byte[] payload = sharedConnection.receive(10, TimeUnit.SECONDS);
+                    if (payload != null) {
+                        lastSubReceived.set(System.currentTimeMillis());
+                        inboundBackoff.reset();
+                        processor.processDownlinkCommand(payload);
+                    } else if (System.currentTimeMillis() - lastSubReceived.get() > MAX_SUBSCRIPTION_INACTIVITY_TIME) {
+                        LOGGER.error("Have not received a downlink in {} seconds, recreating mqtt session", MAX_SUBSCRIPTION_INACTIVITY_TIME / 1000);
+                        recoverFromInactivity();
+                        refreshPKIIfChanged();
+                        sharedConnection.reconnect(10);
+                        lastSubReceived.set(System.currentTimeMillis());
+                    }
+                } catch (InterruptedException e) {
+                    LOGGER.warn("Device event processor interrupted.");
+                    running = false;
+                } catch (Throwable e) {
+                    LOGGER.error("unable to process downlink", e);
+                }
+            }
+        }
+
         public void stop() {
             running = false;
         }
@@ -613,24 +761,34 @@ public class Agent {
 	private class ShutdownHandler extends Thread {
 		@Override
 		public void run() {
-
-				try {
-                    inbound.stop();
-                    outbound.cleanUp(10);
-					LOGGER.info("Disconnected from MQTT broker.");
-				} catch (Exception e) {
-					LOGGER.warn("Shutdown initiated, exception disconnecting from MQTT broker.", e);
-				}
-
+            stop();
 		}
 	}
 
+    /**
+     * disconnect from the broker and stop the inbound processing thread
+     */
+    @VisibleForTesting
+    void stop() {
+        try {
+            inbound.stop();
+            outbound.cleanUp(10);
+            LOGGER.info("Disconnected from MQTT broker.");
+        } catch (Exception e) {
+            LOGGER.warn("Shutdown initiated, exception disconnecting from MQTT broker.", e);
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
 	/**
 	 * Validates the agent configuration.
 	 * 
 	 * @return
 	 */
-	private void load(Properties properties) {
+	@VisibleForTesting
+	void load(Properties properties) {
 		LOGGER.info("Validating configuration...");
 
      	// Load command processor class name.
@@ -674,9 +832,17 @@ public class Agent {
         }
         LOGGER.info("Using MQTT username: " + mqttUsername);
 
+        mqttSingleConnection = Boolean.parseBoolean(properties.getProperty(AgentConfiguration.MQTT_SINGLE_CONNECTION, "false"));
+        LOGGER.info("Using a single MQTT connection for uplink and downlink: {}", mqttSingleConnection);
+
         mqttKeepaliveSeconds = Ints.tryParse(properties.getProperty(AgentConfiguration.MQTT_KEEPALIVE,"")) != null ?
                 Ints.tryParse(properties.getProperty(AgentConfiguration.MQTT_KEEPALIVE)).shortValue() : DEFAULT_MQTT_KEEPALIVE;
 
+        Long reconnectMaxDelay = Longs.tryParse(properties.getProperty(AgentConfiguration.MQTT_RECONNECT_MAX_DELAY_SECONDS, ""));
+        mqttReconnectMaxDelaySeconds = reconnectMaxDelay != null && reconnectMaxDelay > 0 ? reconnectMaxDelay : DEFAULT_MQTT_RECONNECT_MAX_DELAY_SECONDS;
+        mqttPersistentSession = Boolean.parseBoolean(properties.getProperty(AgentConfiguration.MQTT_PERSISTENT_SESSION, "true"));
+        LOGGER.info("Using MQTT persistent session: {}, reconnect back-off up to {} seconds", mqttPersistentSession, mqttReconnectMaxDelaySeconds);
+
 		// override for outbound topic.
 		outboundTopic = properties.getProperty(AgentConfiguration.MQTT_OUTBOUND_TOPIC);
 		if (outboundTopic == null) {
@@ -696,18 +862,55 @@ public class Agent {
 		return inboundPrefix + "/" + gwSerialNumber;
 	}
 
-    private Process executeUnixCommand(String command) throws IOException {
-        return Runtime.getRuntime().exec(command);
+    /**
+     * only restart wifi when the gateway lost its own link, then wait out a jittered delay before the session is
+     * recreated so gateways that all went quiet together don't reconnect together
+     *
+     * @throws InterruptedException
+     */
+    private void recoverFromInactivity() throws InterruptedException {
+        ConnectivityProbe.Diagnosis diagnosis = connectivityProbe.diagnose(mqttHostname, mqttPort, processor.getWifiDeviceName());
+        LOGGER.info("connectivity diagnosis after downlink inactivity: {}", diagnosis);
+        if (diagnosis == ConnectivityProbe.Diagnosis.LOCAL_NETWORK_DOWN) {
+            restartLinuxWPA();
+        }
+        long delay = inboundBackoff.nextDelayMillis();
+        LOGGER.info("recreating mqtt session in {} ms", delay);
+        Thread.sleep(delay);
+    }
+
+    /**
+     * a persistent session needs a stable client id, the broker then keeps the subscription and any unacked
+     * QoS 1/2 messages while the gateway is away. 3.1.1 lifts the 23 character limit on client ids.
+     *
+     * @param mqtt
+     * @param clientId
+     */
+    @VisibleForTesting
+    void configureSession(MQTT mqtt, String clientId) {
+        mqtt.setCleanSession(!mqttPersistentSession);
+        if (mqttPersistentSession) {
+            mqtt.setVersion("3.1.1");
+            mqtt.setClientId(clientId);
+        }
+        mqtt.setReconnectDelay(MQTT_RECONNECT_DELAY_MILLIS);
+        mqtt.setReconnectDelayMax(TimeUnit.SECONDS.toMillis(mqttReconnectMaxDelaySeconds));
+        mqtt.setReconnectBackOffMultiplier(2);
+    }
+
+    @VisibleForTesting
+    ConnectivityProbe createConnectivityProbe() {
+        return new ConnectivityProbe(3000);
     }
 
     private void restartLinuxWPA() {
         try {
             if (!processor.isAPModeOn()) {
                 if (getHostUtils().isSystemD()) {
-                    executeUnixCommand("sudo systemctl restart wpa_supplicant@" + processor.getWifiDeviceName()).waitFor(10, TimeUnit.SECONDS);
+                    CommandRunner.instance().run("wifi", "sudo systemctl restart wpa_supplicant@" + processor.getWifiDeviceName(), 10000);
                 } else if (getHostUtils().isRunit()) {
-                    executeUnixCommand("sudo sv restart /service/wifi_station_wpa").waitFor(10, TimeUnit.SECONDS);
-                    executeUnixCommand("sudo sv restart /service/udhcpc_wlan0").waitFor(10, TimeUnit.SECONDS);
+                    CommandRunner.instance().run("wifi", "sudo sv restart /service/wifi_station_wpa", 10000);
+                    CommandRunner.instance().run("wifi", "sudo sv restart /service/udhcpc_wlan0", 10000);
                 }
                 LOGGER.info("restarted wpa_supplicant for {}", processor.getWifiDeviceName());
             }
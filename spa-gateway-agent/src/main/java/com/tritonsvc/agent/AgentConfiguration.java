@@ -30,6 +30,15 @@ public interface AgentConfiguration {
 	/** Optional property for keepalive on MQTT, defaults to 30 seconds */
 	public static final String MQTT_KEEPALIVE = "mqtt.keepalive.seconds";
 
+	/** Optional property to publish uplinks and receive downlinks over one MQTT connection instead of two, defaults to false */
+	public static final String MQTT_SINGLE_CONNECTION = "mqtt.single.connection";
+
+	/** Optional property to have the broker keep the session (subscription, unacked QoS 1/2 messages) across reconnects, defaults to true */
+	public static final String MQTT_PERSISTENT_SESSION = "mqtt.persistent.session";
+
+	/** Optional property for the cap of the jittered exponential MQTT reconnect back-off, defaults to 120 seconds */
+	public static final String MQTT_RECONNECT_MAX_DELAY_SECONDS = "mqtt.reconnect.max.delay.seconds";
+
   	/** Optional Property for serial port that rs485 is located **/
 	public static final String RS485_LINUX_SERIAL_PORT = "rs485.port";
 
@@ -39,12 +48,57 @@ public interface AgentConfiguration {
 	/** Optional Property for serial port that rs485 is located **/
 	public static final String RS485_LINUX_SERIAL_PORT_BAUD = "rs485.port.baudrate";
 
+	/** Optional Property for file path to record raw rs485 bus traffic into, for later replay, off when not set **/
+	public static final String RS485_TRACE_FILE = "rs485.trace.file";
+
+	/** Optional Property for the max size in bytes of the rs485 trace file, defaults to 10MB **/
+	public static final String RS485_TRACE_MAX_BYTES = "rs485.trace.maxbytes";
+
+	/** Optional Property for microseconds after a poll within which a response must be on the bus, defaults to 5000 **/
+	public static final String RS485_CLEAR_TO_SEND_WINDOW_MICROS = "rs485.cts.window.micros";
+
+	/** Optional Property for how often rs485 bus statistics are logged and sent to cloud, defaults to 900, 0 disables **/
+	public static final String RS485_STATS_INTERVAL_SECONDS = "rs485.stats.interval.seconds";
+
+	/** Optional Property for how often agent scheduler statistics are logged and sent to cloud, defaults to 900, 0 disables **/
+	public static final String AGENT_STATS_INTERVAL_SECONDS = "agent.stats.interval.seconds";
+
+	/** Optional Property for the least microseconds to wait after a poll before writing to rs485, defaults to 250 **/
+	public static final String RS485_TURNAROUND_MIN_MICROS = "rs485.turnaround.min.micros";
+
+	/** Optional Property for the most microseconds to back off to after rs485 collisions, defaults to 4000 **/
+	public static final String RS485_TURNAROUND_MAX_MICROS = "rs485.turnaround.max.micros";
+
+	/** Optional Property for how often spa state is refreshed to cloud while nobody is watching, defaults to 300 **/
+	public static final String SPA_STATE_HEARTBEAT_INTERVAL_SECONDS = "spa.state.heartbeat.interval.seconds";
+
+	/** Optional Property for the least seconds between two spa state changes sent while nobody is watching, defaults to 30 **/
+	public static final String SPA_STATE_HEARTBEAT_MIN_INTERVAL_SECONDS = "spa.state.heartbeat.min.interval.seconds";
+
+	/** Optional Property for how often spa state is refreshed to cloud in live reporting mode, defaults to 5 **/
+	public static final String SPA_STATE_LIVE_INTERVAL_SECONDS = "spa.state.live.interval.seconds";
+
+	/** Optional Property for the least milliseconds between two spa state changes sent in live reporting mode, defaults to 1000 **/
+	public static final String SPA_STATE_LIVE_MIN_INTERVAL_MILLIS = "spa.state.live.min.interval.millis";
+
+	/** Optional Property for the longest live reporting mode lasts without being requested again, defaults to 30 **/
+	public static final String SPA_STATE_LIVE_MAX_MINUTES = "spa.state.live.max.minutes";
+
+	/** Optional Property prefix for the least change of a measurement that is sent right away, followed by the lower cased data type, e.g. measurement.deadband.ambient_temp **/
+	public static final String MEASUREMENT_DEADBAND_PREFIX = "measurement.deadband.";
+
+	/** Optional Property prefix for the rate of change per minute above which a measurement is sent right away, followed by the lower cased data type **/
+	public static final String MEASUREMENT_RATE_PER_MINUTE_PREFIX = "measurement.rate.per.minute.";
+
 	/** Optioal Property for wifi device name on linux **/
 	public static final String WIFI_DEVICE_NAME = "wifi.device";
 
 	/** Optioal Property for iwconfig path on linux **/
 	public static final String WIFI_IWCONFIG_PATH = "wifi.iwconfig.path";
 
+	/** Optional Property for how long wifi settings read by iwconfig are reused between samples from /proc/net/wireless, defaults to 3600, 0 runs iwconfig every sample **/
+	public static final String WIFI_IWCONFIG_REFRESH_SECONDS = "wifi.iwconfig.refresh.seconds";
+
 	/** Optioal Property for iwconfig path on linux **/
 	public static final String WIFI_IFCONFIG_PATH = "wifi.ifconfig.path";
 
@@ -60,9 +114,18 @@ public interface AgentConfiguration {
 	/** Optioal Property web service idle timeout **/
 	public static final String AP_MODE_WEB_SERVER_TIMEOUT_SECONDS = "webserver.timeout.seconds";
 
+	/** Optional Property for the gpio value file of the ap mode button, e.g. /sys/class/gpio/gpio42/value, defaults to /dev/gpio_button or the fpga register on ts-imx6 **/
+	public static final String BUTTON_GPIO_PATH = "button.gpio.path";
+
 	/** Optioal Property skip sw upgrade **/
 	public static final String SKIP_UPGARDE = "software.upgrade.skip";
 
+	/** Optional Property for milliseconds between two samples of the wired ac current sensors, rms and peak are reported per harvest, defaults to 1000 **/
+	public static final String SENSOR_ACCURRENT_SAMPLE_MILLIS = "sensor.accurrent.sample.millis";
+
 	/** Optioal Property gen fake sensor data **/
 	public static final String GENERATE_FAKE_SENSOR = "software.generate.fake_sensor_data";
+
+	/** Optional Property for how long startup waits for the first uplink before starting non critical subsystems (wsn harvester) anyway, defaults to 120 **/
+	public static final String STARTUP_DEFERRED_MAX_DELAY_SECONDS = "startup.deferred.max.delay.seconds";
 }
\ No newline at end of file
@@ -14,6 +14,18 @@ public interface AgentMessageProcessor {
      */
     void executeStartup();
 
+    /**
+     * Starts subsystems the first uplink doesn't depend on, called once an uplink has reached the broker.
+     */
+    void executeDeferredStartup();
+
+    /**
+     * Set the timer startup phases and milestones are recorded in.
+     *
+     * @param startupTimer
+     */
+    void setStartupTimer(StartupTimer startupTimer);
+
     /**
      * Process downlink command.
      *
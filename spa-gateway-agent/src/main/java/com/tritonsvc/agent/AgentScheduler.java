@@ -0,0 +1,242 @@
+package com.tritonsvc.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded scheduled pool for the agent's periodic and one shot work that records per task name how late each run
+ * started against its schedule and how long it ran. A periodic run taking longer than its period or delay is an
+ * overrun, a fixed rate one pushes its following runs behind schedule and either kind holds a pool thread that long.
+ * Blocking loops such as the harvesters get a thread of their own, so they don't hold the pool threads the periodic
+ * work runs on.
+ */
+public class AgentScheduler extends ScheduledThreadPoolExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentScheduler.class);
+
+    private final Map<String, TaskStatistics> statistics = new ConcurrentHashMap<>();
+    private final Set<Thread> blockingThreads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor
+     *
+     * @param corePoolSize threads for periodic and one shot tasks, blocking tasks are not counted
+     */
+    public AgentScheduler(int corePoolSize) {
+        super(corePoolSize);
+    }
+
+    /**
+     * @see java.util.concurrent.ScheduledExecutorService#scheduleWithFixedDelay
+     * @param name tasks are accounted by name
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(String name, Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        TimedTask timed = new TimedTask(name, task, unit.toNanos(delay), false, System.nanoTime() + unit.toNanos(initialDelay));
+        return scheduleWithFixedDelay(timed, initialDelay, delay, unit);
+    }
+
+    /**
+     * @see java.util.concurrent.ScheduledExecutorService#scheduleAtFixedRate
+     * @param name tasks are accounted by name
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(String name, Runnable task, long initialDelay, long period, TimeUnit unit) {
+        TimedTask timed = new TimedTask(name, task, unit.toNanos(period), true, System.nanoTime() + unit.toNanos(initialDelay));
+        return scheduleAtFixedRate(timed, initialDelay, period, unit);
+    }
+
+    /**
+     * @see java.util.concurrent.ScheduledExecutorService#schedule
+     * @param name tasks are accounted by name
+     */
+    public ScheduledFuture<?> schedule(String name, Runnable task, long delay, TimeUnit unit) {
+        return schedule(new TimedTask(name, task, 0, false, System.nanoTime() + unit.toNanos(delay)), delay, unit);
+    }
+
+    /**
+     * run once as soon as a pool thread is free
+     *
+     * @param name tasks are accounted by name
+     * @param task
+     */
+    public void execute(String name, Runnable task) {
+        execute(timed(name, task));
+    }
+
+    /**
+     * wrap a task handed to some other executor, its start lag is measured from now
+     *
+     * @param name tasks are accounted by name
+     * @param task
+     * @return
+     */
+    public Runnable timed(String name, Runnable task) {
+        return new TimedTask(name, task, 0, false, System.nanoTime());
+    }
+
+    /**
+     * run a task that blocks for a long time, e.g. a read loop, on a thread of its own that is interrupted on shutdownNow
+     *
+     * @param name used as thread name
+     * @param task
+     * @return the started thread
+     */
+    public Thread executeBlocking(String name, Runnable task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                LOGGER.error("blocking task {} failed", name, ex);
+            } finally {
+                blockingThreads.remove(Thread.currentThread());
+            }
+        }, name);
+        blockingThreads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    public int getBlockingThreadCount() {
+        return blockingThreads.size();
+    }
+
+    /**
+     * @param name
+     * @return statistics of the named task, null if it never ran
+     */
+    public TaskStatistics getStatistics(String name) {
+        return statistics.get(name);
+    }
+
+    /**
+     * flatten current values into name/value pairs for reporting
+     *
+     * @return
+     */
+    public Map<String, String> toMetadata() {
+        Map<String, String> metadata = new TreeMap<>();
+        metadata.put("poolSize", Integer.toString(getPoolSize()));
+        metadata.put("activeThreads", Integer.toString(getActiveCount()));
+        metadata.put("queuedTasks", Integer.toString(getQueue().size()));
+        metadata.put("blockingThreads", Integer.toString(getBlockingThreadCount()));
+        for (Map.Entry<String, TaskStatistics> entry : statistics.entrySet()) {
+            metadata.put("task." + entry.getKey(), entry.getValue().toString());
+        }
+        return metadata;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        blockingThreads.forEach(Thread::interrupt);
+        return super.shutdownNow();
+    }
+
+    private class TimedTask implements Runnable {
+        private final String name;
+        private final Runnable task;
+        private final long periodNanos;
+        private final boolean fixedRate;
+        private long expectedStartNanos;
+
+        TimedTask(String name, Runnable task, long periodNanos, boolean fixedRate, long expectedStartNanos) {
+            this.name = name;
+            this.task = task;
+            this.periodNanos = periodNanos;
+            this.fixedRate = fixedRate;
+            this.expectedStartNanos = expectedStartNanos;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                long end = System.nanoTime();
+                long duration = end - start;
+                boolean overrun = periodNanos > 0 && duration > periodNanos;
+                statistics.computeIfAbsent(name, key -> new TaskStatistics()).record(start - expectedStartNanos, duration, overrun);
+                if (overrun) {
+                    LOGGER.warn("task {} ran {} ms, longer than its period or delay of {} ms", name,
+                            TimeUnit.NANOSECONDS.toMillis(duration), TimeUnit.NANOSECONDS.toMillis(periodNanos));
+                }
+                // periodic runs never overlap, the next one is expected a period after this start or end
+                expectedStartNanos = fixedRate ? expectedStartNanos + periodNanos : end + periodNanos;
+            }
+        }
+    }
+
+    /**
+     * start lag and run duration of every run of a task, safe to read from any thread
+     */
+    public static class TaskStatistics {
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong overruns = new AtomicLong();
+        private final AtomicLong totalStartLagNanos = new AtomicLong();
+        private final AtomicLong maxStartLagNanos = new AtomicLong();
+        private final AtomicLong totalDurationNanos = new AtomicLong();
+        private final AtomicLong maxDurationNanos = new AtomicLong();
+
+        void record(long startLagNanos, long durationNanos, boolean overrun) {
+            long lag = Math.max(0, startLagNanos);
+            runs.incrementAndGet();
+            if (overrun) {
+                overruns.incrementAndGet();
+            }
+            totalStartLagNanos.addAndGet(lag);
+            updateMax(maxStartLagNanos, lag);
+            totalDurationNanos.addAndGet(durationNanos);
+            updateMax(maxDurationNanos, durationNanos);
+        }
+
+        public long getRuns() {
+            return runs.get();
+        }
+
+        public long getOverruns() {
+            return overruns.get();
+        }
+
+        public long getStartLagMaxNanos() {
+            return maxStartLagNanos.get();
+        }
+
+        public long getStartLagAvgNanos() {
+            long count = runs.get();
+            return count > 0 ? totalStartLagNanos.get() / count : 0;
+        }
+
+        public long getDurationMaxNanos() {
+            return maxDurationNanos.get();
+        }
+
+        public long getDurationAvgNanos() {
+            long count = runs.get();
+            return count > 0 ? totalDurationNanos.get() / count : 0;
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("runs=%d overruns=%d lag avg=%.1fms max=%.1fms duration avg=%.1fms max=%.1fms",
+                    getRuns(), getOverruns(), getStartLagAvgNanos() / 1000000.0, getStartLagMaxNanos() / 1000000.0,
+                    getDurationAvgNanos() / 1000000.0, getDurationMaxNanos() / 1000000.0);
+        }
+    }
+}
@@ -466,11 +466,6 @@ public class AgentSettingsPersister {
         return new File(path);
     }
 
-    @VisibleForTesting
-    Process executeUnixCommand(String command) throws IOException {
-        return Runtime.getRuntime().exec(command);
-    }
-
     @VisibleForTesting
     HostUtils getHostUtils() {
         return HostUtils.instance();
@@ -0,0 +1,130 @@
+package com.tritonsvc.agent;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tells a broker outage apart from a local wifi failure before the agent touches the network stack. Restarting
+ * wpa_supplicant only helps when the gateway itself lost its link, when the broker is the one that went away every
+ * gateway restarting its wifi at once just adds to the herd that hits the broker when it comes back.
+ */
+public class ConnectivityProbe {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectivityProbe.class);
+    private static final String ROUTE_TABLE = "/proc/net/route";
+
+    public enum Diagnosis {
+        /** broker accepts tcp connections, only the mqtt session needs to be recreated */
+        BROKER_REACHABLE,
+        /** local link and default gateway are fine, the broker is down or unreachable upstream */
+        BROKER_DOWN,
+        /** no usable local link, restarting wifi may help */
+        LOCAL_NETWORK_DOWN
+    }
+
+    private final int timeoutMillis;
+
+    /**
+     * Constructor
+     *
+     * @param timeoutMillis for each connect or reachability check
+     */
+    public ConnectivityProbe(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param brokerHost
+     * @param brokerPort
+     * @param interfaceName the wifi device, null to accept any interface
+     * @return what is most likely keeping the agent from the broker
+     */
+    public Diagnosis diagnose(String brokerHost, int brokerPort, String interfaceName) {
+        if (canConnect(brokerHost, brokerPort)) {
+            return Diagnosis.BROKER_REACHABLE;
+        }
+        if (isLocalLinkUp(interfaceName) && isDefaultGatewayReachable()) {
+            LOGGER.info("broker {}:{} not reachable but local network is up", brokerHost, brokerPort);
+            return Diagnosis.BROKER_DOWN;
+        }
+        LOGGER.info("broker {}:{} not reachable and local network on {} is down", brokerHost, brokerPort, interfaceName);
+        return Diagnosis.LOCAL_NETWORK_DOWN;
+    }
+
+    @VisibleForTesting
+    boolean canConnect(String host, int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @VisibleForTesting
+    boolean isLocalLinkUp(String interfaceName) {
+        try {
+            List<NetworkInterface> candidates;
+            if (interfaceName != null && NetworkInterface.getByName(interfaceName) != null) {
+                candidates = Collections.singletonList(NetworkInterface.getByName(interfaceName));
+            } else {
+                candidates = Collections.list(NetworkInterface.getNetworkInterfaces());
+            }
+            for (NetworkInterface candidate : candidates) {
+                if (candidate.isUp() && !candidate.isLoopback() &&
+                        Collections.list(candidate.getInetAddresses()).stream().anyMatch(address -> address instanceof Inet4Address)) {
+                    return true;
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.debug("unable to inspect network interfaces", ex);
+        }
+        return false;
+    }
+
+    /**
+     * a refused connection also counts as reachable, only a router that doesn't answer at all fails this
+     */
+    @VisibleForTesting
+    boolean isDefaultGatewayReachable() {
+        InetAddress gateway = getDefaultGateway();
+        if (gateway == null) {
+            // no route table to consult, go by the link alone
+            return !new File(ROUTE_TABLE).exists();
+        }
+        try {
+            return gateway.isReachable(timeoutMillis);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private InetAddress getDefaultGateway() {
+        try {
+            for (String line : Files.readAllLines(new File(ROUTE_TABLE).toPath(), StandardCharsets.US_ASCII)) {
+                String[] fields = line.trim().split("\\s+");
+                // Iface Destination Gateway ..., the default route has destination 00000000
+                if (fields.length > 2 && fields[1].equals("00000000") && !fields[2].equals("00000000")) {
+                    long hex = Long.parseLong(fields[2], 16);
+                    // little endian
+                    return InetAddress.getByAddress(new byte[]{(byte) hex, (byte) (hex >> 8), (byte) (hex >> 16), (byte) (hex >> 24)});
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.debug("unable to read default gateway", ex);
+        }
+        return null;
+    }
+}
@@ -1,6 +1,8 @@
 package com.tritonsvc.agent;
 
 import com.google.common.base.Throwables;
+import com.google.common.primitives.Longs;
+import com.tritonsvc.CommandRunner;
 import com.tritonsvc.httpd.NetworkSettingsHolder;
 import com.tritonsvc.model.AgentSettings;
 import com.tritonsvc.model.Ethernet;
@@ -13,6 +15,7 @@ import com.tritonsvc.spa.communication.proto.Bwg.Downlink.Model.SpaRegistrationR
 import com.tritonsvc.spa.communication.proto.Bwg.Downlink.Model.UplinkAcknowledge;
 import com.tritonsvc.spa.communication.proto.Bwg.Metadata;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.*;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.EventType;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.UplinkCommandType;
 import com.tritonsvc.wifi.ParserIwconfig;
 import org.slf4j.Logger;
@@ -27,10 +30,10 @@ import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.Manifest;
 
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
 
 /**
@@ -40,6 +43,8 @@ public abstract class MQTTCommandProcessor implements AgentMessageProcessor, Net
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MQTTCommandProcessor.class);
     private static final String AGENT_SETTINGS_PROPERTIES_FILENAME = "agentSettings.properties";
+    private static final long DEFAULT_DEFERRED_STARTUP_MAX_DELAY_SECONDS = 120;
+    private static final long DEFAULT_AGENT_STATS_INTERVAL_SECONDS = 900;
 
     private String gwSerialNumber;
     private Properties configProps;
@@ -48,17 +53,22 @@ public abstract class MQTTCommandProcessor implements AgentMessageProcessor, Net
     private GatewayEventDispatcher eventDispatcher;
     private int controllerUpdateInterval = 3;
     private int realTimeEventsCheckInterval = 3;
-    private final ScheduledExecutorService scheduledExecutorService = new ScheduledThreadPoolExecutor(5);
-    // 1 = rs485 harvester
-    // 2 = wsn harvester
-    // 3 = update interval expiration watcher
-    // 4 = data harvest iterator
-    // 5 = real time events
+    private final AgentScheduler scheduledExecutorService = new AgentScheduler(5);
+    // 1 = data harvest iterator
+    // 2 = real time events
+    // 3 = update interval expiration watcher, agent statistics and one shot startup work
+    // 4, 5 = harvest stages a processor schedules besides the iterator, e.g. wifi diag
+    // the rs485 and wsn harvesters block, they run on threads of their own, see AgentScheduler.executeBlocking
     private X509Certificate publicCert;
     private PrivateKey privateKey;
     private AgentSettings agentSettings;
     private Map<String, String> buildParams = newHashMap();
     private AgentSettingsPersister persister;
+    private StartupTimer startupTimer = new StartupTimer();
+    private final Object deferredStartupLock = new Object();
+    private boolean started;
+    private boolean deferredStartupRequested;
+    private boolean deferredStartupScheduled;
 
     protected abstract void handleRegistrationAck(RegistrationResponse response, String originatorId, String hardwareId);
 
@@ -76,6 +86,20 @@ public abstract class MQTTCommandProcessor implements AgentMessageProcessor, Net
 
     protected abstract void processEventsHandler();
 
+    /**
+     * the hardware id agent statistics are reported under
+     *
+     * @return null while the spa has not been registered
+     */
+    protected abstract String getStatisticsHardwareId();
+
+    /**
+     * start subsystems the first uplink doesn't need, runs once after startup and the first delivered uplink,
+     * or after AgentConfiguration.STARTUP_DEFERRED_MAX_DELAY_SECONDS when the broker can't be reached
+     */
+    protected void handleDeferredStartup() {
+    }
+
     /**
      * Constructor
      */
@@ -103,9 +127,59 @@ public abstract class MQTTCommandProcessor implements AgentMessageProcessor, Net
     public void executeStartup() {
         String ethernetDevice = configProps.getProperty(AgentConfiguration.ETHERNET_DEVICE_NAME, "eth0");
         String wifiDevice = configProps.getProperty(AgentConfiguration.WIFI_DEVICE_NAME, "wlan0");
-        loadAgentSettings(ethernetDevice, wifiDevice);
-        handleStartup(gwSerialNumber, configProps, homePath, scheduledExecutorService);
+        startupTimer.time("agent-settings", () -> loadAgentSettings(ethernetDevice, wifiDevice));
+        startupTimer.time("processor-startup", () -> handleStartup(gwSerialNumber, configProps, homePath, scheduledExecutorService));
         kickOffDataHarvest();
+        kickOffAgentStatistics();
+
+        Long maxDelaySeconds = Longs.tryParse(configProps.getProperty(AgentConfiguration.STARTUP_DEFERRED_MAX_DELAY_SECONDS, ""));
+        scheduledExecutorService.schedule("deferred-startup-timeout", this::executeDeferredStartup, maxDelaySeconds != null ? maxDelaySeconds : DEFAULT_DEFERRED_STARTUP_MAX_DELAY_SECONDS, TimeUnit.SECONDS);
+        synchronized (deferredStartupLock) {
+            started = true;
+            scheduleDeferredStartupIfRequested();
+        }
+    }
+
+    @Override
+    public void executeDeferredStartup() {
+        synchronized (deferredStartupLock) {
+            deferredStartupRequested = true;
+            if (started) {
+                scheduleDeferredStartupIfRequested();
+            }
+        }
+    }
+
+    private void scheduleDeferredStartupIfRequested() {
+        if (!deferredStartupRequested || deferredStartupScheduled) {
+            return;
+        }
+        deferredStartupScheduled = true;
+        scheduledExecutorService.execute("deferred-startup", () -> {
+            try {
+                startupTimer.time("deferred-startup", this::handleDeferredStartup);
+            } catch (Throwable ex) {
+                LOGGER.error("unable to start deferred subsystems", ex);
+            }
+        });
+    }
+
+    @Override
+    public void setStartupTimer(StartupTimer startupTimer) {
+        this.startupTimer = startupTimer;
+    }
+
+    protected StartupTimer getStartupTimer() {
+        return startupTimer;
+    }
+
+    /**
+     * the scheduler the processor's tasks run on, with their start lag and run duration statistics
+     *
+     * @return
+     */
+    protected AgentScheduler getScheduler() {
+        return scheduledExecutorService;
     }
 
     @Override
@@ -239,13 +313,13 @@ public abstract class MQTTCommandProcessor implements AgentMessageProcessor, Net
      * @param originator
      */
     public void sendAck(String hardwareId, String originator, AckResponseCode code, String description) {
-        eventDispatcher.executeRunnable(() -> {
+        eventDispatcher.executeRunnable(scheduledExecutorService.timed("send-ack", () -> {
             DownlinkAcknowledge.Builder builder = DownlinkAcknowledge.newBuilder().setCode(code);
             if (description != null) {
                 builder.setDescription(description);
             }
             eventDispatcher.sendUplink(hardwareId, originator, UplinkCommandType.ACKNOWLEDGEMENT, builder.build(), false);
-        });
+        }));
     }
 
     /**
@@ -286,6 +360,9 @@ public abstract class MQTTCommandProcessor implements AgentMessageProcessor, Net
 
     public void sendSpaState(String hardwareId, Bwg.Uplink.Model.SpaState spaState) {
         getCloudDispatcher().sendUplink(hardwareId, null, UplinkCommandType.SPA_STATE, spaState, false);
+        if (startupTimer.milestone("first-spa-state")) {
+            LOGGER.info("startup timings {}", startupTimer.summary());
+        }
     }
 
     /**
@@ -309,17 +386,17 @@ public abstract class MQTTCommandProcessor implements AgentMessageProcessor, Net
         return eventDispatcher;
     }
 
-    // once every X time period, check states
+    // once every X time period, check states, the first check runs right away so the first spa state doesn't wait a period
     private void kickOffDataHarvest() {
-        scheduledExecutorService.scheduleWithFixedDelay((Runnable) () -> {
+        scheduledExecutorService.scheduleWithFixedDelay("data-harvest", () -> {
             try {
                 processDataHarvestIteration();
             } catch (Throwable ex) {
                 LOGGER.error("unable to process data harvest iteration", ex);
             }
-        }, controllerUpdateInterval, controllerUpdateInterval, TimeUnit.SECONDS);
+        }, 0, controllerUpdateInterval, TimeUnit.SECONDS);
 
-        scheduledExecutorService.scheduleWithFixedDelay((Runnable) () -> {
+        scheduledExecutorService.scheduleWithFixedDelay("events", () -> {
             try {
                 processEventsHandler();
             } catch (Throwable ex) {
@@ -328,6 +405,51 @@ public abstract class MQTTCommandProcessor implements AgentMessageProcessor, Net
         }, realTimeEventsCheckInterval, realTimeEventsCheckInterval, TimeUnit.SECONDS);
     }
 
+    private void kickOffAgentStatistics() {
+        Long intervalSeconds = Longs.tryParse(configProps.getProperty(AgentConfiguration.AGENT_STATS_INTERVAL_SECONDS, ""));
+        long interval = intervalSeconds != null ? intervalSeconds : DEFAULT_AGENT_STATS_INTERVAL_SECONDS;
+        if (interval < 1) {
+            return;
+        }
+        scheduledExecutorService.scheduleWithFixedDelay("agent-stats", () -> {
+            try {
+                processAgentStatistics();
+            } catch (Throwable ex) {
+                LOGGER.error("unable to process agent statistics", ex);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * log the scheduler and os command statistics and send them up as events
+     */
+    protected void processAgentStatistics() {
+        Map<String, String> schedulerStatistics = scheduledExecutorService.toMetadata();
+        Map<String, String> commandStatistics = CommandRunner.instance().toMetadata();
+        LOGGER.info("agent scheduler statistics {}", schedulerStatistics);
+        LOGGER.info("os command statistics {}", commandStatistics);
+        String hardwareId = getStatisticsHardwareId();
+        if (hardwareId == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        sendEvents(hardwareId, newArrayList(
+                statisticsEvent(now, "Agent scheduler statistics", schedulerStatistics),
+                statisticsEvent(now, "Agent os command statistics", commandStatistics)));
+    }
+
+    private static Event statisticsEvent(long now, String description, Map<String, String> statistics) {
+        Event.Builder event = Event.newBuilder()
+                .setEventOccuredTimestamp(now)
+                .setEventReceivedTimestamp(now)
+                .setEventType(EventType.MEASUREMENT)
+                .setDescription(description);
+        for (Map.Entry<String, String> entry : statistics.entrySet()) {
+            event.addMetadata(Metadata.newBuilder().setName(entry.getKey()).setValue(entry.getValue()));
+        }
+        return event.build();
+    }
+
     @Override
     public NetworkSettings getNetworkSettings() {
         NetworkSettings network = agentSettings.getNetworkSettings();
@@ -0,0 +1,238 @@
+package com.tritonsvc.agent;
+
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.CallbackConnection;
+import org.fusesource.mqtt.client.Listener;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries uplink publishes and the downlink subscription over one broker connection, halving the tls handshakes,
+ * keepalives and broker sessions of a gateway.
+ *
+ * Each direction gets its own flow control. Uplinks take one of a few in flight slots, a publisher that can't get one
+ * in time gives up instead of piling frames into the connection's write queue, where they would sit in front of the
+ * acks and pings for the downlink side. Downlinks are acked and handed to a queue drained by the inbound thread, reading
+ * from the socket is only suspended while that queue is full. The client library reconnects and resubscribes on its own.
+ */
+public class MQTTMultiplexedConnection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MQTTMultiplexedConnection.class);
+
+    private final MQTT mqtt;
+    private final String downlinkTopic;
+    private final int maxInflightUplinks;
+    private final int maxQueuedDownlinks;
+    private final LinkedBlockingQueue<byte[]> downlinks = new LinkedBlockingQueue<>();
+    private final AtomicBoolean readSuspended = new AtomicBoolean(false);
+    private final AtomicInteger inflightUplinks = new AtomicInteger();
+    private final AtomicInteger peakInflightUplinks = new AtomicInteger();
+    private volatile CallbackConnection connection;
+    private volatile Semaphore uplinkSlots;
+    private volatile boolean connected;
+    private volatile boolean subscribed;
+
+    /**
+     * Constructor
+     *
+     * @param mqtt configured broker settings
+     * @param downlinkTopic
+     * @param maxInflightUplinks publishes awaiting their broker ack at any time
+     * @param maxQueuedDownlinks received downlinks waiting for the inbound thread before reading stops
+     */
+    public MQTTMultiplexedConnection(MQTT mqtt, String downlinkTopic, int maxInflightUplinks, int maxQueuedDownlinks) {
+        this.mqtt = mqtt;
+        this.downlinkTopic = downlinkTopic;
+        this.maxInflightUplinks = maxInflightUplinks;
+        this.maxQueuedDownlinks = maxQueuedDownlinks;
+    }
+
+    /**
+     * open the connection and subscribe to the downlink topic, returns right away
+     */
+    public synchronized void connect() {
+        final CallbackConnection current = mqtt.callbackConnection();
+        uplinkSlots = new Semaphore(maxInflightUplinks);
+        connected = false;
+        subscribed = false;
+        connection = current;
+        current.listener(new Listener() {
+            @Override
+            public void onConnected() {
+                connected = true;
+            }
+
+            @Override
+            public void onDisconnected() {
+                connected = false;
+            }
+
+            @Override
+            public void onPublish(UTF8Buffer topic, Buffer body, Runnable ack) {
+                downlinks.add(body.toByteArray());
+                ack.run();
+                if (downlinks.size() >= maxQueuedDownlinks && readSuspended.compareAndSet(false, true)) {
+                    LOGGER.warn("{} downlinks waiting to be processed, pausing reads from broker", downlinks.size());
+                    current.suspend();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable value) {
+                connected = false;
+                LOGGER.warn("shared mqtt connection failed", value);
+            }
+        });
+        current.getDispatchQueue().execute(() -> current.connect(new Callback<Void>() {
+            @Override
+            public void onSuccess(Void value) {
+                connected = true;
+                current.subscribe(new Topic[]{new Topic(downlinkTopic, QoS.AT_LEAST_ONCE)}, new Callback<byte[]>() {
+                    @Override
+                    public void onSuccess(byte[] qoses) {
+                        subscribed = true;
+                        LOGGER.info("shared mqtt connection subscribed to {}", downlinkTopic);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable value) {
+                        LOGGER.warn("unable to subscribe to {}", downlinkTopic, value);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable value) {
+                LOGGER.warn("unable to connect shared mqtt connection", value);
+            }
+        }));
+    }
+
+    /**
+     * drop the connection and open a new one
+     *
+     * @param timeoutSeconds wait for the old connection to close
+     */
+    public synchronized void reconnect(int timeoutSeconds) {
+        kill(timeoutSeconds);
+        connect();
+    }
+
+    /**
+     * publish and wait for the broker to acknowledge it
+     *
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param timeoutMillis covers waiting for an in flight slot and for the ack
+     * @return true if the broker acknowledged the publish in time
+     * @throws InterruptedException
+     */
+    public boolean publish(String topic, byte[] payload, QoS qos, long timeoutMillis) throws InterruptedException {
+        final CallbackConnection current = connection;
+        final Semaphore slots = uplinkSlots;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (current == null || !slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        peakInflightUplinks.accumulateAndGet(inflightUplinks.incrementAndGet(), Math::max);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean acked = new AtomicBoolean(false);
+        // the slot is held until the broker answers, even if this caller stops waiting
+        Callback<Void> callback = new Callback<Void>() {
+            @Override
+            public void onSuccess(Void value) {
+                acked.set(true);
+                release();
+            }
+
+            @Override
+            public void onFailure(Throwable value) {
+                release();
+            }
+
+            private void release() {
+                inflightUplinks.decrementAndGet();
+                slots.release();
+                done.countDown();
+            }
+        };
+        current.getDispatchQueue().execute(() -> current.publish(topic, payload, qos, false, callback));
+        return done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && acked.get();
+    }
+
+    /**
+     * wait for the next downlink
+     *
+     * @param timeout
+     * @param unit
+     * @return payload, or null if none arrived in time
+     * @throws InterruptedException
+     */
+    public byte[] receive(long timeout, TimeUnit unit) throws InterruptedException {
+        byte[] payload = downlinks.poll(timeout, unit);
+        final CallbackConnection current = connection;
+        if (current != null && downlinks.size() < maxQueuedDownlinks / 2 && readSuspended.compareAndSet(true, false)) {
+            current.getDispatchQueue().execute(current::resume);
+        }
+        return payload;
+    }
+
+    /**
+     * close the connection without a disconnect handshake
+     *
+     * @param timeoutSeconds
+     */
+    public synchronized void kill(int timeoutSeconds) {
+        final CallbackConnection current = connection;
+        if (current == null) {
+            return;
+        }
+        connection = null;
+        connected = false;
+        subscribed = false;
+        final CountDownLatch done = new CountDownLatch(1);
+        current.getDispatchQueue().execute(() -> current.kill(new Callback<Void>() {
+            @Override
+            public void onSuccess(Void value) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable value) {
+                done.countDown();
+            }
+        }));
+        try {
+            done.await(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // a new connection starts out reading
+        readSuspended.set(false);
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    public int getPeakInflightUplinks() {
+        return peakInflightUplinks.get();
+    }
+}
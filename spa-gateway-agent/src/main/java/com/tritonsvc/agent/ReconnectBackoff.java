@@ -0,0 +1,68 @@
+package com.tritonsvc.agent;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential back-off with full jitter for reconnect attempts the agent drives itself. Each delay is picked uniformly
+ * between zero and the current ceiling, which doubles per failed attempt up to a cap, so a fleet of gateways that lost
+ * the broker at the same moment doesn't come back at the same moment.
+ */
+public class ReconnectBackoff {
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Random random;
+    private int attempts;
+    private long nextAttemptAt;
+
+    /**
+     * Constructor
+     *
+     * @param baseMillis ceiling of the first delay
+     * @param maxMillis cap of the ceiling
+     */
+    public ReconnectBackoff(long baseMillis, long maxMillis) {
+        this(baseMillis, maxMillis, null);
+    }
+
+    ReconnectBackoff(long baseMillis, long maxMillis, Random random) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    /**
+     * record a failed attempt and pick the delay before the next one
+     *
+     * @return millis to wait
+     */
+    public synchronized long nextDelayMillis() {
+        long ceiling = maxMillis;
+        if (attempts < 62 && baseMillis << attempts > 0) {
+            ceiling = Math.min(maxMillis, baseMillis << attempts);
+        }
+        attempts++;
+        long delay = (long) ((random != null ? random.nextDouble() : ThreadLocalRandom.current().nextDouble()) * (ceiling + 1));
+        nextAttemptAt = System.currentTimeMillis() + delay;
+        return delay;
+    }
+
+    /**
+     * @return true once the delay picked by the last failed attempt has passed
+     */
+    public synchronized boolean isAttemptDue() {
+        return System.currentTimeMillis() >= nextAttemptAt;
+    }
+
+    /**
+     * start over from the base ceiling after a successful connect
+     */
+    public synchronized void reset() {
+        attempts = 0;
+        nextAttemptAt = 0;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+}
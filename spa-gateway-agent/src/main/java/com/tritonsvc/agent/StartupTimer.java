@@ -0,0 +1,103 @@
+package com.tritonsvc.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Records how long each agent startup phase took and when milestones such as the first uplink were first reached,
+ * both relative to when the timer was created.
+ */
+public class StartupTimer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StartupTimer.class);
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> phases = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, Long> milestones = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * run a startup phase and record its duration, also when it fails
+     *
+     * @param phase
+     * @param work
+     */
+    public void time(String phase, Runnable work) {
+        time(phase, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * run a startup phase and record its duration, also when it fails
+     *
+     * @param phase
+     * @param work
+     * @return result of the work
+     */
+    public <T> T time(String phase, Supplier<T> work) {
+        long start = System.nanoTime();
+        try {
+            return work.get();
+        } finally {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            phases.put(phase, millis);
+            LOGGER.info("startup phase {} took {} ms", phase, millis);
+        }
+    }
+
+    /**
+     * note a milestone, only its first occurrence is kept
+     *
+     * @param milestone
+     * @return true if this was the first occurrence
+     */
+    public boolean milestone(String milestone) {
+        long millis = getElapsedMillis();
+        if (milestones.putIfAbsent(milestone, millis) != null) {
+            return false;
+        }
+        LOGGER.info("startup milestone {} reached after {} ms", milestone, millis);
+        return true;
+    }
+
+    /**
+     * @param phase
+     * @return duration in millis, or null if the phase hasn't finished
+     */
+    public Long getPhaseMillis(String phase) {
+        return phases.get(phase);
+    }
+
+    /**
+     * @param milestone
+     * @return millis since the timer was created, or null if not reached yet
+     */
+    public Long getMilestoneMillis(String milestone) {
+        return milestones.get(milestone);
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return phase and milestone timings in the order they were recorded
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder("phases");
+        synchronized (phases) {
+            phases.forEach((phase, millis) -> summary.append(' ').append(phase).append('=').append(millis).append("ms"));
+        }
+        summary.append(", milestones");
+        synchronized (milestones) {
+            milestones.forEach((milestone, millis) -> summary.append(' ').append(milestone).append('=').append(millis).append("ms"));
+        }
+        return summary.toString();
+    }
+}
@@ -10,9 +10,11 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Futures;
 import com.tritonsvc.HostUtils;
 import com.tritonsvc.agent.Agent;
 import com.tritonsvc.agent.AgentConfiguration;
+import com.tritonsvc.agent.AgentScheduler;
 import com.tritonsvc.agent.AgentSettingsPersister;
 import com.tritonsvc.agent.MQTTCommandProcessor;
 import com.tritonsvc.httpd.RegistrationInfoHolder;
@@ -36,6 +38,7 @@ import com.tritonsvc.spa.communication.proto.Bwg.Uplink.UplinkCommandType;
 import com.tritonsvc.spa.communication.proto.BwgHelper;
 import com.tritonsvc.sw_upgrade.SoftwareUpgradeManager;
 import com.tritonsvc.wifi.ParserIwconfig;
+import com.tritonsvc.wifi.WifiStatCollector;
 import jdk.dio.DeviceManager;
 import jdk.dio.uart.UART;
 import jdk.dio.uart.UARTConfig;
@@ -47,6 +50,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -68,10 +72,16 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
     // this guarantees that at least one
     // mqtt downlink is due to arrive into agent via the reg ack in given time
     private static final long MAX_PANEL_REQUEST_INTERIM = 10000;
-    private static final long DEFAULT_UPDATE_INTERVAL = 60000; //0 is continuous, in ms
+    private static final long DEFAULT_UPDATE_INTERVAL = 300000; //0 is continuous, in ms
+    private static final long DEFAULT_HEARTBEAT_MIN_INTERVAL = 30000;
+    private static final long DEFAULT_LIVE_INTERVAL = 5000;
+    private static final long DEFAULT_LIVE_MIN_INTERVAL = 1000;
+    private static final long DEFAULT_LIVE_MAX_DURATION = 1800000; // 30 mins
     private static final long DEFAULT_WIFIUPDATE_INTERVAL = 3600000; // 1 hour
-    private static final long DEFAULT_AMBIENT_INTERVAL = 300000; // 5 mins
-    private static final long DEFAULT_PUMP_CURRENT_INTERVAL = 300000; // 5 mins
+    private static final long DEFAULT_AMBIENT_INTERVAL = 1800000; // 30 mins without a significant change
+    private static final long DEFAULT_PUMP_CURRENT_INTERVAL = 1800000; // 30 mins without a significant change
+    private static final long DEFAULT_BUS_STATS_INTERVAL = 900000; // 15 mins
+    private static final long HARVEST_STAGE_INTERVAL = 3000;
 
     private static Logger LOGGER = LoggerFactory.getLogger(BWGProcessor.class);
     private static Map<String, String> DEFAULT_EMPTY_MAP = newHashMap();
@@ -80,23 +90,31 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
     private Properties configProps;
     private String gwSerialNumber;
     private OidProperties oidProperties = new OidProperties();
-    private RS485DataHarvester rs485DataHarvester;
-    private RS485MessagePublisher rs485MessagePublisher;
-    private FaultLogManager faultLogManager;
+    // swapped when the controller type changes, whoever locks the harvester state reads the field once and uses that harvester throughout
+    private volatile RS485DataHarvester rs485DataHarvester;
+    private volatile RS485MessagePublisher rs485MessagePublisher;
+    private volatile FaultLogManager faultLogManager;
     private UART rs485Uart;
+    // set by the registration stage, the other harvest stages skip until the spa is registered
+    private volatile String spaHardwareId;
+    private final Object downlinkLock = new Object();
+    // each of the following is owned by the one harvest stage that uses it
     private long lastSpaDetailsSent = 0;
     private long lastWifiStatsSent = 0;
     private long lastPanelRequestSent = 0;
+    private long defaultUpdateInterval = DEFAULT_UPDATE_INTERVAL;
     private AtomicLong updateInterval = new AtomicLong(DEFAULT_UPDATE_INTERVAL);
+    private SpaStateCadence spaStateCadence = new SpaStateCadence(updateInterval::get, DEFAULT_HEARTBEAT_MIN_INTERVAL,
+            DEFAULT_LIVE_INTERVAL, DEFAULT_LIVE_MIN_INTERVAL, DEFAULT_LIVE_MAX_DURATION);
     private AtomicLong wifiStatUpdateInterval = new AtomicLong(DEFAULT_WIFIUPDATE_INTERVAL);
     private AtomicLong ambientUpdateInterval = new AtomicLong(DEFAULT_AMBIENT_INTERVAL);
     private AtomicLong pumpCurrentUpdateInterval = new AtomicLong(DEFAULT_PUMP_CURRENT_INTERVAL);
     private Byte persistedRS485Address = null;
     private long lastFaultLogsSent = 0;
-    private long lastAmbientSent = 0;
-    private long lastPumpCurrentSent = 0;
     private long lastWifiStatsRead = 0;
     private long lastRS485StatusChangeEventSent = 0;
+    private long busStatsInterval = DEFAULT_BUS_STATS_INTERVAL;
+    private long lastBusStatsSent = System.currentTimeMillis();
     private ScheduledExecutorService es = null;
     private ScheduledFuture<?> intervalResetFuture = null;
     private String rs485ControllerType = null;
@@ -107,14 +125,15 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
     private WifiStat lastWifiStatParsed = null;
     private WifiStat lastWifiStatSent = null;
     private ParserIwconfig lwconfigParser = new ParserIwconfig();
+    private WifiStatCollector wifiStatCollector = null;
     private boolean sentRebootEvent = false;
     private ButtonManager buttonManager;
     private String homePath;
     private WSNDataHarvester wsnDataHarvester;
-    private SoftwareUpgradeManager softwareUpgradeManager;
+    private volatile SoftwareUpgradeManager softwareUpgradeManager;
     private boolean skipSoftwareUpgrade = false;
     private String serialPort;
-    private boolean militaryTimeDisplay;
+    private volatile boolean militaryTimeDisplay;
 
     /**
      * Constructor
@@ -144,6 +163,7 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
             es.shutdown();
         }
         if (buttonManager != null) {
+            buttonManager.shutdown();
             buttonManager.stopAPProcessIfPresent();
         }
         if (softwareUpgradeManager != null) {
@@ -161,6 +181,8 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
         this.iwConfigPath = configProps.getProperty(AgentConfiguration.WIFI_IWCONFIG_PATH, "/sbin/iwconfig");
         this.ifConfigPath = configProps.getProperty(AgentConfiguration.WIFI_IFCONFIG_PATH, "/sbin/ifconfig");
         this.ethernetDevice = configProps.getProperty(AgentConfiguration.ETHERNET_DEVICE_NAME, "eth0");
+        Long iwconfigRefreshSeconds = Longs.tryParse(configProps.getProperty(AgentConfiguration.WIFI_IWCONFIG_REFRESH_SECONDS, "3600"));
+        this.wifiStatCollector = new WifiStatCollector(lwconfigParser, iwconfigRefreshSeconds != null ? iwconfigRefreshSeconds * 1000 : 3600000L);
         this.skipSoftwareUpgrade = Boolean.parseBoolean(configProps.getProperty(AgentConfiguration.SKIP_UPGARDE, "false"));
         this.serialPort = configProps.getProperty(AgentConfiguration.RS485_LINUX_SERIAL_PORT, "ttys0");
         this.es = executorService;
@@ -171,19 +193,37 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
         } else {
             timeoutMs *= 1000;
         }
-        this.buttonManager = new ButtonManager(new WebServer(configProps, this, this, timeoutMs), timeoutMs, this, ifConfigPath, iwConfigPath);
-
-        setupAgentSettings();
-        validateOidProperties();
-        setUpRS485Processors();
+        Long busStatsSeconds = Longs.tryParse(configProps.getProperty(AgentConfiguration.RS485_STATS_INTERVAL_SECONDS, ""));
+        this.busStatsInterval = busStatsSeconds != null ? busStatsSeconds * 1000 : DEFAULT_BUS_STATS_INTERVAL;
+        setUpSpaStateCadence(configProps);
+        final long webServerTimeoutMs = timeoutMs;
+
+        // the button doesn't depend on the rs485 bus, bring both up at the same time
+        Future<?> buttonStartup = executorService.submit(() -> getStartupTimer().time("button-manager", () -> {
+            this.buttonManager = new ButtonManager(new WebServer(configProps, this, this, webServerTimeoutMs), webServerTimeoutMs, this, ifConfigPath, iwConfigPath,
+                    configProps.getProperty(AgentConfiguration.BUTTON_GPIO_PATH));
+            this.buttonManager.start();
+        }));
+
+        getStartupTimer().time("settings-apply", () -> {
+            setupAgentSettings();
+            validateOidProperties();
+        });
+        getStartupTimer().time("rs485", this::setUpRS485Processors);
+        // the harvester is only started once the first uplink went out, see handleDeferredStartup
         wsnDataHarvester = new WSNDataHarvester(this);
-        executorService.execute(wsnDataHarvester);
-
-        this.softwareUpgradeManager = new SoftwareUpgradeManager(configProps);
+        Futures.getUnchecked(buttonStartup);
+        scheduleHarvestStages(getScheduler(), HARVEST_STAGE_INTERVAL);
 
         LOGGER.info("finished startup.");
     }
 
+    @Override
+    protected void handleDeferredStartup() {
+        getScheduler().executeBlocking("wsn-harvester", wsnDataHarvester);
+        LOGGER.info("started wsn harvester");
+    }
+
     @Override
     public void handleRegistrationAck(RegistrationResponse response, String originatorId, String hardwareId) {
         if (response.getState() == RegistrationAckState.REGISTRATION_ERROR) {
@@ -256,7 +296,14 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
     }
 
     @Override
-    public synchronized void handleDownlinkCommand(Request request, String hardwareId, String originatorId) {
+    public void handleDownlinkCommand(Request request, String hardwareId, String originatorId) {
+        // downlinks wait for each other only, the harvest stages never hold this lock
+        synchronized (downlinkLock) {
+            processDownlinkRequest(request, hardwareId, originatorId);
+        }
+    }
+
+    private void processDownlinkRequest(Request request, String hardwareId, String originatorId) {
         if (request == null || !request.hasRequestType()) {
             LOGGER.error("Request is null, not processing, []", originatorId);
             sendAck(hardwareId, originatorId, AckResponseCode.ERROR, "gateway has not registered with controller yet");
@@ -342,67 +389,138 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
 
     @Override
     public void processEventsHandler() {
-        buttonManager.finish();
-        buttonManager.mark();
+        buttonManager.checkAPModeTimeout();
     }
 
+    /**
+     * registration and spa state publish stages, fault logs, measurements and wifi diag run as stages of their own,
+     * see scheduleHarvestStages
+     */
     @Override
-    public synchronized void processDataHarvestIteration() {
-        boolean locked = false;
+    public void processDataHarvestIteration() {
         try {
-            DeviceRegistration registeredSpa = obtainSpaRegistration();
-            if (registeredSpa.getHardwareId() == null) {
+            String hardwareId = processRegistration();
+            if (hardwareId == null) {
                 if(LOGGER.isDebugEnabled()) LOGGER.debug("skipping data harvest, spa gateway has not been registered");
                 return;
             }
-            long timestamp = System.currentTimeMillis();
+            processSpaStatePublish(hardwareId);
+        } catch (Exception ex) {
+            LOGGER.error("error while processing data harvest", ex);
+        }
+    }
 
-            // make sure the controller is registered as a compoenent to cloud
-            obtainControllerRegistration(registeredSpa.getHardwareId());
-            processWifiDiag(registeredSpa.getHardwareId());
+    /**
+     * schedule the harvest stages that don't have to run in step with the spa state publish, each on its own so a
+     * slow one, e.g. iwconfig during wifi diag, doesn't hold up the others
+     *
+     * @param scheduler
+     * @param initialDelayMillis
+     */
+    @VisibleForTesting
+    void scheduleHarvestStages(AgentScheduler scheduler, long initialDelayMillis) {
+        scheduleHarvestStage(scheduler, "wifi-diag", initialDelayMillis, this::processWifiDiag);
+        scheduleHarvestStage(scheduler, "fault-logs", initialDelayMillis, this::processFaultLogStage);
+        scheduleHarvestStage(scheduler, "measurements", initialDelayMillis, this::processMeasurementStage);
+    }
+
+    private void scheduleHarvestStage(AgentScheduler scheduler, String name, long initialDelayMillis, HarvestStage stage) {
+        scheduler.scheduleWithFixedDelay(name, () -> {
+            String hardwareId = spaHardwareId;
+            if (hardwareId == null) {
+                return;
+            }
+            try {
+                stage.process(hardwareId);
+            } catch (Throwable ex) {
+                LOGGER.error("error while processing data harvest stage {}", name, ex);
+            }
+        }, initialDelayMillis, HARVEST_STAGE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * make sure the gateway and the controller are registered as components to cloud
+     *
+     * @return spa hardware id, null while the gateway has not been registered
+     */
+    @VisibleForTesting
+    String processRegistration() {
+        DeviceRegistration registeredSpa = obtainSpaRegistration();
+        if (registeredSpa.getHardwareId() == null) {
+            spaHardwareId = null;
+            return null;
+        }
+        obtainControllerRegistration(registeredSpa.getHardwareId());
+        spaHardwareId = registeredSpa.getHardwareId();
+        return spaHardwareId;
+    }
+
+    private void processSpaStatePublish(String hardwareId) throws Exception {
+        // one harvester for the whole stage, a controller type downlink may swap it meanwhile
+        RS485DataHarvester harvester = getRS485DataHarvester();
+        boolean locked = false;
+        try {
+            long timestamp = System.currentTimeMillis();
             buttonManager.sendPendingEventIfAvailable();
 
-            boolean rs485Active;
-            getRS485DataHarvester().getLatestSpaInfoLock().readLock().lockInterruptibly();
+            harvester.getLatestSpaInfoLock().readLock().lockInterruptibly();
             locked = true;
-            if (getRS485DataHarvester().getLatestSpaInfo().hasController() && getRS485DataHarvester().getLatestSpaInfo().getController().hasMilitary()) {
-                militaryTimeDisplay = getRS485DataHarvester().getLatestSpaInfo().getController().getMilitary();
+            if (harvester.getLatestSpaInfo().hasController() && harvester.getLatestSpaInfo().getController().hasMilitary()) {
+                militaryTimeDisplay = harvester.getLatestSpaInfo().getController().getMilitary();
             }
-            if (!getRS485DataHarvester().hasAllConfigState() &&
+            if (!harvester.hasAllConfigState() &&
                     (timestamp - lastPanelRequestSent > MAX_PANEL_REQUEST_INTERIM)) {
-                getRS485MessagePublisher().sendPanelRequest(getRS485DataHarvester().getRegisteredAddress(), false, null);
+                getRS485MessagePublisher().sendPanelRequest(harvester.getRegisteredAddress(), false, null);
                 lastPanelRequestSent = timestamp;
             }
-            rs485Active = getRS485DataHarvester().getLatestSpaInfo().getRs485AddressActive();
-            // this loop runs often(once every 3 seconds), but only send up to cloud when timestamps on state data change
-            // or at least the update interval has passed since last cloud update was sent
-            if (timestamp - lastSpaDetailsSent > updateInterval.get()) {
-                getRS485DataHarvester().getLatestSpaInfoLock().readLock().unlock();
+            // this loop runs often(once every 3 seconds), but only send up to cloud when state data changes
+            // or the refresh interval of the reporting mode has passed since last cloud update was sent
+            if (spaStateCadence.isRefreshDue(timestamp)) {
+                harvester.getLatestSpaInfoLock().readLock().unlock();
                 locked = false;
-                updateSpaInfoStateForLatestCloudUpdate(timestamp);
-                getRS485DataHarvester().getLatestSpaInfoLock().readLock().lockInterruptibly();
+                updateSpaInfoStateForLatestCloudUpdate(harvester, timestamp);
+                harvester.getLatestSpaInfoLock().readLock().lockInterruptibly();
                 locked = true;
             }
 
-            if (lastSpaDetailsSent != getRS485DataHarvester().getLatestSpaInfo().getLastUpdateTimestamp()) {
-                getCloudDispatcher().sendUplink(registeredSpa.getHardwareId(), null, UplinkCommandType.SPA_STATE, getRS485DataHarvester().getLatestSpaInfo(), false);
-                lastSpaDetailsSent = getRS485DataHarvester().getLatestSpaInfo().getLastUpdateTimestamp();
+            SpaState latestSpaInfo = harvester.getLatestSpaInfo();
+            if (lastSpaDetailsSent != latestSpaInfo.getLastUpdateTimestamp() && spaStateCadence.shouldSend(timestamp, latestSpaInfo)) {
+                sendSpaState(hardwareId, latestSpaInfo);
+                lastSpaDetailsSent = latestSpaInfo.getLastUpdateTimestamp();
+                spaStateCadence.sent(timestamp, latestSpaInfo);
                 LOGGER.info("Finished data harvest periodic iteration, sent spa state to cloud");
             }
-            getRS485DataHarvester().getLatestSpaInfoLock().readLock().unlock();
-            locked = false;
-
-            processFaultLogs(registeredSpa.getHardwareId(), rs485Active);
-            processMeasurements(registeredSpa.getHardwareId());
-        } catch (Exception ex) {
-            LOGGER.error("error while processing data harvest", ex);
         } finally {
             if (locked) {
-                getRS485DataHarvester().getLatestSpaInfoLock().readLock().unlock();
+                harvester.getLatestSpaInfoLock().readLock().unlock();
             }
         }
     }
 
+    @VisibleForTesting
+    void processFaultLogStage(String hardwareId) throws Exception {
+        RS485DataHarvester harvester = getRS485DataHarvester();
+        boolean rs485Active;
+        harvester.getLatestSpaInfoLock().readLock().lockInterruptibly();
+        try {
+            rs485Active = harvester.getLatestSpaInfo().getRs485AddressActive();
+        } finally {
+            harvester.getLatestSpaInfoLock().readLock().unlock();
+        }
+        processFaultLogs(harvester, hardwareId, rs485Active);
+    }
+
+    @VisibleForTesting
+    void processMeasurementStage(String hardwareId) throws Exception {
+        processMeasurements(hardwareId);
+        processBusStatistics(hardwareId);
+    }
+
+    @Override
+    protected String getStatisticsHardwareId() {
+        return spaHardwareId;
+    }
+
     @Override
     public String getRegKey() {
         return getGatewayMetaParam("regKey");
@@ -439,7 +557,7 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
             setRS485DataHarvester(new NGSCDataHarvester(this, (NGSCMessagePublisher) getRS485MessagePublisher(), faultLogManager));
             LOGGER.info("Configured RS485 connection for BWG NGSC Protocol");
         }
-        es.execute(getRS485DataHarvester());
+        getScheduler().executeBlocking("rs485-harvester", getRS485DataHarvester());
     }
 
     public String getRS485ControllerType() {
@@ -530,11 +648,12 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
      * @throws Exception
      */
     public LightComponent.State getLatestLightState(int port) throws Exception {
+        RS485DataHarvester harvester = getRS485DataHarvester();
         boolean locked = false;
         try {
-            getRS485DataHarvester().getLatestSpaInfoLock().readLock().lockInterruptibly();
+            harvester.getLatestSpaInfoLock().readLock().lockInterruptibly();
             locked = true;
-            SpaState spaState = getRS485DataHarvester().getLatestSpaInfo();
+            SpaState spaState = harvester.getLatestSpaInfo();
             if (spaState.hasController() && spaState.hasComponents()) {
                 switch (port) {
                     case 1:
@@ -558,7 +677,7 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
             return null;
         } finally {
             if (locked) {
-                getRS485DataHarvester().getLatestSpaInfoLock().readLock().unlock();
+                harvester.getLatestSpaInfoLock().readLock().unlock();
             }
         }
     }
@@ -673,6 +792,7 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
                         .setScale(0, BigDecimal.ROUND_HALF_UP).intValue();
             }
 
+            RS485DataHarvester harvester = getRS485DataHarvester();
             boolean locked = false;
             TempRange tempRange = null;
             int waterTemp = 0;
@@ -682,24 +802,24 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
             int lowHigh = 0;
             int lowLow = 0;
             try {
-                getRS485DataHarvester().getLatestSpaInfoLock().readLock().lockInterruptibly();
+                harvester.getLatestSpaInfoLock().readLock().lockInterruptibly();
                 locked = true;
-                if (getRS485DataHarvester().getLatestSpaInfo().hasController()) {
-                    tempRange = getRS485DataHarvester().getLatestSpaInfo().getController().getTempRange();
-                    waterTemp = getRS485DataHarvester().getLatestSpaInfo().getController().getCurrentWaterTemp();
-                    heaterMode = getRS485DataHarvester().getLatestSpaInfo().getController().getHeaterMode();
+                if (harvester.getLatestSpaInfo().hasController()) {
+                    tempRange = harvester.getLatestSpaInfo().getController().getTempRange();
+                    waterTemp = harvester.getLatestSpaInfo().getController().getCurrentWaterTemp();
+                    heaterMode = harvester.getLatestSpaInfo().getController().getHeaterMode();
                 }
-                if (getRS485DataHarvester().getLatestSpaInfo().hasSetupParams()) {
-                    highHigh = getRS485DataHarvester().getLatestSpaInfo().getSetupParams().getHighRangeHigh();
-                    highLow = getRS485DataHarvester().getLatestSpaInfo().getSetupParams().getHighRangeLow();
-                    lowHigh = getRS485DataHarvester().getLatestSpaInfo().getSetupParams().getLowRangeHigh();
-                    lowLow = getRS485DataHarvester().getLatestSpaInfo().getSetupParams().getLowRangeLow();
+                if (harvester.getLatestSpaInfo().hasSetupParams()) {
+                    highHigh = harvester.getLatestSpaInfo().getSetupParams().getHighRangeHigh();
+                    highLow = harvester.getLatestSpaInfo().getSetupParams().getHighRangeLow();
+                    lowHigh = harvester.getLatestSpaInfo().getSetupParams().getLowRangeHigh();
+                    lowLow = harvester.getLatestSpaInfo().getSetupParams().getLowRangeLow();
                 }
             } catch (Exception ex) {
                 LOGGER.error("error while processing data harvest", ex);
             } finally {
                 if (locked) {
-                    getRS485DataHarvester().getLatestSpaInfoLock().readLock().unlock();
+                    harvester.getLatestSpaInfoLock().readLock().unlock();
                 }
             }
 
@@ -736,6 +856,7 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
         final Integer wifiIntervalSeconds = Ints.tryParse(BwgHelper.getRequestMetadataValue(SpaCommandAttribName.WIFI_INTERVAL_SECONDS.name(), metadataList));
         final Integer ambientIntervalSeconds = Ints.tryParse(BwgHelper.getRequestMetadataValue(SpaCommandAttribName.AMBIENT_INTERVAL_SECONDS.name(), metadataList));
         final Integer pumpCurrentIntervalSeconds = Ints.tryParse(BwgHelper.getRequestMetadataValue(SpaCommandAttribName.PUMP_CURRENT_INTERVAL_SECONDS.name(), metadataList));
+        final String reportingMode = BwgHelper.getRequestMetadataValue(SpaCommandAttribName.REPORTING_MODE.name(), metadataList);
 
         if (intervalSeconds != null && durationMinutes != null) {
             updateInterval.set(1000L * intervalSeconds.longValue());
@@ -752,13 +873,24 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
                 clearUpdateIntervalFromAgentSettings();
                 // after given minutes, update interval returns to its original state
                 if (this.es != null) {
-                    this.intervalResetFuture = this.es.schedule(() -> {
-                        updateInterval.set(DEFAULT_UPDATE_INTERVAL);
+                    this.intervalResetFuture = getScheduler().schedule("update-interval-reset", () -> {
+                        updateInterval.set(defaultUpdateInterval);
                     }, durationMinutes.longValue(), TimeUnit.MINUTES);
                 }
             }
         }
 
+        if (SpaStateCadence.Mode.LIVE.name().equalsIgnoreCase(reportingMode)) {
+            // a user is watching the spa, live until told otherwise or the duration is over
+            spaStateCadence.goLive(System.currentTimeMillis(), durationMinutes != null ? TimeUnit.MINUTES.toMillis(durationMinutes) : 0);
+            LOGGER.info("spa state reporting is live for {} seconds", (spaStateCadence.getLiveUntil() - System.currentTimeMillis()) / 1000);
+        } else if (SpaStateCadence.Mode.HEARTBEAT.name().equalsIgnoreCase(reportingMode)) {
+            spaStateCadence.goHeartbeat();
+            LOGGER.info("spa state reporting is back to heartbeat");
+        } else if (reportingMode != null) {
+            LOGGER.warn("unknown spa state reporting mode {}, ignoring", reportingMode);
+        }
+
         if (wifiIntervalSeconds != null) {
             if (wifiIntervalSeconds < 0) {
                 wifiStatUpdateInterval.set(DEFAULT_WIFIUPDATE_INTERVAL);
@@ -960,7 +1092,7 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
     }
 
     private void checkIfStartupAfterUpgrade(final String hardwareId) {
-        final String oldVersionNumber = softwareUpgradeManager.readOldVersionNumber();
+        final String oldVersionNumber = getSoftwareUpgradeManager().readOldVersionNumber();
         if (oldVersionNumber != null) {
             // current version
             final String buildNumber = getBuildParams().get("BWG-Agent-Build-Number");
@@ -978,41 +1110,87 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
 
     private void checkAndPerformSoftwareUpgrade(final String swUpgradeUrl, final String hardwareId) {
         final String buildNumber = getBuildParams().get("BWG-Agent-Build-Number");
-        softwareUpgradeManager.checkAndPerformSoftwareUpgrade(swUpgradeUrl, buildNumber, hardwareId, this);
+        getSoftwareUpgradeManager().checkAndPerformSoftwareUpgrade(swUpgradeUrl, buildNumber, hardwareId, this);
     }
 
-    private void updateSpaInfoStateForLatestCloudUpdate(long timestamp) throws Exception {
+    /**
+     * created on first use, upgrades are only checked once the cloud has answered a registration
+     *
+     * @return
+     */
+    private synchronized SoftwareUpgradeManager getSoftwareUpgradeManager() {
+        if (softwareUpgradeManager == null) {
+            softwareUpgradeManager = new SoftwareUpgradeManager(configProps);
+        }
+        return softwareUpgradeManager;
+    }
+
+    private void updateSpaInfoStateForLatestCloudUpdate(RS485DataHarvester harvester, long timestamp) throws Exception {
         boolean wLocked = false;
 
         try {
-            getRS485DataHarvester().getLatestSpaInfoLock().writeLock().lockInterruptibly();
+            harvester.getLatestSpaInfoLock().writeLock().lockInterruptibly();
             wLocked = true;
-            SpaState.Builder stateBuilder = SpaState.newBuilder(getRS485DataHarvester().getLatestSpaInfo());
+            SpaState.Builder stateBuilder = SpaState.newBuilder(harvester.getLatestSpaInfo());
             stateBuilder.setLastUpdateTimestamp(timestamp);
-            getRS485DataHarvester().setLatestSpaInfo(stateBuilder.build());
+            harvester.setLatestSpaInfo(stateBuilder.build());
         } finally {
             if (wLocked) {
-                getRS485DataHarvester().getLatestSpaInfoLock().writeLock().unlock();
+                harvester.getLatestSpaInfoLock().writeLock().unlock();
             }
         }
     }
 
     private void processMeasurements(String hardwareId) throws IOException {
+        // the harvester only queues readings that changed significantly or hit the max silence interval
+        wsnDataHarvester.sendSignificantWSNDataToCloud(newArrayList(DataType.AMBIENT_TEMP, DataType.AMBIENT_HUMIDITY, DataType.PUMP_AC_CURRENT), hardwareId);
+    }
+
+    /**
+     * @param type
+     * @return longest time a sensor of the type may go without sending a reading, ms
+     */
+    public long getMeasurementMaxSilence(DataType type) {
+        switch (type) {
+            case AMBIENT_TEMP:
+            case AMBIENT_HUMIDITY:
+                return ambientUpdateInterval.get();
+            case PUMP_AC_CURRENT:
+                return pumpCurrentUpdateInterval.get();
+            default:
+                return DEFAULT_AMBIENT_INTERVAL;
+        }
+    }
+
+    private void processBusStatistics(String hardwareId) {
         long now = System.currentTimeMillis();
-        if ( (ambientUpdateInterval.get() < 1 && (now - lastAmbientSent > DEFAULT_AMBIENT_INTERVAL)) ||
-                (now - lastAmbientSent > ambientUpdateInterval.get())) {
-            wsnDataHarvester.sendLatestWSNDataToCloud(newArrayList(DataType.AMBIENT_TEMP, DataType.AMBIENT_HUMIDITY), hardwareId);
-            lastAmbientSent = now;
+        if (busStatsInterval < 1 || now - lastBusStatsSent < busStatsInterval) {
+            return;
         }
+        lastBusStatsSent = now;
+
+        RS485BusStatistics busStatistics = getRS485DataHarvester().getBusStatistics();
+        BusTurnaroundTimer busTurnaround = getRS485MessagePublisher().getBusTurnaround();
+        LOGGER.info("rs485 bus statistics {}, {}", busStatistics, busTurnaround);
+        if (LOGGER.isDebugEnabled()) LOGGER.debug("rs485 inter frame gaps {}, poll response latency {}", busStatistics.getInterFrameGap(), busStatistics.getPollResponseLatency());
 
-        if ( (pumpCurrentUpdateInterval.get() < 1 && (now - lastPumpCurrentSent > DEFAULT_PUMP_CURRENT_INTERVAL)) ||
-                (now - lastPumpCurrentSent > pumpCurrentUpdateInterval.get())) {
-            wsnDataHarvester.sendLatestWSNDataToCloud(newArrayList(DataType.PUMP_AC_CURRENT), hardwareId);
-            lastPumpCurrentSent = now;
+        Event.Builder event = Event.newBuilder()
+                .setEventOccuredTimestamp(now)
+                .setEventReceivedTimestamp(now)
+                .setEventType(EventType.MEASUREMENT)
+                .setDescription("Spa Controller rs-485 bus statistics");
+        for (Map.Entry<String, String> entry : busStatistics.toMetadata().entrySet()) {
+            event.addMetadata(Metadata.newBuilder().setName(entry.getKey()).setValue(entry.getValue()));
         }
+        event.addMetadata(Metadata.newBuilder().setName("turnaroundMicros").setValue(Long.toString(busTurnaround.getTurnaroundMicros())));
+        event.addMetadata(Metadata.newBuilder().setName("turnaroundCollisions").setValue(Long.toString(busTurnaround.getCollisions())));
+        event.addMetadata(Metadata.newBuilder().setName("turnaroundNacks").setValue(Long.toString(busTurnaround.getNacks())));
+        event.addMetadata(Metadata.newBuilder().setName("downlinksCoalesced").setValue(Long.toString(getRS485MessagePublisher().getPendingDownlinks().getCoalesced())));
+        sendEvents(hardwareId, newArrayList(event.build()));
     }
 
-    private void processFaultLogs(String hardwareId, boolean lastRs485Active) throws Exception {        // send when logs fetched from device become available
+    private void processFaultLogs(RS485DataHarvester harvester, String hardwareId, boolean lastRs485Active) throws Exception {        // send when logs fetched from device become available
+        FaultLogManager faultLogManager = this.faultLogManager;
         long timestamp = System.currentTimeMillis();
         if (faultLogManager.hasUnsentFaultLogs()) {
             final Bwg.Uplink.Model.FaultLogs faultLogs = faultLogManager.getUnsentFaultLogs();
@@ -1028,10 +1206,10 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
         if ((timestamp - lastFaultLogsSent > faultLogManager.getFetchInterval()) || nextLogNumberToFetch > -1) {
             // get latest fetch log entry or entry with number held by fault log manager
             Short logNumber = nextLogNumberToFetch > -1 ? Short.valueOf((short) nextLogNumberToFetch) : null;
-            LOGGER.info("sending request for fault log number {}, address {}", logNumber != null ? logNumber.toString() : 255, getRS485DataHarvester().getRegisteredAddress());
+            LOGGER.info("sending request for fault log number {}, address {}", logNumber != null ? logNumber.toString() : 255, harvester.getRegisteredAddress());
 
             try {
-                getRS485MessagePublisher().sendPanelRequest(getRS485DataHarvester().getRegisteredAddress(), true, logNumber);
+                getRS485MessagePublisher().sendPanelRequest(harvester.getRegisteredAddress(), true, logNumber);
             } catch (RS485Exception ex) {
                 LOGGER.error("unable to send request for fault log", ex);
             }
@@ -1045,15 +1223,15 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
             boolean wLocked = false;
 
             try {
-                getRS485DataHarvester().getLatestSpaInfoLock().writeLock().lockInterruptibly();
+                harvester.getLatestSpaInfoLock().writeLock().lockInterruptibly();
                 wLocked = true;
-                SpaState.Builder stateBuilder = SpaState.newBuilder(getRS485DataHarvester().getLatestSpaInfo());
+                SpaState.Builder stateBuilder = SpaState.newBuilder(harvester.getLatestSpaInfo());
                 stateBuilder.setRs485AddressActive(currentRs485Active);
                 stateBuilder.setLastUpdateTimestamp(timestamp);
-                getRS485DataHarvester().setLatestSpaInfo(stateBuilder.build());
+                harvester.setLatestSpaInfo(stateBuilder.build());
             } finally {
                 if (wLocked) {
-                    getRS485DataHarvester().getLatestSpaInfoLock().writeLock().unlock();
+                    harvester.getLatestSpaInfoLock().writeLock().unlock();
                 }
             }
             if ((timestamp - lastRS485StatusChangeEventSent) > faultLogHisteresis) {
@@ -1071,9 +1249,9 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
         }
 
         if (!currentRs485Active) {
-            rs485DataHarvester.rollAddressState();
+            harvester.rollAddressState();
         } else {
-            rs485DataHarvester.confirmAddressState(timestamp);
+            harvester.confirmAddressState(timestamp);
         }
     }
 
@@ -1087,7 +1265,9 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
                 !Objects.equals(currentWifiStat.getEthernetPluggedIn(), lastWifiStatParsed.getEthernetPluggedIn());
     }
 
-    private void processWifiDiag(String hardwareId) {
+    @VisibleForTesting
+    void processWifiDiag(String hardwareId) {
+        RS485DataHarvester harvester = getRS485DataHarvester();
         boolean wLocked = false;
         long now = System.currentTimeMillis();
 
@@ -1097,20 +1277,20 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
 
         lastWifiStatsRead = now;
         try {
-            WifiStat currentWifiStat = lwconfigParser.parseStat(wifiDevice, lastWifiStatSent, iwConfigPath, ethernetDevice);
+            WifiStat currentWifiStat = wifiStatCollector.collect(wifiDevice, lastWifiStatSent, iwConfigPath, ethernetDevice);
             long receivedTime = now + 1;
 
             if (hasWifiStateChanged(currentWifiStat)) {
-                getRS485DataHarvester().getLatestSpaInfoLock().writeLock().lockInterruptibly();
+                harvester.getLatestSpaInfoLock().writeLock().lockInterruptibly();
                 wLocked = true;
-                SpaState.Builder stateBuilder = SpaState.newBuilder(getRS485DataHarvester().getLatestSpaInfo());
+                SpaState.Builder stateBuilder = SpaState.newBuilder(harvester.getLatestSpaInfo());
                 stateBuilder.setWifiState(currentWifiStat.getWifiConnectionHealth());
                 stateBuilder.setEthernetPluggedIn(currentWifiStat.getEthernetPluggedIn());
                 stateBuilder.setLastUpdateTimestamp(receivedTime);
                 stateBuilder.setUpdateInterval(getUpdateIntervalSeconds());
                 stateBuilder.setWifiUpdateInterval(getWifiUpdateIntervalSeconds());
-                getRS485DataHarvester().setLatestSpaInfo(stateBuilder.build());
-                getRS485DataHarvester().getLatestSpaInfoLock().writeLock().unlock();
+                harvester.setLatestSpaInfo(stateBuilder.build());
+                harvester.getLatestSpaInfoLock().writeLock().unlock();
                 wLocked = false;
                 String oldWifiStatus = (lastWifiStatParsed == null ? WifiConnectionHealth.UNKONWN.name() : lastWifiStatParsed.getWifiConnectionHealth().name());
                 LOGGER.info("Wifi status change detected, from " + oldWifiStatus + " to " + currentWifiStat.getWifiConnectionHealth().name());
@@ -1145,7 +1325,7 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
             LOGGER.error("problem while processing wifi diag", ex);
         } finally {
             if (wLocked) {
-                getRS485DataHarvester().getLatestSpaInfoLock().writeLock().unlock();
+                harvester.getLatestSpaInfoLock().writeLock().unlock();
             }
         }
     }
@@ -1377,6 +1557,22 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
         saveAgentSettings(null);
     }
 
+    private void setUpSpaStateCadence(Properties configProps) {
+        Long heartbeatSeconds = Longs.tryParse(configProps.getProperty(AgentConfiguration.SPA_STATE_HEARTBEAT_INTERVAL_SECONDS, ""));
+        Long heartbeatMinSeconds = Longs.tryParse(configProps.getProperty(AgentConfiguration.SPA_STATE_HEARTBEAT_MIN_INTERVAL_SECONDS, ""));
+        Long liveSeconds = Longs.tryParse(configProps.getProperty(AgentConfiguration.SPA_STATE_LIVE_INTERVAL_SECONDS, ""));
+        Long liveMinMillis = Longs.tryParse(configProps.getProperty(AgentConfiguration.SPA_STATE_LIVE_MIN_INTERVAL_MILLIS, ""));
+        Long liveMaxMinutes = Longs.tryParse(configProps.getProperty(AgentConfiguration.SPA_STATE_LIVE_MAX_MINUTES, ""));
+
+        defaultUpdateInterval = heartbeatSeconds != null ? heartbeatSeconds * 1000 : DEFAULT_UPDATE_INTERVAL;
+        updateInterval.set(defaultUpdateInterval);
+        spaStateCadence = new SpaStateCadence(updateInterval::get,
+                heartbeatMinSeconds != null ? heartbeatMinSeconds * 1000 : DEFAULT_HEARTBEAT_MIN_INTERVAL,
+                liveSeconds != null ? liveSeconds * 1000 : DEFAULT_LIVE_INTERVAL,
+                liveMinMillis != null ? liveMinMillis : DEFAULT_LIVE_MIN_INTERVAL,
+                liveMaxMinutes != null ? TimeUnit.MINUTES.toMillis(liveMaxMinutes) : DEFAULT_LIVE_MAX_DURATION);
+    }
+
     private void setupAgentSettings() {
         final AgentSettings agentSettings = getAgentSettings();
         if (agentSettings != null && agentSettings.getGenericSettings() != null && agentSettings.getGenericSettings().getUpdateInterval() != null) {
@@ -1408,4 +1604,8 @@ public class BWGProcessor extends MQTTCommandProcessor implements RegistrationIn
             setRS485ControllerType(agentSettings.getGenericSettings().getRs485ControllerType());
         }
     }
+
+    private interface HarvestStage {
+        void process(String hardwareId) throws Exception;
+    }
 }
@@ -0,0 +1,201 @@
+package com.tritonsvc.gateway;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.primitives.Longs;
+import com.tritonsvc.agent.AgentConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Works out how long to hold off after the spa controller hands over the rs485 bus before writing to it.
+ *
+ * rs485 spec from BWG specifies that clients shouldn't submit to the bus for at least 250 usecs after receiving
+ * a prompt to do so, to give the spa controller time to release the bus. Time already spent handling the
+ * prompt counts towards that, so only the remainder is waited. The turnaround starts at the configured minimum,
+ * doubles when the first frame seen after one of our writes is corrupted (likely collision) or a write fails,
+ * and steps back down after a run of clean exchanges, halving the distance to the last turnaround that
+ * collided, so it settles just above what the controller actually needs.
+ *
+ * Waits below a millisecond can't be done with Thread.sleep, the scheduler rounds those up, so the bulk of a
+ * wait is parked and the last stretch is spun. Frame end times passed in are read from the same ticker the timer
+ * waits on, System.nanoTime unless a test hands in its own.
+ */
+public class BusTurnaroundTimer {
+    private static Logger LOGGER = LoggerFactory.getLogger(BusTurnaroundTimer.class);
+    public static final long DEFAULT_MIN_TURNAROUND_MICROS = 250;
+    public static final long DEFAULT_MAX_TURNAROUND_MICROS = 4000;
+    private static final long SPIN_THRESHOLD_NANOS = 100000;
+    private static final int CLEAN_EXCHANGES_PER_STEP_DOWN = 32;
+    private static final int CLEAN_EXCHANGES_TO_FORGET_COLLISION = 4096;
+    private static final long STEP_GRANULARITY_NANOS = 25000;
+
+    private final long minTurnaroundNanos;
+    private final long maxTurnaroundNanos;
+    private final Ticker ticker;
+    private volatile long turnaroundNanos;
+    private long collidedTurnaroundNanos;
+    private volatile long clearToSendNanos;
+    private volatile boolean awaitingOutcome;
+    private int cleanExchanges;
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong collisions = new AtomicLong();
+    private final AtomicLong nacks = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param minTurnaroundMicros
+     * @param maxTurnaroundMicros
+     */
+    public BusTurnaroundTimer(long minTurnaroundMicros, long maxTurnaroundMicros) {
+        this(minTurnaroundMicros, maxTurnaroundMicros, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    BusTurnaroundTimer(long minTurnaroundMicros, long maxTurnaroundMicros, Ticker ticker) {
+        this.ticker = ticker;
+        this.minTurnaroundNanos = TimeUnit.MICROSECONDS.toNanos(minTurnaroundMicros);
+        this.maxTurnaroundNanos = Math.max(minTurnaroundNanos, TimeUnit.MICROSECONDS.toNanos(maxTurnaroundMicros));
+        this.turnaroundNanos = minTurnaroundNanos;
+        this.collidedTurnaroundNanos = minTurnaroundNanos;
+    }
+
+    /**
+     * build a timer from agent config, defaults are used for anything not set
+     *
+     * @param props may be null
+     * @return
+     */
+    public static BusTurnaroundTimer fromConfig(Properties props) {
+        Long min = props != null ? Longs.tryParse(props.getProperty(AgentConfiguration.RS485_TURNAROUND_MIN_MICROS, "")) : null;
+        Long max = props != null ? Longs.tryParse(props.getProperty(AgentConfiguration.RS485_TURNAROUND_MAX_MICROS, "")) : null;
+        return new BusTurnaroundTimer(min != null ? min : DEFAULT_MIN_TURNAROUND_MICROS, max != null ? max : DEFAULT_MAX_TURNAROUND_MICROS);
+    }
+
+    /**
+     * a frame from the spa controller just ended, if we were waiting to hear how our last write went,
+     * this frame tells us
+     *
+     * @param frameEndNanos
+     * @param validFrame
+     */
+    public void frameReceived(long frameEndNanos, boolean validFrame) {
+        clearToSendNanos = frameEndNanos;
+        if (!awaitingOutcome) {
+            return;
+        }
+        awaitingOutcome = false;
+        if (validFrame) {
+            recordCleanExchange();
+        } else {
+            collisions.incrementAndGet();
+            backOff("corrupted frame after write");
+        }
+    }
+
+    /**
+     * hold off until the bus turnaround has elapsed since the last frame ended, then the caller may write
+     *
+     * @throws InterruptedException
+     */
+    public void awaitTurnaround() throws InterruptedException {
+        long now = ticker.read();
+        long start = clearToSendNanos != 0 ? clearToSendNanos : now;
+        long deadline = start + turnaroundNanos;
+        if (deadline - now > 0) {
+            pause(deadline);
+            waitedNanos.addAndGet(ticker.read() - now);
+        }
+        writes.incrementAndGet();
+        awaitingOutcome = true;
+    }
+
+    /**
+     * the write to the bus failed
+     */
+    public void recordNack() {
+        awaitingOutcome = false;
+        nacks.incrementAndGet();
+        backOff("failed write");
+    }
+
+    public long getTurnaroundMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(turnaroundNanos);
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getCollisions() {
+        return collisions.get();
+    }
+
+    public long getNacks() {
+        return nacks.get();
+    }
+
+    public long getWaitedMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(waitedNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("turnaround=%dus, writes=%d, collisions=%d, nacks=%d, waited=%dus",
+                getTurnaroundMicros(), getWrites(), getCollisions(), getNacks(), getWaitedMicros());
+    }
+
+    private synchronized void recordCleanExchange() {
+        cleanExchanges++;
+        if (cleanExchanges % CLEAN_EXCHANGES_TO_FORGET_COLLISION == 0) {
+            // conditions on the bus change, allow probing all the way back down again
+            collidedTurnaroundNanos = minTurnaroundNanos;
+        }
+        if (cleanExchanges % CLEAN_EXCHANGES_PER_STEP_DOWN != 0 || turnaroundNanos - collidedTurnaroundNanos < STEP_GRANULARITY_NANOS) {
+            return;
+        }
+        turnaroundNanos = Math.max(minTurnaroundNanos, (turnaroundNanos + collidedTurnaroundNanos) / 2);
+        if (LOGGER.isDebugEnabled()) LOGGER.debug("rs485 bus turnaround reduced to {}us", getTurnaroundMicros());
+    }
+
+    private synchronized void backOff(String reason) {
+        cleanExchanges = 0;
+        collidedTurnaroundNanos = turnaroundNanos;
+        turnaroundNanos = Math.min(maxTurnaroundNanos, turnaroundNanos * 2);
+        LOGGER.info("rs485 bus turnaround increased to {}us after {}", getTurnaroundMicros(), reason);
+    }
+
+    /**
+     * hold the calling thread until the ticker reaches the deadline
+     *
+     * @param deadlineNanos
+     * @throws InterruptedException
+     */
+    @VisibleForTesting
+    void pause(long deadlineNanos) throws InterruptedException {
+        pauseUntil(ticker, deadlineNanos);
+    }
+
+    static void pauseUntil(long deadlineNanos) throws InterruptedException {
+        pauseUntil(Ticker.systemTicker(), deadlineNanos);
+    }
+
+    private static void pauseUntil(Ticker ticker, long deadlineNanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadlineNanos - ticker.read()) > 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            }
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package com.tritonsvc.gateway;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.tritonsvc.CommandRunner;
+import com.tritonsvc.CommandRunner.CommandResult;
 import com.tritonsvc.HostUtils;
 import com.tritonsvc.httpd.WebServer;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.EventType;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Event;
+import jdk.dio.DeviceManager;
+import jdk.dio.i2cbus.I2CDeviceConfig;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.FileBasedConfiguration;
 import org.apache.commons.configuration2.PropertiesConfiguration;
@@ -13,12 +17,9 @@ import org.apache.commons.configuration2.builder.fluent.Parameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static org.apache.commons.io.FileUtils.forceDelete;
@@ -29,6 +30,13 @@ import static org.apache.commons.io.FileUtils.forceDelete;
 public class ButtonManager {
 
     private static Logger LOGGER = LoggerFactory.getLogger(BWGProcessor.class);
+    private static final long BUTTON_HOLD_MILLIS = 3000;
+    private static final long BUTTON_SAMPLE_MILLIS = 10;
+    private static final long BUTTON_DEBOUNCE_MILLIS = 20;
+    // the ts-imx6 fpga sits on i2c-2, register 31 reads 0 while the button is pressed
+    private static final int TS_FPGA_I2C_CONTROLLER = 2;
+    private static final int TS_FPGA_I2C_ADDRESS = 0x28;
+    private static final int TS_FPGA_BUTTON_REGISTER = 31;
     private WebServer webServer;
     private ButtonState buttonState;
     private long webServerTimeoutMs;
@@ -36,18 +44,19 @@ public class ButtonManager {
     private ConcurrentLinkedQueue<Event> events;
     private String ifConfigPath = null;
     private String iwConfigPath = null;
+    private String buttonGpioPath = null;
+    private GpioButton button;
     private boolean startedAP = false;
 
     private enum ButtonState {
         NOT_PRESSED,
-        PRESSED,
         WEB_SERVER_RUNNING
     }
 
     /**
      * Constructor
      */
-    public ButtonManager(WebServer webServer, long webServerTimeoutMs, BWGProcessor processor, String ifConfigPath, String iwConfigPath) {
+    public ButtonManager(WebServer webServer, long webServerTimeoutMs, BWGProcessor processor, String ifConfigPath, String iwConfigPath, String buttonGpioPath) {
         this.webServer = webServer;
         buttonState = ButtonState.NOT_PRESSED;
         this.webServerTimeoutMs = webServerTimeoutMs;
@@ -55,47 +64,60 @@ public class ButtonManager {
         events = new ConcurrentLinkedQueue<>();
         this.ifConfigPath = ifConfigPath;
         this.iwConfigPath = iwConfigPath;
+        this.buttonGpioPath = buttonGpioPath;
     }
 
     /**
-     * denote when button state is first checked
+     * start watching the button
      */
-    public void mark() {
-        if (buttonState.equals(ButtonState.NOT_PRESSED)) {
-            buttonState = checkButtonState() ? ButtonState.PRESSED : ButtonState.NOT_PRESSED;
+    public synchronized void start() {
+        if (button == null) {
+            button = createButton();
+            if (button != null) {
+                button.start();
+            }
         }
     }
 
     /**
-     * compare present state of button to marked state if button was pressed at both points in time
-     * then launch ap mode web service
-     *
-     * @return
+     * stop watching the button
      */
-    public void finish() {
-        if (buttonState.equals(ButtonState.PRESSED)) {
-            if (checkButtonState()) {
-                try {
-                    buttonState = ButtonState.WEB_SERVER_RUNNING;
-                    startWifiAP();
-                    webServer.start();
-                    LOGGER.info("launched ap mode due to button press");
-                } catch (Exception ex) {
-                    LOGGER.error("problem starting ap mode", ex);
-                }
-                return;
-            }
-        } else if (buttonState.equals(ButtonState.WEB_SERVER_RUNNING)) {
-            if (System.currentTimeMillis() - webServer.getLastActivity() > webServerTimeoutMs) {
-                // network settings change in web server, will set lastActivity to 0, which triggers network restart here
-                stopWifiAP(webServer.updatedNetwork());
-                webServer.stop();
-                LOGGER.info("stopped ap mode due to web server notification of timeout or complete.");
-            } else {
-                return;
-            }
+    public synchronized void shutdown() {
+        if (button != null) {
+            button.stop();
+            button = null;
+        }
+    }
+
+    /**
+     * stop ap mode once the web server has been idle past its timeout or was told the network settings changed
+     */
+    public synchronized void checkAPModeTimeout() {
+        if (buttonState.equals(ButtonState.WEB_SERVER_RUNNING) &&
+                System.currentTimeMillis() - webServer.getLastActivity() > webServerTimeoutMs) {
+            // network settings change in web server, will set lastActivity to 0, which triggers network restart here
+            stopWifiAP(webServer.updatedNetwork());
+            webServer.stop();
+            buttonState = ButtonState.NOT_PRESSED;
+            LOGGER.info("stopped ap mode due to web server notification of timeout or complete.");
+        }
+    }
+
+    /**
+     * the button was held long enough, launch ap mode web service
+     */
+    private synchronized void buttonHeld() {
+        if (!buttonState.equals(ButtonState.NOT_PRESSED)) {
+            return;
+        }
+        try {
+            buttonState = ButtonState.WEB_SERVER_RUNNING;
+            startWifiAP();
+            webServer.start();
+            LOGGER.info("launched ap mode due to button press");
+        } catch (Exception ex) {
+            LOGGER.error("problem starting ap mode", ex);
         }
-        buttonState = ButtonState.NOT_PRESSED;
     }
 
     /**
@@ -118,42 +140,42 @@ public class ButtonManager {
 
         if (getHostUtils().isRunit()) {
             try {
-                executeUnixCommand("sudo sv stop /service/wifi_ap").waitFor(10, TimeUnit.SECONDS);
+                runCommand("sudo sv stop /service/wifi_ap");
                 LOGGER.info("stopped wifi ap if it was present");
             } catch (Exception ex) {
                 LOGGER.error("had error stopping wifi ap process", ex);
             }
         } else {
             try {
-                executeUnixCommand("sudo pkill -9 udhcpd").waitFor(10, TimeUnit.SECONDS);
+                runCommand("sudo pkill -9 udhcpd");
                 LOGGER.info("stopped udhcpd if present");
             } catch (Exception ex) {
                 LOGGER.error("had error stopping udhcpd process", ex);
             }
 
             try {
-                executeUnixCommand("sudo pkill -9 hostapd").waitFor(10, TimeUnit.SECONDS);
+                runCommand("sudo pkill -9 hostapd");
                 LOGGER.info("stopped hostapd if present");
             } catch (Exception ex) {
                 LOGGER.error("had error stopping hostapd process", ex);
             }
 
             try {
-                executeUnixCommand("sudo " + iwConfigPath + " " + processor.getWifiDeviceName() + " mode Managed").waitFor(10, TimeUnit.SECONDS);
+                runCommand("sudo " + iwConfigPath + " " + processor.getWifiDeviceName() + " mode Managed");
                 LOGGER.info("changed wifi ap mode to managed");
             } catch (Exception ex) {
                 LOGGER.error("had error stopping wlan ap interface", ex);
             }
 
             try {
-                executeUnixCommand("sudo " + ifConfigPath + " " + processor.getWifiDeviceName() + " down").waitFor(10, TimeUnit.SECONDS);
+                runCommand("sudo " + ifConfigPath + " " + processor.getWifiDeviceName() + " down");
                 LOGGER.info("brought wifi device down");
             } catch (Exception ex) {
                 LOGGER.error("had error stopping wlan ap interface", ex);
             }
 
             try {
-                executeUnixCommand("sudo " + ifConfigPath + " " + processor.getWifiDeviceName() + " up").waitFor(10, TimeUnit.SECONDS);
+                runCommand("sudo " + ifConfigPath + " " + processor.getWifiDeviceName() + " up");
                 LOGGER.info("brought wifi device up");
             } catch (Exception ex) {
                 LOGGER.error("had error starting wlan ap interface", ex);
@@ -203,15 +225,15 @@ public class ButtonManager {
 
         stopAPProcessIfPresent();
         if (getHostUtils().isSystemD()) {
-            executeUnixCommand("sudo systemctl stop wpa_supplicant@" + processor.getWifiDeviceName()).waitFor(10, TimeUnit.SECONDS);
+            runCommand("sudo systemctl stop wpa_supplicant@" + processor.getWifiDeviceName());
             LOGGER.info("stopped wpa supplicant");
-            executeUnixCommand("sudo /usr/sbin/udhcpd");
+            spawnCommand("sudo /usr/sbin/udhcpd");
             LOGGER.info("started udhcpd");
-            executeUnixCommand("sudo /usr/sbin/hostapd -B /etc/hostapd.conf");
+            spawnCommand("sudo /usr/sbin/hostapd -B /etc/hostapd.conf");
             LOGGER.info("started hostapd");
         } else {
-            executeUnixCommand("sudo sv stop /service/wifi_station").waitFor(10, TimeUnit.SECONDS);
-            executeUnixCommand("sudo sv start /service/wifi_ap").waitFor(10, TimeUnit.SECONDS);
+            runCommand("sudo sv stop /service/wifi_station");
+            runCommand("sudo sv start /service/wifi_ap");
             LOGGER.info("started wifi ap");
         }
     }
@@ -227,19 +249,19 @@ public class ButtonManager {
         startedAP = false;
         try {
             if (getHostUtils().isSystemD()) {
-                executeUnixCommand("sudo systemctl restart wpa_supplicant@" + processor.getWifiDeviceName()).waitFor(10, TimeUnit.SECONDS);
+                runCommand("sudo systemctl restart wpa_supplicant@" + processor.getWifiDeviceName());
                 if (restartNetwork) {
-                    executeUnixCommand("sudo " + ifConfigPath + " " + processor.getEthernetDeviceName() + " down").waitFor(10, TimeUnit.SECONDS);
-                    executeUnixCommand("sudo ip addr flush dev " + processor.getEthernetDeviceName()).waitFor(10, TimeUnit.SECONDS);
-                    executeUnixCommand("sudo systemctl restart systemd-networkd").waitFor(10, TimeUnit.SECONDS);
+                    runCommand("sudo " + ifConfigPath + " " + processor.getEthernetDeviceName() + " down");
+                    runCommand("sudo ip addr flush dev " + processor.getEthernetDeviceName());
+                    runCommand("sudo systemctl restart systemd-networkd");
                     LOGGER.info("restarted linux networking");
                 }
             } else {
                 if (restartNetwork) {
-                    executeUnixCommand("sudo ifdown -af").waitFor(10, TimeUnit.SECONDS);
-                    executeUnixCommand("sudo ifup -af").waitFor(10, TimeUnit.SECONDS);
+                    runCommand("sudo ifdown -af");
+                    runCommand("sudo ifup -af");
                 }
-                executeUnixCommand("sudo sv start /service/wifi_station").waitFor(10, TimeUnit.SECONDS);
+                runCommand("sudo sv start /service/wifi_station");
             }
             LOGGER.info("restarted wifi ap client");
         } catch (Exception ex) {
@@ -259,42 +281,53 @@ public class ButtonManager {
         LOGGER.info("stopped ap mode, and restarted wifi client mode");
     }
 
-    private boolean checkButtonState() {
-        try {
-            if (getHostUtils().getOsType().equals(HostUtils.TS_IMX6)) {
-                Process proc = executeUnixCommand("sudo tshwctl --addr 31 --peek");
-                proc.waitFor(2, TimeUnit.SECONDS);
-                String line;
-                try (BufferedReader output = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
-                    while ((line = output.readLine()) != null) {
-                        if (line.toLowerCase().contains("0x0")) {
-                            return true;
-                        }
-                    }
-                }
-            } else if (getHostUtils().getOsType().equals(HostUtils.BEAGLEBONE)){
-                //TODO
-            } else {
-                Process proc = executeUnixCommand("cat /dev/gpio_button");
-                proc.waitFor(2, TimeUnit.SECONDS);
-                String line;
-                try (BufferedReader output = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
-                    while ((line = output.readLine()) != null) {
-                        if (line.toLowerCase().contains("1")) {
-                            return true;
-                        }
-                    }
-                }
+    @VisibleForTesting
+    GpioButton createButton() {
+        GpioButton.Listener listener = new GpioButton.Listener() {
+            @Override
+            public void pressed() {
+                if (LOGGER.isDebugEnabled()) LOGGER.debug("button pressed");
             }
-        } catch (Exception ex) {
-            LOGGER.error("unable to check button state", ex);
+
+            @Override
+            public void held(long pressedMillis) {
+                buttonHeld();
+            }
+
+            @Override
+            public void released(long pressedMillis) {
+                if (LOGGER.isDebugEnabled()) LOGGER.debug("button released after {} ms", pressedMillis);
+            }
+        };
+
+        if (buttonGpioPath != null) {
+            return new GpioButton(new GpioButton.FileValueSource(new File(buttonGpioPath)),
+                    BUTTON_SAMPLE_MILLIS, BUTTON_DEBOUNCE_MILLIS, BUTTON_HOLD_MILLIS, listener);
         }
-        return false;
+        return createButton(getHostUtils().getOsType(), listener);
     }
 
     @VisibleForTesting
-    Process executeUnixCommand(String command) throws IOException {
-        return Runtime.getRuntime().exec(command);
+    GpioButton createButton(String osType, GpioButton.Listener listener) {
+        if (osType.equals(HostUtils.TS_IMX6)) {
+            return new GpioButton(new GpioButton.I2CRegisterValueSource(this::openFpga, TS_FPGA_BUTTON_REGISTER, 0),
+                    BUTTON_SAMPLE_MILLIS, BUTTON_DEBOUNCE_MILLIS, BUTTON_HOLD_MILLIS, listener);
+        } else if (osType.equals(HostUtils.BEAGLEBONE)) {
+            //TODO
+            return null;
+        }
+        return new GpioButton(new GpioButton.FileValueSource(new File("/dev/gpio_button")),
+                BUTTON_SAMPLE_MILLIS, BUTTON_DEBOUNCE_MILLIS, BUTTON_HOLD_MILLIS, listener);
+    }
+
+    @VisibleForTesting
+    CommandResult runCommand(String command) {
+        return CommandRunner.instance().run("apMode", command, 10000);
+    }
+
+    @VisibleForTesting
+    void spawnCommand(String command) throws IOException {
+        CommandRunner.instance().spawn("apMode", command);
     }
 
     @VisibleForTesting FileBasedConfigurationBuilder<FileBasedConfiguration> getHostApdConf() throws Exception {
@@ -305,6 +338,15 @@ public class ButtonManager {
                         .setIncludesAllowed(false));
     }
 
+    @VisibleForTesting
+    I2CBusDevice openFpga() throws IOException {
+        return I2CBusDevice.of(DeviceManager.open(new I2CDeviceConfig.Builder()
+                .setControllerNumber(TS_FPGA_I2C_CONTROLLER)
+                .setAddress(TS_FPGA_I2C_ADDRESS, I2CDeviceConfig.ADDR_SIZE_7)
+                .setClockFrequency(I2CDeviceConfig.UNASSIGNED)
+                .build()));
+    }
+
     @VisibleForTesting
     HostUtils getHostUtils() {
         return HostUtils.instance();
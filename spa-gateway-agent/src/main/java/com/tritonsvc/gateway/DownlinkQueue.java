@@ -0,0 +1,107 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.gateway.RS485MessagePublisher.PendingRequest;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Bounded queue of downlinks waiting for a poll from the spa controller.
+ *
+ * Urgent requests (time sync, panel requests) are handed out ahead of normal ones, otherwise order is
+ * first in first out. A request with a coalesce key supersedes anything still queued under the same key, e.g. a
+ * newer target temperature replaces an older one that hasn't reached the bus yet. The superseded requests ride along
+ * with the one that replaced them so their originators get acked with its outcome. Only requests carrying an absolute
+ * value get a key, button presses toggle or step a component so every one of them has to reach the bus.
+ */
+public class DownlinkQueue {
+
+    public enum Priority {
+        URGENT,
+        NORMAL
+    }
+
+    private final int capacity;
+    private final LinkedList<PendingRequest> urgent = new LinkedList<>();
+    private final LinkedList<PendingRequest> normal = new LinkedList<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     */
+    public DownlinkQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * queue a request, coalescing it with any it supersedes
+     *
+     * @param request
+     * @return false if the queue is full
+     */
+    public synchronized boolean offer(PendingRequest request) {
+        LinkedList<PendingRequest> queue = request.getPriority() == Priority.URGENT ? urgent : normal;
+        if (request.getCoalesceKey() != null) {
+            Iterator<PendingRequest> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                PendingRequest queued = iterator.next();
+                if (request.getCoalesceKey().equals(queued.getCoalesceKey())) {
+                    iterator.remove();
+                    request.supersede(queued);
+                    coalesced.incrementAndGet();
+                }
+            }
+        }
+        if (size() >= capacity) {
+            return false;
+        }
+        queue.add(request);
+        return true;
+    }
+
+    /**
+     * take the next request to send
+     *
+     * @return null if nothing is queued
+     */
+    public synchronized PendingRequest poll() {
+        PendingRequest request = urgent.poll();
+        return request != null ? request : normal.poll();
+    }
+
+    /**
+     * remove everything queued
+     *
+     * @return the removed requests, urgent first
+     */
+    public synchronized List<PendingRequest> drain() {
+        List<PendingRequest> drained = newArrayList(urgent);
+        drained.addAll(normal);
+        urgent.clear();
+        normal.clear();
+        return drained;
+    }
+
+    public synchronized int size() {
+        return urgent.size() + normal.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * number of requests dropped in favour of a newer one
+     *
+     * @return
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,285 @@
+package com.tritonsvc.gateway;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a physical button from a single long lived reader thread, debounces it and reports presses, releases
+ * with their duration, and holds once a press has lasted long enough.
+ *
+ * The gpio value file, or the fpga register on boards without one, is kept open and re-read in process, so watching
+ * the button spawns no processes.
+ * A press is reported once the value has been stable for the debounce time, detection latency is at most
+ * the sample interval plus the debounce time.
+ */
+public class GpioButton {
+    private static Logger LOGGER = LoggerFactory.getLogger(GpioButton.class);
+
+    /**
+     * reads the present level of the button
+     */
+    public interface ValueSource extends Closeable {
+        boolean isPressed() throws IOException;
+    }
+
+    /**
+     * notified from the reader thread
+     */
+    public interface Listener {
+        void pressed();
+
+        void held(long pressedMillis);
+
+        void released(long pressedMillis);
+    }
+
+    private final ValueSource source;
+    private final long sampleIntervalMillis;
+    private final long debounceMillis;
+    private final long holdMillis;
+    private final Listener listener;
+    private volatile boolean running;
+    private Thread reader;
+
+    // only touched by the reader thread
+    private boolean rawPressed;
+    private long rawChangedAt;
+    private boolean pressed;
+    private long pressedAt;
+    private boolean heldReported;
+    private boolean readFailing;
+
+    /**
+     * Constructor
+     *
+     * @param source
+     * @param sampleIntervalMillis
+     * @param debounceMillis how long the level must be stable before a press or release is reported
+     * @param holdMillis how long a press lasts before it is reported as held
+     * @param listener
+     */
+    public GpioButton(ValueSource source, long sampleIntervalMillis, long debounceMillis, long holdMillis, Listener listener) {
+        this.source = source;
+        this.sampleIntervalMillis = sampleIntervalMillis;
+        this.debounceMillis = debounceMillis;
+        this.holdMillis = holdMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * start the reader thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        reader = new Thread(() -> {
+            while (running) {
+                sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+                try {
+                    Thread.sleep(sampleIntervalMillis);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }, "gpio-button");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * stop the reader thread and release the gpio
+     */
+    public synchronized void stop() {
+        running = false;
+        if (reader != null) {
+            reader.interrupt();
+            try {
+                reader.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            reader = null;
+        }
+        try {
+            source.close();
+        } catch (IOException ex) {
+            LOGGER.error("unable to close button gpio", ex);
+        }
+    }
+
+    /**
+     * debounced state of the button
+     *
+     * @return
+     */
+    public boolean isPressed() {
+        return pressed;
+    }
+
+    @VisibleForTesting
+    ValueSource getSource() {
+        return source;
+    }
+
+    @VisibleForTesting
+    void sample(long now) {
+        boolean raw;
+        try {
+            raw = source.isPressed();
+            readFailing = false;
+        } catch (IOException ex) {
+            if (!readFailing) {
+                LOGGER.error("unable to check button state", ex);
+                readFailing = true;
+            }
+            raw = false;
+        }
+
+        if (raw != rawPressed) {
+            rawPressed = raw;
+            rawChangedAt = now;
+        }
+        try {
+            if (rawPressed != pressed && now - rawChangedAt >= debounceMillis) {
+                pressed = rawPressed;
+                if (pressed) {
+                    pressedAt = rawChangedAt;
+                    heldReported = false;
+                    listener.pressed();
+                } else {
+                    listener.released(rawChangedAt - pressedAt);
+                }
+            }
+            if (pressed && !heldReported && now - pressedAt >= holdMillis) {
+                heldReported = true;
+                listener.held(now - pressedAt);
+            }
+        } catch (Exception ex) {
+            LOGGER.error("problem handling button state change", ex);
+        }
+    }
+
+    /**
+     * reads a gpio value file such as /sys/class/gpio/gpioN/value or /dev/gpio_button, '1' is pressed
+     */
+    public static class FileValueSource implements ValueSource {
+        private final File file;
+        private final byte[] buffer = new byte[8];
+        private RandomAccessFile gpio;
+
+        /**
+         * Constructor
+         *
+         * @param file
+         */
+        public FileValueSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public boolean isPressed() throws IOException {
+            if (gpio != null) {
+                try {
+                    gpio.seek(0);
+                } catch (IOException ex) {
+                    // some device files can't seek, read them from a fresh open
+                    close();
+                }
+            }
+            if (gpio == null) {
+                gpio = new RandomAccessFile(file, "r");
+            }
+            try {
+                int read = gpio.read(buffer);
+                for (int i = 0; i < read; i++) {
+                    if (!Character.isWhitespace(buffer[i])) {
+                        return buffer[i] == '1';
+                    }
+                }
+                return false;
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (gpio != null) {
+                try {
+                    gpio.close();
+                } finally {
+                    gpio = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * reads the button from a register of the board's fpga over i2c, the same transaction tshwctl --peek makes, for
+     * boards that have no gpio value file for it
+     */
+    public static class I2CRegisterValueSource implements ValueSource {
+        private final Callable<I2CBusDevice> opener;
+        private final int register;
+        private final int pressedValue;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+        private I2CBusDevice device;
+
+        /**
+         * Constructor
+         *
+         * @param opener opens the fpga on the bus, called again after a failed read
+         * @param register 16 bit register address
+         * @param pressedValue register value while the button is pressed
+         */
+        I2CRegisterValueSource(Callable<I2CBusDevice> opener, int register, int pressedValue) {
+            this.opener = opener;
+            this.register = register;
+            this.pressedValue = pressedValue;
+        }
+
+        @Override
+        public boolean isPressed() throws IOException {
+            if (device == null) {
+                try {
+                    device = opener.call();
+                } catch (IOException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException("unable to open the button register", ex);
+                }
+            }
+            buffer.clear();
+            try {
+                device.read(register, 2, buffer);
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+            return (buffer.get(0) & 0xFF) == pressedValue;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (device != null) {
+                try {
+                    device.close();
+                } finally {
+                    device = null;
+                }
+            }
+        }
+    }
+}
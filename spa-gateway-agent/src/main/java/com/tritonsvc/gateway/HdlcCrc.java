@@ -50,6 +50,17 @@ public class HdlcCrc {
         return calculateHdlcCrc8(input, 0, input.length) == HDLC_FCS8_VALID;
     }
 
+    /**
+     * validate the fcs that is inline in the first length bytes of the array
+     *
+     * @param input
+     * @param length
+     * @return
+     */
+    public static boolean isValidFCS(byte[] input, int length) {
+        return calculateHdlcCrc8(input, 0, length) == HDLC_FCS8_VALID;
+    }
+
     /**
      * generate the fcs from a full message byte array, that has beginning flag delimiter
      * and has not had fcs byte or trailing flag delimiter put in yet
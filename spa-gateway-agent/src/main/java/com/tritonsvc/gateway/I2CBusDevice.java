@@ -0,0 +1,61 @@
+package com.tritonsvc.gateway;
+
+import jdk.dio.i2cbus.I2CDevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The i2c transactions the wired sensors and the fpga button use, lets tests stand in for the bus
+ */
+interface I2CBusDevice extends Closeable {
+
+    int read(int skip, ByteBuffer dst) throws IOException;
+
+    int read(int subaddress, int subaddressSize, ByteBuffer dst) throws IOException;
+
+    int read(ByteBuffer dst) throws IOException;
+
+    int read() throws IOException;
+
+    void write(int srcData) throws IOException;
+
+    /**
+     * @param device
+     * @return the device as seen by the sensors
+     */
+    static I2CBusDevice of(I2CDevice device) {
+        return new I2CBusDevice() {
+            @Override
+            public int read(int skip, ByteBuffer dst) throws IOException {
+                return device.read(skip, dst);
+            }
+
+            @Override
+            public int read(int subaddress, int subaddressSize, ByteBuffer dst) throws IOException {
+                return device.read(subaddress, subaddressSize, dst);
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return device.read(dst);
+            }
+
+            @Override
+            public int read() throws IOException {
+                return device.read();
+            }
+
+            @Override
+            public void write(int srcData) throws IOException {
+                device.write(srcData);
+            }
+
+            @Override
+            public void close() throws IOException {
+                device.close();
+            }
+        };
+    }
+}
@@ -28,9 +28,29 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class JacuzziDataHarvester extends RS485DataHarvester {
     private static Logger LOGGER = LoggerFactory.getLogger(JacuzziDataHarvester.class);
+
+    /**
+     * where component state sits in the 0x16 panel update message
+     */
+    static final PanelUpdateDecoder.FieldMap PANEL_UPDATE_FIELDS = PanelUpdateDecoder.fieldMap()
+            .field(16, 0x02, 1, Components.Builder::hasAux1, (comps, value) -> comps.setAux1(ToggleComponent.newBuilder(comps.getAux1()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(16, 0x04, 2, Components.Builder::hasAux2, (comps, value) -> comps.setAux2(ToggleComponent.newBuilder(comps.getAux2()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(15, 0x02, 1, Components.Builder::hasOzone, (comps, value) -> comps.setOzone(ToggleComponent.newBuilder(comps.getOzone()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(15, 0x04, 2, Components.Builder::hasUv, (comps, value) -> comps.setUv(ToggleComponent.newBuilder(comps.getUv()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(15, 0x01, 0, Components.Builder::hasHeater1, (comps, value) -> comps.setHeater1(Components.HeaterState.valueOf(value)))
+            .field(15, 0x10, 4, Components.Builder::hasFilterCycle1, (comps, value) -> comps.setFilterCycle1(ToggleComponent.newBuilder(comps.getFilterCycle1()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(15, 0x20, 5, Components.Builder::hasFilterCycle2, (comps, value) -> comps.setFilterCycle2(ToggleComponent.newBuilder(comps.getFilterCycle2()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(14, 0x0C, 2, Components.Builder::hasPump1, (comps, value) -> comps.setPump1(PumpComponent.newBuilder(comps.getPump1()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(14, 0x30, 4, Components.Builder::hasPump2, (comps, value) -> comps.setPump2(PumpComponent.newBuilder(comps.getPump2()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(14, 0xC0, 6, Components.Builder::hasPump3, (comps, value) -> comps.setPump3(PumpComponent.newBuilder(comps.getPump3()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(14, 0x03, 0, Components.Builder::hasCirculationPump, (comps, value) -> comps.setCirculationPump(PumpComponent.newBuilder(comps.getCirculationPump()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(15, 0x08, 3, Components.Builder::hasBlower1, (comps, value) -> comps.setBlower1(BlowerComponent.newBuilder(comps.getBlower1()).setCurrentState(BlowerComponent.State.valueOf(value))))
+            .build();
+
     private BWGProcessor processor;
     private JacuzziMessagePublisher rs485MessagePublisher;
     private AtomicReference<Boolean> isCelsius = new AtomicReference<>();
+    private final PanelUpdateDecoder panelUpdateDecoder = new PanelUpdateDecoder(PANEL_UPDATE_FIELDS);
     private byte[] lightInfo = new byte[]{};
     private boolean populatedSystemInfo;
 
@@ -70,45 +90,12 @@ public class JacuzziDataHarvester extends RS485DataHarvester {
 
     @Override
     public void populateComponentStateFromPanelUpdate(Components.Builder compsBuilder, byte[] message) {
-        if (compsBuilder.hasAux1()) {
-            compsBuilder.setAux1(ToggleComponent.newBuilder(compsBuilder.getAux1()).setCurrentState(ToggleComponent.State.valueOf((0x02 & message[16]) >> 1)));
-        }
-        if (compsBuilder.hasAux2()) {
-            compsBuilder.setAux2(ToggleComponent.newBuilder(compsBuilder.getAux2()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[16]) >> 2)));
-        }
-
-        if (compsBuilder.hasOzone()) {
-            compsBuilder.setOzone(ToggleComponent.newBuilder(compsBuilder.getOzone()).setCurrentState(ToggleComponent.State.valueOf((0x02 & message[15]) >> 1)));
-        }
-        if (compsBuilder.hasUv()) {
-            compsBuilder.setUv(ToggleComponent.newBuilder(compsBuilder.getUv()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[15]) >> 2)));
-        }
-        if (compsBuilder.hasHeater1()) {
-            compsBuilder.setHeater1(Components.HeaterState.valueOf(0x01 & message[15]));
-        }
-
-        if (compsBuilder.hasFilterCycle1()) {
-            compsBuilder.setFilterCycle1(ToggleComponent.newBuilder(compsBuilder.getFilterCycle1()).setCurrentState(ToggleComponent.State.valueOf((0x10 & message[15]) >> 4)));
-        }
-        if (compsBuilder.hasFilterCycle2()) {
-            compsBuilder.setFilterCycle2(ToggleComponent.newBuilder(compsBuilder.getFilterCycle2()).setCurrentState(ToggleComponent.State.valueOf((0x20 & message[15]) >> 5)));
-        }
+        panelUpdateDecoder.decode(compsBuilder, message);
+    }
 
-        if (compsBuilder.hasPump1()) {
-            compsBuilder.setPump1(PumpComponent.newBuilder(compsBuilder.getPump1()).setCurrentState(PumpComponent.State.valueOf((0x0C & message[14]) >> 2)));
-        }
-        if (compsBuilder.hasPump2()) {
-            compsBuilder.setPump2(PumpComponent.newBuilder(compsBuilder.getPump2()).setCurrentState(PumpComponent.State.valueOf((0x30 & message[14]) >> 4)));
-        }
-        if (compsBuilder.hasPump3()) {
-            compsBuilder.setPump3(PumpComponent.newBuilder(compsBuilder.getPump3()).setCurrentState(PumpComponent.State.valueOf((0xC0 & message[14]) >> 6)));
-        }
-        if (compsBuilder.hasCirculationPump()) {
-            compsBuilder.setCirculationPump(PumpComponent.newBuilder(compsBuilder.getCirculationPump()).setCurrentState(PumpComponent.State.valueOf(0x03 & message[14])));
-        }
-        if (compsBuilder.hasBlower1()) {
-            compsBuilder.setBlower1(BlowerComponent.newBuilder(compsBuilder.getBlower1()).setCurrentState(BlowerComponent.State.valueOf((0x08 & message[15]) >> 3)));
-        }
+    @Override
+    protected void panelComponentsReplaced() {
+        panelUpdateDecoder.reset();
     }
 
     @Override
@@ -102,7 +102,7 @@ public class JacuzziMessagePublisher extends RS485MessagePublisher {
             bb.put(DELIMITER_BYTE); // stop flag
             bb.position(0);
 
-            addToPending(new PendingRequest(bb.array(), "self", null));
+            addToPending(new PendingRequest(bb.array(), "self", null, DownlinkQueue.Priority.URGENT, null));
         } catch (Throwable ex) {
             LOGGER.info("rs485 sending panel request got exception " + ex.getMessage());
             throw new RS485Exception(new Exception(ex));
@@ -133,7 +133,7 @@ public class JacuzziMessagePublisher extends RS485MessagePublisher {
             bb.put((byte) (0xFF & newTempFahr));
             bb.put(HdlcCrc.generateFCS(bb.array()));
             bb.put(DELIMITER_BYTE); // stop flag
-            addToPending(new PendingRequest(bb.array(), originatorId, hardwareId));
+            addToPending(new PendingRequest(bb.array(), originatorId, hardwareId, DownlinkQueue.Priority.NORMAL, cloudCoalesceKey("setTemperature", hardwareId)));
         } catch (Throwable ex) {
             LOGGER.info("rs485 set temp got exception " + ex.getMessage());
             throw new RS485Exception(new Exception(ex));
@@ -241,7 +241,7 @@ public class JacuzziMessagePublisher extends RS485MessagePublisher {
             bb.put(DELIMITER_BYTE); // stop flag
             bb.position(0);
 
-            addToPending(new PendingRequest(bb.array(), originatorId, hardwareId));
+            addToPending(new PendingRequest(bb.array(), originatorId, hardwareId, DownlinkQueue.Priority.URGENT, cloudCoalesceKey("updateSpaTime", hardwareId)));
             LOGGER.info("sent time request {}", printHexBinary(bb.array()));
         } catch (Throwable ex) {
             LOGGER.info("rs485 set time and date got exception " + ex.getMessage());
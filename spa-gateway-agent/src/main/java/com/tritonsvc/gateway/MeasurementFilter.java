@@ -0,0 +1,97 @@
+package com.tritonsvc.gateway;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Doubles;
+import com.tritonsvc.agent.AgentConfiguration;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Measurement.DataType;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Decides per sensor which analog readings are worth sending to cloud. A reading is significant when it moved at
+ * least the deadband away from the last significant reading, when it changes faster than the rate of change limit, or
+ * when the sensor has been silent for the max silence interval of its data type.
+ */
+public class MeasurementFilter {
+
+    private static final Map<DataType, Double> DEFAULT_DEADBANDS = ImmutableMap.of(
+            DataType.AMBIENT_TEMP, 1.0,
+            DataType.AMBIENT_HUMIDITY, 3.0,
+            DataType.PUMP_AC_CURRENT, 0.5);
+    private static final Map<DataType, Double> DEFAULT_RATES_PER_MINUTE = ImmutableMap.of(
+            DataType.AMBIENT_TEMP, 2.0,
+            DataType.AMBIENT_HUMIDITY, 5.0,
+            DataType.PUMP_AC_CURRENT, 1.0);
+
+    private final Map<DataType, Double> deadbands = new ConcurrentHashMap<>();
+    private final Map<DataType, Double> ratesPerMinute = new ConcurrentHashMap<>();
+    private final Map<String, Track> tracks = new ConcurrentHashMap<>();
+    private final ToLongFunction<DataType> maxSilence;
+
+    /**
+     * @param props deadbands and rate of change limits per data type, see AgentConfiguration
+     * @param maxSilence longest time a sensor goes without a significant reading, ms per data type
+     */
+    public MeasurementFilter(Properties props, ToLongFunction<DataType> maxSilence) {
+        this.maxSilence = maxSilence;
+        for (DataType type : DataType.values()) {
+            String suffix = type.name().toLowerCase();
+            Double deadband = Doubles.tryParse(props.getProperty(AgentConfiguration.MEASUREMENT_DEADBAND_PREFIX + suffix, ""));
+            Double rate = Doubles.tryParse(props.getProperty(AgentConfiguration.MEASUREMENT_RATE_PER_MINUTE_PREFIX + suffix, ""));
+            deadbands.put(type, deadband != null ? deadband : DEFAULT_DEADBANDS.getOrDefault(type, 0.0));
+            ratesPerMinute.put(type, rate != null ? rate : DEFAULT_RATES_PER_MINUTE.getOrDefault(type, 0.0));
+        }
+    }
+
+    public double getDeadband(DataType type) {
+        return deadbands.get(type);
+    }
+
+    public double getRatePerMinute(DataType type) {
+        return ratesPerMinute.get(type);
+    }
+
+    /**
+     * @param sensor unique sensor key, e.g. the sensor mac
+     * @param type
+     * @param value
+     * @param timestamp when the reading was taken, ms
+     * @return true if the reading should be sent, it becomes the reference for the following ones then
+     */
+    public boolean offer(String sensor, DataType type, double value, long timestamp) {
+        Track track = tracks.computeIfAbsent(sensor, key -> new Track());
+        synchronized (track) {
+            boolean significant = !track.sent
+                    || Math.abs(value - track.sentValue) >= deadbands.get(type)
+                    || timestamp - track.sentTimestamp >= maxSilence.applyAsLong(type)
+                    || isFast(track, type, value, timestamp);
+            track.lastValue = value;
+            track.lastTimestamp = timestamp;
+            if (significant) {
+                track.sent = true;
+                track.sentValue = value;
+                track.sentTimestamp = timestamp;
+            }
+            return significant;
+        }
+    }
+
+    private boolean isFast(Track track, DataType type, double value, long timestamp) {
+        double rate = ratesPerMinute.get(type);
+        if (rate <= 0 || timestamp <= track.lastTimestamp || value == track.sentValue) {
+            return false;
+        }
+        return Math.abs(value - track.lastValue) * 60000.0 / (timestamp - track.lastTimestamp) >= rate;
+    }
+
+    private static class Track {
+        boolean sent;
+        double sentValue;
+        long sentTimestamp;
+        double lastValue;
+        long lastTimestamp;
+    }
+}
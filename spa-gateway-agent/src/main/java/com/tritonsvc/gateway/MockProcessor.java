@@ -191,6 +191,11 @@ public class MockProcessor extends MQTTCommandProcessor implements RegistrationI
         }
     }
 
+    @Override
+    protected String getStatisticsHardwareId() {
+        return registeredSpa.getHardwareId();
+    }
+
     @Override
     public void handleRegistrationAck(RegistrationResponse response, String originatorId, String hardwareId) {
         if (response.getState() == RegistrationAckState.REGISTRATION_ERROR) {
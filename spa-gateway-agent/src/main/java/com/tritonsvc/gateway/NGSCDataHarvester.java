@@ -31,8 +31,46 @@ import static com.google.common.collect.Lists.newArrayList;
  */
 public class NGSCDataHarvester extends RS485DataHarvester {
     private static Logger LOGGER = LoggerFactory.getLogger(NGSCDataHarvester.class);
+
+    /**
+     * where component state sits in the 0x13 panel update message
+     */
+    static final PanelUpdateDecoder.FieldMap PANEL_UPDATE_FIELDS = PanelUpdateDecoder.fieldMap()
+            .field(19, 0x08, 3, Components.Builder::hasAux1, (comps, value) -> comps.setAux1(ToggleComponent.newBuilder(comps.getAux1()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(19, 0x10, 4, Components.Builder::hasAux2, (comps, value) -> comps.setAux2(ToggleComponent.newBuilder(comps.getAux2()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(19, 0x20, 5, Components.Builder::hasAux3, (comps, value) -> comps.setAux3(ToggleComponent.newBuilder(comps.getAux3()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(19, 0x40, 6, Components.Builder::hasAux4, (comps, value) -> comps.setAux4(ToggleComponent.newBuilder(comps.getAux4()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(19, 0x04, 2, Components.Builder::hasMister3, (comps, value) -> comps.setMister3(ToggleComponent.newBuilder(comps.getMister3()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(19, 0x02, 1, Components.Builder::hasMister2, (comps, value) -> comps.setMister2(ToggleComponent.newBuilder(comps.getMister2()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(19, 0x01, 0, Components.Builder::hasMister1, (comps, value) -> comps.setMister1(ToggleComponent.newBuilder(comps.getMister1()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(26, 0x02, 1, Components.Builder::hasMicroSilk, (comps, value) -> comps.setMicroSilk(ToggleComponent.newBuilder(comps.getMicroSilk()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(14, 0x04, 2, Components.Builder::hasOzone, (comps, value) -> comps.setOzone(ToggleComponent.newBuilder(comps.getOzone()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(14, 0x30, 4, Components.Builder::hasHeater1, (comps, value) -> comps.setHeater1(Components.HeaterState.valueOf(value)))
+            .field(14, 0xC0, 6, Components.Builder::hasHeater2, (comps, value) -> comps.setHeater2(Components.HeaterState.valueOf(value)))
+            .field(13, 0x04, 2, Components.Builder::hasFilterCycle1, (comps, value) -> comps.setFilterCycle1(ToggleComponent.newBuilder(comps.getFilterCycle1()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(13, 0x08, 3, Components.Builder::hasFilterCycle2, (comps, value) -> comps.setFilterCycle2(ToggleComponent.newBuilder(comps.getFilterCycle2()).setCurrentState(ToggleComponent.State.valueOf(value))))
+            .field(15, 0x03, 0, Components.Builder::hasPump1, (comps, value) -> comps.setPump1(PumpComponent.newBuilder(comps.getPump1()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(15, 0x0C, 2, Components.Builder::hasPump2, (comps, value) -> comps.setPump2(PumpComponent.newBuilder(comps.getPump2()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(15, 0x30, 4, Components.Builder::hasPump3, (comps, value) -> comps.setPump3(PumpComponent.newBuilder(comps.getPump3()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(15, 0xC0, 6, Components.Builder::hasPump4, (comps, value) -> comps.setPump4(PumpComponent.newBuilder(comps.getPump4()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(16, 0x03, 0, Components.Builder::hasPump5, (comps, value) -> comps.setPump5(PumpComponent.newBuilder(comps.getPump5()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(16, 0x0C, 2, Components.Builder::hasPump6, (comps, value) -> comps.setPump6(PumpComponent.newBuilder(comps.getPump6()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(16, 0x30, 4, Components.Builder::hasPump7, (comps, value) -> comps.setPump7(PumpComponent.newBuilder(comps.getPump7()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(16, 0xC0, 6, Components.Builder::hasPump8, (comps, value) -> comps.setPump8(PumpComponent.newBuilder(comps.getPump8()).setCurrentState(PumpComponent.State.valueOf(value))))
+            .field(17, 0x03, 0, Components.Builder::hasCirculationPump, (comps, value) -> comps.setCirculationPump(PumpComponent.newBuilder(comps.getCirculationPump()).setCurrentState(value > 0 ? PumpComponent.State.HIGH : PumpComponent.State.OFF)))
+            .field(17, 0x0C, 2, Components.Builder::hasBlower1, (comps, value) -> comps.setBlower1(BlowerComponent.newBuilder(comps.getBlower1()).setCurrentState(BlowerComponent.State.valueOf(value))))
+            .field(17, 0x30, 4, Components.Builder::hasBlower2, (comps, value) -> comps.setBlower2(BlowerComponent.newBuilder(comps.getBlower2()).setCurrentState(BlowerComponent.State.valueOf(value))))
+            // reported as it always has been, 0xC0 & message[17] >> 6 leaves only the top bit mattering
+            .field(17, 0x80, 7, Components.Builder::hasFiberWheel, (comps, value) -> comps.setFiberWheel(value > 0 ? 0xC0 : 0))
+            .field(18, 0x03, 0, Components.Builder::hasLight1, (comps, value) -> comps.setLight1(LightComponent.newBuilder(comps.getLight1()).setCurrentState(LightComponent.State.valueOf(value))))
+            .field(18, 0x0C, 2, Components.Builder::hasLight2, (comps, value) -> comps.setLight2(LightComponent.newBuilder(comps.getLight2()).setCurrentState(LightComponent.State.valueOf(value))))
+            .field(18, 0x30, 4, Components.Builder::hasLight3, (comps, value) -> comps.setLight3(LightComponent.newBuilder(comps.getLight3()).setCurrentState(LightComponent.State.valueOf(value))))
+            .field(18, 0xC0, 6, Components.Builder::hasLight4, (comps, value) -> comps.setLight4(LightComponent.newBuilder(comps.getLight4()).setCurrentState(LightComponent.State.valueOf(value))))
+            .build();
+
     private NGSCMessagePublisher rs485MessagePublisher;
     private AtomicReference<Boolean> isCelsius = new AtomicReference<>();
+    private final PanelUpdateDecoder panelUpdateDecoder = new PanelUpdateDecoder(PANEL_UPDATE_FIELDS);
 
     /**
      * Constructor
@@ -69,101 +107,12 @@ public class NGSCDataHarvester extends RS485DataHarvester {
 
     @Override
     public void populateComponentStateFromPanelUpdate(Components.Builder compsBuilder, byte[] message) {
-        if (compsBuilder.hasAux1()) {
-            compsBuilder.setAux1(ToggleComponent.newBuilder(compsBuilder.getAux1()).setCurrentState(ToggleComponent.State.valueOf((0x08 & message[19]) >> 3)));
-        }
-        if (compsBuilder.hasAux2()) {
-            compsBuilder.setAux2(ToggleComponent.newBuilder(compsBuilder.getAux2()).setCurrentState(ToggleComponent.State.valueOf((0x10 & message[19]) >> 4)));
-        }
-        if (compsBuilder.hasAux3()) {
-            compsBuilder.setAux3(ToggleComponent.newBuilder(compsBuilder.getAux3()).setCurrentState(ToggleComponent.State.valueOf((0x20 & message[19]) >> 5)));
-        }
-        if (compsBuilder.hasAux4()) {
-            compsBuilder.setAux4(ToggleComponent.newBuilder(compsBuilder.getAux4()).setCurrentState(ToggleComponent.State.valueOf((0x40 & message[19]) >> 6)));
-        }
-
-        if (compsBuilder.hasMister3()) {
-            compsBuilder.setMister3(ToggleComponent.newBuilder(compsBuilder.getMister3()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[19]) >> 2)));
-        }
-        if (compsBuilder.hasMister2()) {
-            compsBuilder.setMister2(ToggleComponent.newBuilder(compsBuilder.getMister2()).setCurrentState(ToggleComponent.State.valueOf((0x02 & message[19]) >> 1)));
-        }
-        if (compsBuilder.hasMister1()) {
-            compsBuilder.setMister1(ToggleComponent.newBuilder(compsBuilder.getMister1()).setCurrentState(ToggleComponent.State.valueOf(0x01 & message[19])));
-        }
-
-        if (compsBuilder.hasMicroSilk()) {
-            compsBuilder.setMicroSilk(ToggleComponent.newBuilder(compsBuilder.getMicroSilk()).setCurrentState(ToggleComponent.State.valueOf((0x02 & message[26]) >> 1)));
-        }
-        if (compsBuilder.hasOzone()) {
-            compsBuilder.setOzone(ToggleComponent.newBuilder(compsBuilder.getOzone()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[14]) >> 2)));
-        }
-
-        if (compsBuilder.hasHeater1()) {
-            compsBuilder.setHeater1(Components.HeaterState.valueOf((0x30 & message[14]) >> 4));
-        }
-        if (compsBuilder.hasHeater2()) {
-            compsBuilder.setHeater2(Components.HeaterState.valueOf((0xC0 & message[14]) >> 6));
-        }
-
-        if (compsBuilder.hasFilterCycle1()) {
-            compsBuilder.setFilterCycle1(ToggleComponent.newBuilder(compsBuilder.getFilterCycle1()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[13]) >> 2)));
-        }
-        if (compsBuilder.hasFilterCycle2()) {
-            compsBuilder.setFilterCycle2(ToggleComponent.newBuilder(compsBuilder.getFilterCycle2()).setCurrentState(ToggleComponent.State.valueOf((0x08 & message[13]) >> 3)));
-        }
-
-        if (compsBuilder.hasPump1()) {
-            compsBuilder.setPump1(PumpComponent.newBuilder(compsBuilder.getPump1()).setCurrentState(PumpComponent.State.valueOf(0x03 & message[15])));
-        }
-        if (compsBuilder.hasPump2()) {
-            compsBuilder.setPump2(PumpComponent.newBuilder(compsBuilder.getPump2()).setCurrentState(PumpComponent.State.valueOf((0x0C & message[15]) >> 2)));
-        }
-        if (compsBuilder.hasPump3()) {
-            compsBuilder.setPump3(PumpComponent.newBuilder(compsBuilder.getPump3()).setCurrentState(PumpComponent.State.valueOf((0x30 & message[15]) >> 4)));
-        }
-        if (compsBuilder.hasPump4()) {
-            compsBuilder.setPump4(PumpComponent.newBuilder(compsBuilder.getPump4()).setCurrentState(PumpComponent.State.valueOf((0xC0 & message[15]) >> 6)));
-        }
-        if (compsBuilder.hasPump5()) {
-            compsBuilder.setPump5(PumpComponent.newBuilder(compsBuilder.getPump5()).setCurrentState(PumpComponent.State.valueOf(0x03 & message[16])));
-        }
-        if (compsBuilder.hasPump6()) {
-            compsBuilder.setPump6(PumpComponent.newBuilder(compsBuilder.getPump6()).setCurrentState(PumpComponent.State.valueOf((0x0C & message[16]) >> 2)));
-        }
-        if (compsBuilder.hasPump7()) {
-            compsBuilder.setPump7(PumpComponent.newBuilder(compsBuilder.getPump7()).setCurrentState(PumpComponent.State.valueOf((0x30 & message[16]) >> 4)));
-        }
-        if (compsBuilder.hasPump8()) {
-            compsBuilder.setPump8(PumpComponent.newBuilder(compsBuilder.getPump8()).setCurrentState(PumpComponent.State.valueOf((0xC0 & message[16]) >> 6)));
-        }
-        boolean circPumpOn = (0x03 & message[17]) > 0;
-        if (compsBuilder.hasCirculationPump()) {
-            compsBuilder.setCirculationPump(PumpComponent.newBuilder(compsBuilder.getCirculationPump()).setCurrentState(circPumpOn ? PumpComponent.State.HIGH : PumpComponent.State.OFF));
-        }
-
-        if (compsBuilder.hasBlower1()) {
-            compsBuilder.setBlower1(BlowerComponent.newBuilder(compsBuilder.getBlower1()).setCurrentState(BlowerComponent.State.valueOf((0x0C & message[17]) >> 2)));
-        }
-        if (compsBuilder.hasBlower2()) {
-            compsBuilder.setBlower2(BlowerComponent.newBuilder(compsBuilder.getBlower2()).setCurrentState(BlowerComponent.State.valueOf((0x30 & message[17]) >> 4)));
-        }
-        if (compsBuilder.hasFiberWheel()) {
-            compsBuilder.setFiberWheel(0xC0 & message[17] >> 6);
-        }
+        panelUpdateDecoder.decode(compsBuilder, message);
+    }
 
-        if (compsBuilder.hasLight1()) {
-            compsBuilder.setLight1(LightComponent.newBuilder(compsBuilder.getLight1()).setCurrentState(LightComponent.State.valueOf(0x03 & message[18])));
-        }
-        if (compsBuilder.hasLight2()) {
-            compsBuilder.setLight2(LightComponent.newBuilder(compsBuilder.getLight2()).setCurrentState(LightComponent.State.valueOf((0x0C & message[18]) >> 2)));
-        }
-        if (compsBuilder.hasLight3()) {
-            compsBuilder.setLight3(LightComponent.newBuilder(compsBuilder.getLight3()).setCurrentState(LightComponent.State.valueOf((0x30 & message[18]) >> 4)));
-        }
-        if (compsBuilder.hasLight4()) {
-            compsBuilder.setLight4(LightComponent.newBuilder(compsBuilder.getLight4()).setCurrentState(LightComponent.State.valueOf((0xC0 & message[18]) >> 6)));
-        }
+    @Override
+    protected void panelComponentsReplaced() {
+        panelUpdateDecoder.reset();
     }
 
     @Override
@@ -101,7 +101,7 @@ public class NGSCMessagePublisher extends RS485MessagePublisher {
             bb.put(DELIMITER_BYTE); // stop flag
             bb.position(0);
 
-            addToPending(new PendingRequest(bb.array(), "self", null));
+            addToPending(new PendingRequest(bb.array(), "self", null, DownlinkQueue.Priority.URGENT, null));
         } catch (Throwable ex) {
             LOGGER.info("rs485 sending panel request got exception " + ex.getMessage());
             throw new RS485Exception(new Exception(ex));
@@ -201,7 +201,7 @@ public class NGSCMessagePublisher extends RS485MessagePublisher {
             bb.put((byte) (0xFF & newTempFahr));
             bb.put(HdlcCrc.generateFCS(bb.array()));
             bb.put(DELIMITER_BYTE); // stop flag
-            addToPending(new PendingRequest(bb.array(), originatorId, hardwareId));
+            addToPending(new PendingRequest(bb.array(), originatorId, hardwareId, DownlinkQueue.Priority.NORMAL, cloudCoalesceKey("setTemperature", hardwareId)));
         }
         catch (Throwable ex) {
             LOGGER.info("rs485 set temp got exception " + ex.getMessage());
@@ -276,7 +276,7 @@ public class NGSCMessagePublisher extends RS485MessagePublisher {
             bb.position(0);
 
             LOGGER.info("sent time request {}", printHexBinary(bb.array()));
-            addToPending(new PendingRequest(bb.array(), originatorId, hardwareId));
+            addToPending(new PendingRequest(bb.array(), originatorId, hardwareId, DownlinkQueue.Priority.URGENT, cloudCoalesceKey("updateSpaTime", hardwareId)));
         }
         catch (Throwable ex) {
             LOGGER.info("rs485 set time got exception " + ex.getMessage());
@@ -0,0 +1,195 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Decodes component state out of panel update messages from a declarative field map, each field is the byte offset,
+ * mask and shift of its bits in the message and the component it updates.
+ *
+ * A decoder remembers the bits it last applied, so a panel update only touches the components whose bits changed,
+ * the rest keep the builders merged in from the previous spa state. Call reset() when the components were replaced
+ * from anywhere else, e.g. a device config message, the next panel update is then applied in full.
+ */
+public class PanelUpdateDecoder {
+
+    /**
+     * tells if the target component is installed
+     */
+    public interface Presence {
+        boolean has(Components.Builder compsBuilder);
+    }
+
+    /**
+     * applies the value of a field's bits to the target component
+     */
+    public interface Setter {
+        void set(Components.Builder compsBuilder, int value);
+    }
+
+    private final FieldMap fieldMap;
+    private int[] lastGroupBits;
+    private int[] lastFieldValues;
+    private int[] groupBits;
+    private int[] fieldValues;
+    private boolean primed;
+
+    /**
+     * Constructor
+     *
+     * @param fieldMap
+     */
+    public PanelUpdateDecoder(FieldMap fieldMap) {
+        this.fieldMap = fieldMap;
+        this.lastGroupBits = new int[fieldMap.offsets.length];
+        this.lastFieldValues = new int[fieldMap.fields.length];
+        this.groupBits = new int[fieldMap.offsets.length];
+        this.fieldValues = new int[fieldMap.fields.length];
+    }
+
+    /**
+     * apply the fields of a panel update whose bits changed since the last one decoded
+     *
+     * @param compsBuilder
+     * @param message
+     * @return number of fields applied
+     */
+    public int decode(Components.Builder compsBuilder, byte[] message) {
+        int applied = 0;
+        for (int group = 0; group < fieldMap.offsets.length; group++) {
+            groupBits[group] = fieldMap.groupMasks[group] & message[fieldMap.offsets[group]];
+            boolean groupChanged = !primed || groupBits[group] != lastGroupBits[group];
+            for (int index = fieldMap.groupStarts[group]; index < fieldMap.groupStarts[group + 1]; index++) {
+                Field field = fieldMap.fields[index];
+                fieldValues[index] = groupChanged ? (field.mask & message[field.offset]) >> field.shift : lastFieldValues[index];
+                if (groupChanged && (!primed || fieldValues[index] != lastFieldValues[index]) && field.presence.has(compsBuilder)) {
+                    field.setter.set(compsBuilder, fieldValues[index]);
+                    applied++;
+                }
+            }
+        }
+        // only remember bits once they all made it into the builder, if a setter throws the builder is
+        // discarded and the spa state still matches the previous bits
+        int[] swap = lastGroupBits;
+        lastGroupBits = groupBits;
+        groupBits = swap;
+        swap = lastFieldValues;
+        lastFieldValues = fieldValues;
+        fieldValues = swap;
+        primed = true;
+        return applied;
+    }
+
+    /**
+     * forget what was last decoded, the next panel update is applied to every installed component
+     */
+    public void reset() {
+        primed = false;
+    }
+
+    /**
+     * start a field map for a protocol
+     *
+     * @return
+     */
+    public static FieldMapBuilder fieldMap() {
+        return new FieldMapBuilder();
+    }
+
+    /**
+     * one field of a panel update
+     */
+    public static class Field {
+        private final int offset;
+        private final int mask;
+        private final int shift;
+        private final Presence presence;
+        private final Setter setter;
+
+        Field(int offset, int mask, int shift, Presence presence, Setter setter) {
+            this.offset = offset;
+            this.mask = mask;
+            this.shift = shift;
+            this.presence = presence;
+            this.setter = setter;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getMask() {
+            return mask;
+        }
+
+        public int getShift() {
+            return shift;
+        }
+    }
+
+    /**
+     * the fields of one protocol's panel update, grouped by byte offset so a byte whose bits of interest are
+     * unchanged is skipped with a single compare, immutable and shared by every decoder for the protocol
+     */
+    public static class FieldMap {
+        private final Field[] fields;
+        private final int[] offsets;
+        private final int[] groupMasks;
+        private final int[] groupStarts;
+
+        FieldMap(List<Field> declared) {
+            TreeMap<Integer, List<Field>> byOffset = new TreeMap<>();
+            for (Field field : declared) {
+                byOffset.computeIfAbsent(field.offset, offset -> newArrayList()).add(field);
+            }
+            fields = new Field[declared.size()];
+            offsets = new int[byOffset.size()];
+            groupMasks = new int[byOffset.size()];
+            groupStarts = new int[byOffset.size() + 1];
+            int group = 0;
+            int index = 0;
+            for (List<Field> grouped : byOffset.values()) {
+                offsets[group] = grouped.get(0).offset;
+                groupStarts[group] = index;
+                for (Field field : grouped) {
+                    groupMasks[group] |= field.mask;
+                    fields[index++] = field;
+                }
+                group++;
+            }
+            groupStarts[group] = index;
+        }
+
+        public List<Field> getFields() {
+            return Arrays.asList(fields);
+        }
+    }
+
+    public static class FieldMapBuilder {
+        private final List<Field> fields = newArrayList();
+
+        /**
+         * declare a field
+         *
+         * @param offset index into the panel update message
+         * @param mask bits of the byte at offset that hold the field
+         * @param shift right shift applied after masking
+         * @param presence
+         * @param setter
+         * @return
+         */
+        public FieldMapBuilder field(int offset, int mask, int shift, Presence presence, Setter setter) {
+            fields.add(new Field(offset, mask, shift, presence, setter));
+            return this;
+        }
+
+        public FieldMap build() {
+            return new FieldMap(fields);
+        }
+    }
+}
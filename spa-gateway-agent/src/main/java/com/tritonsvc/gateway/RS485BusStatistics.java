@@ -0,0 +1,389 @@
+package com.tritonsvc.gateway;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Running counters and timing histograms for rs485 traffic seen by a data harvester, safe to read from any thread
+ */
+public class RS485BusStatistics {
+    public static final int DEFAULT_BAUD_RATE = 115200;
+    public static final long DEFAULT_CLEAR_TO_SEND_WINDOW_MICROS = 5000;
+
+    private final long startNanos = System.nanoTime();
+    private final int baudRate;
+    private final long clearToSendWindowNanos;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong framesDecoded = new AtomicLong();
+    private final AtomicLong messagesQueued = new AtomicLong();
+    private final AtomicLong queueOverflows = new AtomicLong();
+    private final AtomicLong crcFailures = new AtomicLong();
+    private final AtomicLongArray crcChecksByType = new AtomicLongArray(256);
+    private final AtomicLongArray crcFailuresByType = new AtomicLongArray(256);
+    private final AtomicLong pollsReceived = new AtomicLong();
+    private final AtomicLong missedClearToSend = new AtomicLong();
+    private final AtomicLong throttledPolls = new AtomicLong();
+    private final Map<String, AtomicLong> addressStateTransitions = new ConcurrentHashMap<>();
+    private final AtomicReference<String> addressState = new AtomicReference<>();
+    private final Histogram interFrameGap = new Histogram();
+    private final Histogram pollResponseLatency = new Histogram();
+    private final Histogram stateUpdateLatency = new Histogram();
+
+    /**
+     * Constructor
+     */
+    public RS485BusStatistics() {
+        this(DEFAULT_BAUD_RATE, DEFAULT_CLEAR_TO_SEND_WINDOW_MICROS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param baudRate used to work out bus utilization
+     * @param clearToSendWindowMicros a poll response that takes longer than this is counted as missing its window
+     */
+    public RS485BusStatistics(int baudRate, long clearToSendWindowMicros) {
+        this.baudRate = baudRate;
+        this.clearToSendWindowNanos = TimeUnit.MICROSECONDS.toNanos(clearToSendWindowMicros);
+    }
+
+    public void recordBytesRead(int count) {
+        bytesRead.addAndGet(count);
+    }
+
+    public void recordFrameDecoded() {
+        framesDecoded.incrementAndGet();
+    }
+
+    /**
+     * record the idle time between the closing flag of one frame and the start of the next
+     *
+     * @param gapNanos
+     */
+    public void recordInterFrameGap(long gapNanos) {
+        interFrameGap.record(gapNanos);
+    }
+
+    public void recordMessageQueued() {
+        messagesQueued.incrementAndGet();
+    }
+
+    public void recordQueueOverflow() {
+        queueOverflows.incrementAndGet();
+    }
+
+    /**
+     * record the outcome of the FCS check on a message
+     *
+     * @param packetType
+     * @param valid
+     */
+    public void recordCrcCheck(int packetType, boolean valid) {
+        crcChecksByType.incrementAndGet(0xFF & packetType);
+        if (!valid) {
+            crcFailures.incrementAndGet();
+            crcFailuresByType.incrementAndGet(0xFF & packetType);
+        }
+    }
+
+    /**
+     * record a poll addressed to this gateway, this is the window in which it may talk on the bus
+     */
+    public void recordPollReceived() {
+        pollsReceived.incrementAndGet();
+    }
+
+    /**
+     * record time from the closing flag of a poll until our response was written to the bus,
+     * responses slower than the clear to send window are also counted as missed
+     *
+     * @param latencyNanos
+     */
+    public void recordPollResponse(long latencyNanos) {
+        pollResponseLatency.record(latencyNanos);
+        if (latencyNanos > clearToSendWindowNanos) {
+            missedClearToSend.incrementAndGet();
+        }
+    }
+
+    /**
+     * record a poll where a downlink was waiting but sending it failed
+     */
+    public void recordMissedClearToSend() {
+        missedClearToSend.incrementAndGet();
+    }
+
+    /**
+     * record a poll where a downlink was waiting but was held back by the request throttle, the bus was
+     * offered to us and deliberately not used, so this is not a missed window
+     */
+    public void recordThrottledPoll() {
+        throttledPolls.incrementAndGet();
+    }
+
+    /**
+     * record a change of rs485 address state
+     *
+     * @param from
+     * @param to
+     */
+    public void recordAddressStateTransition(String from, String to) {
+        addressState.set(to);
+        if (from == null || from.equals(to)) {
+            return;
+        }
+        addressStateTransitions.computeIfAbsent(from + "->" + to, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * record time from when the last byte of a message was read off the uart until spa state reflected it
+     *
+     * @param latencyNanos
+     */
+    public void recordStateUpdate(long latencyNanos) {
+        stateUpdateLatency.record(latencyNanos);
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getFramesDecoded() {
+        return framesDecoded.get();
+    }
+
+    public long getMessagesQueued() {
+        return messagesQueued.get();
+    }
+
+    public long getQueueOverflows() {
+        return queueOverflows.get();
+    }
+
+    public long getCrcFailures() {
+        return crcFailures.get();
+    }
+
+    public long getCrcChecks(int packetType) {
+        return crcChecksByType.get(0xFF & packetType);
+    }
+
+    public long getCrcFailures(int packetType) {
+        return crcFailuresByType.get(0xFF & packetType);
+    }
+
+    public long getPollsReceived() {
+        return pollsReceived.get();
+    }
+
+    public long getMissedClearToSend() {
+        return missedClearToSend.get();
+    }
+
+    public long getThrottledPolls() {
+        return throttledPolls.get();
+    }
+
+    public long getAddressStateTransitions(String from, String to) {
+        AtomicLong count = addressStateTransitions.get(from + "->" + to);
+        return count != null ? count.get() : 0;
+    }
+
+    public long getStateUpdates() {
+        return stateUpdateLatency.getCount();
+    }
+
+    public long getStateUpdateLatencyMaxNanos() {
+        return stateUpdateLatency.getMaxNanos();
+    }
+
+    public long getStateUpdateLatencyAvgNanos() {
+        return stateUpdateLatency.getAvgNanos();
+    }
+
+    public Histogram getInterFrameGap() {
+        return interFrameGap;
+    }
+
+    public Histogram getPollResponseLatency() {
+        return pollResponseLatency;
+    }
+
+    public Histogram getStateUpdateLatency() {
+        return stateUpdateLatency;
+    }
+
+    /**
+     * fraction of the bus capacity, at the configured baud rate, that has carried bytes since statistics started,
+     * 10 bits on the wire per byte
+     *
+     * @return 0.0 - 1.0
+     */
+    public double getBusUtilization() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (elapsedNanos < 1 || baudRate < 1) {
+            return 0;
+        }
+        return (bytesRead.get() * 10.0) / (baudRate * (elapsedNanos / 1000000000.0));
+    }
+
+    /**
+     * flatten current values into name/value pairs for reporting
+     *
+     * @return
+     */
+    public Map<String, String> toMetadata() {
+        Map<String, String> metadata = new TreeMap<>();
+        metadata.put("busUtilizationPercent", String.format("%.2f", getBusUtilization() * 100));
+        metadata.put("bytesRead", Long.toString(getBytesRead()));
+        metadata.put("framesDecoded", Long.toString(getFramesDecoded()));
+        metadata.put("messagesQueued", Long.toString(getMessagesQueued()));
+        metadata.put("queueOverflows", Long.toString(getQueueOverflows()));
+        metadata.put("crcFailures", Long.toString(getCrcFailures()));
+        for (int packetType = 0; packetType < 256; packetType++) {
+            if (crcFailuresByType.get(packetType) > 0) {
+                metadata.put(String.format("crcFailures.0x%02X", packetType),
+                        crcFailuresByType.get(packetType) + "/" + crcChecksByType.get(packetType));
+            }
+        }
+        metadata.put("pollsReceived", Long.toString(getPollsReceived()));
+        metadata.put("missedClearToSend", Long.toString(getMissedClearToSend()));
+        metadata.put("throttledPolls", Long.toString(getThrottledPolls()));
+        metadata.put("addressState", String.valueOf(addressState.get()));
+        for (Map.Entry<String, AtomicLong> transition : addressStateTransitions.entrySet()) {
+            metadata.put("addressTransitions." + transition.getKey(), Long.toString(transition.getValue().get()));
+        }
+        metadata.put("interFrameGap", interFrameGap.toString());
+        metadata.put("pollResponseLatency", pollResponseLatency.toString());
+        metadata.put("stateUpdateLatency", stateUpdateLatency.toString());
+        return metadata;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bytes read=%d, frames decoded=%d, messages queued=%d, queue overflows=%d, crc failures=%d, " +
+                        "state updates=%d, state update latency avg=%.3fms max=%.3fms, polls=%d, missed cts=%d, throttled polls=%d, bus utilization=%.2f%%",
+                getBytesRead(), getFramesDecoded(), getMessagesQueued(), getQueueOverflows(), getCrcFailures(),
+                getStateUpdates(), getStateUpdateLatencyAvgNanos() / 1000000.0, getStateUpdateLatencyMaxNanos() / 1000000.0,
+                getPollsReceived(), getMissedClearToSend(), getThrottledPolls(), getBusUtilization() * 100);
+    }
+
+    /**
+     * fixed bucket histogram of durations, buckets are upper bounds in microseconds with a final overflow bucket
+     */
+    public static class Histogram {
+        private static final long[] BUCKET_UPPER_BOUNDS_MICROS = new long[]{
+                100, 250, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 250000, 500000, 1000000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_UPPER_BOUNDS_MICROS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * @param nanos
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketFor(TimeUnit.NANOSECONDS.toMicros(value)));
+            count.incrementAndGet();
+            totalNanos.addAndGet(value);
+            long max;
+            while (value > (max = maxNanos.get())) {
+                if (maxNanos.compareAndSet(max, value)) {
+                    break;
+                }
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getAvgNanos() {
+            long current = count.get();
+            return current > 0 ? totalNanos.get() / current : 0;
+        }
+
+        public int getBucketCount() {
+            return buckets.length();
+        }
+
+        /**
+         * @param bucket
+         * @return upper bound in micros, Long.MAX_VALUE for the overflow bucket
+         */
+        public long getBucketUpperBoundMicros(int bucket) {
+            return bucket < BUCKET_UPPER_BOUNDS_MICROS.length ? BUCKET_UPPER_BOUNDS_MICROS[bucket] : Long.MAX_VALUE;
+        }
+
+        public long getBucket(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        /**
+         * get the count of the bucket a given duration falls into
+         *
+         * @param micros
+         * @return
+         */
+        public long getBucketForMicros(long micros) {
+            return buckets.get(bucketFor(micros));
+        }
+
+        /**
+         * approximate percentile, reported as the upper bound of the bucket it lands in, or the max seen if in the overflow bucket
+         *
+         * @param percentile 0 - 100
+         * @return micros
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = count.get();
+            if (total < 1) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_UPPER_BOUNDS_MICROS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold) {
+                    return BUCKET_UPPER_BOUNDS_MICROS[i];
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+        }
+
+        private int bucketFor(long micros) {
+            for (int i = 0; i < BUCKET_UPPER_BOUNDS_MICROS.length; i++) {
+                if (micros <= BUCKET_UPPER_BOUNDS_MICROS[i]) {
+                    return i;
+                }
+            }
+            return BUCKET_UPPER_BOUNDS_MICROS.length;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("count=%d avg=%dus p50=%dus p99=%dus max=%dus",
+                    getCount(), TimeUnit.NANOSECONDS.toMicros(getAvgNanos()), getPercentileMicros(50),
+                    getPercentileMicros(99), TimeUnit.NANOSECONDS.toMicros(getMaxNanos())));
+            for (int i = 0; i < buckets.length(); i++) {
+                if (buckets.get(i) > 0) {
+                    sb.append(i < BUCKET_UPPER_BOUNDS_MICROS.length ? " <=" + BUCKET_UPPER_BOUNDS_MICROS[i] + "us:" : " >" + BUCKET_UPPER_BOUNDS_MICROS[i - 1] + "us:");
+                    sb.append(buckets.get(i));
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
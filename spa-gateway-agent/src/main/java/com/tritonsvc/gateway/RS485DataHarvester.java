@@ -3,6 +3,9 @@ package com.tritonsvc.gateway;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.tritonsvc.CommandRunner;
+import com.tritonsvc.CommandRunner.CommandResult;
 import com.tritonsvc.HostUtils;
 import com.tritonsvc.agent.AgentConfiguration;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components;
@@ -17,6 +20,7 @@ import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.SystemInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
@@ -26,7 +30,6 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -69,7 +72,12 @@ public abstract class RS485DataHarvester implements Runnable {
     private AtomicLong lastAddressStateRoll = new AtomicLong(0);
     private long lastPollSent = 0;
     private long lastWifiPollSent = 0;
-    private LinkedBlockingQueue<byte[]> pendingMessages;
+    private LinkedBlockingQueue<ReceivedMessage> pendingMessages;
+    private final RS485BusStatistics busStatistics;
+    private long lastReadNanos = 0;
+    private long lastFrameEndNanos = 0;
+    private boolean frameEndSeen;
+    private Components lastPanelComponents;
     private enum ADDRESS_STATE {
         STATIC_ADDRESS,
         ACQUIRING_DYNAMIC_ADDRESS,
@@ -149,6 +157,10 @@ public abstract class RS485DataHarvester implements Runnable {
         this.processor = processor;
         this.rs485MessagePublisher = rs485MessagePublisher;
         this.faultLogManager = faultLogManager;
+        Integer baudRate = Ints.tryParse(processor.getConfigProps().getProperty(AgentConfiguration.RS485_LINUX_SERIAL_PORT_BAUD, ""));
+        Long clearToSendWindow = Longs.tryParse(processor.getConfigProps().getProperty(AgentConfiguration.RS485_CLEAR_TO_SEND_WINDOW_MICROS, ""));
+        busStatistics = new RS485BusStatistics(baudRate != null ? baudRate : RS485BusStatistics.DEFAULT_BAUD_RATE,
+                clearToSendWindow != null ? clearToSendWindow : RS485BusStatistics.DEFAULT_CLEAR_TO_SEND_WINDOW_MICROS);
         rs485RegisrationAddress = Ints.tryParse(processor.getConfigProps().getProperty(AgentConfiguration.RS485_GATEWAY_ADDRESS,"")) != null ? Ints.tryParse(processor.getConfigProps().getProperty(AgentConfiguration.RS485_GATEWAY_ADDRESS,"")).byteValue() : 10;
         rs485PreferredStaticAddress = rs485RegisrationAddress;
         setAddressState(ADDRESS_STATE.STATIC_ADDRESS);
@@ -163,6 +175,7 @@ public abstract class RS485DataHarvester implements Runnable {
         LOGGER.info("RS 485 configured to use address of {}", getRegisteredAddress());
         Thread messageProcessor = new Thread(new MessageProcessor());
         messageProcessor.start();
+        RS485TraceRecorder traceRecorder = createTraceRecorder();
 
         while(!cancelled && processor.stillRunning()) {
             try {
@@ -185,6 +198,11 @@ public abstract class RS485DataHarvester implements Runnable {
                     }
                     readBytes.clear();
                     processor.getRS485UART().read(readBytes);
+                    lastReadNanos = nanoTime();
+                    if (traceRecorder != null) {
+                        traceRecorder.record(readBytes);
+                    }
+                    busStatistics.recordBytesRead(readBytes.position());
                     parseHDLCMessages(workingMessage, readBytes);
                 }
             }
@@ -197,6 +215,10 @@ public abstract class RS485DataHarvester implements Runnable {
             }
         }
         messageProcessor.interrupt();
+        if (traceRecorder != null) {
+            traceRecorder.close();
+        }
+        LOGGER.info("rs485 data harvester stopped, {}", busStatistics);
     }
 
     /**
@@ -208,6 +230,15 @@ public abstract class RS485DataHarvester implements Runnable {
         return rs485RegisrationAddress;
     }
 
+    /**
+     * get the running counters of bus traffic processed by this harvester
+     *
+     * @return
+     */
+    public RS485BusStatistics getBusStatistics() {
+        return busStatistics;
+    }
+
     /**
      * confirms that current address state is working correctly, bus is responding to address
      */
@@ -245,7 +276,7 @@ public abstract class RS485DataHarvester implements Runnable {
         if ( Objects.equals(getHostUtils().getOsType(), HostUtils.TS_IMX6)) {
             try {
                 LOGGER.info("performing TS-7970 rs485 RX reset fix");
-                executeUnixCommand("echo test > /dev/" + processor.getSerialPort()).waitFor(10, TimeUnit.SECONDS);
+                runCommand("echo test > /dev/" + processor.getSerialPort());
             } catch (Exception ex) {
                 LOGGER.error("unable to perform 7970 rs485 reset", ex);
             }
@@ -433,7 +464,21 @@ public abstract class RS485DataHarvester implements Runnable {
     private void setAddressState(ADDRESS_STATE addressState) {
         lastAddressStateRoll.set(System.currentTimeMillis());
         rs485MessagePublisher.drainPendingQueues();
-        this.addressState.set(addressState);
+        ADDRESS_STATE previous = this.addressState.getAndSet(addressState);
+        busStatistics.recordAddressStateTransition(previous != null ? previous.name() : null, addressState.name());
+    }
+
+    /**
+     * a message body taken off the bus along with when its closing flag was read
+     */
+    private static class ReceivedMessage {
+        private final byte[] message;
+        private final long receivedNanos;
+
+        ReceivedMessage(byte[] message, long receivedNanos) {
+            this.message = message;
+            this.receivedNanos = receivedNanos;
+        }
     }
 
     /**
@@ -443,10 +488,13 @@ public abstract class RS485DataHarvester implements Runnable {
         public void run() {
             while (!cancelled && processor.stillRunning()) {
                 try {
-                    byte[] message = pendingMessages.take();
-                    if (message != null) {
+                    ReceivedMessage received = pendingMessages.take();
+                    if (received != null) {
+                        byte[] message = received.message;
                         int packetType = message[3];
-                        if (!HdlcCrc.isValidFCS(message)) {
+                        boolean validFCS = HdlcCrc.isValidFCS(message);
+                        busStatistics.recordCrcCheck(packetType, validFCS);
+                        if (!validFCS) {
                             if (LOGGER.isDebugEnabled()) LOGGER.debug("Invalid rs485 data message, failed FCS check {}", printHexBinary(message));
                             continue;
                         }
@@ -455,6 +503,7 @@ public abstract class RS485DataHarvester implements Runnable {
                             continue;
                         }
                         processMessage(message);
+                        busStatistics.recordStateUpdate(System.nanoTime() - received.receivedNanos);
                     }
                 } catch (Throwable ex) {
                     LOGGER.warn("harvest rs485 message cruncher got exception ",ex);
@@ -503,6 +552,9 @@ public abstract class RS485DataHarvester implements Runnable {
                         workingMessage.clear();
                         break;
                     }
+                    if (frameEndSeen) {
+                        busStatistics.recordInterFrameGap(lastReadNanos - lastFrameEndNanos);
+                    }
                     workingMessage.put(data);
                     state = State.getPackets;
                     break;
@@ -515,14 +567,21 @@ public abstract class RS485DataHarvester implements Runnable {
                 case searchForEnd:
                     if (data == delimiter) {
                         workingMessage.flip();
+                        lastFrameEndNanos = lastReadNanos;
+                        frameEndSeen = true;
+                        busStatistics.recordFrameDecoded();
+                        rs485MessagePublisher.frameReceived(lastReadNanos, workingMessage);
                         if ( !shouldNotProcessMessage(workingMessage) ) {
                             int packetType = (0xFF & workingMessage.get(3));
                             long now = System.currentTimeMillis();
                             switch (packetType) {
                                 case 6:
+                                    busStatistics.recordPollReceived();
                                     if ((now - lastPollSent) > REQUEST_MESSAGE_POLL_INTERVAL) {
                                         lastPollSent = now;
                                         processDevicePollForDownlink();
+                                    } else if (rs485MessagePublisher.hasPendingDownlinks()) {
+                                        busStatistics.recordThrottledPoll();
                                     }
                                     break;
                                 case 4:
@@ -541,7 +600,11 @@ public abstract class RS485DataHarvester implements Runnable {
                                     }
                                     break;
                                 default:
-                                    pendingMessages.offer(convertToMessageBody(workingMessage));
+                                    if (pendingMessages.offer(new ReceivedMessage(convertToMessageBody(workingMessage), System.nanoTime()))) {
+                                        busStatistics.recordMessageQueued();
+                                    } else {
+                                        busStatistics.recordQueueOverflow();
+                                    }
                                     break;
                             }
                         }
@@ -595,6 +658,10 @@ public abstract class RS485DataHarvester implements Runnable {
             if (!spaState.hasComponents()) {
                 throw new IllegalStateException("DeviceConfig has not been received yet, cannot process panel updates until that is received.");
             }
+            if (spaState.getComponents() != lastPanelComponents) {
+                // components were replaced since the last panel update, e.g. by a device config message
+                panelComponentsReplaced();
+            }
             compsBuilder.mergeFrom(spaState.getComponents());
         } catch (Exception ex) {
             throw Throwables.propagate(ex);
@@ -606,7 +673,15 @@ public abstract class RS485DataHarvester implements Runnable {
 
         compsBuilder.setLastUpdateTimestamp(new Date().getTime());
         populateComponentStateFromPanelUpdate(compsBuilder, message);
-        return compsBuilder.build();
+        lastPanelComponents = compsBuilder.build();
+        return lastPanelComponents;
+    }
+
+    /**
+     * the components in spa state no longer hold what the last panel update decoded, the next one has to be
+     * applied in full
+     */
+    protected void panelComponentsReplaced() {
     }
 
     protected ReentrantReadWriteLock getSpaStateLock() {
@@ -674,8 +749,11 @@ public abstract class RS485DataHarvester implements Runnable {
 
     protected void processDevicePollForDownlink() {
         try {
-            rs485MessagePublisher.sendPendingDownlinkIfAvailable(rs485RegisrationAddress);
+            if (rs485MessagePublisher.sendPendingDownlinkIfAvailable(rs485RegisrationAddress)) {
+                busStatistics.recordPollResponse(nanoTime() - lastFrameEndNanos);
+            }
         } catch (RS485Exception ex) {
+            busStatistics.recordMissedClearToSend();
             LOGGER.error("unable to send device poll for downlinks", ex);
         }
     }
@@ -855,8 +933,28 @@ public abstract class RS485DataHarvester implements Runnable {
     }
 
     @VisibleForTesting
-    Process executeUnixCommand(String command) throws IOException {
-        return Runtime.getRuntime().exec(command);
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @VisibleForTesting
+    RS485TraceRecorder createTraceRecorder() {
+        String traceFile = processor.getConfigProps().getProperty(AgentConfiguration.RS485_TRACE_FILE);
+        if (traceFile == null || traceFile.trim().isEmpty()) {
+            return null;
+        }
+        Long maxBytes = Longs.tryParse(processor.getConfigProps().getProperty(AgentConfiguration.RS485_TRACE_MAX_BYTES, ""));
+        try {
+            return new RS485TraceRecorder(new File(traceFile.trim()), maxBytes != null ? maxBytes : RS485TraceRecorder.DEFAULT_MAX_BYTES);
+        } catch (IOException ex) {
+            LOGGER.error("unable to open rs485 trace file {}, bus traffic will not be recorded", traceFile, ex);
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    CommandResult runCommand(String command) {
+        return CommandRunner.instance().run("rs485", command, 10000);
     }
 
     @VisibleForTesting
@@ -1,7 +1,6 @@
 package com.tritonsvc.gateway;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.tritonsvc.HostUtils;
 import com.tritonsvc.spa.communication.proto.Bwg.AckResponseCode;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.HeaterMode;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.TempRange;
@@ -10,11 +9,9 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
-import static java.util.stream.Collectors.toList;
+import static com.google.common.collect.Lists.newArrayList;
 import static javax.xml.bind.DatatypeConverter.printHexBinary;
 
 /**
@@ -26,9 +23,10 @@ public abstract class RS485MessagePublisher {
     protected byte POLL_FINAL_CONTROL_BYTE = (byte) 0xBF;
     protected byte DELIMITER_BYTE = (byte) 0x7E;
     protected byte LINKING_ADDRESS_BYTE = (byte) 0xFE;
-    protected LinkedBlockingQueue<PendingRequest> pendingDownlinks = new LinkedBlockingQueue<>(8);
+    protected DownlinkQueue pendingDownlinks = new DownlinkQueue(8);
     protected AtomicReference<FilterCycleRequest> filterCycleRequest = new AtomicReference<>();
     protected long lastEmptyPollSent = 0;
+    private final BusTurnaroundTimer busTurnaround;
 
     /**
      * Constructor
@@ -37,6 +35,7 @@ public abstract class RS485MessagePublisher {
      */
     public RS485MessagePublisher(BWGProcessor processor) {
         this.processor = processor;
+        this.busTurnaround = BusTurnaroundTimer.fromConfig(processor.getConfigProps());
     }
 
     /**
@@ -145,8 +144,7 @@ public abstract class RS485MessagePublisher {
             bb.put(DELIMITER_BYTE); // stop flag
             bb.position(0);
 
-            pauseForBus();
-            processor.getRS485UART().write(bb);
+            writeToBus(bb);
             if (LOGGER.isDebugEnabled()) LOGGER.debug("sent device query response {}", printHexBinary(bb.array()));
         } catch (Throwable ex) {
             LOGGER.warn("rs485 sending device query response got exception ", ex);
@@ -175,8 +173,7 @@ public abstract class RS485MessagePublisher {
             bb.put(DELIMITER_BYTE); // stop flag
             bb.position(0);
 
-            pauseForBus();
-            processor.getRS485UART().write(bb);
+            writeToBus(bb);
             if (LOGGER.isDebugEnabled()) LOGGER.debug("sent unassigned device response {}", printHexBinary(bb.array()));
         } catch (Throwable ex) {
             LOGGER.warn("rs485 sending unnassigned device response got exception ", ex);
@@ -202,8 +199,7 @@ public abstract class RS485MessagePublisher {
             bb.put(DELIMITER_BYTE); // stop flag
             bb.position(0);
 
-            pauseForBus();
-            processor.getRS485UART().write(bb);
+            writeToBus(bb);
             if (LOGGER.isDebugEnabled())
                 LOGGER.debug("sent address assignment response for newly acquired address {} {}", address, printHexBinary(bb.array()));
         } catch (Throwable ex) {
@@ -239,8 +235,7 @@ public abstract class RS485MessagePublisher {
             bb.put(DELIMITER_BYTE); // stop flag
             bb.position(0);
 
-            pauseForBus();
-            processor.getRS485UART().write(bb);
+            writeToBus(bb);
             if (LOGGER.isDebugEnabled()) LOGGER.debug("sent wifi mac response {}", printHexBinary(bb.array()));
         } catch (Throwable ex) {
             LOGGER.warn("rs485 sending wifi mac response got exception ", ex);
@@ -271,8 +266,7 @@ public abstract class RS485MessagePublisher {
             bb.put(DELIMITER_BYTE); // stop flag
             bb.position(0);
 
-            pauseForBus();
-            processor.getRS485UART().write(bb);
+            writeToBus(bb);
             if (LOGGER.isDebugEnabled()) LOGGER.debug("sent wifi poll response {}", printHexBinary(bb.array()));
         } catch (Throwable ex) {
             LOGGER.warn("rs485 sending wifi poll default response got exception ", ex);
@@ -280,38 +274,44 @@ public abstract class RS485MessagePublisher {
         }
     }
 
+    /**
+     * check if any downlink message is waiting for a poll
+     *
+     * @return
+     */
+    public boolean hasPendingDownlinks() {
+        return !pendingDownlinks.isEmpty();
+    }
+
     /**
      * sends a pending downlink message if one is queued
      *
      * @param address
+     * @return true if a response was written to the bus
      * @throws RS485Exception
      */
-    public void sendPendingDownlinkIfAvailable(byte address) throws RS485Exception {
+    public boolean sendPendingDownlinkIfAvailable(byte address) throws RS485Exception {
         try {
             PendingRequest requestMessage = pendingDownlinks.poll();
             if (requestMessage != null) {
                 ByteBuffer bb = ByteBuffer.wrap(requestMessage.getPayload());
                 try {
-                    pauseForBus();
-                    processor.getRS485UART().write(bb);
-                    if (requestMessage.getHardwareId() != null) {
-                        // if hardwareid is not present, this was a message initiated by the agent not the cloud, don't send an ack up to cloud in this case
-                        processor.sendAck(requestMessage.getHardwareId(), requestMessage.getOriginatorId(), AckResponseCode.OK, null);
-                    }
+                    writeToBus(bb);
+                    ack(requestMessage, AckResponseCode.OK, null);
                     if (LOGGER.isDebugEnabled())
                         LOGGER.debug("sent queued downlink message, originator {}, as 485 poll response, payload {}, there are {} remaining", requestMessage.getOriginatorId(), printHexBinary(bb.array()), pendingDownlinks.size());
+                    return true;
                 } catch (Exception ex) {
-                    if (requestMessage.getHardwareId() != null) {
-                        // if hardwareid is not present, this was a message initiated by the agent not the cloud, don't send an ack up to cloud in this case
-                        processor.sendAck(requestMessage.getHardwareId(), requestMessage.getOriginatorId(), AckResponseCode.ERROR, "485 communication problem");
-                    }
+                    ack(requestMessage, AckResponseCode.ERROR, "485 communication problem");
                     LOGGER.warn("failed sending downlink message, originator {}, as 485 poll response, payload {}", requestMessage.getOriginatorId(), printHexBinary(bb.array()));
                     throw ex;
                 }
             } else if (address == 10 && System.currentTimeMillis() - lastEmptyPollSent > 500) {
                 sendWifiPollResponse(address);
                 lastEmptyPollSent = System.currentTimeMillis();
+                return true;
             }
+            return false;
         } catch (Throwable ex) {
             LOGGER.error("rs485 sending device downlinks for poll check, got exception", ex);
             throw new RS485Exception(new Exception(ex));
@@ -319,40 +319,100 @@ public abstract class RS485MessagePublisher {
     }
 
     public void drainPendingQueues() {
-        List<PendingRequest> cloudRequests = pendingDownlinks
-                .stream()
-                .filter(request -> request.getHardwareId() != null)
-                .collect(toList());
-        pendingDownlinks.clear();
-        for (PendingRequest requestMessage : cloudRequests) {
-            processor.sendAck(requestMessage.getHardwareId(), requestMessage.getOriginatorId(), AckResponseCode.ERROR, "485 communication request queue was full");
+        for (PendingRequest requestMessage : pendingDownlinks.drain()) {
+            ack(requestMessage, AckResponseCode.ERROR, "485 communication request queue was full");
         }
     }
 
+    /**
+     * get the queue of downlinks waiting for a poll
+     *
+     * @return
+     */
+    public DownlinkQueue getPendingDownlinks() {
+        return pendingDownlinks;
+    }
+
     @VisibleForTesting
     void addToPending(PendingRequest request) throws Exception {
-        if (pendingDownlinks.offer(request, 1, TimeUnit.MILLISECONDS)) {
+        if (pendingDownlinks.offer(request)) {
             if (LOGGER.isDebugEnabled())
-                LOGGER.debug("put rs485 request, originator id {} in downlink queue, payload {}, queue size {}", request.getOriginatorId(), printHexBinary(request.getPayload()), pendingDownlinks.size());
+                LOGGER.debug("put rs485 request, originator id {} in downlink queue, payload {}, queue size {}, superseding {}", request.getOriginatorId(), printHexBinary(request.getPayload()), pendingDownlinks.size(), request.getSuperseded().size());
         } else {
             LOGGER.error("rs485 spa request command queue was full, clearing to remove old commands.");
             drainPendingQueues();
-            if (!pendingDownlinks.offer(request, 1, TimeUnit.MILLISECONDS)) {
+            if (!pendingDownlinks.offer(request)) {
                 throw new Exception("downlink queue is full");
             }
         }
     }
 
+    /**
+     * only requests from the cloud that set an absolute value are coalesced, agent initiated ones like temp range and
+     * heat mode toggles are relative to the state the spa will be in once everything ahead of them is sent
+     *
+     * @param kind
+     * @param hardwareId
+     * @return
+     */
+    protected String cloudCoalesceKey(String kind, String hardwareId) {
+        return hardwareId != null ? kind : null;
+    }
+
+    private void ack(PendingRequest request, AckResponseCode code, String description) {
+        // if hardwareid is not present, this was a message initiated by the agent not the cloud, don't send an ack up to cloud in this case
+        if (request.getHardwareId() != null) {
+            processor.sendAck(request.getHardwareId(), request.getOriginatorId(), code, description);
+        }
+        // requests that were coalesced into this one share its outcome
+        for (PendingRequest superseded : request.getSuperseded()) {
+            ack(superseded, code, description);
+        }
+    }
 
     protected static class PendingRequest {
         private byte[] payload;
         private String originatorId;
         private String hardwareId;
+        private DownlinkQueue.Priority priority;
+        private String coalesceKey;
+        private List<PendingRequest> superseded = newArrayList();
 
         public PendingRequest(byte[] payload, String originatorId, String hardwareId) {
+            this(payload, originatorId, hardwareId, DownlinkQueue.Priority.NORMAL, null);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param payload
+         * @param originatorId
+         * @param hardwareId
+         * @param priority
+         * @param coalesceKey requests with the same key replace each other while queued, null to never coalesce
+         */
+        public PendingRequest(byte[] payload, String originatorId, String hardwareId, DownlinkQueue.Priority priority, String coalesceKey) {
             this.payload = payload;
             this.originatorId = originatorId;
             this.hardwareId = hardwareId;
+            this.priority = priority;
+            this.coalesceKey = coalesceKey;
+        }
+
+        public DownlinkQueue.Priority getPriority() {
+            return priority;
+        }
+
+        public String getCoalesceKey() {
+            return coalesceKey;
+        }
+
+        public List<PendingRequest> getSuperseded() {
+            return superseded;
+        }
+
+        void supersede(PendingRequest older) {
+            superseded.add(older);
         }
 
         public byte[] getPayload() {
@@ -368,18 +428,32 @@ public abstract class RS485MessagePublisher {
         }
     }
 
-    protected void pauseForBus() throws InterruptedException {
-        // rs485 spec from BWG specified that at a minimum, clients shouldn't submit to the bus after
-        // recieving a prompt to do so for at least 250 msecs, to give the spa controller time to release
-        // from bus
+    /**
+     * notify of each frame seen on the bus, used to time when the bus is clear to send on
+     *
+     * @param frameEndNanos
+     * @param frame the frame between flags, from position 0 to limit
+     */
+    public void frameReceived(long frameEndNanos, ByteBuffer frame) {
+        busTurnaround.frameReceived(frameEndNanos, HdlcCrc.isValidFCS(frame.array(), frame.limit()));
+    }
 
-        if (getHostUtils().isFastProcessor()) {
-            Thread.sleep(0, 250000);
-        }
+    /**
+     * get the bus turnaround timing used before each write
+     *
+     * @return
+     */
+    public BusTurnaroundTimer getBusTurnaround() {
+        return busTurnaround;
     }
 
-    @VisibleForTesting
-    HostUtils getHostUtils() {
-        return HostUtils.instance();
+    protected void writeToBus(ByteBuffer bb) throws Exception {
+        busTurnaround.awaitTurnaround();
+        try {
+            processor.getRS485UART().write(bb);
+        } catch (Exception ex) {
+            busTurnaround.recordNack();
+            throw ex;
+        }
     }
 }
@@ -0,0 +1,141 @@
+package com.tritonsvc.gateway;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static javax.xml.bind.DatatypeConverter.printHexBinary;
+
+/**
+ * Capture format for raw rs485 bus traffic, used to record what the uart delivered in the field
+ * and to replay it later through a data harvester without a spa attached.
+ *
+ * all values are big endian, the file is an 8 byte magic 'BWG485TR', a 4 byte format version and then
+ * any number of entries, each entry is 8 bytes of nanos elapsed since recording started, 2 bytes of
+ * length and then that many bytes exactly as returned from one uart read.
+ */
+public final class RS485Trace {
+    public static final byte[] MAGIC = new byte[]{'B', 'W', 'G', '4', '8', '5', 'T', 'R'};
+    public static final int VERSION = 1;
+
+    private RS485Trace() {
+    }
+
+    /**
+     * one uart read worth of bytes and when it arrived
+     */
+    public static class Entry {
+        private final long elapsedNanos;
+        private final byte[] data;
+
+        /**
+         * Constructor
+         *
+         * @param elapsedNanos
+         * @param data
+         */
+        public Entry(long elapsedNanos, byte[] data) {
+            this.elapsedNanos = elapsedNanos;
+            this.data = data;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * write the trace file header
+     *
+     * @param out
+     * @throws IOException
+     */
+    public static void writeHeader(DataOutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * write one trace entry
+     *
+     * @param out
+     * @param elapsedNanos
+     * @param data
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    public static void writeEntry(DataOutputStream out, long elapsedNanos, byte[] data, int offset, int length) throws IOException {
+        out.writeLong(elapsedNanos);
+        out.writeShort(length);
+        out.write(data, offset, length);
+    }
+
+    /**
+     * read all entries of a trace, a truncated last entry (recorder killed mid write) is dropped
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static List<Entry> read(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dis.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not an rs485 trace, bad magic " + printHexBinary(magic));
+        }
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported rs485 trace version " + version);
+        }
+
+        List<Entry> entries = newArrayList();
+        while (true) {
+            try {
+                long elapsedNanos = dis.readLong();
+                byte[] data = new byte[dis.readUnsignedShort()];
+                dis.readFully(data);
+                entries.add(new Entry(elapsedNanos, data));
+            } catch (EOFException ex) {
+                break;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * dump a trace file in readable form, one line per recorded uart read
+     *
+     * @param args path to trace file
+     * @throws IOException
+     */
+    public static void main(String... args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: RS485Trace <trace file>");
+            return;
+        }
+        try (FileInputStream in = new FileInputStream(args[0])) {
+            long totalBytes = 0;
+            List<Entry> entries = read(in);
+            for (Entry entry : entries) {
+                totalBytes += entry.getData().length;
+                System.out.println(String.format("%12.3f ms %4d %s",
+                        entry.getElapsedNanos() / 1000000.0, entry.getData().length, printHexBinary(entry.getData())));
+            }
+            long durationMs = entries.isEmpty() ? 0 : TimeUnit.NANOSECONDS.toMillis(entries.get(entries.size() - 1).getElapsedNanos());
+            System.out.println(String.format("%d reads, %d bytes over %d ms", entries.size(), totalBytes, durationMs));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.tritonsvc.gateway;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records every uart read of the rs485 data harvester into a trace file, refer to RS485Trace for the format.
+ * Recording stops once the size cap is reached so the gateway flash can't be filled.
+ */
+public class RS485TraceRecorder implements Closeable {
+    private static Logger LOGGER = LoggerFactory.getLogger(RS485TraceRecorder.class);
+    public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+
+    private final DataOutputStream out;
+    private final long startNanos;
+    private final long maxBytes;
+    private long bytesWritten;
+    private boolean stopped;
+
+    /**
+     * Constructor, overwrites any existing trace at the same path
+     *
+     * @param file
+     * @param maxBytes
+     * @throws IOException
+     */
+    public RS485TraceRecorder(File file, long maxBytes) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.maxBytes = maxBytes;
+        this.startNanos = System.nanoTime();
+        RS485Trace.writeHeader(out);
+        LOGGER.info("recording rs485 trace to {}, limited to {} bytes", file.getAbsolutePath(), maxBytes);
+    }
+
+    /**
+     * record the bytes that a uart read just placed into buffer, from 0 to current position, the buffer is not modified
+     *
+     * @param readBytes
+     */
+    public synchronized void record(ByteBuffer readBytes) {
+        int length = readBytes.position();
+        if (stopped || length < 1) {
+            return;
+        }
+        try {
+            RS485Trace.writeEntry(out, System.nanoTime() - startNanos, readBytes.array(), readBytes.arrayOffset(), length);
+            bytesWritten += length + 10;
+            if (bytesWritten > maxBytes) {
+                LOGGER.info("rs485 trace reached {} bytes, recording stopped", bytesWritten);
+                close();
+            }
+        } catch (IOException ex) {
+            LOGGER.error("unable to record rs485 trace, recording stopped", ex);
+            close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        try {
+            out.close();
+        } catch (IOException ex) {
+            LOGGER.warn("problem closing rs485 trace", ex);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.SpaState;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when the spa state goes up to the cloud. While a user is watching the cloud switches the spa to LIVE, state
+ * changes then go up right away and the state is refreshed every few seconds. Otherwise the spa is in HEARTBEAT, the
+ * state is refreshed on the update interval and changes in between go up no more often than the heartbeat minimum
+ * interval. In both modes a state that only differs from the last one sent by its timestamps or the panel clock is not
+ * sent again until the refresh is due.
+ */
+public class SpaStateCadence {
+
+    public enum Mode {
+        LIVE, HEARTBEAT
+    }
+
+    private final LongSupplier heartbeatInterval;
+    private final long heartbeatMinInterval;
+    private final long liveInterval;
+    private final long liveMinInterval;
+    private final long liveMaxDuration;
+
+    private volatile long liveUntil = 0;
+    private long lastSent = 0;
+    private SpaState lastSentContent = null;
+
+    /**
+     * @param heartbeatInterval refresh interval in HEARTBEAT, ms
+     * @param heartbeatMinInterval least time between two states in HEARTBEAT, ms
+     * @param liveInterval refresh interval in LIVE, ms
+     * @param liveMinInterval least time between two states in LIVE, ms
+     * @param liveMaxDuration longest time a spa stays LIVE without being asked again, ms
+     */
+    public SpaStateCadence(LongSupplier heartbeatInterval, long heartbeatMinInterval, long liveInterval, long liveMinInterval, long liveMaxDuration) {
+        this.heartbeatInterval = heartbeatInterval;
+        this.heartbeatMinInterval = heartbeatMinInterval;
+        this.liveInterval = liveInterval;
+        this.liveMinInterval = liveMinInterval;
+        this.liveMaxDuration = liveMaxDuration;
+    }
+
+    /**
+     * @param now
+     * @param durationMillis how long to stay LIVE, capped by the max duration, not positive uses the max duration
+     */
+    public void goLive(long now, long durationMillis) {
+        liveUntil = now + (durationMillis > 0 ? Math.min(durationMillis, liveMaxDuration) : liveMaxDuration);
+    }
+
+    public void goHeartbeat() {
+        liveUntil = 0;
+    }
+
+    /**
+     * @return when LIVE ends, ms since epoch
+     */
+    public long getLiveUntil() {
+        return liveUntil;
+    }
+
+    public Mode getMode(long now) {
+        return now < liveUntil ? Mode.LIVE : Mode.HEARTBEAT;
+    }
+
+    /**
+     * @param now
+     * @return the refresh interval of the current mode, ms
+     */
+    public long getInterval(long now) {
+        return getMode(now) == Mode.LIVE ? liveInterval : heartbeatInterval.getAsLong();
+    }
+
+    /**
+     * @param now
+     * @return true if the state has to be sent even if it didn't change
+     */
+    public synchronized boolean isRefreshDue(long now) {
+        return now - lastSent > getInterval(now);
+    }
+
+    /**
+     * @param now
+     * @param state latest state
+     * @return true if the state should be sent now
+     */
+    public synchronized boolean shouldSend(long now, SpaState state) {
+        if (lastSentContent == null || isRefreshDue(now)) {
+            return true;
+        }
+        long minInterval = getMode(now) == Mode.LIVE ? liveMinInterval : heartbeatMinInterval;
+        return now - lastSent >= minInterval && !content(state).equals(lastSentContent);
+    }
+
+    /**
+     * @param now
+     * @param state that was sent
+     */
+    public synchronized void sent(long now, SpaState state) {
+        lastSent = now;
+        lastSentContent = content(state);
+    }
+
+    /**
+     * the state without the timestamps that change with every rs485 message and the panel clock that changes every minute
+     */
+    private static SpaState content(SpaState state) {
+        SpaState.Builder builder = SpaState.newBuilder(state).clearLastUpdateTimestamp();
+        if (builder.hasController()) {
+            builder.getControllerBuilder().setLastUpdateTimestamp(0).setHour(0).setMinute(0);
+        }
+        if (builder.hasComponents()) {
+            builder.getComponentsBuilder().setLastUpdateTimestamp(0);
+        }
+        if (builder.hasSetupParams()) {
+            builder.getSetupParamsBuilder().setLastUpdateTimestamp(0);
+        }
+        if (builder.hasSystemInfo()) {
+            builder.getSystemInfoBuilder().setLastUpdateTimestamp(0);
+        }
+        return builder.buildPartial();
+    }
+}
@@ -1,12 +1,13 @@
 package com.tritonsvc.gateway;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
 import com.tritonsvc.agent.AgentConfiguration;
 import com.tritonsvc.gateway.wsn.WsnData;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Measurement.DataType;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Measurement.QualityType;
 import jdk.dio.DeviceManager;
-import jdk.dio.i2cbus.I2CDevice;
 import jdk.dio.i2cbus.I2CDeviceConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +17,11 @@ import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.collect.Lists.newArrayList;
 
@@ -23,15 +29,32 @@ import static com.google.common.collect.Lists.newArrayList;
  * Temporary usage of getting current sensor from TS7970 beta board over a wire with the
  * Senva C-2345 sensor for AC Current and the Adafruit HTU21DF sensor for Temperature and Humidity
  *
+ * The sensors are sampled on a dedicated thread, the current every sample interval into an RMS/peak window that is
+ * reported and restarted by processWiredSensors, the temperature and humidity once per window. The HTU21DF conversion
+ * waits are scheduled on the sampler thread instead of sleeping, so current sampling goes on meanwhile.
  */
 public class TS7970WiredCurrentSensor {
     private static Logger LOGGER = LoggerFactory.getLogger(WSNDataHarvester.class);
+    private static final long DEFAULT_SAMPLE_INTERVAL = 1000;
+    private static final long RESET_WAIT = 15;
+    private static final long CONVERSION_WAIT = 50;
+    private static final int ADC_COUNT = 3;
     private final int READ_ADC_REGISTER_BYTES = 2;
     private final int READ_TEMP_HUMIDITY_REGISTER_BYTES = 3;
     private I2CDeviceConfig acCurrentConfig;
-    private I2CDevice acCurrentDevice = null;
+    private I2CBusDevice acCurrentDevice = null;
     private I2CDeviceConfig tempHumidityConfig;
-    private I2CDevice tempHumidityDevice = null;
+    private I2CBusDevice tempHumidityDevice = null;
+    // only used on the sampler thread
+    private final ByteBuffer adcBuf = ByteBuffer.allocateDirect(READ_ADC_REGISTER_BYTES);
+    private final ByteBuffer tempHumidityBuf = ByteBuffer.allocateDirect(READ_TEMP_HUMIDITY_REGISTER_BYTES);
+    private final CurrentWindow[] currentWindows = new CurrentWindow[ADC_COUNT];
+    private final AtomicBoolean tempHumidityCycleRunning = new AtomicBoolean();
+    private volatile WsnData latestTemp;
+    private volatile WsnData latestHumidity;
+    private final ScheduledExecutorService sampler;
+    private final long sampleInterval;
+    private ScheduledFuture<?> samplingFuture;
     private boolean printedError;
     private boolean printedErrorTempHumidity;
     private double ampsMeasuredScale = 30.0;
@@ -59,6 +82,32 @@ public class TS7970WiredCurrentSensor {
      * @param props
      */
     public TS7970WiredCurrentSensor(Properties props) {
+        this(props, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ts7970-i2c-sampler");
+            thread.setDaemon(true);
+            return thread;
+        }), null, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param props
+     * @param sampler runs all i2c transactions
+     * @param acCurrentDevice null opens the ts7970 device when first needed
+     * @param tempHumidityDevice null opens the HTU21DF device when first needed
+     */
+    @VisibleForTesting
+    TS7970WiredCurrentSensor(Properties props, ScheduledExecutorService sampler, I2CBusDevice acCurrentDevice, I2CBusDevice tempHumidityDevice) {
+        this.sampler = sampler;
+        this.acCurrentDevice = acCurrentDevice;
+        this.tempHumidityDevice = tempHumidityDevice;
+        for (int adcNum = 0; adcNum < ADC_COUNT; adcNum++) {
+            currentWindows[adcNum] = new CurrentWindow();
+        }
+        Long sampleMillis = Longs.tryParse(props.getProperty(AgentConfiguration.SENSOR_ACCURRENT_SAMPLE_MILLIS, ""));
+        this.sampleInterval = sampleMillis != null && sampleMillis > 0 ? sampleMillis : DEFAULT_SAMPLE_INTERVAL;
+
         Double scaledAmps = Doubles.tryParse(props.getProperty("sensor.accurrent.amps.range","30"));
         if (scaledAmps != null) {
             ampsMeasuredScale = scaledAmps;
@@ -79,11 +128,27 @@ public class TS7970WiredCurrentSensor {
 
     }
 
+    /**
+     * start sampling on the sampler thread
+     */
+    public synchronized void start() {
+        if (samplingFuture == null) {
+            samplingFuture = sampler.scheduleAtFixedRate(this::sampleCurrent, 0, sampleInterval, TimeUnit.MILLISECONDS);
+            startTempHumidityCycle();
+        }
+    }
+
     /**
      * stop the i2c connection
      *
      */
     public void shutdown() {
+        sampler.shutdownNow();
+        try {
+            sampler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
         if (acCurrentDevice != null) {
             try {
                 acCurrentDevice.close();
@@ -101,54 +166,37 @@ public class TS7970WiredCurrentSensor {
     }
 
     /**
-     * retrieve data from i2c
+     * retrieve data sampled from i2c since the last call, does not wait for the bus
      *
      * @return
      */
     public List<WsnData> processWiredSensors() {
-        acquireCurrentSensorBusDevice();
-        acquireTempHumidityBusDevice();
         List<WsnData> datas = newArrayList();
         if (acCurrentDevice == null) {
             LOGGER.info("skipping wired ac current sensor check, no i2c bus available");
         } else {
-            try {
-                WsnData data = getACCurrentSensorValueForAdc(0);
-                if (data != null) {
-                    datas.add(data);
-                }
-                data = getACCurrentSensorValueForAdc(1);
-                if (data != null) {
-                    datas.add(data);
-                }
-                data = getACCurrentSensorValueForAdc(2);
+            long unixTimestamp = System.currentTimeMillis() / 1000;
+            for (int adcNum = 0; adcNum < ADC_COUNT; adcNum++) {
+                WsnData data = getACCurrentSensorValueForAdc(adcNum, unixTimestamp);
                 if (data != null) {
                     datas.add(data);
                 }
-            } catch (Exception ex) {
-                if (!printedError) {
-                    LOGGER.info("error when attempting to process ac current reading from i2c bus", ex);
-                    printedError = true;
-                } else {
-                    LOGGER.info("error when attempting to process ac current reading from i2c bus");
-                }
             }
         }
 
         if (tempHumidityDevice == null) {
             LOGGER.info("skipping wired temp humidity sensor check, no i2c bus available");
-        } else {
-            try {
-                datas.addAll(getTempHumiditySensorValue());
-            } catch (Exception ex) {
-                if (!printedErrorTempHumidity) {
-                    LOGGER.info("error when attempting to process temp humidity from i2c bus, sensor must not be connected", ex);
-                    printedErrorTempHumidity = true;
-                } else {
-                    LOGGER.info("error when attempting to process temp humidity from i2c bus, sensor must not be connected");
-                }
-            }
         }
+        WsnData temp = latestTemp;
+        WsnData humidity = latestHumidity;
+        if (temp != null && humidity != null) {
+            latestTemp = null;
+            latestHumidity = null;
+            datas.add(temp);
+            datas.add(humidity);
+        }
+        // ready for the next call
+        startTempHumidityCycle();
 
         if (generateFake) {
             WsnData wsnData = new WsnData();
@@ -193,19 +241,44 @@ public class TS7970WiredCurrentSensor {
         return datas;
     }
 
-    private WsnData getACCurrentSensorValueForAdc(int adcNum) throws Exception {
-        long unixTimestamp = System.currentTimeMillis() / 1000;
-        ByteBuffer tempBuf = ByteBuffer.allocateDirect(READ_ADC_REGISTER_BYTES);
-        acCurrentDevice.read(8 + (adcNum * READ_ADC_REGISTER_BYTES), tempBuf); // 8 is offset - http://wiki.embeddedarm.com/wiki/TS-7970#Silabs_Microcontroller
-        tempBuf.flip();
-        int adcValue = (0xFF & tempBuf.get()) << 8;
-        adcValue = adcValue | (0xFF & tempBuf.get());
-        if (adcValue == 0) {
+    /**
+     * one sample of every adc into its window, runs on the sampler thread
+     */
+    @VisibleForTesting
+    void sampleCurrent() {
+        acquireCurrentSensorBusDevice();
+        if (acCurrentDevice == null) {
+            return;
+        }
+        try {
+            for (int adcNum = 0; adcNum < ADC_COUNT; adcNum++) {
+                adcBuf.clear();
+                acCurrentDevice.read(8 + (adcNum * READ_ADC_REGISTER_BYTES), adcBuf); // 8 is offset - http://wiki.embeddedarm.com/wiki/TS-7970#Silabs_Microcontroller
+                adcBuf.flip();
+                int adcValue = (0xFF & adcBuf.get()) << 8;
+                adcValue = adcValue | (0xFF & adcBuf.get());
+                if (adcValue != 0) {
+                    currentWindows[adcNum].add(calculateAmpsFrom420LoopADCValue(adcValue));
+                }
+            }
+        } catch (Exception ex) {
+            if (!printedError) {
+                LOGGER.info("error when attempting to process ac current reading from i2c bus", ex);
+                printedError = true;
+            } else {
+                LOGGER.info("error when attempting to process ac current reading from i2c bus");
+            }
+        }
+    }
+
+    private WsnData getACCurrentSensorValueForAdc(int adcNum, long unixTimestamp) {
+        CurrentWindow.Summary summary = currentWindows[adcNum].drain();
+        if (summary.samples == 0) {
             return null;
         }
-        Double ampsValue = calculateAmpsFrom420LoopADCValue(adcValue);
         WsnData wsnData = new WsnData();
-        wsnData.setValue(ampsValue);
+        wsnData.setValue(summary.rms);
+        wsnData.setPeak(summary.peak);
         wsnData.setQuality(QualityType.VALID);
         wsnData.setDataType(DataType.PUMP_AC_CURRENT);
         wsnData.setReceivedUnixTimestamp(unixTimestamp);
@@ -214,39 +287,75 @@ public class TS7970WiredCurrentSensor {
         wsnData.setUom("amps");
         wsnData.setMoteMac("wired_ac_current_adc_" + adcNum);
         wsnData.setDeviceName("ac current sensor " + adcNum);
-        LOGGER.info("Retrieved pump current sensor adc {} raw value is {} and amps value is {}", adcNum, adcValue, ampsValue );
+        LOGGER.info("Retrieved pump current sensor adc {} rms amps value is {} and peak is {} over {} samples", adcNum, summary.rms, summary.peak, summary.samples);
         return wsnData;
     }
 
-    private List<WsnData> getTempHumiditySensorValue() throws Exception {
-        List<WsnData> datas = newArrayList();
+    /**
+     * reset, read temperature, read humidity, each step scheduled after the wait the HTU21DF needs for the previous one
+     */
+    private void startTempHumidityCycle() {
+        if (!tempHumidityCycleRunning.compareAndSet(false, true)) {
+            return;
+        }
         long unixTimestamp = System.currentTimeMillis() / 1000;
-        ByteBuffer tempBuf = ByteBuffer.allocateDirect(READ_TEMP_HUMIDITY_REGISTER_BYTES);
-        // byte 1 is MSB reading
-        // byte 2 is LSB reading
-        // byte 3 is CRC
-        resetTempHumiditySensor();
-        if (tempHumidityDevice.read() != HTU21DF_RESET_STATE) {
-            LOGGER.info("temp humidity sensor not responding to reset command, cannot acquire readings at this time.");
-            return datas;
+        try {
+            sampler.execute(() -> tempHumidityStep(() -> {
+                acquireTempHumidityBusDevice();
+                if (tempHumidityDevice == null) {
+                    tempHumidityCycleRunning.set(false);
+                    return;
+                }
+                // byte 1 is MSB reading
+                // byte 2 is LSB reading
+                // byte 3 is CRC
+                tempHumidityDevice.write(HTU21DF_RESET);
+                scheduleTempHumidityStep(RESET_WAIT, () -> {
+                    tempHumidityDevice.write(HTU21DF_READREG);
+                    if (tempHumidityDevice.read() != HTU21DF_RESET_STATE) {
+                        LOGGER.info("temp humidity sensor not responding to reset command, cannot acquire readings at this time.");
+                        tempHumidityCycleRunning.set(false);
+                        return;
+                    }
+                    tempHumidityDevice.write(HTU21DF_READTEMP);
+                    scheduleTempHumidityStep(CONVERSION_WAIT, () -> {
+                        WsnData temp = readTemperature(tempHumidityBuf, unixTimestamp);
+                        tempHumidityDevice.write(HTU21DF_READHUM);
+                        scheduleTempHumidityStep(CONVERSION_WAIT, () -> {
+                            WsnData humidity = readHumidity(tempHumidityBuf, unixTimestamp);
+                            LOGGER.info("Retrieved ambient temperature of {} and relative humidity of {}", temp.getValue(), humidity.getValue());
+                            latestTemp = temp;
+                            latestHumidity = humidity;
+                            tempHumidityCycleRunning.set(false);
+                        });
+                    });
+                });
+            }));
+        } catch (RuntimeException ex) {
+            // sampler was shut down
+            tempHumidityCycleRunning.set(false);
         }
+    }
 
-        datas.add(readTemperature(tempBuf, unixTimestamp));
-        datas.add(readHumidity(tempBuf, unixTimestamp));
-
-        LOGGER.info("Retrieved ambient temperature of {} and relative humidity of {}", datas.get(0).getValue(), datas.get(1).getValue());
-        return datas;
+    private void scheduleTempHumidityStep(long delayMillis, I2CStep step) {
+        sampler.schedule(() -> tempHumidityStep(step), delayMillis, TimeUnit.MILLISECONDS);
     }
 
-    private void resetTempHumiditySensor() throws Exception {
-        tempHumidityDevice.write(HTU21DF_RESET);
-        Thread.sleep(15);
-        tempHumidityDevice.write(HTU21DF_READREG);
+    private void tempHumidityStep(I2CStep step) {
+        try {
+            step.run();
+        } catch (Exception ex) {
+            tempHumidityCycleRunning.set(false);
+            if (!printedErrorTempHumidity) {
+                LOGGER.info("error when attempting to process temp humidity from i2c bus, sensor must not be connected", ex);
+                printedErrorTempHumidity = true;
+            } else {
+                LOGGER.info("error when attempting to process temp humidity from i2c bus, sensor must not be connected");
+            }
+        }
     }
 
     private WsnData readTemperature(ByteBuffer tempBuf, long unixTimestamp) throws Exception {
-        tempHumidityDevice.write(HTU21DF_READTEMP);
-        Thread.sleep(50);
         tempBuf.clear();
         tempHumidityDevice.read(tempBuf);
         tempBuf.flip();
@@ -272,8 +381,6 @@ public class TS7970WiredCurrentSensor {
     }
 
     private WsnData readHumidity(ByteBuffer tempBuf, long unixTimestamp) throws Exception {
-        tempHumidityDevice.write(HTU21DF_READHUM);
-        Thread.sleep(50);
         tempBuf.clear();
         tempHumidityDevice.read(tempBuf);
         tempBuf.flip();
@@ -296,7 +403,8 @@ public class TS7970WiredCurrentSensor {
         return wsnData;
     }
 
-    private Double calculateAmpsFrom420LoopADCValue(int adcValue) {
+    @VisibleForTesting
+    double calculateAmpsFrom420LoopADCValue(int adcValue) {
         // This is how the ts7970 silabs ADC 10 bit conversion scales
         double ampsPercentage = (adcValue - lowerBoundTicks) / measurableTickRange;
 
@@ -309,7 +417,7 @@ public class TS7970WiredCurrentSensor {
     private void acquireCurrentSensorBusDevice() {
         if (acCurrentDevice == null) {
             try {
-                acCurrentDevice = DeviceManager.open(acCurrentConfig);
+                acCurrentDevice = I2CBusDevice.of(DeviceManager.open(acCurrentConfig));
             } catch (Exception ex) {
                 if (!printedError) {
                     LOGGER.error("unable to open i2c bus acCurrentDevice ", ex);
@@ -322,7 +430,7 @@ public class TS7970WiredCurrentSensor {
     private void acquireTempHumidityBusDevice() {
         if (tempHumidityDevice == null) {
             try {
-                tempHumidityDevice = DeviceManager.open(tempHumidityConfig);
+                tempHumidityDevice = I2CBusDevice.of(DeviceManager.open(tempHumidityConfig));
             } catch (Exception ex) {
                 if (!printedErrorTempHumidity) {
                     LOGGER.error("unable to open i2c bus for tempHumidity device ", ex);
@@ -331,4 +439,43 @@ public class TS7970WiredCurrentSensor {
             }
         }
     }
+
+    private interface I2CStep {
+        void run() throws Exception;
+    }
+
+    /**
+     * amps sampled from one adc since the window was last drained
+     */
+    private static class CurrentWindow {
+        private double sumOfSquares;
+        private double peak;
+        private int samples;
+
+        synchronized void add(double amps) {
+            sumOfSquares += amps * amps;
+            peak = Math.max(peak, amps);
+            samples++;
+        }
+
+        synchronized Summary drain() {
+            Summary summary = new Summary(samples == 0 ? 0 : Math.sqrt(sumOfSquares / samples), peak, samples);
+            sumOfSquares = 0;
+            peak = 0;
+            samples = 0;
+            return summary;
+        }
+
+        static class Summary {
+            final double rms;
+            final double peak;
+            final int samples;
+
+            Summary(double rms, double peak, int samples) {
+                this.rms = rms;
+                this.peak = peak;
+                this.samples = samples;
+            }
+        }
+    }
 }
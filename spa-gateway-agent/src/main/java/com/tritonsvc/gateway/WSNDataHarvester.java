@@ -16,14 +16,14 @@ import org.zeromq.ZMQ.PollItem;
 import org.zeromq.ZMQ.Poller;
 import org.zeromq.ZMQ.Socket;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static com.google.common.collect.Lists.newArrayList;
-import static java.util.stream.Collectors.toList;
 import static org.zeromq.ZMQ.poll;
 
 /**
@@ -34,8 +34,10 @@ public class WSNDataHarvester implements Runnable {
     private BWGProcessor processor;
     private ZMQ.Context context;
     private static final String DATA_HARVEST_SUBSCRIPTION_ADDRESS = "wsn.data.harvest.subscription.address";
-    private Map<String, WsnData> measurements = new ConcurrentHashMap<>();
+    private Map<DataType, Queue<WsnData>> significantMeasurements = new ConcurrentHashMap<>();
+    private MeasurementFilter measurementFilter;
     private static long WSN_POLL_TIME = 30000;
+    private static int MAX_SIGNIFICANT_PER_TYPE = 100;
 
     /**
      * Constructor
@@ -44,6 +46,7 @@ public class WSNDataHarvester implements Runnable {
      */
     public WSNDataHarvester (BWGProcessor processor) {
         this.processor = processor;
+        this.measurementFilter = new MeasurementFilter(processor.getConfigProps(), processor::getMeasurementMaxSilence);
     }
 
     @Override
@@ -59,6 +62,7 @@ public class WSNDataHarvester implements Runnable {
         TS7970WiredCurrentSensor ts7970wiredCurrentSensor = null;
         if ( Objects.equals(getHostUtils().getOsType(), HostUtils.TS_IMX6)) {
             ts7970wiredCurrentSensor = new TS7970WiredCurrentSensor(processor.getConfigProps());
+            ts7970wiredCurrentSensor.start();
         }
 
         Socket subscriber = null;
@@ -83,7 +87,7 @@ public class WSNDataHarvester implements Runnable {
                 if (ts7970wiredCurrentSensor != null) {
                     List<WsnData> wsnDatas = ts7970wiredCurrentSensor.processWiredSensors();
                     for (WsnData wsnData : wsnDatas) {
-                        measurements.put(wsnData.getSensorMac(), wsnData);
+                        record(wsnData);
                     }
                 }
             }
@@ -108,31 +112,48 @@ public class WSNDataHarvester implements Runnable {
     }
 
     /**
-     * see if any new sensor data in memory and send to cloud if so
+     * send the readings that were significant since the last call to cloud
      *
      * @param dataTypes
      * @param spaHardwareId
-     * @throws IOException
      */
-    public void sendLatestWSNDataToCloud(List<DataType> dataTypes, String spaHardwareId) throws IOException {
+    public void sendSignificantWSNDataToCloud(List<DataType> dataTypes, String spaHardwareId) {
         ArrayListMultimap<String, WsnData> moteMac2Data = ArrayListMultimap.create();
         for (DataType type : dataTypes) {
-            List<WsnData> wsnDatas = measurements.values()
-                    .stream()
-                    .filter(wsnData -> Objects.equals(wsnData.getDataType(), type))
-                    .collect(toList());
-
-            for (WsnData wsnData : wsnDatas) {
+            Queue<WsnData> queue = significantMeasurements.get(type);
+            WsnData wsnData;
+            while (queue != null && (wsnData = queue.poll()) != null) {
                 moteMac2Data.put(wsnData.getMoteMac(), wsnData);
             }
         }
         sendLatestWSNDataToCloud(moteMac2Data, spaHardwareId);
     }
 
+    /**
+     * queue the reading for cloud if significant
+     *
+     * @param wsnData
+     */
+    @VisibleForTesting
+    void record(WsnData wsnData) {
+        if (wsnData.getValue() == null || wsnData.getDataType() == null) {
+            return;
+        }
+        long timestamp = wsnData.getRecordedUnixTimestamp() != null ? wsnData.getRecordedUnixTimestamp() * 1000 : wsnData.getReceivedUnixTimestamp() * 1000;
+        if (measurementFilter.offer(wsnData.getSensorMac(), wsnData.getDataType(), wsnData.getValue(), timestamp)) {
+            Queue<WsnData> queue = significantMeasurements.computeIfAbsent(wsnData.getDataType(), type -> new ConcurrentLinkedQueue<>());
+            queue.add(wsnData);
+            // nobody sends while the spa isn't registered, keep the most recent ones
+            while (queue.size() > MAX_SIGNIFICANT_PER_TYPE) {
+                queue.poll();
+            }
+        }
+    }
+
     private void updateMeasurements(String json) throws Exception {
         ObjectMapper mapper = new ObjectMapper();
         WsnData wsnData = mapper.readValue(json, WsnData.class);
-        measurements.put(wsnData.getSensorMac(), wsnData);
+        record(wsnData);
     }
 
     private Socket createWSNSubscriberSocket() {
@@ -181,6 +202,9 @@ public class WSNDataHarvester implements Runnable {
                         eb.addMetadata(Metadata.newBuilder().setName("rssi_ul").setValue(Double.toString(wsnData.getRssi().getUplink())).build());
                         eb.addMetadata(Metadata.newBuilder().setName("rssi_dl").setValue(Double.toString(wsnData.getRssi().getDownlink())).build());
                     }
+                    if (wsnData.getPeak() != null) {
+                        eb.addMetadata(Metadata.newBuilder().setName("peak").setValue(Double.toString(wsnData.getPeak())).build());
+                    }
                     long timestamp = wsnData.getRecordedUnixTimestamp() != null ? wsnData.getRecordedUnixTimestamp() * 1000 : wsnData.getReceivedUnixTimestamp() * 1000;
 
                     eb.setTimestamp(timestamp);
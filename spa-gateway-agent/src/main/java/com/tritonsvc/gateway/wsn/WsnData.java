@@ -13,6 +13,7 @@ public class WsnData {
     private WsnRssi rssi;
     private String deviceName;
     private Double value;
+    private Double peak;
     private DataType dataType;
     private String uom;
     private QualityType quality;
@@ -56,6 +57,9 @@ public class WsnData {
     public Double getValue() {return value;}
     public void setValue(Double value) {this.value = value;}
 
+    public Double getPeak() {return peak;}
+    public void setPeak(Double peak) {this.peak = peak;}
+
     public String getMoteMac() {
         return moteMac;
     }
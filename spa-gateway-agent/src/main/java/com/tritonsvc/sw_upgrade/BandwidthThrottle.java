@@ -0,0 +1,44 @@
+package com.tritonsvc.sw_upgrade;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces a transfer to a byte rate, so a download leaves room on the link for mqtt traffic.
+ * Idle time builds up at most a quarter second of credit.
+ */
+public class BandwidthThrottle {
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final long bytesPerSecond;
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * Constructor
+     *
+     * @param bytesPerSecond 0 or less for no limit
+     */
+    public BandwidthThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * wait until the bytes can be sent without exceeding the rate
+     *
+     * @param bytes
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(int bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (nextFreeNanos < now - MAX_BURST_NANOS) {
+            nextFreeNanos = now - MAX_BURST_NANOS;
+        }
+        nextFreeNanos += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        long waitNanos = nextFreeNanos - now;
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
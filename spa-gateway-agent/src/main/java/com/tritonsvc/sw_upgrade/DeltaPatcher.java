@@ -0,0 +1,111 @@
+package com.tritonsvc.sw_upgrade;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds an upgrade package from the package of the installed build and a delta.
+ *
+ * A delta is a gzip stream of a header (magic "BWGD", version, target length) followed by operations, each either
+ * copies a range of the base package or adds literal bytes, terminated by an end operation. Deltas are only small
+ * when unchanged files stay byte identical in the package, so packages offered as delta bases should be compressed
+ * with gzip --rsyncable or not compressed at all.
+ */
+public class DeltaPatcher {
+
+    static final int MAGIC = 0x42574744;
+    static final byte VERSION = 1;
+    static final byte OP_END = 0;
+    static final byte OP_COPY = 1;
+    static final byte OP_ADD = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * apply a delta to a base package
+     *
+     * @param base
+     * @param delta
+     * @param target file the rebuilt package is written to
+     * @return lowercase hex sha-256 of the rebuilt package
+     * @throws IOException if the delta is malformed or doesn't fit the base
+     */
+    public String apply(File base, File delta, File target) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long written = 0;
+        try (RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+             DataInputStream ops = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(delta), BUFFER_SIZE)));
+             OutputStream output = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE), digest)) {
+            if (ops.readInt() != MAGIC) {
+                throw new IOException("not an upgrade package delta");
+            }
+            byte version = ops.readByte();
+            if (version != VERSION) {
+                throw new IOException("unsupported upgrade package delta version " + version);
+            }
+            long targetLength = ops.readLong();
+
+            byte op;
+            while ((op = ops.readByte()) != OP_END) {
+                if (op == OP_COPY) {
+                    long offset = ops.readLong();
+                    int length = ops.readInt();
+                    if (offset < 0 || length < 0 || offset + length > baseFile.length()) {
+                        throw new IOException("delta copies " + length + " bytes at " + offset + " past the end of the base package");
+                    }
+                    baseFile.seek(offset);
+                    for (int remaining = length; remaining > 0; ) {
+                        int chunk = Math.min(remaining, buffer.length);
+                        baseFile.readFully(buffer, 0, chunk);
+                        output.write(buffer, 0, chunk);
+                        remaining -= chunk;
+                    }
+                    written += length;
+                } else if (op == OP_ADD) {
+                    int length = ops.readInt();
+                    if (length < 0) {
+                        throw new IOException("delta adds a negative number of bytes");
+                    }
+                    for (int remaining = length; remaining > 0; ) {
+                        int chunk = Math.min(remaining, buffer.length);
+                        ops.readFully(buffer, 0, chunk);
+                        output.write(buffer, 0, chunk);
+                        remaining -= chunk;
+                    }
+                    written += length;
+                } else {
+                    throw new IOException("unknown delta operation " + op);
+                }
+                if (written > targetLength) {
+                    throw new IOException("delta produces more than the " + targetLength + " bytes it declares");
+                }
+            }
+            if (written != targetLength) {
+                throw new IOException("delta produced " + written + " bytes but declares " + targetLength);
+            }
+        } catch (EOFException ex) {
+            throw new IOException("upgrade package delta is truncated", ex);
+        }
+        return BaseEncoding.base16().lowerCase().encode(digest.digest());
+    }
+}
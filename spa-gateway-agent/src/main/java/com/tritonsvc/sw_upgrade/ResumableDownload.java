@@ -0,0 +1,367 @@
+package com.tritonsvc.sw_upgrade;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Longs;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads an upgrade package in chunks that survive dropped connections and agent restarts.
+ *
+ * Bytes land in a .part file next to the destination, every checkpoint the file is synced and its offset written
+ * to a .part.state file together with the identity of the package (name, etag, length, checksum). A retry, in this
+ * run or after a restart, asks for the rest with a range request, a server that answers 200 instead of 206 or
+ * describes a different package restarts the download from zero. The sha-256 is computed while streaming and checked
+ * against the UPGRADE_PACKAGE_SHA256 header when the server sends one. Reads are paced by a bandwidth throttle.
+ * All UPGRADE_PACKAGE_* headers of the response that started the download are kept with the state.
+ */
+public class ResumableDownload {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResumableDownload.class);
+    private static final String PACKAGE_NAME_HEADER = "UPGRADE_PACKAGE_NAME";
+    private static final String PACKAGE_SHA256_HEADER = "UPGRADE_PACKAGE_SHA256";
+    private static final String PACKAGE_HEADER_PREFIX = "UPGRADE_PACKAGE_";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    public enum Outcome {
+        COMPLETE,
+        UP_TO_DATE,
+        FAILED
+    }
+
+    private final File destination;
+    private final File partFile;
+    private final File stateFile;
+    private final BandwidthThrottle throttle;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final long checkpointBytes;
+    private final Properties state = new Properties();
+    private MessageDigest digest;
+    private long offset;
+    private long bytesTransferred;
+    private int attempts;
+
+    /**
+     * Constructor
+     *
+     * @param destination where the completed package is moved to
+     * @param maxBytesPerSecond 0 for no limit
+     * @param maxAttempts connections tried in one call to fetch
+     * @param retryDelayMillis wait after a failed attempt, grows with each attempt
+     * @param checkpointBytes how often the partial file is synced and its offset persisted
+     */
+    public ResumableDownload(File destination, long maxBytesPerSecond, int maxAttempts, long retryDelayMillis, long checkpointBytes) {
+        this.destination = destination;
+        this.partFile = new File(destination.getPath() + ".part");
+        this.stateFile = new File(destination.getPath() + ".part.state");
+        this.throttle = new BandwidthThrottle(maxBytesPerSecond);
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    /**
+     * fetch the package behind the url, resuming a partial download of it if one was persisted
+     *
+     * @param url
+     * @return
+     * @throws InterruptedException
+     */
+    public Outcome fetch(String url) throws InterruptedException {
+        loadState(url);
+        while (attempts < maxAttempts) {
+            attempts++;
+            try {
+                Outcome outcome = attempt(url);
+                if (outcome != null) {
+                    return outcome;
+                }
+            } catch (IOException ex) {
+                LOGGER.info("upgrade download attempt {} stopped at {} of {} bytes, {}", attempts, offset,
+                        state.getProperty("length", "?"), ex.getMessage());
+            }
+            if (attempts < maxAttempts) {
+                Thread.sleep(retryDelayMillis * attempts);
+            }
+        }
+        LOGGER.error("giving up on upgrade download after {} attempts, {} bytes kept for the next check", attempts, offset);
+        return Outcome.FAILED;
+    }
+
+    /**
+     * name the server gave the package
+     *
+     * @return
+     */
+    public String getPackageName() {
+        return state.getProperty("name");
+    }
+
+    /**
+     * UPGRADE_PACKAGE_* header the server sent when the download started, survives resumes and restarts
+     *
+     * @param name
+     * @return
+     */
+    public String getHeader(String name) {
+        return state.getProperty("header." + name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * bytes read from the network during this instance's fetches
+     *
+     * @return
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return outcome, or null if the attempt should be retried
+     */
+    private Outcome attempt(String url) throws IOException, InterruptedException {
+        HttpURLConnection connection = openConnection(new URL(url));
+        try {
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                if (state.getProperty("etag") != null) {
+                    connection.setRequestProperty("If-Range", state.getProperty("etag"));
+                }
+            }
+            int code = connection.getResponseCode();
+            if (code == 204) {
+                discard();
+                return Outcome.UP_TO_DATE;
+            } else if (code == 416) {
+                // asked for nothing past the end, either the package is already all here or it changed
+                if (offset > 0 && offset == length()) {
+                    return complete();
+                }
+                discard();
+                return null;
+            } else if (code == 200) {
+                if (offset > 0) {
+                    LOGGER.info("upgrade server sent the whole package instead of the remaining bytes, restarting download");
+                }
+                restart(connection, connection.getContentLengthLong());
+            } else if (code == 206) {
+                Matcher range = CONTENT_RANGE.matcher(String.valueOf(connection.getHeaderField("Content-Range")));
+                Long start = range.matches() ? Longs.tryParse(range.group(1)) : null;
+                Long total = range.matches() ? Longs.tryParse(range.group(3)) : null;
+                if (start == null || start != offset || !samePackage(connection, total)) {
+                    LOGGER.info("upgrade server resumed a different package or offset, restarting download");
+                    discard();
+                    return null;
+                }
+            } else {
+                LOGGER.error("Error while invoking software upgrade url, the returned code is {}", code);
+                return Outcome.FAILED;
+            }
+
+            try (InputStream input = connection.getInputStream();
+                 FileChannel channel = new RandomAccessFile(partFile, "rw").getChannel()) {
+                channel.truncate(offset);
+                channel.position(offset);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long unsynced = 0;
+                int read;
+                try {
+                    while ((read = input.read(buffer)) != -1) {
+                        throttle.acquire(read);
+                        channel.write(ByteBuffer.wrap(buffer, 0, read));
+                        digest.update(buffer, 0, read);
+                        offset += read;
+                        bytesTransferred += read;
+                        unsynced += read;
+                        if (unsynced >= checkpointBytes) {
+                            checkpoint(channel);
+                            unsynced = 0;
+                        }
+                    }
+                } finally {
+                    checkpoint(channel);
+                }
+            }
+
+            long length = length();
+            if (length >= 0 && offset < length) {
+                throw new IOException("connection ended after " + offset + " of " + length + " bytes");
+            }
+            return complete();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private Outcome complete() throws IOException {
+        String expected = state.getProperty("sha256");
+        String actual = BaseEncoding.base16().lowerCase().encode(digest.digest());
+        if (expected != null && !expected.equalsIgnoreCase(actual)) {
+            LOGGER.error("upgrade package checksum mismatch, expected {} but downloaded {}", expected, actual);
+            discard();
+            return Outcome.FAILED;
+        }
+        Files.move(partFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        FileUtils.deleteQuietly(stateFile);
+        LOGGER.info("upgrade package {} downloaded, {} bytes over {} attempts", getPackageName(), offset, attempts);
+        return Outcome.COMPLETE;
+    }
+
+    private boolean samePackage(HttpURLConnection connection, Long total) {
+        String name = connection.getHeaderField(PACKAGE_NAME_HEADER);
+        String etag = connection.getHeaderField("ETag");
+        String sha256 = connection.getHeaderField(PACKAGE_SHA256_HEADER);
+        return (total == null || total == length()) &&
+                (name == null || Objects.equals(name, state.getProperty("name"))) &&
+                (etag == null || Objects.equals(etag, state.getProperty("etag"))) &&
+                (sha256 == null || sha256.equalsIgnoreCase(state.getProperty("sha256", sha256)));
+    }
+
+    private void restart(HttpURLConnection connection, long length) throws IOException {
+        discard();
+        setIfPresent("name", connection.getHeaderField(PACKAGE_NAME_HEADER));
+        setIfPresent("etag", connection.getHeaderField("ETag"));
+        setIfPresent("sha256", connection.getHeaderField(PACKAGE_SHA256_HEADER));
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // header names aren't case sensitive and some servers normalise them
+            String name = header.getKey() != null ? header.getKey().toUpperCase(Locale.ROOT) : "";
+            if (name.startsWith(PACKAGE_HEADER_PREFIX) && !header.getValue().isEmpty()) {
+                state.setProperty("header." + name, header.getValue().get(0));
+            }
+        }
+        state.setProperty("length", Long.toString(length));
+        saveState();
+    }
+
+    private void checkpoint(FileChannel channel) throws IOException {
+        channel.force(false);
+        state.setProperty("offset", Long.toString(offset));
+        saveState();
+    }
+
+    private void loadState(String url) {
+        state.clear();
+        offset = 0;
+        digest = newDigest();
+        if (stateFile.exists() && partFile.exists()) {
+            try (FileInputStream input = new FileInputStream(stateFile)) {
+                state.load(input);
+            } catch (IOException ex) {
+                LOGGER.error("unable to read partial upgrade download state, starting over", ex);
+                state.clear();
+            }
+            Long persisted = Longs.tryParse(state.getProperty("offset", ""));
+            if (url.equals(state.getProperty("url")) && persisted != null && persisted <= partFile.length()) {
+                try {
+                    // the digest has to cover the bytes already on disk, rehashing them is cheaper than fetching them again
+                    hashPrefix(persisted);
+                    offset = persisted;
+                    LOGGER.info("resuming upgrade download of {} at {} of {} bytes", getPackageName(), offset, length());
+                } catch (IOException ex) {
+                    LOGGER.error("unable to read partial upgrade download, starting over", ex);
+                    digest = newDigest();
+                    state.clear();
+                }
+            } else {
+                state.clear();
+            }
+        }
+        if (offset == 0) {
+            FileUtils.deleteQuietly(partFile);
+            FileUtils.deleteQuietly(stateFile);
+        }
+        state.setProperty("url", url);
+    }
+
+    private void hashPrefix(long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FileInputStream input = new FileInputStream(partFile)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("partial upgrade download is shorter than its persisted offset");
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    private void discard() {
+        String url = state.getProperty("url");
+        state.clear();
+        if (url != null) {
+            state.setProperty("url", url);
+        }
+        offset = 0;
+        digest = newDigest();
+        FileUtils.deleteQuietly(partFile);
+        FileUtils.deleteQuietly(stateFile);
+    }
+
+    private void saveState() throws IOException {
+        File temp = new File(stateFile.getPath() + ".tmp");
+        try (FileOutputStream output = new FileOutputStream(temp)) {
+            state.store(output, "partial upgrade download");
+        }
+        Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void setIfPresent(String key, String value) {
+        if (value != null) {
+            state.setProperty(key, value);
+        }
+    }
+
+    private long length() {
+        Long length = Longs.tryParse(state.getProperty("length", ""));
+        return length != null ? length : -1;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @VisibleForTesting
+    HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(60000);
+        connection.setReadTimeout(60000);
+        return connection;
+    }
+}
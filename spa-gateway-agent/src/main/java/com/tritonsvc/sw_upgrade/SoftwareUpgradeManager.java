@@ -1,6 +1,10 @@
 package com.tritonsvc.sw_upgrade;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.tritonsvc.CommandRunner;
 import com.tritonsvc.HostUtils;
 import com.tritonsvc.gateway.BWGProcessor;
 import com.tritonsvc.httpd.util.SSLUtil;
@@ -15,16 +19,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.collect.Lists.newArrayList;
 
@@ -39,6 +39,8 @@ public final class SoftwareUpgradeManager {
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SoftwareUpgradeManager.class);
+    private static final String DELTA_BASE_SHA256_HEADER = "UPGRADE_PACKAGE_DELTA_BASE_SHA256";
+    private static final String TARGET_SHA256_HEADER = "UPGRADE_PACKAGE_TARGET_SHA256";
 
     private String softwareUpgradePackageFolder = "./upgrade";
     private String softwareUpgradePackageFilename = "upgradePackage.tar.gz";
@@ -46,8 +48,14 @@ public final class SoftwareUpgradeManager {
     private String softwareUpgradeCommandSystemd = "sudo systemctl restart bwg-gateway-agent.service";
     private String softwareUpgradeTempFile = ".upgr_last_version";
     private String softwareUpgradeMarkerFile = ".upgr_marker";
+    private String softwareUpgradeDeltaBaseFile = ".upgr_delta_base.tar.gz";
+    private long maxBytesPerSecond = 128 * 1024;
+    private int maxAttempts = 5;
     private ExecutorService es = Executors.newSingleThreadExecutor();
     private CheckSoftwareUpgrade checker = new CheckSoftwareUpgrade();
+    private String upgradePackageName;
+    private long bytesDownloaded;
+    private long reconstructMillis;
 
     public SoftwareUpgradeManager(final Properties properties) {
         init(properties);
@@ -78,6 +86,16 @@ public final class SoftwareUpgradeManager {
             this.softwareUpgradeCommandSystemd = softwareUpgradeCommandYocto;
         }
 
+        final Long maxBytesPerSecond = Longs.tryParse(properties.getProperty("softwareUpgrade.maxBytesPerSecond", ""));
+        if (maxBytesPerSecond != null) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        final Integer maxAttempts = Ints.tryParse(properties.getProperty("softwareUpgrade.maxAttempts", ""));
+        if (maxAttempts != null) {
+            this.maxAttempts = maxAttempts;
+        }
+
         final String softwareUpgradeTempFile = properties.getProperty("softwareUpgrade.tempFile");
         if (softwareUpgradeTempFile != null) {
             this.softwareUpgradeTempFile = softwareUpgradeTempFile;
@@ -118,50 +136,20 @@ public final class SoftwareUpgradeManager {
         public void run() {
             running = true;
 
-            final String fullUpgradeUrl = swUpgradeUrl + "?currentBuildNumber=" + currentVersion;
-            LOGGER.info("Checking url {} for software upgrades", fullUpgradeUrl);
-            HttpURLConnection connection = null;
             try {
-                try {
-                    final URL url = new URL(fullUpgradeUrl);
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setConnectTimeout(60000);
-                    connection.setReadTimeout(60000);
-                    connection.connect();
-                } catch (Exception ex) {
-                    LOGGER.info("skip sw upgrade, url {} was not reachable", fullUpgradeUrl, ex);
-                    connection = null;
-                }
-
-                if (connection != null) {
-                    int code = connection.getResponseCode();
-                    if ( code == 200) {
-                        final String upgradePackageName = connection.getHeaderField("UPGRADE_PACKAGE_NAME");
-                        long bytesSent = connection.getContentLengthLong();
-                        LOGGER.info("New software package available {} - downloading...", upgradePackageName);
-                        try (ReadableByteChannel rbc = Channels.newChannel(connection.getInputStream());
-                             FileOutputStream fos = new FileOutputStream(getSoftwareUpgradeDestination())) {
-                            long bytesCopied = fos.getChannel().transferFrom(rbc, 0, bytesSent);
-                            if (bytesCopied != bytesSent) {
-                                throw new Exception("invalid upgrade file download, bytes sent was " + bytesSent + ", but bytes copied was " + bytesCopied);
-                            }
-                        }
-                        bwgProcessor.sendEvents(hardwareId, newArrayList(buildSoftwareUpgradeEvent(upgradePackageName)));
-                        writeTempFile(currentVersion);
-                        LOGGER.info("Software package obtained successfully {} - ready for upgrade", upgradePackageName);
-                        initiateSoftwareUpgradeProcedure();
-                    } else if (code == 204) {
-                        LOGGER.info("Software is up to date, upgrade url returned code 204");
-                    } else {
-                        LOGGER.error("Error while invoking software upgrade url, the returned code is {}", code);
-                    }
+                final ResumableDownload.Outcome outcome = obtainUpgradePackage(swUpgradeUrl, currentVersion);
+                if (outcome == ResumableDownload.Outcome.COMPLETE) {
+                    bwgProcessor.sendEvents(hardwareId, newArrayList(buildSoftwareUpgradeEvent(upgradePackageName)));
+                    writeTempFile(currentVersion);
+                    LOGGER.info("Software package obtained successfully {} - ready for upgrade", upgradePackageName);
+                    initiateSoftwareUpgradeProcedure();
+                } else if (outcome == ResumableDownload.Outcome.UP_TO_DATE) {
+                    LOGGER.info("Software is up to date, upgrade url returned code 204");
                 }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (final Exception e) {
                 LOGGER.error("Error while downloading software upgrade package", e);
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
-                }
             }
             running = false;
         }
@@ -229,6 +217,116 @@ public final class SoftwareUpgradeManager {
         return event;
     }
 
+    /**
+     * Downloads the upgrade package for the current build into the package folder. When the package handed to the
+     * last upgrade is still around the server may answer with a delta against it, the full package is rebuilt and
+     * verified locally and a delta that doesn't fit falls back to a full download.
+     *
+     * @param swUpgradeUrl
+     * @param currentVersion
+     * @return
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @VisibleForTesting
+    ResumableDownload.Outcome obtainUpgradePackage(final String swUpgradeUrl, final String currentVersion) throws InterruptedException, IOException {
+        final File destination = getSoftwareUpgradeDestination();
+        final File deltaBase = new File(destination.getParentFile(), softwareUpgradeDeltaBaseFile);
+        final String fullUpgradeUrl = swUpgradeUrl + "?currentBuildNumber=" + currentVersion;
+        upgradePackageName = null;
+        bytesDownloaded = 0;
+        reconstructMillis = 0;
+
+        ResumableDownload.Outcome outcome = null;
+        if (deltaBase.exists()) {
+            outcome = fetchPackage(fullUpgradeUrl + "&acceptDelta=true", destination, deltaBase);
+        }
+        if (outcome == null) {
+            outcome = fetchPackage(fullUpgradeUrl, destination, deltaBase);
+        }
+        if (outcome == null) {
+            return ResumableDownload.Outcome.FAILED;
+        }
+        if (outcome == ResumableDownload.Outcome.COMPLETE) {
+            // the package about to be installed is the base the server diffs the next upgrade against
+            Files.copy(destination.toPath(), deltaBase.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("upgrade package ready, {} bytes downloaded, {} ms rebuilding", bytesDownloaded, reconstructMillis);
+        }
+        return outcome;
+    }
+
+    /**
+     * @return outcome, or null if the server sent a delta that couldn't be applied
+     */
+    private ResumableDownload.Outcome fetchPackage(final String url, final File destination, final File deltaBase) throws InterruptedException, IOException {
+        LOGGER.info("Checking url {} for software upgrades", url);
+        final File downloaded = new File(destination.getPath() + ".download");
+        final ResumableDownload download = newDownload(downloaded);
+        final ResumableDownload.Outcome outcome = download.fetch(url);
+        bytesDownloaded += download.getBytesTransferred();
+        if (outcome != ResumableDownload.Outcome.COMPLETE) {
+            return outcome;
+        }
+
+        upgradePackageName = download.getPackageName();
+        final String deltaBaseSha256 = download.getHeader(DELTA_BASE_SHA256_HEADER);
+        if (deltaBaseSha256 == null) {
+            Files.move(downloaded.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return outcome;
+        }
+        try {
+            return rebuildPackage(downloaded, deltaBase, deltaBaseSha256, download.getHeader(TARGET_SHA256_HEADER), destination) ? outcome : null;
+        } finally {
+            FileUtils.deleteQuietly(downloaded);
+        }
+    }
+
+    private boolean rebuildPackage(final File delta, final File deltaBase, final String deltaBaseSha256,
+                                   final String targetSha256, final File destination) {
+        if (targetSha256 == null) {
+            LOGGER.error("upgrade server sent a delta without the checksum of the package it builds, fetching the full package");
+            return false;
+        }
+        final File rebuilt = new File(destination.getPath() + ".rebuilt");
+        try {
+            if (!deltaBase.exists() || !deltaBaseSha256.equalsIgnoreCase(com.google.common.io.Files.hash(deltaBase, Hashing.sha256()).toString())) {
+                LOGGER.info("upgrade delta was made against a different package than the local base, fetching the full package");
+                return false;
+            }
+            final long start = System.nanoTime();
+            final String actual = new DeltaPatcher().apply(deltaBase, delta, rebuilt);
+            reconstructMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (!targetSha256.equalsIgnoreCase(actual)) {
+                LOGGER.error("rebuilt upgrade package checksum mismatch, expected {} but got {}, fetching the full package", targetSha256, actual);
+                return false;
+            }
+            Files.move(rebuilt.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("rebuilt upgrade package {} of {} bytes from a {} byte delta in {} ms", upgradePackageName,
+                    destination.length(), delta.length(), reconstructMillis);
+            return true;
+        } catch (final IOException e) {
+            LOGGER.error("unable to apply upgrade delta, fetching the full package", e);
+            return false;
+        } finally {
+            FileUtils.deleteQuietly(rebuilt);
+        }
+    }
+
+    @VisibleForTesting
+    long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    @VisibleForTesting
+    long getReconstructMillis() {
+        return reconstructMillis;
+    }
+
+    @VisibleForTesting
+    ResumableDownload newDownload(final File destination) {
+        return new ResumableDownload(destination, maxBytesPerSecond, maxAttempts, 5000, 256 * 1024);
+    }
+
     private File getSoftwareUpgradeDestination() {
         final File swUpgradeDestinationFolder = new File(softwareUpgradePackageFolder);
         if (!swUpgradeDestinationFolder.exists()) {
@@ -248,7 +346,7 @@ public final class SoftwareUpgradeManager {
 
         LOGGER.info("Initiating software upgrade procedure, executing script {}", upgradeCommand);
         try {
-            Runtime.getRuntime().exec(upgradeCommand);
+            CommandRunner.instance().spawn("upgrade", upgradeCommand);
         } catch (final IOException e) {
             LOGGER.error("Error while initiating software upgrade procedure");
         }
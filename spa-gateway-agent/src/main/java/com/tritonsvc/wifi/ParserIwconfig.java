@@ -4,6 +4,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.tritonsvc.CommandRunner;
+import com.tritonsvc.CommandRunner.CommandResult;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.WifiConnectionHealth;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.WifiStat;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.WifiStat.WifiConnectionDiagnostics;
@@ -13,13 +15,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -65,15 +65,14 @@ public class ParserIwconfig {
         String line;
         WifiStat.Builder wifiStatBuilder = WifiStat.newBuilder();
         WifiConnectionDiagnostics.Builder dataBuilder = WifiConnectionDiagnostics.newBuilder();
-        Process proc = executeUnixCommand(iwConfigPath + " " + interfaceName);
+        CommandResult iwconfig = runCommand(iwConfigPath + " " + interfaceName);
         wifiStatBuilder.setWifiConnectionHealth(WifiConnectionHealth.UNKONWN);
         wifiStatBuilder.setRecordedDate(System.currentTimeMillis());
         if (previousWifiStat != null) {
             wifiStatBuilder.setElapsedDeltaMilliseconds(wifiStatBuilder.getRecordedDate() - previousWifiStat.getRecordedDate());
         }
 
-        proc.waitFor(10, TimeUnit.SECONDS);
-        try (BufferedReader iwconfigInput = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
+        try (BufferedReader iwconfigInput = new BufferedReader(new StringReader(iwconfig.getOutput()))) {
             while ((line = iwconfigInput.readLine()) != null) {
                 line = line.toLowerCase();
                 ///// BASE STATION MAC /////
@@ -319,8 +318,6 @@ public class ParserIwconfig {
                     }
                 }
             }
-        } finally {
-            proc.destroyForcibly();
         }
 
         wifiStatBuilder.setEthernetPluggedIn(ethernetPluggedIn(ethernetDeviceName));
@@ -339,8 +336,8 @@ public class ParserIwconfig {
     }
 
     @VisibleForTesting
-    Process executeUnixCommand(String command) throws IOException {
-        return Runtime.getRuntime().exec(command);
+    CommandResult runCommand(String command) {
+        return CommandRunner.instance().run("iwconfig", command, 10000);
     }
 
     @VisibleForTesting
@@ -0,0 +1,347 @@
+package com.tritonsvc.wifi;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.WifiConnectionHealth;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.WifiStat;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.WifiStat.WifiConnectionDiagnostics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Collects wifi stats by reading /proc/net/wireless and sysfs directly rather than forking iwconfig every sample.
+ *
+ * /proc/net/wireless has the link quality, signal and noise levels and discarded packet counters, sysfs operstate and
+ * carrier tell if the interface is associated. The settings only iwconfig reports (access point, essid, mode, frequency,
+ * bit rate, tx power, retry/rts/fragment thresholds, power management) are taken from the last iwconfig run, which is
+ * repeated when association changes, when the settings are older than the refresh interval, or whenever the kernel
+ * files can't be read or don't list the interface.
+ *
+ ** /proc/net/wireless **
+ Inter-| sta-|   Quality        |   Discarded packets               | Missed | WE
+  face | tus | link level noise |  nwid  crypt   frag  retry   misc | beacon | 22
+  wlan0: 0000   46.  -64.  -256.       0      0      0    170    134        0
+ */
+public class WifiStatCollector {
+    private static Logger LOGGER = LoggerFactory.getLogger(WifiStatCollector.class);
+    private static final String PROC_NET_WIRELESS = "/proc/net/wireless";
+    private static final String SYS_CLASS_NET = "/sys/class/net/";
+    // mac80211 drivers report link quality out of 70, used until iwconfig has told us the real range
+    private static final double DEFAULT_LINK_QUALITY_MAX = 70;
+    // the kernel reports an unavailable noise level as -256 dBm, iwconfig leaves it out
+    private static final long NOISE_UNAVAILABLE = -256;
+
+    private final ParserIwconfig parser;
+    private final long iwconfigRefreshMillis;
+    private WifiStat lastIwconfigStat;
+    private long lastIwconfigRead;
+    private String lastLinkState;
+    private double linkQualityMax = DEFAULT_LINK_QUALITY_MAX;
+    private long iwconfigReads;
+    private long nativeReads;
+
+    /**
+     * Constructor
+     *
+     * @param parser
+     * @param iwconfigRefreshMillis how long settings from iwconfig are reused, 0 runs iwconfig every sample
+     */
+    public WifiStatCollector(ParserIwconfig parser, long iwconfigRefreshMillis) {
+        this.parser = parser;
+        this.iwconfigRefreshMillis = iwconfigRefreshMillis;
+    }
+
+    /**
+     * generate a wifi stat report
+     *
+     * @param interfaceName
+     * @param previousWifiStat
+     * @param iwConfigPath
+     * @param ethernetDeviceName
+     * @return
+     * @throws Exception
+     */
+    public WifiStat collect(String interfaceName, WifiStat previousWifiStat, String iwConfigPath, String ethernetDeviceName) throws Exception {
+        long now = System.currentTimeMillis();
+        String[] wireless = readProcNetWireless(interfaceName);
+        String linkState = readLinkState(interfaceName);
+
+        if (wireless == null || linkState == null || lastIwconfigStat == null ||
+                !linkState.equals(lastLinkState) || now - lastIwconfigRead >= iwconfigRefreshMillis) {
+            WifiStat stat = parser.parseStat(interfaceName, previousWifiStat, iwConfigPath, ethernetDeviceName);
+            lastIwconfigStat = stat;
+            lastIwconfigRead = now;
+            lastLinkState = linkState;
+            learnLinkQualityMax(stat);
+            iwconfigReads++;
+            return stat;
+        }
+
+        nativeReads++;
+        return buildStat(wireless, linkState, previousWifiStat, now, ethernetDeviceName);
+    }
+
+    /**
+     * number of samples taken by running iwconfig
+     *
+     * @return
+     */
+    public long getIwconfigReads() {
+        return iwconfigReads;
+    }
+
+    /**
+     * number of samples taken from the kernel files alone
+     *
+     * @return
+     */
+    public long getNativeReads() {
+        return nativeReads;
+    }
+
+    private WifiStat buildStat(String[] wireless, String linkState, WifiStat previousWifiStat, long now, String ethernetDeviceName) {
+        WifiStat.Builder wifiStatBuilder = WifiStat.newBuilder();
+        WifiConnectionDiagnostics.Builder dataBuilder = WifiConnectionDiagnostics.newBuilder();
+        WifiConnectionDiagnostics previousDiag = previousWifiStat != null ? previousWifiStat.getConnectedDiag() : null;
+        WifiConnectionDiagnostics settingsDiag = lastIwconfigStat.getConnectedDiag();
+
+        wifiStatBuilder.setRecordedDate(now);
+        if (previousWifiStat != null) {
+            wifiStatBuilder.setElapsedDeltaMilliseconds(now - previousWifiStat.getRecordedDate());
+        }
+        copySettings(wifiStatBuilder);
+
+        if (!isAssociated(linkState)) {
+            wifiStatBuilder.setWifiConnectionHealth(WifiConnectionHealth.DISCONNECTED);
+            wifiStatBuilder.setEthernetPluggedIn(parser.ethernetPluggedIn(ethernetDeviceName));
+            wifiStatBuilder.setConnectedDiag(dataBuilder);
+            return wifiStatBuilder.build();
+        }
+
+        wifiStatBuilder.setWifiConnectionHealth(WifiConnectionHealth.UNKONWN);
+        if (lastIwconfigStat.hasApMacAddress()) {
+            wifiStatBuilder.setApMacAddress(lastIwconfigStat.getApMacAddress());
+        }
+        if (settingsDiag.hasFrequency()) {
+            dataBuilder.setFrequency(settingsDiag.getFrequency());
+        }
+        if (settingsDiag.hasRawDataRate()) {
+            dataBuilder.setRawDataRate(settingsDiag.getRawDataRate());
+        }
+        if (settingsDiag.hasDataRate()) {
+            dataBuilder.setDataRate(settingsDiag.getDataRate());
+            if (previousDiag != null && previousDiag.hasDataRate()) {
+                dataBuilder.setDeltaDataRate(dataBuilder.getDataRate() - previousDiag.getDataRate());
+            }
+        }
+
+        ///// link quality /////
+        String linkQuality = trimValue(wireless[1]);
+        Double numerator = Doubles.tryParse(linkQuality);
+        if (numerator != null) {
+            dataBuilder.setLinkQualityRaw(linkQuality + "/" + trimValue(Double.toString(linkQualityMax)));
+            long linkQualityPercent = new BigDecimal(numerator / linkQualityMax).setScale(2, RoundingMode.HALF_UP).multiply(new BigDecimal(100)).longValue();
+            dataBuilder.setLinkQualityPercentage(linkQualityPercent);
+            if (previousDiag != null && previousDiag.hasLinkQualityPercentage()) {
+                dataBuilder.setDeltaLinkQualityPercentage(linkQualityPercent - previousDiag.getLinkQualityPercentage());
+            }
+            if (linkQualityPercent < 34) {
+                wifiStatBuilder.setWifiConnectionHealth(WifiConnectionHealth.WEAK);
+            } else if (linkQualityPercent > 67) {
+                wifiStatBuilder.setWifiConnectionHealth(WifiConnectionHealth.STRONG);
+            } else {
+                wifiStatBuilder.setWifiConnectionHealth(WifiConnectionHealth.AVG);
+            }
+        }
+
+        ///// Signal Level /////
+        String signalLevel = trimValue(wireless[2]);
+        Long level = Longs.tryParse(signalLevel);
+        if (level != null) {
+            dataBuilder.setSignalLevelUnitsRaw(signalLevel);
+            dataBuilder.setSignalLevelUnits(level);
+            if (previousDiag != null && previousDiag.hasSignalLevelUnits()) {
+                dataBuilder.setDeltaSignalLevelUnits(level - previousDiag.getSignalLevelUnits());
+            }
+        }
+
+        ///// noise level /////
+        String noiseLevel = trimValue(wireless[3]);
+        Long noise = Longs.tryParse(noiseLevel);
+        if (noise != null && noise > NOISE_UNAVAILABLE) {
+            dataBuilder.setNoiseLevelRaw(noiseLevel);
+            dataBuilder.setNoiseLevel(noise);
+            if (previousDiag != null && previousDiag.hasNoiseLevel()) {
+                dataBuilder.setDeltaNoiseLevel(noise - previousDiag.getNoiseLevel());
+            }
+        }
+
+        ///// discarded packets and missed beacons /////
+        Integer invalidNwid = Ints.tryParse(wireless[4]);
+        if (invalidNwid != null) {
+            dataBuilder.setRxOtherAPPacketCount(invalidNwid);
+            if (previousDiag != null && previousDiag.hasRxOtherAPPacketCount()) {
+                dataBuilder.setDeltaRxOtherAPPacketCount(invalidNwid - previousDiag.getRxOtherAPPacketCount());
+            }
+        }
+        Integer invalidCrypt = Ints.tryParse(wireless[5]);
+        if (invalidCrypt != null) {
+            dataBuilder.setRxInvalidCryptPacketCount(invalidCrypt);
+            if (previousDiag != null && previousDiag.hasRxInvalidCryptPacketCount()) {
+                dataBuilder.setDeltaRxInvalidCryptPacketCount(invalidCrypt - previousDiag.getRxInvalidCryptPacketCount());
+            }
+        }
+        Integer invalidFrag = Ints.tryParse(wireless[6]);
+        if (invalidFrag != null) {
+            dataBuilder.setRxInvalidFragPacketCount(invalidFrag);
+            if (previousDiag != null && previousDiag.hasRxInvalidFragPacketCount()) {
+                dataBuilder.setDeltaRxInvalidFragPacketCount(invalidFrag - previousDiag.getRxInvalidFragPacketCount());
+            }
+        }
+        Integer excessiveRetries = Ints.tryParse(wireless[7]);
+        if (excessiveRetries != null) {
+            dataBuilder.setTxExcessiveRetries(excessiveRetries);
+            if (previousDiag != null && previousDiag.hasTxExcessiveRetries()) {
+                dataBuilder.setDeltaTxExcessiveRetries(excessiveRetries - previousDiag.getTxExcessiveRetries());
+            }
+        }
+        Integer missedBeacon = Ints.tryParse(wireless[9]);
+        if (missedBeacon != null) {
+            dataBuilder.setLostBeaconCount(missedBeacon);
+            if (previousDiag != null && previousDiag.hasLostBeaconCount()) {
+                dataBuilder.setDeltaLostBeaconCount(missedBeacon - previousDiag.getLostBeaconCount());
+            }
+        }
+
+        wifiStatBuilder.setEthernetPluggedIn(parser.ethernetPluggedIn(ethernetDeviceName));
+        wifiStatBuilder.setConnectedDiag(dataBuilder);
+        return wifiStatBuilder.build();
+    }
+
+    private void copySettings(WifiStat.Builder wifiStatBuilder) {
+        if (lastIwconfigStat.hasSSID()) {
+            wifiStatBuilder.setSSID(lastIwconfigStat.getSSID());
+        }
+        if (lastIwconfigStat.hasMode()) {
+            wifiStatBuilder.setMode(lastIwconfigStat.getMode());
+        }
+        if (lastIwconfigStat.hasTxPowerDbm()) {
+            wifiStatBuilder.setTxPowerDbm(lastIwconfigStat.getTxPowerDbm());
+        }
+        if (lastIwconfigStat.hasSensitivity()) {
+            wifiStatBuilder.setSensitivity(lastIwconfigStat.getSensitivity());
+        }
+        if (lastIwconfigStat.hasRetryLimitPhraseConfig()) {
+            wifiStatBuilder.setRetryLimitPhraseConfig(lastIwconfigStat.getRetryLimitPhraseConfig());
+        }
+        if (lastIwconfigStat.hasRetryLimitValueConfig()) {
+            wifiStatBuilder.setRetryLimitValueConfig(lastIwconfigStat.getRetryLimitValueConfig());
+        }
+        if (lastIwconfigStat.hasRtsConfig()) {
+            wifiStatBuilder.setRtsConfig(lastIwconfigStat.getRtsConfig());
+        }
+        if (lastIwconfigStat.hasFragConfig()) {
+            wifiStatBuilder.setFragConfig(lastIwconfigStat.getFragConfig());
+        }
+        if (lastIwconfigStat.hasPowerMgmtConfig()) {
+            wifiStatBuilder.setPowerMgmtConfig(lastIwconfigStat.getPowerMgmtConfig());
+        }
+    }
+
+    private void learnLinkQualityMax(WifiStat stat) {
+        if (!stat.getConnectedDiag().hasLinkQualityRaw()) {
+            return;
+        }
+        String[] parts = stat.getConnectedDiag().getLinkQualityRaw().split("[\\\\,\\/]");
+        if (parts.length == 2) {
+            Double denominator = Doubles.tryParse(parts[1]);
+            if (denominator != null && denominator > 0) {
+                linkQualityMax = denominator;
+            }
+        }
+    }
+
+    /**
+     * the columns after the interface name in /proc/net/wireless, status first
+     *
+     * @param interfaceName
+     * @return null if the file can't be read or doesn't list the interface
+     */
+    private String[] readProcNetWireless(String interfaceName) {
+        try {
+            List<String> lines = Files.readAllLines(getSystemFile(PROC_NET_WIRELESS).toPath(), StandardCharsets.US_ASCII);
+            String prefix = interfaceName + ":";
+            for (String line : lines) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith(prefix)) {
+                    String[] columns = trimmed.substring(prefix.length()).trim().split("\\s+");
+                    return columns.length >= 10 ? columns : null;
+                }
+            }
+        } catch (IOException ex) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("unable to read {}, falling back to iwconfig", PROC_NET_WIRELESS, ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * operstate and carrier of the interface, e.g. up/1 when associated, dormant/0 while authenticating
+     *
+     * @param interfaceName
+     * @return null if sysfs can't be read
+     */
+    private String readLinkState(String interfaceName) {
+        try {
+            String operstate = readSysfs(interfaceName, "operstate");
+            String carrier;
+            try {
+                carrier = readSysfs(interfaceName, "carrier");
+            } catch (IOException ex) {
+                // carrier can't be read while the interface is administratively down
+                carrier = "0";
+            }
+            return operstate + "/" + carrier;
+        } catch (IOException ex) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("unable to read link state of {}, falling back to iwconfig", interfaceName, ex);
+            }
+        }
+        return null;
+    }
+
+    private String readSysfs(String interfaceName, String attribute) throws IOException {
+        return new String(Files.readAllBytes(getSystemFile(SYS_CLASS_NET + interfaceName + "/" + attribute).toPath()),
+                StandardCharsets.US_ASCII).trim().toLowerCase();
+    }
+
+    private boolean isAssociated(String linkState) {
+        return linkState.equals("up/1");
+    }
+
+    /**
+     * /proc/net/wireless marks updated values with a trailing '.'
+     */
+    private String trimValue(String value) {
+        if (value.endsWith(".0")) {
+            return value.substring(0, value.length() - 2);
+        }
+        return value.endsWith(".") ? value.substring(0, value.length() - 1) : value;
+    }
+
+    @VisibleForTesting
+    File getSystemFile(String path) {
+        return new File(path);
+    }
+}
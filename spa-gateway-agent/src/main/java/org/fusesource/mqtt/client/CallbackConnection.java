@@ -36,6 +36,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -117,6 +118,7 @@ public class CallbackConnection {
     private HeartBeatMonitor heartBeatMonitor;
     private long pingedAt;
     private long reconnects = 0;
+    private int backoffAttempts = 0;
     private final AtomicInteger suspendCount = new AtomicInteger(0);
     private final AtomicInteger suspendChanges = new AtomicInteger(0);
 
@@ -225,12 +227,18 @@ public class CallbackConnection {
     }
 
     void reconnect(final Callback<Transport> onConnect) {
+        // exponential back-off with full jitter, clients that lost the same broker at the same time
+        // spread their attempts over the whole window instead of retrying in lockstep
         long reconnectDelay = mqtt.reconnectDelay;
         if( reconnectDelay> 0 && mqtt.reconnectBackOffMultiplier > 1.0 ) {
-            reconnectDelay = (long) Math.pow(mqtt.reconnectDelay*reconnects, mqtt.reconnectBackOffMultiplier);
+            reconnectDelay = (long) Math.min(mqtt.reconnectDelay * Math.pow(mqtt.reconnectBackOffMultiplier, backoffAttempts), mqtt.reconnectDelayMax);
         }
         reconnectDelay = Math.min(reconnectDelay, mqtt.reconnectDelayMax);
+        if( reconnectDelay > 0 ) {
+            reconnectDelay = ThreadLocalRandom.current().nextLong(reconnectDelay + 1);
+        }
         reconnects += 1;
+        backoffAttempts += 1;
         queue.executeAfter(reconnectDelay, TimeUnit.MILLISECONDS, new Task() {
             @Override
             public void run() {
@@ -418,6 +426,7 @@ public class CallbackConnection {
     boolean onRefillCalled =false;
     public void onSessionEstablished(Transport transport) {
         this.transport = transport;
+        backoffAttempts = 0;
         if( suspendCount.get() > 0 ) {
             this.transport.suspendRead();
         }
@@ -0,0 +1,154 @@
+package com.tritonsvc;
+
+import com.tritonsvc.CommandRunner.CommandResult;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CommandRunnerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File scripts;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(new File("/bin/sh").canExecute());
+        scripts = folder.newFolder("scripts");
+        script("query", "echo eth0 up");
+        script("hang", "sleep 30");
+        script("slow", "sleep 0.2\necho done");
+        script("chatty", "i=0\nwhile [ $i -lt 2000 ]; do echo 0123456789012345678901234567890123456789; i=$((i+1)); done");
+        script("fail", "echo nope\nexit 3");
+        script("daemon", "i=0\nwhile [ $i -lt 2000 ]; do echo 0123456789012345678901234567890123456789; i=$((i+1)); done\n"
+                + "echo started > " + new File(folder.getRoot(), "daemon").getPath() + "\nsleep 1");
+    }
+
+    @Test
+    public void itCountsSpawnsAndFailuresPerCaller() throws Exception {
+        CommandRunner runner = new CommandRunner(4, 1000, 1024);
+
+        CommandResult query = runner.run("query", command("query"), 2000);
+        CommandResult result = runner.run("test", command("fail"), 2000);
+        runner.run("test", command("fail"), 2000);
+        assertTrue(query.isSuccess());
+        assertEquals("eth0 up\n", query.getOutput());
+        assertFalse(result.isSuccess());
+        assertEquals(Integer.valueOf(3), result.getExitCode());
+        assertEquals(2, runner.getStats().get("test").getSpawns());
+        assertEquals(2, runner.getStats().get("test").getFailures());
+        assertEquals("1", runner.toMetadata().get("peakRunning"));
+        assertTrue(runner.toMetadata().get("caller.test").startsWith("spawns=2, timeouts=0, rejected=0, failures=2"));
+    }
+
+    @Test
+    public void itKillsCommandsThatOutliveTheirTimeout() throws Exception {
+        CommandRunner runner = new CommandRunner(4, 1000, 1024);
+
+        long start = System.nanoTime();
+        CommandResult result = runner.run("test", command("hang"), 300);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(result.isTimedOut());
+        assertNull(result.getExitCode());
+        assertTrue(elapsedMillis < 2000);
+        assertEquals(1, runner.getStats().get("test").getTimeouts());
+    }
+
+    @Test
+    public void itCapsOutput() throws Exception {
+        CommandRunner runner = new CommandRunner(4, 1000, 1024);
+
+        CommandResult result = runner.run("test", command("chatty"), 5000);
+        assertTrue(result.isSuccess());
+        assertTrue(result.isTruncated());
+        assertEquals(1024, result.getOutput().length());
+    }
+
+    @Test
+    public void itBoundsConcurrentCallers() throws Exception {
+        CommandRunner runner = new CommandRunner(3, 10000, 1024);
+        ExecutorService callers = Executors.newFixedThreadPool(24);
+        try {
+            List<Future<CommandResult>> results = newArrayList();
+            for (int i = 0; i < 24; i++) {
+                String caller = "caller" + (i % 4);
+                results.add(callers.submit(() -> runner.run(caller, command("slow"), 5000)));
+            }
+            for (Future<CommandResult> result : results) {
+                assertTrue(result.get(30, TimeUnit.SECONDS).isSuccess());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(3, runner.getPeakRunning());
+        long spawns = 0;
+        for (CommandRunner.CallerStats stats : runner.getStats().values()) {
+            spawns += stats.getSpawns();
+            assertTrue(stats.getMaxMillis() >= 200);
+        }
+        assertEquals(24, spawns);
+    }
+
+    @Test
+    public void itRejectsCallersThatWaitTooLongForASlot() throws Exception {
+        CommandRunner runner = new CommandRunner(1, 100, 1024);
+        ExecutorService callers = Executors.newSingleThreadExecutor();
+        try {
+            Future<CommandResult> hanging = callers.submit(() -> runner.run("hog", command("hang"), 1000));
+            Thread.sleep(200);
+            CommandResult rejected = runner.run("test", command("query"), 1000);
+            assertTrue(rejected.isRejected());
+            assertEquals(1, runner.getStats().get("test").getRejected());
+            assertEquals(0, runner.getStats().get("test").getSpawns());
+            assertTrue(hanging.get(5, TimeUnit.SECONDS).isTimedOut());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void itSpawnsDaemonsOutsideTheSlots() throws Exception {
+        CommandRunner runner = new CommandRunner(1, 100, 1024);
+        runner.spawn("daemon", command("daemon"));
+
+        // the daemon is still running and holds no slot
+        assertTrue(runner.run("test", command("query"), 1000).isSuccess());
+        // nobody reads its output, which mustn't stall it
+        File started = new File(folder.getRoot(), "daemon");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!started.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(started.exists());
+        assertEquals(1, runner.getStats().get("daemon").getSpawns());
+    }
+
+    private void script(String name, String body) throws IOException {
+        File script = new File(scripts, name);
+        FileUtils.writeStringToFile(script, "#!/bin/sh\n" + body + "\n");
+        assertTrue(script.setExecutable(true));
+    }
+
+    private String command(String name) {
+        return new File(scripts, name).getPath();
+    }
+}
@@ -0,0 +1,201 @@
+package com.tritonsvc.agent;
+
+import io.moquette.server.Server;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.CallbackConnection;
+import org.fusesource.mqtt.client.Listener;
+import org.fusesource.mqtt.client.MQTT;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+public class AgentReconnectTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(AgentReconnectTest.class);
+    private static final int BROKER_PORT = 11884;
+    private static final int AGENTS = 40;
+    private static final long BUCKET_MILLIS = 500;
+
+    private File config;
+    private Server broker;
+    private final List<CallbackConnection> connections = newArrayList();
+
+    @Before
+    public void setUp() throws Exception {
+        config = Paths.get(AgentReconnectTest.class.getResource("/moquette.conf").toURI()).toFile();
+        broker = new Server();
+        broker.startServer(config);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (CallbackConnection connection : connections) {
+            CountDownLatch killed = new CountDownLatch(1);
+            connection.getDispatchQueue().execute(() -> connection.kill(new Callback<Void>() {
+                @Override
+                public void onSuccess(Void value) {
+                    killed.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable value) {
+                    killed.countDown();
+                }
+            }));
+            killed.await(5, TimeUnit.SECONDS);
+        }
+        broker.stopServer();
+    }
+
+    @Test
+    public void itSpreadsReconnectsAfterABrokerRestart() throws Exception {
+        CountDownLatch connected = new CountDownLatch(AGENTS);
+        CountDownLatch disconnected = new CountDownLatch(AGENTS);
+        List<Long> reconnectedAt = newArrayList();
+        Properties props = new Properties();
+        props.setProperty(AgentConfiguration.COMMAND_PROCESSOR_CLASSNAME, "com.tritonsvc.gateway.BWGProcessor");
+        // a shorter cap than the default keeps the test short
+        props.setProperty(AgentConfiguration.MQTT_RECONNECT_MAX_DELAY_SECONDS, "8");
+        for (int i = 0; i < AGENTS; i++) {
+            Agent agent = new Agent();
+            agent.load(props);
+            MQTT mqtt = new MQTT();
+            mqtt.setHost("tcp://127.0.0.1:" + BROKER_PORT);
+            agent.configureSession(mqtt, "reconnect-" + i);
+            CallbackConnection connection = mqtt.callbackConnection();
+            connection.listener(new Listener() {
+                private volatile boolean lost;
+
+                @Override
+                public void onConnected() {
+                    if (lost) {
+                        synchronized (reconnectedAt) {
+                            reconnectedAt.add(System.nanoTime());
+                        }
+                    }
+                }
+
+                @Override
+                public void onDisconnected() {
+                    if (!lost) {
+                        lost = true;
+                        disconnected.countDown();
+                    }
+                }
+
+                @Override
+                public void onPublish(UTF8Buffer topic, Buffer body, Runnable ack) {
+                    ack.run();
+                }
+
+                @Override
+                public void onFailure(Throwable value) {
+                }
+            });
+            connection.getDispatchQueue().execute(() -> connection.connect(new Callback<Void>() {
+                @Override
+                public void onSuccess(Void value) {
+                    connected.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable value) {
+                    LOGGER.warn("initial connect failed", value);
+                }
+            }));
+            connections.add(connection);
+        }
+        assertTrue(connected.await(20, TimeUnit.SECONDS));
+
+        broker.stopServer();
+        assertTrue(disconnected.await(20, TimeUnit.SECONDS));
+        Thread.sleep(3000);
+        broker = new Server();
+        long restartedAt = System.nanoTime();
+        broker.startServer(config);
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (reconnectedCount(reconnectedAt) < AGENTS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(AGENTS, reconnectedCount(reconnectedAt));
+
+        Map<Long, Integer> histogram = new TreeMap<>();
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        synchronized (reconnectedAt) {
+            for (long at : reconnectedAt) {
+                long millis = TimeUnit.NANOSECONDS.toMillis(at - restartedAt);
+                histogram.merge(millis / BUCKET_MILLIS * BUCKET_MILLIS, 1, Integer::sum);
+                first = Math.min(first, millis);
+                last = Math.max(last, millis);
+            }
+        }
+        int peak = histogram.values().stream().max(Integer::compare).get();
+        LOGGER.info("{} agents reconnected between {} and {} ms after the broker restart, per {} ms: {}", AGENTS, first, last, BUCKET_MILLIS, histogram);
+        assertTrue(peak <= AGENTS / 3);
+        assertTrue(last - first >= 2000);
+    }
+
+    @Test
+    public void itBacksOffWithFullJitter() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 8000, new Random(3));
+        long[] ceilings = {1000, 2000, 4000, 8000, 8000, 8000};
+        for (long ceiling : ceilings) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= 0 && delay <= ceiling);
+        }
+        assertEquals(ceilings.length, backoff.getAttempts());
+
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.isAttemptDue());
+        assertTrue(backoff.nextDelayMillis() <= 1000);
+    }
+
+    @Test
+    public void itOnlyBlamesTheLocalNetworkWhenTheLinkIsDown() throws Exception {
+        ConnectivityProbe probe = spy(new ConnectivityProbe(500));
+        int closedPort;
+        try (ServerSocket listening = new ServerSocket(0)) {
+            assertEquals(ConnectivityProbe.Diagnosis.BROKER_REACHABLE, probe.diagnose("127.0.0.1", listening.getLocalPort(), null));
+            closedPort = listening.getLocalPort();
+        }
+
+        doReturn(true).when(probe).isLocalLinkUp("wlan0");
+        doReturn(true).when(probe).isDefaultGatewayReachable();
+        assertEquals(ConnectivityProbe.Diagnosis.BROKER_DOWN, probe.diagnose("127.0.0.1", closedPort, "wlan0"));
+
+        doReturn(false).when(probe).isDefaultGatewayReachable();
+        assertEquals(ConnectivityProbe.Diagnosis.LOCAL_NETWORK_DOWN, probe.diagnose("127.0.0.1", closedPort, "wlan0"));
+
+        doReturn(false).when(probe).isLocalLinkUp("wlan0");
+        assertEquals(ConnectivityProbe.Diagnosis.LOCAL_NETWORK_DOWN, probe.diagnose("127.0.0.1", closedPort, "wlan0"));
+    }
+
+    private static int reconnectedCount(List<Long> reconnectedAt) {
+        synchronized (reconnectedAt) {
+            return reconnectedAt.size();
+        }
+    }
+}
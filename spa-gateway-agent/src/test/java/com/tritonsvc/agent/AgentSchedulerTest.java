@@ -0,0 +1,109 @@
+package com.tritonsvc.agent;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AgentSchedulerTest {
+
+    private final AgentScheduler scheduler = new AgentScheduler(3);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void itDetectsOverruns() throws Exception {
+        CountDownLatch slowRuns = new CountDownLatch(5);
+        scheduler.scheduleAtFixedRate("slow", () -> {
+            sleep(80);
+            slowRuns.countDown();
+        }, 0, 50, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate("fast", () -> sleep(5), 0, 50, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(slowRuns.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        Assert.assertTrue(scheduler.awaitTermination(1, TimeUnit.SECONDS));
+        AgentScheduler.TaskStatistics slow = scheduler.getStatistics("slow");
+        AgentScheduler.TaskStatistics fast = scheduler.getStatistics("fast");
+        Assert.assertTrue(slow.getRuns() >= 5);
+        Assert.assertEquals(slow.getRuns(), slow.getOverruns());
+        Assert.assertTrue(slow.getDurationMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(80));
+        // each slow run pushes the following ones 30 ms further behind their fixed rate schedule
+        Assert.assertTrue(slow.getStartLagMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(60));
+        Assert.assertTrue(fast.getRuns() >= 5);
+        Assert.assertEquals(0, fast.getOverruns());
+        Assert.assertTrue(scheduler.toMetadata().get("task.slow").startsWith("runs="));
+    }
+
+    @Test
+    public void itKeepsTheHarvestCadenceNextToBlockingAndSlowTasks() throws Exception {
+        // the harvesters, they used to hold two of the pool threads for good
+        CountDownLatch harvestersStopped = new CountDownLatch(2);
+        for (String harvester : new String[]{"rs485-harvester", "wsn-harvester"}) {
+            scheduler.executeBlocking(harvester, () -> {
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException ex) {
+                    harvestersStopped.countDown();
+                }
+            });
+        }
+        List<Long> harvestStarts = new CopyOnWriteArrayList<>();
+        CountDownLatch harvests = new CountDownLatch(3);
+        scheduler.scheduleWithFixedDelay("data-harvest", () -> {
+            harvestStarts.add(System.nanoTime());
+            harvests.countDown();
+        }, 0, 3, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay("events", () -> sleep(4000), 0, 3, TimeUnit.SECONDS);
+        scheduler.execute("deferred-startup", () -> sleep(5000));
+
+        // the third harvest is due 6 s in, while events and the deferred startup still hold the other two pool threads
+        Assert.assertTrue(harvests.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, scheduler.getBlockingThreadCount());
+        for (int i = 1; i < 3; i++) {
+            long gap = TimeUnit.NANOSECONDS.toMillis(harvestStarts.get(i) - harvestStarts.get(i - 1));
+            // a harvest stuck behind the 4 s events run would start at least a second late
+            Assert.assertTrue("harvest runs " + gap + " ms apart", gap >= 3000 && gap < 3500);
+        }
+        AgentScheduler.TaskStatistics harvest = scheduler.getStatistics("data-harvest");
+        Assert.assertEquals(0, harvest.getOverruns());
+        Assert.assertTrue(harvest.getStartLagMaxNanos() < TimeUnit.MILLISECONDS.toNanos(500));
+        // the 4 s events run is longer than its 3 s delay
+        AgentScheduler.TaskStatistics events = scheduler.getStatistics("events");
+        Assert.assertTrue(events.getDurationMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(4000));
+        Assert.assertEquals(1, events.getOverruns());
+
+        scheduler.shutdownNow();
+        Assert.assertTrue(harvestersStopped.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void itTimesTasksRunElsewhere() throws Exception {
+        Runnable ack = scheduler.timed("send-ack", () -> {
+        });
+        Thread.sleep(50);
+        Thread sender = new Thread(ack);
+        sender.start();
+        sender.join();
+
+        AgentScheduler.TaskStatistics statistics = scheduler.getStatistics("send-ack");
+        Assert.assertEquals(1, statistics.getRuns());
+        Assert.assertTrue(statistics.getStartLagMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(0, statistics.getOverruns());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.tritonsvc.agent;
+
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.EventType;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Event;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Events;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.UplinkCommandType;
+import io.moquette.server.Server;
+import org.apache.commons.io.FileUtils;
+import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.QoS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Runs agents against an embedded moquette broker, the agents reach it through a proxy that counts their connections.
+ */
+public class AgentSingleConnectionTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(AgentSingleConnectionTest.class);
+    private static final int BROKER_PORT = 11884;
+    private static final int DOWNLINKS = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Server broker;
+    private CountingProxy proxy;
+    private BlockingConnection downlinkPublisher;
+    private final List<Agent> agents = newArrayList();
+    private final LinkedBlockingQueue<Long> downlinkLatencies = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new Server();
+        broker.startServer(Paths.get(AgentSingleConnectionTest.class.getResource("/moquette.conf").toURI()).toFile());
+        proxy = new CountingProxy(BROKER_PORT);
+        MQTT mqtt = new MQTT();
+        mqtt.setHost("tcp://127.0.0.1:" + BROKER_PORT);
+        downlinkPublisher = mqtt.blockingConnection();
+        downlinkPublisher.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        agents.forEach(Agent::stop);
+        downlinkPublisher.kill();
+        proxy.close();
+        broker.stopServer();
+    }
+
+    @Test
+    public void itHalvesTheBrokerConnections() throws Exception {
+        startAgent("twoConnections", false);
+        assertEquals(2, awaitOpenConnections(2));
+
+        startAgent("oneConnection", true);
+        assertEquals(3, awaitOpenConnections(3));
+        LOGGER.info("two agents, one of them on a single connection, hold {} broker connections", proxy.getOpen());
+    }
+
+    @Test
+    public void itKeepsDownlinkLatencyWhileUplinksAreSaturated() throws Exception {
+        GatewayEventDispatcher dispatcher = startAgent("saturated", true);
+        assertEquals(1, awaitOpenConnections(1));
+        awaitSubscription("saturated");
+
+        List<Long> idle = measureDownlinks("saturated");
+
+        AtomicBoolean saturating = new AtomicBoolean(true);
+        AtomicLong uplinks = new AtomicLong();
+        Events events = Events.newBuilder().addEvents(Event.newBuilder()
+                .setEventType(EventType.NOTIFICATION)
+                .setEventOccuredTimestamp(1)
+                .setEventReceivedTimestamp(1)
+                .setDescription(new String(new char[8192]).replace('\0', 'x')))
+                .build();
+        ExecutorService publishers = Executors.newFixedThreadPool(4);
+        List<Long> saturated;
+        try {
+            for (int i = 0; i < 4; i++) {
+                publishers.execute(() -> {
+                    while (saturating.get()) {
+                        dispatcher.sendUplink("saturated", null, UplinkCommandType.EVENT, events, false);
+                        uplinks.incrementAndGet();
+                    }
+                });
+            }
+            Thread.sleep(500);
+            saturated = measureDownlinks("saturated");
+        } finally {
+            saturating.set(false);
+            publishers.shutdown();
+            publishers.awaitTermination(30, TimeUnit.SECONDS);
+        }
+
+        long idleMedian = median(idle);
+        long saturatedMedian = median(saturated);
+        LOGGER.info("downlink latency median idle {} ms, while {} uplinks were published {} ms, max {} ms",
+                idleMedian, uplinks.get(), saturatedMedian, Collections.max(saturated));
+        assertTrue(uplinks.get() > DOWNLINKS);
+        assertTrue(saturatedMedian <= idleMedian + 250);
+        assertEquals(1, proxy.getOpen());
+    }
+
+    private GatewayEventDispatcher startAgent(String serialNumber, boolean singleConnection) throws Exception {
+        File home = folder.newFolder(serialNumber);
+        FileUtils.writeLines(new File(home, "config.properties"), newArrayList(
+                "command.processor.classname=com.tritonsvc.gateway.MockProcessor",
+                "spa.gateway.serialnumber=" + serialNumber,
+                "mqtt.hostname=127.0.0.1",
+                "mqtt.single.connection=" + singleConnection));
+
+        AgentMessageProcessor processor = mock(AgentMessageProcessor.class);
+        doAnswer(invocation -> {
+            byte[] payload = (byte[]) invocation.getArguments()[0];
+            downlinkLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ByteBuffer.wrap(payload).getLong()));
+            return null;
+        }).when(processor).processDownlinkCommand(any(byte[].class));
+
+        Agent agent = spy(new Agent());
+        doReturn(processor).when(agent).createProcessor();
+        doReturn(new ProxiedMQTT()).doReturn(new ProxiedMQTT()).when(agent).createMQTT();
+        agent.start(home.getAbsolutePath());
+        agents.add(agent);
+
+        ArgumentCaptor<GatewayEventDispatcher> dispatcher = ArgumentCaptor.forClass(GatewayEventDispatcher.class);
+        verify(processor).setEventDispatcher(dispatcher.capture());
+        return dispatcher.getValue();
+    }
+
+    private void awaitSubscription(String serialNumber) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            publishDownlink(serialNumber);
+            if (downlinkLatencies.poll(200, TimeUnit.MILLISECONDS) != null) {
+                Thread.sleep(200);
+                downlinkLatencies.clear();
+                return;
+            }
+        }
+        throw new AssertionError("agent never subscribed to its downlink topic");
+    }
+
+    private List<Long> measureDownlinks(String serialNumber) throws Exception {
+        List<Long> latencies = newArrayList();
+        for (int i = 0; i < DOWNLINKS; i++) {
+            publishDownlink(serialNumber);
+            Long latency = downlinkLatencies.poll(10, TimeUnit.SECONDS);
+            assertNotNull(latency);
+            latencies.add(latency);
+        }
+        return latencies;
+    }
+
+    private void publishDownlink(String serialNumber) throws Exception {
+        byte[] payload = ByteBuffer.allocate(8).putLong(System.nanoTime()).array();
+        downlinkPublisher.publish("BWG/spa/downlink/" + serialNumber, payload, QoS.AT_LEAST_ONCE, false);
+    }
+
+    private int awaitOpenConnections(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (proxy.getOpen() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        // give any extra connection the chance to show up
+        Thread.sleep(500);
+        return proxy.getOpen();
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = newArrayList(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    /**
+     * the agent always targets the standard port on the configured host, send it to the proxy instead
+     */
+    private class ProxiedMQTT extends MQTT {
+        @Override
+        public void setHost(String host) throws URISyntaxException {
+            super.setHost("tcp://127.0.0.1:" + proxy.getPort());
+        }
+    }
+
+    private static class CountingProxy implements Closeable {
+        private final ServerSocket server;
+        private final int targetPort;
+        private final AtomicInteger open = new AtomicInteger();
+        private final List<Socket> sockets = Collections.synchronizedList(newArrayList());
+        private final ExecutorService pumps = Executors.newCachedThreadPool();
+
+        CountingProxy(int targetPort) throws IOException {
+            this.targetPort = targetPort;
+            this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            pumps.execute(this::accept);
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        int getOpen() {
+            return open.get();
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                try {
+                    Socket client = server.accept();
+                    Socket target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                    sockets.add(client);
+                    sockets.add(target);
+                    open.incrementAndGet();
+                    AtomicBoolean closed = new AtomicBoolean(false);
+                    pumps.execute(() -> pump(client, target, closed));
+                    pumps.execute(() -> pump(target, client, closed));
+                } catch (IOException ex) {
+                    // closed
+                }
+            }
+        }
+
+        private void pump(Socket from, Socket to, AtomicBoolean closed) {
+            byte[] buffer = new byte[16 * 1024];
+            try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException ex) {
+                // either side went away
+            } finally {
+                if (closed.compareAndSet(false, true)) {
+                    open.decrementAndGet();
+                }
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            synchronized (sockets) {
+                sockets.forEach(CountingProxy::closeQuietly);
+            }
+            pumps.shutdownNow();
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
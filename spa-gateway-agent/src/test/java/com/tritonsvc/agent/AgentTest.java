@@ -29,6 +29,7 @@ import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -152,4 +153,34 @@ public class AgentTest {
         verify(processor).setGwSerialNumber(eq("test1"));
         assertThat("cert dn not obtained correctly", certCaptor.getValue().getSubjectDN().getName().equals("CN=test1, OU=unit_test, O=test, L=san diego, ST=CA, C=US"));
     }
+
+    @Test
+    public void itPicksUpRotatedCertificates() throws Exception {
+        File createdFile= folder.newFile("config.properties");
+        PrintWriter pw = new PrintWriter(new FileWriter(createdFile));
+        pw.println("command.processor.classname=com.tritonsvc.gateway.MockProcessor");
+        pw.println("spa.gateway.serialnumber=spatime");
+        pw.flush();
+        pw.close();
+
+        Files.copy(AgentTest.class.getResourceAsStream("/" + Agent.CA_ROOT_PUBKEY_FILE), folder.newFile(Agent.CA_ROOT_PUBKEY_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(AgentTest.class.getResourceAsStream("/" + Agent.GATEWAY_PRIVKEY_FILE), folder.newFile(Agent.GATEWAY_PRIVKEY_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File gatewayCert = folder.newFile(Agent.GATEWAY_PUBKEY_FILE);
+        Files.copy(AgentTest.class.getResourceAsStream("/" + Agent.GATEWAY_PUBKEY_FILE), gatewayCert.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        agent.start(folder.getRoot().getAbsolutePath());
+        agent.refreshPKIIfChanged();
+        verify(mqttSub, times(1)).setSslContext(any(SSLContext.class));
+
+        assertThat("cert mtime not changed", gatewayCert.setLastModified(gatewayCert.lastModified() + 2000));
+        agent.refreshPKIIfChanged();
+        ArgumentCaptor<SSLContext> contexts = ArgumentCaptor.forClass(SSLContext.class);
+        verify(mqttSub, times(2)).setSslContext(contexts.capture());
+        verify(mqttPub, times(2)).setSslContext(any(SSLContext.class));
+        verify(processor, times(2)).setPKI(any(X509Certificate.class), any(PrivateKey.class));
+        assertThat("ssl context not rebuilt", contexts.getAllValues().get(0) != contexts.getAllValues().get(1));
+
+        agent.refreshPKIIfChanged();
+        verify(mqttSub, times(2)).setSslContext(any(SSLContext.class));
+    }
 }
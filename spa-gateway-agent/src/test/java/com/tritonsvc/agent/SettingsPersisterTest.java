@@ -15,10 +15,8 @@ import org.junit.rules.TemporaryFolder;
 import java.io.File;
 import java.io.IOException;
 
-import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
-import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 
 public class SettingsPersisterTest {
@@ -38,7 +36,6 @@ public class SettingsPersisterTest {
         FileUtils.copyInputStreamToFile(SettingsPersisterTest.class.getResourceAsStream("/wpa_supplicant.conf"), wpaFile);
         doReturn(ethFile).when(persister).getSystemFile(eq("/etc/network/interfaces"));
         doReturn(wpaFile).when(persister).getSystemFile(eq("/etc/wpa_supplicant/wpa_supplicant.conf"));
-        doReturn(mock(Process.class)).when(persister).executeUnixCommand(any());
     }
 
     @Test
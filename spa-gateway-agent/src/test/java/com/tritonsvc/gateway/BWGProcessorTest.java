@@ -1,6 +1,7 @@
 package com.tritonsvc.gateway;
 
 
+import com.tritonsvc.agent.AgentScheduler;
 import com.tritonsvc.agent.AgentSettingsPersister;
 import com.tritonsvc.agent.GatewayEventDispatcher;
 import com.tritonsvc.spa.communication.proto.Bwg.AckResponseCode;
@@ -10,17 +11,31 @@ import com.tritonsvc.spa.communication.proto.Bwg.Downlink.Model.RequestType;
 import com.tritonsvc.spa.communication.proto.Bwg.Downlink.Model.SpaCommandAttribName;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components.PumpComponent;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.ComponentType;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.SpaState;
 import jdk.dio.uart.UART;
+import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyByte;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -33,6 +48,7 @@ public class BWGProcessorTest {
     private RS485MessagePublisher rs485MessagePublisher;
     private RS485DataHarvester rs485DataHarvester;
     private GatewayEventDispatcher eventDispatcher;
+    private final AgentScheduler scheduler = new AgentScheduler(5);
 
     @Before
     public void setUp() throws IOException {
@@ -49,6 +65,11 @@ public class BWGProcessorTest {
         doNothing().when(processor).sendAck(any(), any(), eq(AckResponseCode.RECEIVED), isNull(String.class));
     }
 
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
     @Test
     public void itSubmitsCircPumpRequest() throws Exception {
         ComponentInfo info = new ComponentInfo("OFF", newArrayList(PumpComponent.State.OFF,PumpComponent.State.LOW,PumpComponent.State.HIGH));
@@ -60,4 +81,68 @@ public class BWGProcessorTest {
 
         verify(rs485MessagePublisher, times(2)).sendCode(eq(NGSCButtonCode.kPump0MetaButton.getCode()), eq((byte)2), eq("originatorId"), eq("hardwareId"));
     }
+
+    @Test
+    public void itDoesNotHoldDownlinksForASlowWifiDiag() throws Exception {
+        ComponentInfo info = new ComponentInfo("OFF", newArrayList(PumpComponent.State.OFF,PumpComponent.State.LOW,PumpComponent.State.HIGH));
+        when(rs485DataHarvester.getComponentState(eq(ComponentType.CIRCULATION_PUMP), eq(0))).thenReturn(info);
+        when(rs485MessagePublisher.getCode(eq("kPump0MetaButton"))).thenReturn(NGSCButtonCode.kPump0MetaButton);
+        List<Long> busWrites = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> busWrites.add(System.nanoTime())).when(rs485MessagePublisher).sendCode(anyInt(), anyByte(), anyString(), anyString());
+
+        long baseline = downlinkToBusNanos(busWrites);
+
+        DeviceRegistration registration = new DeviceRegistration();
+        registration.setHardwareId("spaId");
+        doReturn(registration).when(processor).obtainSpaRegistration();
+        doReturn(registration).when(processor).obtainControllerRegistration(eq("spaId"));
+        doNothing().when(processor).processFaultLogStage(anyString());
+        doNothing().when(processor).processMeasurementStage(anyString());
+        CountDownLatch diagStarted = new CountDownLatch(1);
+        AtomicBoolean diagFinished = new AtomicBoolean();
+        doAnswer(invocation -> {
+            diagStarted.countDown();
+            // iwconfig hanging on a flaky wifi link
+            Thread.sleep(2000);
+            diagFinished.set(true);
+            return null;
+        }).when(processor).processWifiDiag(eq("spaId"));
+        Assert.assertEquals("spaId", processor.processRegistration());
+        processor.scheduleHarvestStages(scheduler, 0);
+        Assert.assertTrue(diagStarted.await(1, TimeUnit.SECONDS));
+
+        long duringSlowDiag = downlinkToBusNanos(busWrites);
+
+        Assert.assertFalse(diagFinished.get());
+        Assert.assertTrue("downlink took " + TimeUnit.NANOSECONDS.toMillis(duringSlowDiag) + " ms",
+                duringSlowDiag < baseline + TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void itUnlocksTheHarvesterItLockedWhenTheControllerTypeChanges() throws Exception {
+        ReentrantReadWriteLock oldLock = new ReentrantReadWriteLock();
+        ReentrantReadWriteLock newLock = new ReentrantReadWriteLock();
+        RS485DataHarvester newHarvester = mock(RS485DataHarvester.class);
+        when(newHarvester.getLatestSpaInfoLock()).thenReturn(newLock);
+        when(rs485DataHarvester.getLatestSpaInfoLock()).thenReturn(oldLock);
+        // a controller type downlink swaps the harvester while the state is read
+        when(rs485DataHarvester.getLatestSpaInfo()).thenAnswer(invocation -> {
+            processor.setRS485DataHarvester(newHarvester);
+            return SpaState.getDefaultInstance();
+        });
+
+        Assert.assertNull(processor.getLatestLightState(1));
+
+        Assert.assertEquals(0, oldLock.getReadLockCount());
+        Assert.assertEquals(0, newLock.getReadLockCount());
+    }
+
+    private long downlinkToBusNanos(List<Long> busWrites) {
+        Request request = Request.newBuilder().setRequestType(RequestType.CIRCULATION_PUMP).addMetadata(RequestMetadata.newBuilder().setName(SpaCommandAttribName.DESIREDSTATE).setValue("HIGH")).build();
+        busWrites.clear();
+        long start = System.nanoTime();
+        processor.handleDownlinkCommand(request, "hardwareId", "originatorId");
+        Assert.assertFalse(busWrites.isEmpty());
+        return busWrites.get(0) - start;
+    }
 }
@@ -0,0 +1,171 @@
+package com.tritonsvc.gateway;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BusTurnaroundTimerTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(BusTurnaroundTimerTest.class);
+    private static final int POLLS = 400;
+    private static final long HANDLING_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Test
+    public void itBacksOffOnCollisionsAndNacks() throws Exception {
+        BusTurnaroundTimer timer = timer();
+        assertEquals(250, timer.getTurnaroundMicros());
+
+        timer.awaitTurnaround();
+        assertEquals(250, timer.getWaitedMicros());
+        timer.frameReceived(ticker.read(), false);
+        assertEquals(500, timer.getTurnaroundMicros());
+
+        timer.awaitTurnaround();
+        assertEquals(750, timer.getWaitedMicros());
+        timer.recordNack();
+        assertEquals(1000, timer.getTurnaroundMicros());
+        assertEquals(1, timer.getCollisions());
+        assertEquals(1, timer.getNacks());
+
+        for (int i = 0; i < 32; i++) {
+            timer.awaitTurnaround();
+            timer.frameReceived(ticker.read(), true);
+        }
+        // halfway back to the turnaround that last failed
+        assertEquals(750, timer.getTurnaroundMicros());
+        assertEquals(34, timer.getWrites());
+    }
+
+    @Test
+    public void itDoesNotWaitForTurnaroundAlreadySpent() throws Exception {
+        BusTurnaroundTimer timer = timer();
+        long frameEnd = ticker.read();
+        timer.frameReceived(frameEnd, true);
+        ticker.advance(TimeUnit.MILLISECONDS.toNanos(1));
+        timer.awaitTurnaround();
+        assertEquals(0, timer.getWaitedMicros());
+        assertEquals(frameEnd + TimeUnit.MILLISECONDS.toNanos(1), ticker.read());
+    }
+
+    @Test
+    public void itWaitsOnlyTheRemainderOfTheTurnaround() throws Exception {
+        BusTurnaroundTimer timer = timer();
+        long frameEnd = ticker.read();
+        timer.frameReceived(frameEnd, true);
+        ticker.advance(HANDLING_NANOS);
+        timer.awaitTurnaround();
+        assertEquals(150, timer.getWaitedMicros());
+        assertEquals(frameEnd + TimeUnit.MICROSECONDS.toNanos(250), ticker.read());
+    }
+
+    @Test
+    public void itDeliversMoreDownlinksThanFixedSleepWithoutCollisions() throws Exception {
+        // what this compares is how long Thread.sleep really takes for a sub millisecond turnaround, so it runs on the wall clock
+        Ticker wallClock = Ticker.systemTicker();
+        Pause handling = () -> BusTurnaroundTimer.pauseUntil(System.nanoTime() + HANDLING_NANOS);
+        SimulatedBus legacyBus = new SimulatedBus(wallClock, TimeUnit.MICROSECONDS.toNanos(250));
+        long legacyNanos = legacyBus.run(handling, () -> Thread.sleep(0, 250000));
+
+        BusTurnaroundTimer timer = new BusTurnaroundTimer(250, 4000);
+        SimulatedBus adaptiveBus = new SimulatedBus(wallClock, TimeUnit.MICROSECONDS.toNanos(250), timer);
+        long adaptiveNanos = adaptiveBus.run(handling, timer::awaitTurnaround);
+
+        double legacyRate = POLLS / (legacyNanos / 1000000000.0);
+        double adaptiveRate = POLLS / (adaptiveNanos / 1000000000.0);
+        LOGGER.info("fixed sleep {} downlinks/sec {} collisions, adaptive {} downlinks/sec {} collisions, {}",
+                (long) legacyRate, legacyBus.collisions, (long) adaptiveRate, adaptiveBus.collisions, timer);
+
+        assertEquals(0, legacyBus.collisions);
+        assertEquals(0, adaptiveBus.collisions);
+        assertTrue(adaptiveRate > legacyRate);
+    }
+
+    @Test
+    public void itSettlesAboveASlowController() throws Exception {
+        BusTurnaroundTimer timer = timer();
+        SimulatedBus slowBus = new SimulatedBus(ticker, TimeUnit.MICROSECONDS.toNanos(600), timer);
+        slowBus.run(() -> ticker.advance(HANDLING_NANOS), timer::awaitTurnaround);
+
+        LOGGER.info("slow controller settled at {}, {} collisions", timer, slowBus.collisions);
+        // a handful of probes collide while it learns the controller, then it stays clear
+        assertEquals(4, slowBus.collisions);
+        assertTrue(timer.getTurnaroundMicros() >= 600);
+        assertTrue(timer.getTurnaroundMicros() < 650);
+    }
+
+    /**
+     * waits of the timer move the fake ticker straight to their deadline
+     */
+    private BusTurnaroundTimer timer() {
+        return new BusTurnaroundTimer(250, 4000, ticker) {
+            @Override
+            void pause(long deadlineNanos) {
+                ticker.advance(deadlineNanos - ticker.read());
+            }
+        };
+    }
+
+    private static class FakeTicker extends Ticker {
+        // the timer takes a frame end of 0 for no frame seen yet
+        private long nanos = TimeUnit.SECONDS.toNanos(1);
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long delta) {
+            nanos += delta;
+        }
+    }
+
+    private interface Pause {
+        void pause() throws Exception;
+    }
+
+    /**
+     * a spa controller that polls, takes releaseNanos to let go of the bus after each poll, and sees any
+     * reply written sooner as a collision, which corrupts the next frame
+     */
+    private static class SimulatedBus {
+        private final Ticker ticker;
+        private final long releaseNanos;
+        private final BusTurnaroundTimer timer;
+        private int collisions;
+
+        SimulatedBus(Ticker ticker, long releaseNanos) {
+            this(ticker, releaseNanos, null);
+        }
+
+        SimulatedBus(Ticker ticker, long releaseNanos, BusTurnaroundTimer timer) {
+            this.ticker = ticker;
+            this.releaseNanos = releaseNanos;
+            this.timer = timer;
+        }
+
+        long run(Pause handling, Pause turnaround) throws Exception {
+            boolean lastCollided = false;
+            long start = ticker.read();
+            for (int poll = 0; poll < POLLS; poll++) {
+                long pollEnd = ticker.read();
+                if (timer != null) {
+                    timer.frameReceived(pollEnd, !lastCollided);
+                }
+                handling.pause();
+                turnaround.pause();
+                lastCollided = ticker.read() - pollEnd < releaseNanos;
+                if (lastCollided) {
+                    collisions++;
+                }
+            }
+            return ticker.read() - start;
+        }
+    }
+}
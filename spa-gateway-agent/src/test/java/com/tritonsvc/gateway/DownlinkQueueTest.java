@@ -0,0 +1,178 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.gateway.RS485MessagePublisher.PendingRequest;
+import com.tritonsvc.spa.communication.proto.Bwg.AckResponseCode;
+import jdk.dio.uart.UART;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DownlinkQueueTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(DownlinkQueueTest.class);
+    private static final byte ADDRESS = (byte) 0x05;
+
+    private BWGProcessor processor;
+    private UART uart;
+    private NGSCMessagePublisher publisher;
+
+    @Before
+    public void setUp() {
+        processor = mock(BWGProcessor.class);
+        uart = mock(UART.class);
+        when(processor.getRS485UART()).thenReturn(uart);
+        publisher = new NGSCMessagePublisher(processor);
+    }
+
+    @Test
+    public void itKeepsOnlyTheLatestTargetTemperature() throws Exception {
+        for (int temp = 95; temp <= 104; temp++) {
+            setTemperature(temp, "originator" + temp);
+        }
+        assertEquals(1, publisher.getPendingDownlinks().size());
+        assertEquals(9, publisher.getPendingDownlinks().getCoalesced());
+
+        assertTrue(publisher.sendPendingDownlinkIfAvailable(ADDRESS));
+        assertFalse(publisher.sendPendingDownlinkIfAvailable(ADDRESS));
+
+        ArgumentCaptor<ByteBuffer> written = ArgumentCaptor.forClass(ByteBuffer.class);
+        verify(uart).write(written.capture());
+        assertEquals(104, written.getValue().get(5));
+        // every originator hears the outcome of the write that replaced theirs
+        for (int temp = 95; temp <= 104; temp++) {
+            verify(processor).sendAck("hardware", "originator" + temp, AckResponseCode.OK, null);
+        }
+    }
+
+    @Test
+    public void itNeverCoalescesButtonPresses() throws Exception {
+        int pump1 = NGSCButtonCode.kJets1MetaButton.getCode();
+        int light1 = NGSCButtonCode.kLight1MetaButton.getCode();
+        // off to high takes two presses, both from the same request
+        publisher.sendCode(pump1, ADDRESS, "pumpHigh", "hardware");
+        publisher.sendCode(pump1, ADDRESS, "pumpHigh", "hardware");
+        // two users toggle the light, merging the presses would leave it in a state neither of them asked for
+        publisher.sendCode(light1, ADDRESS, "lightOn", "hardware");
+        publisher.sendCode(light1, ADDRESS, "lightOff", "hardware");
+        assertEquals(4, publisher.getPendingDownlinks().size());
+        assertEquals(0, publisher.getPendingDownlinks().getCoalesced());
+
+        while (publisher.sendPendingDownlinkIfAvailable(ADDRESS)) {
+        }
+        verify(uart, times(4)).write(any(ByteBuffer.class));
+        verify(processor, times(2)).sendAck("hardware", "pumpHigh", AckResponseCode.OK, null);
+        verify(processor).sendAck("hardware", "lightOn", AckResponseCode.OK, null);
+        verify(processor).sendAck("hardware", "lightOff", AckResponseCode.OK, null);
+    }
+
+    @Test
+    public void itNeverCoalescesAgentInitiatedRequests() throws Exception {
+        int tempRange = NGSCButtonCode.kTempRangeMetaButton.getCode();
+        publisher.sendCode(tempRange, ADDRESS, "self", null);
+        publisher.sendCode(tempRange, ADDRESS, "other", null);
+        assertEquals(2, publisher.getPendingDownlinks().size());
+        assertEquals(0, publisher.getPendingDownlinks().getCoalesced());
+    }
+
+    @Test
+    public void itLetsTimeSyncAndPanelRequestsJumpAhead() throws Exception {
+        setTemperature(100, "temp");
+        publisher.sendCode(NGSCButtonCode.kJets1MetaButton.getCode(), ADDRESS, "pump", "hardware");
+        publisher.updateSpaTime("time", "hardware", false, ADDRESS, null, null, null, 12, 13);
+        publisher.sendPanelRequest(ADDRESS, false, null);
+
+        DownlinkQueue queue = publisher.getPendingDownlinks();
+        assertEquals("time", queue.poll().getOriginatorId());
+        assertEquals("self", queue.poll().getOriginatorId());
+        assertEquals("temp", queue.poll().getOriginatorId());
+        assertEquals("pump", queue.poll().getOriginatorId());
+    }
+
+    @Test
+    public void itNacksCoalescedOriginatorsWhenDrained() throws Exception {
+        setTemperature(100, "first");
+        setTemperature(101, "second");
+        publisher.drainPendingQueues();
+
+        assertTrue(publisher.getPendingDownlinks().isEmpty());
+        verify(processor).sendAck(eq("hardware"), eq("first"), eq(AckResponseCode.ERROR), anyString());
+        verify(processor).sendAck(eq("hardware"), eq("second"), eq(AckResponseCode.ERROR), anyString());
+        verify(processor, never()).sendAck(anyString(), anyString(), eq(AckResponseCode.OK), (String) isNull());
+    }
+
+    @Test
+    public void itReachesTheFinalTemperatureSoonerWithFewerWrites() throws Exception {
+        BurstResult fifo = runSliderBurst(false);
+        setUp();
+        BurstResult coalescing = runSliderBurst(true);
+
+        LOGGER.info("slider burst, fifo {} writes final state after {} polls, coalescing {} writes final state after {} polls",
+                fifo.writes, fifo.pollsToFinalState, coalescing.writes, coalescing.pollsToFinalState);
+        assertEquals(8, fifo.writes);
+        assertEquals(4, coalescing.writes);
+        assertEquals(3, coalescing.pollsToFinalState);
+        assertEquals(7, fifo.pollsToFinalState);
+    }
+
+    /**
+     * a user dragging the temperature slider, two new targets arrive between each poll from the spa controller
+     */
+    private BurstResult runSliderBurst(boolean coalescing) throws Exception {
+        BurstResult result = new BurstResult();
+        when(uart.write(any(ByteBuffer.class))).thenAnswer(invocation -> {
+            result.lastWrittenTemp = ((ByteBuffer) invocation.getArguments()[0]).get(5);
+            return 8;
+        });
+        int temp = 95;
+        int finalTemp = temp + 7;
+        for (int poll = 0; temp <= finalTemp || !publisher.getPendingDownlinks().isEmpty(); poll++) {
+            for (int i = 0; i < 2 && temp <= finalTemp; i++, temp++) {
+                if (coalescing) {
+                    setTemperature(temp, "originator" + temp);
+                } else {
+                    publisher.addToPending(new PendingRequest(temperatureRequest(temp), "originator" + temp, "hardware"));
+                }
+            }
+            if (publisher.sendPendingDownlinkIfAvailable(ADDRESS)) {
+                result.writes++;
+                if (result.lastWrittenTemp == finalTemp) {
+                    result.pollsToFinalState = poll;
+                }
+            }
+        }
+        verify(processor, never()).sendAck(anyString(), anyString(), eq(AckResponseCode.ERROR), anyString());
+        return result;
+    }
+
+    private void setTemperature(int temp, String originatorId) throws Exception {
+        publisher.setTemperature(temp, null, 110, null, ADDRESS, originatorId, "hardware", 104, 80, 99, 50);
+    }
+
+    private byte[] temperatureRequest(int temp) {
+        byte[] frame = new byte[]{0x7E, 0x06, ADDRESS, (byte) 0xBF, 0x20, (byte) temp, 0x00, 0x7E};
+        frame[6] = HdlcCrc.generateFCS(frame);
+        return frame;
+    }
+
+    private static class BurstResult {
+        private int writes;
+        private int lastWrittenTemp;
+        private int pollsToFinalState = -1;
+    }
+}
@@ -0,0 +1,118 @@
+package com.tritonsvc.gateway;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stands in for the ts7970 adc and fpga registers and the HTU21DF on the i2c bus, records every transaction with its time and
+ * every buffer it was handed.
+ */
+class FakeI2CDevice implements I2CBusDevice {
+
+    static final int HTU21DF_READTEMP = 0xE3;
+    static final int HTU21DF_READHUM = 0xE5;
+
+    private final Map<Integer, Deque<Integer>> registers = new HashMap<>();
+    private final Map<Integer, Integer> conversions = new HashMap<>();
+    private final List<Transaction> transactions = new ArrayList<>();
+    private final Set<ByteBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int lastCommand;
+
+    /**
+     * @param skip register offset
+     * @param values returned by the following reads, the last one repeats
+     */
+    synchronized FakeI2CDevice register(int skip, Integer... values) {
+        registers.put(skip, new ArrayDeque<>(Arrays.asList(values)));
+        return this;
+    }
+
+    /**
+     * @param command HTU21DF_READTEMP or HTU21DF_READHUM
+     * @param raw 16 bit conversion result
+     */
+    synchronized FakeI2CDevice conversion(int command, int raw) {
+        conversions.put(command, raw);
+        return this;
+    }
+
+    @Override
+    public synchronized int read(int skip, ByteBuffer dst) throws IOException {
+        buffers.add(dst);
+        record("read@" + skip);
+        Deque<Integer> values = registers.get(skip);
+        int value = values == null || values.isEmpty() ? 0 : values.size() > 1 ? values.poll() : values.peek();
+        dst.put((byte) (value >> 8));
+        dst.put((byte) value);
+        return 2;
+    }
+
+    @Override
+    public synchronized int read(int subaddress, int subaddressSize, ByteBuffer dst) throws IOException {
+        buffers.add(dst);
+        record("read@" + subaddress + "/" + subaddressSize);
+        Deque<Integer> values = registers.get(subaddress);
+        int value = values == null || values.isEmpty() ? 0 : values.size() > 1 ? values.poll() : values.peek();
+        dst.put((byte) value);
+        return 1;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        buffers.add(dst);
+        record("read");
+        int raw = conversions.getOrDefault(lastCommand, 0);
+        dst.put((byte) (raw >> 8));
+        dst.put((byte) raw);
+        dst.put((byte) 0);
+        return 3;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        record("read");
+        return 0x2;
+    }
+
+    @Override
+    public synchronized void write(int srcData) throws IOException {
+        record("write " + Integer.toHexString(srcData));
+        lastCommand = srcData;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    synchronized List<Transaction> getTransactions() {
+        return new ArrayList<>(transactions);
+    }
+
+    synchronized int getBufferCount() {
+        return buffers.size();
+    }
+
+    private void record(String operation) {
+        transactions.add(new Transaction(operation, System.nanoTime()));
+    }
+
+    static class Transaction {
+        final String operation;
+        final long nanos;
+
+        Transaction(String operation, long nanos) {
+            this.operation = operation;
+            this.nanos = nanos;
+        }
+    }
+}
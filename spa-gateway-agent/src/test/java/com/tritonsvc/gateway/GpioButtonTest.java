@@ -0,0 +1,159 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.HostUtils;
+import com.tritonsvc.httpd.WebServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class GpioButtonTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(GpioButtonTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void itIgnoresBouncesShorterThanTheDebounceTime() throws Exception {
+        GpioButton.ValueSource source = mock(GpioButton.ValueSource.class);
+        GpioButton.Listener listener = mock(GpioButton.Listener.class);
+        GpioButton button = new GpioButton(source, 10, 20, 3000, listener);
+
+        when(source.isPressed()).thenReturn(true, false, true, false);
+        button.sample(0);
+        button.sample(10);
+        button.sample(20);
+        button.sample(30);
+        verifyZeroInteractions(listener);
+        assertFalse(button.isPressed());
+    }
+
+    @Test
+    public void itReportsPressHoldAndReleaseDurations() throws Exception {
+        GpioButton.ValueSource source = mock(GpioButton.ValueSource.class);
+        GpioButton.Listener listener = mock(GpioButton.Listener.class);
+        GpioButton button = new GpioButton(source, 10, 20, 3000, listener);
+
+        when(source.isPressed()).thenReturn(false);
+        button.sample(0);
+        when(source.isPressed()).thenReturn(true);
+        for (long now = 100; now <= 3200; now += 10) {
+            button.sample(now);
+        }
+        verify(listener).pressed();
+        verify(listener).held(3000);
+        assertTrue(button.isPressed());
+
+        when(source.isPressed()).thenReturn(false);
+        button.sample(3300);
+        button.sample(3320);
+        verify(listener).released(3200);
+        assertFalse(button.isPressed());
+    }
+
+    @Test
+    public void itDetectsPressesFromAGpioValueFileWithinFiftyMillis() throws Exception {
+        File gpio = folder.newFile("value");
+        FileUtils.writeStringToFile(gpio, "0\n");
+        CountDownLatch pressed = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        long[] pressedMillis = new long[1];
+        GpioButton button = new GpioButton(new GpioButton.FileValueSource(gpio), 10, 20, 3000, new GpioButton.Listener() {
+            @Override
+            public void pressed() {
+                pressed.countDown();
+            }
+
+            @Override
+            public void held(long millis) {
+            }
+
+            @Override
+            public void released(long millis) {
+                pressedMillis[0] = millis;
+                released.countDown();
+            }
+        });
+        button.start();
+        try {
+            Thread.sleep(100);
+            long start = System.nanoTime();
+            FileUtils.writeStringToFile(gpio, "1\n");
+            assertTrue(pressed.await(1, TimeUnit.SECONDS));
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            Thread.sleep(200);
+            FileUtils.writeStringToFile(gpio, "0\n");
+            assertTrue(released.await(1, TimeUnit.SECONDS));
+
+            LOGGER.info("button press detected after {} ms, press lasted {} ms", latencyMillis, pressedMillis[0]);
+            assertTrue(latencyMillis < 50);
+            assertTrue(pressedMillis[0] >= 150 && pressedMillis[0] < 400);
+        } finally {
+            button.stop();
+        }
+    }
+
+    @Test
+    public void itSpawnsNoProcessesWhileIdle() throws Exception {
+        File gpio = folder.newFile("value");
+        FileUtils.writeStringToFile(gpio, "0\n");
+        BWGProcessor processor = mock(BWGProcessor.class);
+        WebServer webServer = mock(WebServer.class);
+        ButtonManager manager = spy(new ButtonManager(webServer, 300000, processor, "ifconfig", "iwconfig", gpio.getPath()));
+
+        manager.start();
+        try {
+            Thread.sleep(300);
+            manager.checkAPModeTimeout();
+        } finally {
+            manager.shutdown();
+        }
+        verify(manager, never()).runCommand(anyString());
+        verify(manager, never()).spawnCommand(anyString());
+        verify(manager, never()).getHostUtils();
+        verify(webServer, never()).getLastActivity();
+        assertFalse(manager.isAPModeOn());
+    }
+
+    @Test
+    public void itReadsTheTsImx6ButtonFromTheFpgaRegister() throws Exception {
+        FakeI2CDevice fpga = new FakeI2CDevice().register(31, 1, 1, 0, 0, 0, 1, 1, 1);
+        ButtonManager manager = spy(new ButtonManager(mock(WebServer.class), 300000, mock(BWGProcessor.class), "ifconfig", "iwconfig", null));
+        doReturn(fpga).when(manager).openFpga();
+        GpioButton.Listener listener = mock(GpioButton.Listener.class);
+
+        GpioButton button = manager.createButton(HostUtils.TS_IMX6, listener);
+        for (long now = 0; now < 80; now += 10) {
+            button.sample(now);
+        }
+        button.stop();
+
+        verify(listener).pressed();
+        verify(listener).released(30);
+        verify(manager).openFpga();
+        verify(manager, never()).runCommand(anyString());
+        verify(manager, never()).spawnCommand(anyString());
+        assertEquals(8, fpga.getTransactions().size());
+        assertEquals("read@31/2", fpga.getTransactions().get(0).operation);
+        assertEquals(1, fpga.getBufferCount());
+    }
+}
@@ -0,0 +1,170 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.gateway.wsn.WsnData;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Measurement;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Measurement.DataType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Replays a day of synthetic sensor curves sampled every 30 seconds through the filter and compares it with the
+ * 5 minute timer readings were sent on before.
+ */
+public class MeasurementFilterTest {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(MeasurementFilterTest.class);
+    private static final long SAMPLE = TimeUnit.SECONDS.toMillis(30);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long TIMER = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_SILENCE = TimeUnit.MINUTES.toMillis(30);
+
+    private final MeasurementFilter filter = new MeasurementFilter(new Properties(), type -> MAX_SILENCE);
+
+    @Test
+    public void itSendsAmbientTemperatureLessOften() {
+        // daily swing with sensor noise
+        Replay replay = replay(DataType.AMBIENT_TEMP, 1, (t, random) ->
+                70 + 10 * Math.sin(2 * Math.PI * t / DAY) + (random.nextDouble() - 0.5) * 0.4);
+
+        Assert.assertTrue(replay.sent * 4 < replay.timerSent);
+        assertPreserved(replay, DataType.AMBIENT_TEMP);
+    }
+
+    @Test
+    public void itSendsAmbientHumidityLessOften() {
+        Replay replay = replay(DataType.AMBIENT_HUMIDITY, 2, (t, random) ->
+                50 + 15 * Math.sin(2 * Math.PI * t / DAY) + (random.nextDouble() - 0.5));
+
+        Assert.assertTrue(replay.sent * 4 < replay.timerSent);
+        assertPreserved(replay, DataType.AMBIENT_HUMIDITY);
+    }
+
+    @Test
+    public void itSendsEveryPumpStartAndStop() {
+        // the pump runs every other 20 minutes, drawing 12 amps for the first sample after it starts
+        Replay replay = replay(DataType.PUMP_AC_CURRENT, 3, (t, random) -> {
+            if ((t / TimeUnit.MINUTES.toMillis(20)) % 2 == 0) {
+                return random.nextDouble() * 0.1;
+            }
+            return (t % TimeUnit.MINUTES.toMillis(20) == 0 ? 12 : 8) + (random.nextDouble() - 0.5) * 0.2;
+        });
+
+        Assert.assertTrue(replay.sent < replay.timerSent);
+        // the timer misses the inrush and has the pump state wrong for minutes
+        Assert.assertTrue(replay.timerMaxError >= filter.getDeadband(DataType.PUMP_AC_CURRENT));
+        // 36 starts with inrush and settling, 36 stops
+        Assert.assertTrue(replay.sent >= 108);
+        assertPreserved(replay, DataType.PUMP_AC_CURRENT);
+    }
+
+    @Test
+    public void itSendsFastChangesWithinTheDeadband() {
+        long t = 0;
+        Assert.assertTrue(filter.offer("door", DataType.AMBIENT_TEMP, 70, t));
+        Assert.assertFalse(filter.offer("door", DataType.AMBIENT_TEMP, 70.1, t += SAMPLE));
+        // the lid opens, 0.5 degrees in 10 seconds is 3 degrees a minute
+        Assert.assertTrue(filter.offer("door", DataType.AMBIENT_TEMP, 69.6, t += 10000));
+        Assert.assertFalse(filter.offer("door", DataType.AMBIENT_TEMP, 69.5, t += SAMPLE));
+        Assert.assertTrue(filter.offer("door", DataType.AMBIENT_TEMP, 69.5, t + MAX_SILENCE));
+    }
+
+    @Test
+    public void itQueuesSignificantReadingsForCloud() {
+        BWGProcessor processor = mock(BWGProcessor.class);
+        when(processor.getConfigProps()).thenReturn(new Properties());
+        when(processor.getMeasurementMaxSilence(any(DataType.class))).thenReturn(MAX_SILENCE);
+        DeviceRegistration registration = new DeviceRegistration();
+        registration.setHardwareId("mote1");
+        when(processor.obtainMoteRegistration(anyString(), anyString(), anyString())).thenReturn(registration);
+        WSNDataHarvester harvester = new WSNDataHarvester(processor);
+
+        long now = System.currentTimeMillis() / 1000;
+        harvester.record(wsnData(DataType.PUMP_AC_CURRENT, 0.05, now));
+        harvester.record(wsnData(DataType.PUMP_AC_CURRENT, 0.07, now + 30));
+        harvester.record(wsnData(DataType.PUMP_AC_CURRENT, 8.0, now + 60));
+        harvester.record(wsnData(DataType.PUMP_AC_CURRENT, 8.1, now + 90));
+        harvester.sendSignificantWSNDataToCloud(newArrayList(DataType.AMBIENT_TEMP), "spa1");
+        harvester.sendSignificantWSNDataToCloud(newArrayList(DataType.PUMP_AC_CURRENT), "spa1");
+        harvester.sendSignificantWSNDataToCloud(newArrayList(DataType.PUMP_AC_CURRENT), "spa1");
+
+        ArgumentCaptor<List> measurements = ArgumentCaptor.forClass(List.class);
+        verify(processor, times(1)).sendMeasurements(eq("mote1"), measurements.capture());
+        Assert.assertEquals(2, measurements.getValue().size());
+        Assert.assertEquals(8.0, ((Measurement) measurements.getValue().get(1)).getValue(), 0.0001);
+    }
+
+    private void assertPreserved(Replay replay, DataType type) {
+        LOGGER.info("{} samples of {}: {} sent by the filter with max deviation {}, {} sent by the timer with max deviation {}",
+                replay.samples, type, replay.sent, replay.maxError, replay.timerSent, replay.timerMaxError);
+        // every reading is within the deadband of the last one sent
+        Assert.assertTrue(replay.maxError < filter.getDeadband(type));
+        Assert.assertTrue(replay.maxGap <= MAX_SILENCE);
+    }
+
+    private Replay replay(DataType type, long seed, BiFunction<Long, Random, Double> curve) {
+        Random random = new Random(seed);
+        Replay replay = new Replay();
+        double sentValue = 0;
+        long sentTimestamp = 0;
+        double timerValue = 0;
+        for (long t = 0; t < DAY; t += SAMPLE) {
+            double value = curve.apply(t, random);
+            replay.samples++;
+            if (filter.offer(type.name(), type, value, t)) {
+                if (replay.sent > 0) {
+                    replay.maxGap = Math.max(replay.maxGap, t - sentTimestamp);
+                }
+                replay.sent++;
+                sentValue = value;
+                sentTimestamp = t;
+            }
+            replay.maxError = Math.max(replay.maxError, Math.abs(value - sentValue));
+            if (t % TIMER == 0) {
+                replay.timerSent++;
+                timerValue = value;
+            }
+            replay.timerMaxError = Math.max(replay.timerMaxError, Math.abs(value - timerValue));
+        }
+        return replay;
+    }
+
+    private static WsnData wsnData(DataType type, double value, long unixTimestamp) {
+        WsnData wsnData = new WsnData();
+        wsnData.setValue(value);
+        wsnData.setDataType(type);
+        wsnData.setRecordedUnixTimestamp(unixTimestamp);
+        wsnData.setReceivedUnixTimestamp(unixTimestamp);
+        wsnData.setSensorIdentifier("1");
+        wsnData.setUom("amps");
+        wsnData.setMoteMac("wired_ac_current_adc_0");
+        wsnData.setDeviceName("ac current sensor 0");
+        return wsnData;
+    }
+
+    private static class Replay {
+        long samples;
+        long sent;
+        long timerSent;
+        long maxGap;
+        double maxError;
+        double timerMaxError;
+    }
+}
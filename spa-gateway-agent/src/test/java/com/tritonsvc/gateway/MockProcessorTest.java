@@ -2,6 +2,7 @@ package com.tritonsvc.gateway;
 
 import com.tritonsvc.agent.AgentSettingsPersister;
 import com.tritonsvc.agent.GatewayEventDispatcher;
+import com.tritonsvc.agent.StartupTimer;
 import com.tritonsvc.spa.communication.proto.Bwg;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.UplinkCommandType;
 import com.tritonsvc.spa.communication.proto.BwgHelper;
@@ -9,11 +10,15 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
@@ -23,6 +28,7 @@ import static org.mockito.Mockito.*;
  * Created by holow on 3/31/2016.
  */
 public class MockProcessorTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(MockProcessorTest.class);
 
     private MockProcessor mockProcessor;
     private GatewayEventDispatcher mockGatewayEventDispatcher;
@@ -96,6 +102,45 @@ public class MockProcessorTest {
         verify(mockGatewayEventDispatcher, times(1)).sendUplink(eq("1"), any(), eq(Bwg.Uplink.UplinkCommandType.SPA_STATE), argThat(new HasTimeSetArgMatcher(2016, 10, 10, 14, 15)), anyBoolean());
     }
 
+    @Test
+    public void itSendsTheFirstSpaStateRightAfterStartup() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty("mock.spaId", "1");
+        props.setProperty("mock.controllerId", "2");
+        props.setProperty("mock.tempMoteId", "4");
+        props.setProperty("mock.currentMoteId", "5");
+        StartupTimer startupTimer = new StartupTimer();
+        GatewayEventDispatcher dispatcher = mock(GatewayEventDispatcher.class);
+        MockProcessor processor = new MockProcessor(mock(AgentSettingsPersister.class));
+        processor.setGwSerialNumber("1234");
+        processor.setConfigProps(props);
+        processor.setHomePath("./");
+        processor.setDataPath("./");
+        processor.setEventDispatcher(dispatcher);
+        processor.setStartupTimer(startupTimer);
+
+        try {
+            // an uplink that goes out during startup only starts the deferred subsystems once startup is done
+            processor.executeDeferredStartup();
+            processor.executeStartup();
+
+            verify(dispatcher, timeout(5000)).sendUplink(eq("1"), any(), eq(UplinkCommandType.SPA_STATE), any(Bwg.Uplink.Model.SpaState.class), anyBoolean());
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((startupTimer.getMilestoneMillis("first-spa-state") == null || startupTimer.getPhaseMillis("deferred-startup") == null) &&
+                    System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Long firstSpaState = startupTimer.getMilestoneMillis("first-spa-state");
+            LOGGER.info("time to first spa state in mock mode {} ms, {}", firstSpaState, startupTimer.summary());
+            assertNotNull(startupTimer.getPhaseMillis("processor-startup"));
+            assertNotNull(startupTimer.getPhaseMillis("deferred-startup"));
+            // the first harvest iteration used to wait a whole 3 second period
+            assertTrue(firstSpaState < 3000);
+        } finally {
+            processor.handleShutdown();
+        }
+    }
+
     private class HasTempSetArgMatcher extends ArgumentMatcher<Bwg.Uplink.Model.SpaState> {
 
         private final int desiredTemp;
@@ -0,0 +1,385 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components.BlowerComponent;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components.LightComponent;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components.PumpComponent;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components.ToggleComponent;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the panel update field maps decode exactly what the hand written decoding they replaced did, and
+ * compares what each costs per panel update.
+ */
+public class PanelUpdateDecoderTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(PanelUpdateDecoderTest.class);
+    private static final int FRAMES = 20000;
+
+    private interface Decoding {
+        void populate(Components.Builder compsBuilder, byte[] message);
+    }
+
+    @Test
+    public void itDecodesNGSCTraceLikeTheLegacyDecoding() throws Exception {
+        List<byte[]> panelUpdates = panelUpdates("/traces/ngsc_synthetic.rs485", 0x13);
+        assertFalse(panelUpdates.isEmpty());
+        assertSameOutput(NGSCDataHarvester.PANEL_UPDATE_FIELDS, PanelUpdateDecoderTest::legacyNGSC, panelUpdates);
+    }
+
+    @Test
+    public void itDecodesJacuzziTraceLikeTheLegacyDecoding() throws Exception {
+        List<byte[]> panelUpdates = panelUpdates("/traces/jacuzzi_synthetic.rs485", 0x16);
+        assertFalse(panelUpdates.isEmpty());
+        assertSameOutput(JacuzziDataHarvester.PANEL_UPDATE_FIELDS, PanelUpdateDecoderTest::legacyJacuzzi, panelUpdates);
+    }
+
+    @Test
+    public void itDecodesRandomChangesLikeTheLegacyDecoding() throws Exception {
+        assertSameOutput(NGSCDataHarvester.PANEL_UPDATE_FIELDS, PanelUpdateDecoderTest::legacyNGSC,
+                randomPanelUpdates(NGSCDataHarvester.PANEL_UPDATE_FIELDS, 0x13, 32, 2000, 1));
+        assertSameOutput(JacuzziDataHarvester.PANEL_UPDATE_FIELDS, PanelUpdateDecoderTest::legacyJacuzzi,
+                randomPanelUpdates(JacuzziDataHarvester.PANEL_UPDATE_FIELDS, 0x16, 36, 2000, 1));
+    }
+
+    @Test
+    public void itOnlyAppliesChangedFields() throws Exception {
+        PanelUpdateDecoder decoder = new PanelUpdateDecoder(NGSCDataHarvester.PANEL_UPDATE_FIELDS);
+        Components.Builder compsBuilder = allComponents().toBuilder();
+        byte[] message = new byte[32];
+        message[3] = 0x13;
+
+        assertEquals(NGSCDataHarvester.PANEL_UPDATE_FIELDS.getFields().size(), decoder.decode(compsBuilder, message));
+        // only the clock moved
+        message[8] = 0x01;
+        assertEquals(0, decoder.decode(compsBuilder, message));
+        // pump 2 to high
+        message[15] = 0x08;
+        assertEquals(1, decoder.decode(compsBuilder, message));
+        assertEquals(PumpComponent.State.HIGH, compsBuilder.getPump2().getCurrentState());
+        assertEquals(PumpComponent.State.OFF, compsBuilder.getPump1().getCurrentState());
+    }
+
+    @Test
+    public void itAppliesEverythingAfterReset() throws Exception {
+        PanelUpdateDecoder decoder = new PanelUpdateDecoder(NGSCDataHarvester.PANEL_UPDATE_FIELDS);
+        byte[] message = new byte[32];
+        message[3] = 0x13;
+        message[15] = 0x02;
+        decoder.decode(allComponents().toBuilder(), message);
+
+        // a device config message replaced the components, pump 1 comes back without its state
+        Components.Builder replaced = allComponents().toBuilder().setPump1(PumpComponent.newBuilder().addAvailableStates(PumpComponent.State.OFF));
+        assertEquals(0, decoder.decode(replaced.clone(), message));
+        decoder.reset();
+        decoder.decode(replaced, message);
+        assertEquals(PumpComponent.State.HIGH, replaced.getPump1().getCurrentState());
+    }
+
+    @Test
+    public void itCostsLessPerPanelUpdateThanLegacyDecoding() throws Exception {
+        // clock ticks every update, a component changes every 20th
+        List<byte[]> panelUpdates = randomPanelUpdates(NGSCDataHarvester.PANEL_UPDATE_FIELDS, 0x13, 32, FRAMES, 20);
+        PanelUpdateDecoder decoder = new PanelUpdateDecoder(NGSCDataHarvester.PANEL_UPDATE_FIELDS);
+
+        // warm up both
+        run(PanelUpdateDecoderTest::legacyNGSC, panelUpdates);
+        run(decoder::decode, panelUpdates);
+
+        Cost legacy = measure(PanelUpdateDecoderTest::legacyNGSC, panelUpdates);
+        decoder.reset();
+        Cost fieldMap = measure(decoder::decode, panelUpdates);
+
+        LOGGER.info("per panel update, legacy decoding {}ns {} bytes allocated, field map decoding {}ns {} bytes allocated",
+                legacy.nanosPerFrame, legacy.bytesPerFrame, fieldMap.nanosPerFrame, fieldMap.bytesPerFrame);
+        if (legacy.bytesPerFrame >= 0) {
+            assertTrue(fieldMap.bytesPerFrame < legacy.bytesPerFrame);
+        }
+    }
+
+    private void assertSameOutput(PanelUpdateDecoder.FieldMap fieldMap, Decoding legacyDecoding, List<byte[]> panelUpdates) {
+        PanelUpdateDecoder decoder = new PanelUpdateDecoder(fieldMap);
+        Components legacy = allComponents();
+        Components decoded = allComponents();
+        for (byte[] message : panelUpdates) {
+            legacy = apply(legacyDecoding, legacy, message);
+            decoded = apply(decoder::decode, decoded, message);
+            assertEquals(legacy, decoded);
+        }
+    }
+
+    private Components run(Decoding decoding, List<byte[]> panelUpdates) {
+        Components components = allComponents();
+        for (byte[] message : panelUpdates) {
+            components = apply(decoding, components, message);
+        }
+        return components;
+    }
+
+    /**
+     * same steps as the harvester takes for every panel update
+     */
+    private Components apply(Decoding decoding, Components previous, byte[] message) {
+        Components.Builder compsBuilder = Components.newBuilder();
+        compsBuilder.mergeFrom(previous);
+        compsBuilder.setLastUpdateTimestamp(previous.getLastUpdateTimestamp() + 1);
+        decoding.populate(compsBuilder, message);
+        return compsBuilder.build();
+    }
+
+    private Cost measure(Decoding decoding, List<byte[]> panelUpdates) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+
+        long bytesBefore = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        run(decoding, panelUpdates);
+        long elapsed = System.nanoTime() - start;
+        long bytesAfter = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0;
+
+        Cost cost = new Cost();
+        cost.nanosPerFrame = elapsed / panelUpdates.size();
+        cost.bytesPerFrame = allocations != null ? (bytesAfter - bytesBefore) / panelUpdates.size() : -1;
+        return cost;
+    }
+
+    private static class Cost {
+        private long nanosPerFrame;
+        private long bytesPerFrame;
+    }
+
+    /**
+     * every component either protocol reports on, all off
+     */
+    private Components allComponents() {
+        ToggleComponent toggle = ToggleComponent.newBuilder().setCurrentState(ToggleComponent.State.OFF)
+                .addAvailableStates(ToggleComponent.State.OFF).addAvailableStates(ToggleComponent.State.ON).build();
+        PumpComponent pump = PumpComponent.newBuilder().setCurrentState(PumpComponent.State.OFF)
+                .addAvailableStates(PumpComponent.State.OFF).addAvailableStates(PumpComponent.State.HIGH).build();
+        BlowerComponent blower = BlowerComponent.newBuilder().setCurrentState(BlowerComponent.State.OFF)
+                .addAvailableStates(BlowerComponent.State.OFF).addAvailableStates(BlowerComponent.State.HIGH).build();
+        LightComponent light = LightComponent.newBuilder().setCurrentState(LightComponent.State.OFF)
+                .addAvailableStates(LightComponent.State.OFF).addAvailableStates(LightComponent.State.HIGH).build();
+        return Components.newBuilder()
+                .setLastUpdateTimestamp(0)
+                .setHeater1(Components.HeaterState.OFF)
+                .setHeater2(Components.HeaterState.OFF)
+                .setOzone(toggle).setMicroSilk(toggle).setUv(toggle)
+                .setAux1(toggle).setAux2(toggle).setAux3(toggle).setAux4(toggle)
+                .setMister1(toggle).setMister2(toggle).setMister3(toggle)
+                .setFilterCycle1(toggle).setFilterCycle2(toggle)
+                .setPump1(pump).setPump2(pump).setPump3(pump).setPump4(pump)
+                .setPump5(pump).setPump6(pump).setPump7(pump).setPump8(pump)
+                .setCirculationPump(pump)
+                .setBlower1(blower).setBlower2(blower)
+                .setLight1(light).setLight2(light).setLight3(light).setLight4(light)
+                .setFiberWheel(0)
+                .build();
+    }
+
+    /**
+     * panel updates as the harvester sees them, from the length byte to the fcs
+     */
+    private List<byte[]> panelUpdates(String resource, int packetType) throws Exception {
+        ByteArrayOutputStream bus = new ByteArrayOutputStream();
+        for (RS485Trace.Entry entry : RS485TraceReplayer.load(resource)) {
+            bus.write(entry.getData());
+        }
+        byte[] bytes = bus.toByteArray();
+        List<byte[]> panelUpdates = newArrayList();
+        for (int i = 0; i + 1 < bytes.length; i++) {
+            if (bytes[i] != (byte) 0x7E || bytes[i + 1] == (byte) 0x7E) {
+                continue;
+            }
+            int length = 0x7F & bytes[i + 1];
+            if (i + 1 + length >= bytes.length || bytes[i + 1 + length] != (byte) 0x7E) {
+                continue;
+            }
+            byte[] message = Arrays.copyOfRange(bytes, i + 1, i + 1 + length);
+            if ((0xFF & message[3]) == packetType) {
+                panelUpdates.add(message);
+            }
+            i += length;
+        }
+        return panelUpdates;
+    }
+
+    /**
+     * panel updates where the clock moves every time and a random field takes a random valid state every changeEvery updates
+     */
+    private List<byte[]> randomPanelUpdates(PanelUpdateDecoder.FieldMap fieldMap, int packetType, int length, int count, int changeEvery) {
+        Random random = new Random(485);
+        List<PanelUpdateDecoder.Field> fields = fieldMap.getFields();
+        byte[] message = new byte[length];
+        message[0] = (byte) length;
+        message[3] = (byte) packetType;
+        List<byte[]> panelUpdates = newArrayList();
+        for (int i = 0; i < count; i++) {
+            message[8] = (byte) (i % 60);
+            if (i % changeEvery == 0) {
+                PanelUpdateDecoder.Field field = fields.get(random.nextInt(fields.size()));
+                // 2 is the highest state every component type supports
+                int value = Math.min(2, random.nextInt((field.getMask() >> field.getShift()) + 1));
+                message[field.getOffset()] = (byte) ((message[field.getOffset()] & ~field.getMask()) | (value << field.getShift()));
+            }
+            panelUpdates.add(message.clone());
+        }
+        return panelUpdates;
+    }
+
+    // the hand written decoding the field maps replaced, kept to check output and cost against
+
+    private static void legacyNGSC(Components.Builder compsBuilder, byte[] message) {
+        if (compsBuilder.hasAux1()) {
+            compsBuilder.setAux1(ToggleComponent.newBuilder(compsBuilder.getAux1()).setCurrentState(ToggleComponent.State.valueOf((0x08 & message[19]) >> 3)));
+        }
+        if (compsBuilder.hasAux2()) {
+            compsBuilder.setAux2(ToggleComponent.newBuilder(compsBuilder.getAux2()).setCurrentState(ToggleComponent.State.valueOf((0x10 & message[19]) >> 4)));
+        }
+        if (compsBuilder.hasAux3()) {
+            compsBuilder.setAux3(ToggleComponent.newBuilder(compsBuilder.getAux3()).setCurrentState(ToggleComponent.State.valueOf((0x20 & message[19]) >> 5)));
+        }
+        if (compsBuilder.hasAux4()) {
+            compsBuilder.setAux4(ToggleComponent.newBuilder(compsBuilder.getAux4()).setCurrentState(ToggleComponent.State.valueOf((0x40 & message[19]) >> 6)));
+        }
+
+        if (compsBuilder.hasMister3()) {
+            compsBuilder.setMister3(ToggleComponent.newBuilder(compsBuilder.getMister3()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[19]) >> 2)));
+        }
+        if (compsBuilder.hasMister2()) {
+            compsBuilder.setMister2(ToggleComponent.newBuilder(compsBuilder.getMister2()).setCurrentState(ToggleComponent.State.valueOf((0x02 & message[19]) >> 1)));
+        }
+        if (compsBuilder.hasMister1()) {
+            compsBuilder.setMister1(ToggleComponent.newBuilder(compsBuilder.getMister1()).setCurrentState(ToggleComponent.State.valueOf(0x01 & message[19])));
+        }
+
+        if (compsBuilder.hasMicroSilk()) {
+            compsBuilder.setMicroSilk(ToggleComponent.newBuilder(compsBuilder.getMicroSilk()).setCurrentState(ToggleComponent.State.valueOf((0x02 & message[26]) >> 1)));
+        }
+        if (compsBuilder.hasOzone()) {
+            compsBuilder.setOzone(ToggleComponent.newBuilder(compsBuilder.getOzone()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[14]) >> 2)));
+        }
+
+        if (compsBuilder.hasHeater1()) {
+            compsBuilder.setHeater1(Components.HeaterState.valueOf((0x30 & message[14]) >> 4));
+        }
+        if (compsBuilder.hasHeater2()) {
+            compsBuilder.setHeater2(Components.HeaterState.valueOf((0xC0 & message[14]) >> 6));
+        }
+
+        if (compsBuilder.hasFilterCycle1()) {
+            compsBuilder.setFilterCycle1(ToggleComponent.newBuilder(compsBuilder.getFilterCycle1()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[13]) >> 2)));
+        }
+        if (compsBuilder.hasFilterCycle2()) {
+            compsBuilder.setFilterCycle2(ToggleComponent.newBuilder(compsBuilder.getFilterCycle2()).setCurrentState(ToggleComponent.State.valueOf((0x08 & message[13]) >> 3)));
+        }
+
+        if (compsBuilder.hasPump1()) {
+            compsBuilder.setPump1(PumpComponent.newBuilder(compsBuilder.getPump1()).setCurrentState(PumpComponent.State.valueOf(0x03 & message[15])));
+        }
+        if (compsBuilder.hasPump2()) {
+            compsBuilder.setPump2(PumpComponent.newBuilder(compsBuilder.getPump2()).setCurrentState(PumpComponent.State.valueOf((0x0C & message[15]) >> 2)));
+        }
+        if (compsBuilder.hasPump3()) {
+            compsBuilder.setPump3(PumpComponent.newBuilder(compsBuilder.getPump3()).setCurrentState(PumpComponent.State.valueOf((0x30 & message[15]) >> 4)));
+        }
+        if (compsBuilder.hasPump4()) {
+            compsBuilder.setPump4(PumpComponent.newBuilder(compsBuilder.getPump4()).setCurrentState(PumpComponent.State.valueOf((0xC0 & message[15]) >> 6)));
+        }
+        if (compsBuilder.hasPump5()) {
+            compsBuilder.setPump5(PumpComponent.newBuilder(compsBuilder.getPump5()).setCurrentState(PumpComponent.State.valueOf(0x03 & message[16])));
+        }
+        if (compsBuilder.hasPump6()) {
+            compsBuilder.setPump6(PumpComponent.newBuilder(compsBuilder.getPump6()).setCurrentState(PumpComponent.State.valueOf((0x0C & message[16]) >> 2)));
+        }
+        if (compsBuilder.hasPump7()) {
+            compsBuilder.setPump7(PumpComponent.newBuilder(compsBuilder.getPump7()).setCurrentState(PumpComponent.State.valueOf((0x30 & message[16]) >> 4)));
+        }
+        if (compsBuilder.hasPump8()) {
+            compsBuilder.setPump8(PumpComponent.newBuilder(compsBuilder.getPump8()).setCurrentState(PumpComponent.State.valueOf((0xC0 & message[16]) >> 6)));
+        }
+        boolean circPumpOn = (0x03 & message[17]) > 0;
+        if (compsBuilder.hasCirculationPump()) {
+            compsBuilder.setCirculationPump(PumpComponent.newBuilder(compsBuilder.getCirculationPump()).setCurrentState(circPumpOn ? PumpComponent.State.HIGH : PumpComponent.State.OFF));
+        }
+
+        if (compsBuilder.hasBlower1()) {
+            compsBuilder.setBlower1(BlowerComponent.newBuilder(compsBuilder.getBlower1()).setCurrentState(BlowerComponent.State.valueOf((0x0C & message[17]) >> 2)));
+        }
+        if (compsBuilder.hasBlower2()) {
+            compsBuilder.setBlower2(BlowerComponent.newBuilder(compsBuilder.getBlower2()).setCurrentState(BlowerComponent.State.valueOf((0x30 & message[17]) >> 4)));
+        }
+        if (compsBuilder.hasFiberWheel()) {
+            compsBuilder.setFiberWheel(0xC0 & message[17] >> 6);
+        }
+
+        if (compsBuilder.hasLight1()) {
+            compsBuilder.setLight1(LightComponent.newBuilder(compsBuilder.getLight1()).setCurrentState(LightComponent.State.valueOf(0x03 & message[18])));
+        }
+        if (compsBuilder.hasLight2()) {
+            compsBuilder.setLight2(LightComponent.newBuilder(compsBuilder.getLight2()).setCurrentState(LightComponent.State.valueOf((0x0C & message[18]) >> 2)));
+        }
+        if (compsBuilder.hasLight3()) {
+            compsBuilder.setLight3(LightComponent.newBuilder(compsBuilder.getLight3()).setCurrentState(LightComponent.State.valueOf((0x30 & message[18]) >> 4)));
+        }
+        if (compsBuilder.hasLight4()) {
+            compsBuilder.setLight4(LightComponent.newBuilder(compsBuilder.getLight4()).setCurrentState(LightComponent.State.valueOf((0xC0 & message[18]) >> 6)));
+        }
+    }
+
+    private static void legacyJacuzzi(Components.Builder compsBuilder, byte[] message) {
+        if (compsBuilder.hasAux1()) {
+            compsBuilder.setAux1(ToggleComponent.newBuilder(compsBuilder.getAux1()).setCurrentState(ToggleComponent.State.valueOf((0x02 & message[16]) >> 1)));
+        }
+        if (compsBuilder.hasAux2()) {
+            compsBuilder.setAux2(ToggleComponent.newBuilder(compsBuilder.getAux2()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[16]) >> 2)));
+        }
+
+        if (compsBuilder.hasOzone()) {
+            compsBuilder.setOzone(ToggleComponent.newBuilder(compsBuilder.getOzone()).setCurrentState(ToggleComponent.State.valueOf((0x02 & message[15]) >> 1)));
+        }
+        if (compsBuilder.hasUv()) {
+            compsBuilder.setUv(ToggleComponent.newBuilder(compsBuilder.getUv()).setCurrentState(ToggleComponent.State.valueOf((0x04 & message[15]) >> 2)));
+        }
+        if (compsBuilder.hasHeater1()) {
+            compsBuilder.setHeater1(Components.HeaterState.valueOf(0x01 & message[15]));
+        }
+
+        if (compsBuilder.hasFilterCycle1()) {
+            compsBuilder.setFilterCycle1(ToggleComponent.newBuilder(compsBuilder.getFilterCycle1()).setCurrentState(ToggleComponent.State.valueOf((0x10 & message[15]) >> 4)));
+        }
+        if (compsBuilder.hasFilterCycle2()) {
+            compsBuilder.setFilterCycle2(ToggleComponent.newBuilder(compsBuilder.getFilterCycle2()).setCurrentState(ToggleComponent.State.valueOf((0x20 & message[15]) >> 5)));
+        }
+
+        if (compsBuilder.hasPump1()) {
+            compsBuilder.setPump1(PumpComponent.newBuilder(compsBuilder.getPump1()).setCurrentState(PumpComponent.State.valueOf((0x0C & message[14]) >> 2)));
+        }
+        if (compsBuilder.hasPump2()) {
+            compsBuilder.setPump2(PumpComponent.newBuilder(compsBuilder.getPump2()).setCurrentState(PumpComponent.State.valueOf((0x30 & message[14]) >> 4)));
+        }
+        if (compsBuilder.hasPump3()) {
+            compsBuilder.setPump3(PumpComponent.newBuilder(compsBuilder.getPump3()).setCurrentState(PumpComponent.State.valueOf((0xC0 & message[14]) >> 6)));
+        }
+        if (compsBuilder.hasCirculationPump()) {
+            compsBuilder.setCirculationPump(PumpComponent.newBuilder(compsBuilder.getCirculationPump()).setCurrentState(PumpComponent.State.valueOf(0x03 & message[14])));
+        }
+        if (compsBuilder.hasBlower1()) {
+            compsBuilder.setBlower1(BlowerComponent.newBuilder(compsBuilder.getBlower1()).setCurrentState(BlowerComponent.State.valueOf((0x08 & message[15]) >> 3)));
+        }
+    }
+}
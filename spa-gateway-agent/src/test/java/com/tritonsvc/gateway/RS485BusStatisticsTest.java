@@ -0,0 +1,168 @@
+package com.tritonsvc.gateway;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyByte;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RS485BusStatisticsTest {
+
+    private BWGProcessor processor;
+    private NGSCMessagePublisher publisher;
+    private RS485TraceReplayer replayer;
+    private AtomicLong clockOffset;
+
+    @Before
+    public void setUp() {
+        processor = mock(BWGProcessor.class);
+        when(processor.getConfigProps()).thenReturn(new Properties());
+        when(processor.stillRunning()).thenReturn(true);
+        publisher = mock(NGSCMessagePublisher.class);
+        clockOffset = new AtomicLong();
+    }
+
+    @Test
+    public void itBucketsDurations() throws Exception {
+        RS485BusStatistics.Histogram histogram = new RS485BusStatistics.Histogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(50));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(101));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(3000));
+        histogram.record(TimeUnit.SECONDS.toNanos(2));
+
+        assertEquals(5, histogram.getCount());
+        assertEquals(2, histogram.getBucket(0));
+        assertEquals(1, histogram.getBucketForMicros(250));
+        assertEquals(1, histogram.getBucketForMicros(5000));
+        assertEquals(1, histogram.getBucket(histogram.getBucketCount() - 1));
+        assertEquals(Long.MAX_VALUE, histogram.getBucketUpperBoundMicros(histogram.getBucketCount() - 1));
+        assertEquals(TimeUnit.SECONDS.toNanos(2), histogram.getMaxNanos());
+        assertEquals(250, histogram.getPercentileMicros(60));
+        assertEquals(2000000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void itMeasuresInterFrameGaps() throws Exception {
+        // polls for other devices, 5 gaps of 200us, 3 of 800us, 2 of 30ms
+        long[] gapsMicros = new long[]{200, 200, 200, 200, 200, 800, 800, 800, 30000, 30000};
+        List<RS485Trace.Entry> entries = newArrayList();
+        long now = 0;
+        entries.add(new RS485Trace.Entry(now, frame(0x11, 0x06)));
+        for (long gap : gapsMicros) {
+            now += TimeUnit.MICROSECONDS.toNanos(gap);
+            entries.add(new RS485Trace.Entry(now, frame(0x11, 0x06)));
+        }
+
+        RS485BusStatistics stats = replay(entries);
+
+        assertEquals(11, stats.getFramesDecoded());
+        assertEquals(0, stats.getPollsReceived());
+        RS485BusStatistics.Histogram gaps = stats.getInterFrameGap();
+        assertEquals(10, gaps.getCount());
+        assertEquals(5, gaps.getBucketForMicros(250));
+        assertEquals(3, gaps.getBucketForMicros(1000));
+        assertEquals(2, gaps.getBucketForMicros(50000));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(30000), gaps.getMaxNanos());
+        assertEquals(1000, gaps.getPercentileMicros(80));
+    }
+
+    @Test
+    public void itMeasuresPollResponsesAndMissedWindows() throws Exception {
+        when(publisher.hasPendingDownlinks()).thenReturn(true);
+        when(publisher.sendPendingDownlinkIfAvailable(anyByte())).thenAnswer(invocation -> {
+            // bus write took 8ms, longer than the default 5ms clear to send window
+            clockOffset.addAndGet(TimeUnit.MILLISECONDS.toNanos(8));
+            return true;
+        });
+
+        List<RS485Trace.Entry> entries = newArrayList();
+        for (int i = 0; i < 5; i++) {
+            entries.add(new RS485Trace.Entry(TimeUnit.MILLISECONDS.toNanos(i * 10), frame(0x0A, 0x06)));
+        }
+
+        RS485BusStatistics stats = replay(entries);
+
+        assertEquals(5, stats.getPollsReceived());
+        // the first poll is answered late, the rest fall inside the 2 second request throttle while a downlink is waiting
+        assertEquals(1, stats.getPollResponseLatency().getCount());
+        assertEquals(1, stats.getPollResponseLatency().getBucketForMicros(10000));
+        assertEquals(1, stats.getMissedClearToSend());
+        assertEquals(4, stats.getThrottledPolls());
+        assertEquals("4", stats.toMetadata().get("throttledPolls"));
+    }
+
+    @Test
+    public void itCountsCrcFailuresByTypeAndAddressTransitions() throws Exception {
+        when(processor.getPersistedRS485Address()).thenReturn((byte) 0x0B);
+        List<RS485Trace.Entry> entries = newArrayList();
+        entries.add(new RS485Trace.Entry(0, frame(0x0B, 0x04)));
+        entries.add(new RS485Trace.Entry(1000000, corrupt(frame(0x0B, 0x13, new byte[24]))));
+        entries.add(new RS485Trace.Entry(2000000, corrupt(frame(0x0B, 0x13, new byte[24]))));
+        entries.add(new RS485Trace.Entry(3000000, frame(0x0B, 0x25, new byte[]{0, 0, 80, 99, 80, 104, 0x08})));
+        entries.add(new RS485Trace.Entry(4000000, frame(0x0A, 0x04)));
+
+        RS485BusStatistics stats = replay(entries);
+
+        assertEquals(2, stats.getCrcChecks(0x13));
+        assertEquals(2, stats.getCrcFailures(0x13));
+        assertEquals(1, stats.getCrcChecks(0x25));
+        assertEquals(0, stats.getCrcFailures(0x25));
+        assertEquals(2, stats.getCrcFailures());
+        assertEquals(1, stats.getAddressStateTransitions("STATIC_ADDRESS", "DYNAMIC_ADDRESS"));
+        assertEquals(1, stats.getAddressStateTransitions("DYNAMIC_ADDRESS", "STATIC_ADDRESS"));
+        assertEquals("2/2", stats.toMetadata().get("crcFailures.0x13"));
+        assertEquals("STATIC_ADDRESS", stats.toMetadata().get("addressState"));
+    }
+
+    private RS485BusStatistics replay(List<RS485Trace.Entry> entries) throws Exception {
+        replayer = new RS485TraceReplayer(entries, RS485TraceReplayer.MAX_SPEED);
+        when(processor.getRS485UART()).thenReturn(replayer.createUART());
+        NGSCDataHarvester harvester = new NGSCDataHarvester(processor, publisher, mock(FaultLogManager.class)) {
+            @Override
+            long nanoTime() {
+                return replayer.getLastEntryNanos() + clockOffset.get();
+            }
+        };
+
+        Thread thread = new Thread(harvester);
+        thread.start();
+        assertTrue(replayer.awaitFinished(5, TimeUnit.SECONDS));
+        RS485BusStatistics stats = harvester.getBusStatistics();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stats.getStateUpdates() + stats.getCrcFailures() < stats.getMessagesQueued() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        harvester.cancel();
+        thread.join(5000);
+        return stats;
+    }
+
+    private byte[] frame(int address, int packetType, byte... data) {
+        int length = data.length + 5;
+        byte[] frame = new byte[length + 2];
+        frame[0] = (byte) 0x7E;
+        frame[1] = (byte) length;
+        frame[2] = (byte) address;
+        frame[3] = (byte) 0xBF;
+        frame[4] = (byte) packetType;
+        System.arraycopy(data, 0, frame, 5, data.length);
+        frame[length] = HdlcCrc.generateFCS(frame);
+        frame[length + 1] = (byte) 0x7E;
+        return frame;
+    }
+
+    private byte[] corrupt(byte[] frame) {
+        frame[frame.length - 2] ^= 0x5A;
+        return frame;
+    }
+}
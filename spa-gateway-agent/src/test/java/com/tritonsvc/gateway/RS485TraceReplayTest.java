@@ -0,0 +1,166 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components.BlowerComponent;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components.LightComponent;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Components.PumpComponent;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.SpaState;
+import jdk.dio.uart.UART;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Replays the synthetic traces under src/test/resources/traces through the real harvesters.
+ *
+ * ngsc_synthetic.rs485 - device present query, device config(2 pumps, light, blower, heater, ozone, circ pump, aux1),
+ * system info, setup params, filter cycles, then 36 rounds of polls to addresses 10, 0x11-0x13 and a panel update,
+ * every 4th panel update repeated, 2 panel updates with a bad FCS. 194 frames, 49 queued for processing.
+ *
+ * jacuzzi_synthetic.rs485 - device present query, config/system info, then 30 rounds of polls and a panel update,
+ * 1 panel update with a bad FCS. 92 frames, 31 queued for processing.
+ */
+public class RS485TraceReplayTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(RS485TraceReplayTest.class);
+
+    private BWGProcessor processor;
+    private FaultLogManager manager;
+
+    @Before
+    public void setUp() {
+        processor = mock(BWGProcessor.class);
+        when(processor.getConfigProps()).thenReturn(new Properties());
+        when(processor.stillRunning()).thenReturn(true);
+        manager = mock(FaultLogManager.class);
+    }
+
+    @Test
+    public void itReplaysNGSCTraceAtMaxSpeed() throws Exception {
+        RS485BusStatistics stats = replay(new NGSCDataHarvester(processor, mock(NGSCMessagePublisher.class), manager),
+                "/traces/ngsc_synthetic.rs485", RS485TraceReplayer.MAX_SPEED);
+
+        assertEquals(194, stats.getFramesDecoded());
+        // at max speed the 30 slot queue is allowed to overflow, but nothing can go missing
+        assertEquals(49, stats.getMessagesQueued() + stats.getQueueOverflows());
+        assertEquals(stats.getMessagesQueued(), stats.getStateUpdates() + stats.getCrcFailures());
+    }
+
+    @Test
+    public void itReplaysNGSCTraceAccelerated() throws Exception {
+        NGSCDataHarvester harvester = new NGSCDataHarvester(processor, mock(NGSCMessagePublisher.class), manager);
+        RS485BusStatistics stats = replay(harvester, "/traces/ngsc_synthetic.rs485", 10);
+
+        assertEquals(194, stats.getFramesDecoded());
+        assertEquals(49, stats.getMessagesQueued());
+        assertEquals(0, stats.getQueueOverflows());
+        assertEquals(2, stats.getCrcFailures());
+        assertEquals(47, stats.getStateUpdates());
+
+        SpaState state = harvester.getLatestSpaInfo();
+        assertEquals(103, state.getController().getCurrentWaterTemp());
+        assertEquals(102, state.getController().getTargetWaterTemperature());
+        assertEquals(PumpComponent.State.HIGH, state.getComponents().getPump1().getCurrentState());
+        assertEquals(PumpComponent.State.HIGH, state.getComponents().getPump2().getCurrentState());
+        assertEquals(LightComponent.State.HIGH, state.getComponents().getLight1().getCurrentState());
+        assertEquals(BlowerComponent.State.LOW, state.getComponents().getBlower1().getCurrentState());
+        assertTrue(state.hasSetupParams());
+        assertTrue(state.hasSystemInfo());
+    }
+
+    @Test
+    public void itReplaysJacuzziTrace() throws Exception {
+        when(processor.getRS485ControllerType()).thenReturn("JACUZZI");
+        JacuzziDataHarvester harvester = new JacuzziDataHarvester(processor, mock(JacuzziMessagePublisher.class), manager);
+        RS485BusStatistics stats = replay(harvester, "/traces/jacuzzi_synthetic.rs485", 10);
+
+        assertEquals(92, stats.getFramesDecoded());
+        assertEquals(31, stats.getMessagesQueued());
+        assertEquals(0, stats.getQueueOverflows());
+        assertEquals(1, stats.getCrcFailures());
+
+        SpaState state = harvester.getLatestSpaInfo();
+        assertEquals("JACUZZI", state.getController().getPackType());
+        assertEquals(105, state.getController().getCurrentWaterTemp());
+        assertEquals(PumpComponent.State.HIGH, state.getComponents().getPump1().getCurrentState());
+        assertEquals(PumpComponent.State.LOW, state.getComponents().getPump2().getCurrentState());
+        assertEquals(BlowerComponent.State.LOW, state.getComponents().getBlower1().getCurrentState());
+    }
+
+    @Test
+    public void itRecordsWhatTheUartReturns() throws Exception {
+        File file = File.createTempFile("rs485", ".trace");
+        file.deleteOnExit();
+        RS485TraceRecorder recorder = new RS485TraceRecorder(file, RS485TraceRecorder.DEFAULT_MAX_BYTES);
+        ByteBuffer readBytes = ByteBuffer.allocate(100);
+        readBytes.put(new byte[]{(byte) 0x7E, (byte) 0x05, (byte) 0x0A});
+        recorder.record(readBytes);
+        readBytes.clear();
+        recorder.record(readBytes);
+        readBytes.put(new byte[]{(byte) 0xBF, (byte) 0x06});
+        recorder.record(readBytes);
+        recorder.close();
+
+        List<RS485Trace.Entry> entries;
+        try (FileInputStream in = new FileInputStream(file)) {
+            entries = RS485Trace.read(in);
+        }
+        assertEquals(2, entries.size());
+        assertArrayEquals(new byte[]{(byte) 0x7E, (byte) 0x05, (byte) 0x0A}, entries.get(0).getData());
+        assertArrayEquals(new byte[]{(byte) 0xBF, (byte) 0x06}, entries.get(1).getData());
+        assertTrue(entries.get(1).getElapsedNanos() >= entries.get(0).getElapsedNanos());
+    }
+
+    @Test
+    public void itDropsTruncatedLastEntry() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        RS485Trace.writeHeader(out);
+        RS485Trace.writeEntry(out, 10, new byte[]{1, 2, 3}, 0, 3);
+        out.writeLong(20);
+        out.writeShort(5);
+        out.write(new byte[]{1, 2});
+        out.flush();
+
+        List<RS485Trace.Entry> entries = RS485Trace.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(1, entries.size());
+        assertEquals(10, entries.get(0).getElapsedNanos());
+    }
+
+    private RS485BusStatistics replay(RS485DataHarvester harvester, String trace, double speed) throws Exception {
+        RS485TraceReplayer replayer = new RS485TraceReplayer(RS485TraceReplayer.load(trace), speed);
+        UART uart = replayer.createUART();
+        when(processor.getRS485UART()).thenReturn(uart);
+
+        Thread thread = new Thread(harvester);
+        thread.start();
+        assertTrue(replayer.awaitFinished(30, TimeUnit.SECONDS));
+
+        // the message processor thread works off the queue after the reader is done
+        RS485BusStatistics stats = harvester.getBusStatistics();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stats.getStateUpdates() + stats.getCrcFailures() < stats.getMessagesQueued() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        harvester.cancel();
+        thread.join(5000);
+
+        LOGGER.info("replayed {} at speed {}, {}", trace, speed, stats);
+        return stats;
+    }
+}
@@ -0,0 +1,126 @@
+package com.tritonsvc.gateway;
+
+import jdk.dio.uart.UART;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Test fixture that stands in for the jdk.dio UART, feeds a recorded RS485Trace to whatever reads
+ * from the uart, in real time, accelerated or as fast as the reader will take it.
+ */
+public class RS485TraceReplayer implements Answer<Integer> {
+    public static final double MAX_SPEED = 0;
+
+    private final List<RS485Trace.Entry> entries;
+    private final double speed;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private int entryIndex;
+    private int entryOffset;
+    private long startNanos;
+    private volatile long lastEntryNanos;
+
+    /**
+     * Constructor
+     *
+     * @param entries
+     * @param speed 1.0 is real time, 10.0 is ten times faster, MAX_SPEED ignores the recorded timing
+     */
+    public RS485TraceReplayer(List<RS485Trace.Entry> entries, double speed) {
+        this.entries = entries;
+        this.speed = speed;
+    }
+
+    /**
+     * load a trace from the test classpath
+     *
+     * @param resource
+     * @return
+     * @throws IOException
+     */
+    public static List<RS485Trace.Entry> load(String resource) throws IOException {
+        try (InputStream in = RS485TraceReplayer.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("no trace found on classpath at " + resource);
+            }
+            return RS485Trace.read(in);
+        }
+    }
+
+    /**
+     * a mock UART whose reads are answered from this trace
+     *
+     * @return
+     * @throws IOException
+     */
+    public UART createUART() throws IOException {
+        UART uart = mock(UART.class);
+        doAnswer(this).when(uart).read(any(ByteBuffer.class));
+        return uart;
+    }
+
+    /**
+     * wait for every recorded byte to have been handed to the reader
+     *
+     * @param timeout
+     * @param unit
+     * @return true if the trace was fully replayed
+     * @throws InterruptedException
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * recorded time of the entry most recently handed to the reader, lets a test run on trace time instead of wall time
+     *
+     * @return
+     */
+    public long getLastEntryNanos() {
+        return lastEntryNanos;
+    }
+
+    @Override
+    public synchronized Integer answer(InvocationOnMock invocation) throws Throwable {
+        ByteBuffer readBytes = (ByteBuffer) invocation.getArguments()[0];
+        if (entryIndex >= entries.size()) {
+            finished.countDown();
+            // nothing more on the bus, behave like the uart receive timeout
+            Thread.sleep(2);
+            return 0;
+        }
+
+        RS485Trace.Entry entry = entries.get(entryIndex);
+        if (entryIndex == 0 && entryOffset == 0) {
+            startNanos = System.nanoTime();
+        }
+        if (speed > MAX_SPEED && entryOffset == 0) {
+            long due = startNanos + (long) (entry.getElapsedNanos() / speed);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+
+        lastEntryNanos = entry.getElapsedNanos();
+        int count = Math.min(readBytes.remaining(), entry.getData().length - entryOffset);
+        readBytes.put(entry.getData(), entryOffset, count);
+        entryOffset += count;
+        if (entryOffset >= entry.getData().length) {
+            entryIndex++;
+            entryOffset = 0;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,176 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Controller;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.SpaState;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a mock fleet through an hour of the 3 second data harvest loop and counts the spa state uplinks.
+ */
+public class SpaStateCadenceTest {
+
+    private static Logger LOGGER = LoggerFactory.getLogger(SpaStateCadenceTest.class);
+    private static final int FLEET = 200;
+    private static final long LOOP = 3000;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long LEGACY_INTERVAL = 60000;
+    private static final long HEARTBEAT_INTERVAL = 300000;
+    private static final long HEARTBEAT_MIN_INTERVAL = 30000;
+    private static final long LIVE_INTERVAL = 5000;
+    private static final long LIVE_MIN_INTERVAL = 1000;
+
+    private final SpaState template = new MockSpaStateHolder().buildSpaState();
+
+    @Test
+    public void itSendsFewerUplinksWhileNobodyIsWatching() {
+        long legacy = 0;
+        long heartbeat = 0;
+        long live = 0;
+        for (int spa = 0; spa < FLEET; spa++) {
+            legacy += simulate(null, new Random(spa)).uplinks;
+            heartbeat += simulate(cadence(false), new Random(spa)).uplinks;
+            live += simulate(cadence(true), new Random(spa)).uplinks;
+        }
+
+        LOGGER.info("{} spas sent {} state uplinks/hour on every change, {} in heartbeat mode, {} in live mode",
+                FLEET, legacy, heartbeat, live);
+        Assert.assertTrue(heartbeat * 2 < legacy);
+        Assert.assertTrue(heartbeat <= FLEET * (HOUR / HEARTBEAT_MIN_INTERVAL + 1));
+        // refreshed at least on the first loop iteration after the live interval
+        Assert.assertTrue(live >= FLEET * (HOUR / (LIVE_INTERVAL + LOOP)));
+    }
+
+    @Test
+    public void itSendsChangesRightAwayWhileLive() {
+        long maxLatency = 0;
+        long totalLatency = 0;
+        long changes = 0;
+        for (int spa = 0; spa < FLEET; spa++) {
+            Result result = simulate(cadence(true), new Random(spa));
+            maxLatency = Math.max(maxLatency, result.maxLatency);
+            totalLatency += result.totalLatency;
+            changes += result.changesSent;
+        }
+
+        LOGGER.info("live state latency {} ms on average, {} ms at most over {} changes", totalLatency / changes, maxLatency, changes);
+        Assert.assertTrue(changes > 0);
+        Assert.assertTrue(maxLatency <= LOOP + LIVE_MIN_INTERVAL);
+    }
+
+    @Test
+    public void itSuppressesStatesThatOnlyDifferByTimestamp() {
+        SpaStateCadence cadence = cadence(false);
+        cadence.sent(0, state(80, 0, 0));
+
+        Assert.assertFalse(cadence.shouldSend(HEARTBEAT_MIN_INTERVAL, state(80, 0, HEARTBEAT_MIN_INTERVAL)));
+        Assert.assertTrue(cadence.shouldSend(HEARTBEAT_MIN_INTERVAL, state(81, 0, HEARTBEAT_MIN_INTERVAL)));
+        Assert.assertFalse(cadence.shouldSend(HEARTBEAT_MIN_INTERVAL - 1, state(81, 0, HEARTBEAT_MIN_INTERVAL - 1)));
+        Assert.assertTrue(cadence.shouldSend(HEARTBEAT_INTERVAL + 1, state(80, 0, HEARTBEAT_INTERVAL + 1)));
+    }
+
+    @Test
+    public void itFallsBackToHeartbeat() {
+        SpaStateCadence cadence = new SpaStateCadence(() -> HEARTBEAT_INTERVAL, HEARTBEAT_MIN_INTERVAL, LIVE_INTERVAL, LIVE_MIN_INTERVAL, TimeUnit.MINUTES.toMillis(30));
+        Assert.assertEquals(SpaStateCadence.Mode.HEARTBEAT, cadence.getMode(0));
+
+        cadence.goLive(0, TimeUnit.MINUTES.toMillis(10));
+        Assert.assertEquals(SpaStateCadence.Mode.LIVE, cadence.getMode(TimeUnit.MINUTES.toMillis(10) - 1));
+        Assert.assertEquals(LIVE_INTERVAL, cadence.getInterval(0));
+        Assert.assertEquals(SpaStateCadence.Mode.HEARTBEAT, cadence.getMode(TimeUnit.MINUTES.toMillis(10)));
+
+        // capped, a lost session end doesn't keep the spa live
+        cadence.goLive(0, TimeUnit.DAYS.toMillis(1));
+        Assert.assertEquals(SpaStateCadence.Mode.HEARTBEAT, cadence.getMode(TimeUnit.MINUTES.toMillis(30)));
+
+        cadence.goLive(0, 0);
+        cadence.goHeartbeat();
+        Assert.assertEquals(SpaStateCadence.Mode.HEARTBEAT, cadence.getMode(0));
+        Assert.assertEquals(HEARTBEAT_INTERVAL, cadence.getInterval(0));
+    }
+
+    private static SpaStateCadence cadence(boolean live) {
+        SpaStateCadence cadence = new SpaStateCadence(() -> HEARTBEAT_INTERVAL, HEARTBEAT_MIN_INTERVAL, LIVE_INTERVAL, LIVE_MIN_INTERVAL, HOUR);
+        if (live) {
+            cadence.goLive(0, HOUR);
+        }
+        return cadence;
+    }
+
+    /**
+     * the way BWGProcessor.processDataHarvestIteration sends state, a null cadence sends every new timestamp and
+     * refreshes every minute as it did before. The heater raises the water temperature a degree every couple of minutes
+     * and the panel clock ticks every minute, both restamp the state.
+     */
+    private Result simulate(SpaStateCadence cadence, Random random) {
+        Result result = new Result();
+        int temperature = 100;
+        long offset = random.nextInt((int) LOOP);
+        long nextTemperatureChange = offset + random.nextInt(240000);
+        long stateTimestamp = offset;
+        long lastStateSent = -1;
+        long changedAt = -1;
+
+        for (long now = offset; now < HOUR; now += LOOP) {
+            // what the harvester saw on the bus since the previous iteration
+            boolean restamped = false;
+            while (now >= nextTemperatureChange) {
+                temperature++;
+                changedAt = changedAt < 0 ? nextTemperatureChange : changedAt;
+                nextTemperatureChange += 1 + random.nextInt(240000);
+                restamped = true;
+            }
+            int minute = (int) (now / 60000);
+            if (now >= LOOP && minute != (int) ((now - LOOP) / 60000)) {
+                restamped = true;
+            }
+            if (cadence == null ? now - lastStateSent > LEGACY_INTERVAL : cadence.isRefreshDue(now)) {
+                restamped = true;
+            }
+            if (restamped) {
+                stateTimestamp = now;
+            }
+            SpaState state = state(temperature, minute % 60, stateTimestamp);
+
+            if (lastStateSent != stateTimestamp && (cadence == null || cadence.shouldSend(now, state))) {
+                result.uplinks++;
+                lastStateSent = stateTimestamp;
+                if (cadence != null) {
+                    cadence.sent(now, state);
+                }
+                if (changedAt >= 0) {
+                    result.changesSent++;
+                    result.totalLatency += now - changedAt;
+                    result.maxLatency = Math.max(result.maxLatency, now - changedAt);
+                    changedAt = -1;
+                }
+            }
+        }
+        return result;
+    }
+
+    private SpaState state(int temperature, int minute, long timestamp) {
+        Controller controller = Controller.newBuilder(template.getController())
+                .setCurrentWaterTemp(temperature)
+                .setMinute(minute)
+                .setLastUpdateTimestamp(timestamp)
+                .build();
+        return SpaState.newBuilder(template)
+                .setController(controller)
+                .setComponents(template.getComponents().toBuilder().setLastUpdateTimestamp(timestamp))
+                .setLastUpdateTimestamp(timestamp)
+                .build();
+    }
+
+    private static class Result {
+        long uplinks;
+        long changesSent;
+        long totalLatency;
+        long maxLatency;
+    }
+}
@@ -0,0 +1,146 @@
+package com.tritonsvc.gateway;
+
+import com.tritonsvc.gateway.wsn.WsnData;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Measurement.DataType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class TS7970WiredCurrentSensorTest {
+
+    private final FakeI2CDevice acCurrent = new FakeI2CDevice();
+    private final FakeI2CDevice tempHumidity = new FakeI2CDevice()
+            .conversion(FakeI2CDevice.HTU21DF_READTEMP, 0x6000)
+            .conversion(FakeI2CDevice.HTU21DF_READHUM, 0x8000);
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+    private TS7970WiredCurrentSensor sensor;
+
+    @After
+    public void tearDown() {
+        if (sensor != null) {
+            sensor.shutdown();
+        }
+        sampler.shutdownNow();
+    }
+
+    @Test
+    public void itReportsRmsAndPeakOverTheWindow() {
+        acCurrent.register(8, 400, 500, 600, 500).register(10, 0).register(12, 300);
+        sensor = sensor(1000);
+        for (int i = 0; i < 4; i++) {
+            sensor.sampleCurrent();
+        }
+
+        double[] amps = {amps(400), amps(500), amps(600), amps(500)};
+        double sumOfSquares = 0;
+        for (double value : amps) {
+            sumOfSquares += value * value;
+        }
+        List<WsnData> datas = current(sensor.processWiredSensors());
+
+        // adc 1 has no sensor attached
+        Assert.assertEquals(2, datas.size());
+        Assert.assertEquals("wired_ac_current_adc_0", datas.get(0).getMoteMac());
+        Assert.assertEquals(DataType.PUMP_AC_CURRENT, datas.get(0).getDataType());
+        Assert.assertEquals(Math.sqrt(sumOfSquares / 4), datas.get(0).getValue(), 0.0001);
+        Assert.assertEquals(amps[2], datas.get(0).getPeak(), 0.0001);
+        Assert.assertEquals("wired_ac_current_adc_2", datas.get(1).getMoteMac());
+        Assert.assertEquals(amps(300), datas.get(1).getValue(), 0.0001);
+
+        // the window starts over
+        Assert.assertTrue(current(sensor.processWiredSensors()).isEmpty());
+        sensor.sampleCurrent();
+        Assert.assertEquals(amps(500), current(sensor.processWiredSensors()).get(0).getValue(), 0.0001);
+    }
+
+    @Test
+    public void itReusesTheBuffers() throws Exception {
+        acCurrent.register(8, 500).register(10, 500).register(12, 500);
+        sensor = sensor(5);
+        sensor.start();
+        List<WsnData> temperatureAndHumidity = awaitTemperatureAndHumidity();
+        // a second conversion cycle
+        awaitTemperatureAndHumidity();
+
+        Assert.assertEquals(2, temperatureAndHumidity.size());
+        Assert.assertTrue(acCurrent.getTransactions().size() > 30);
+        Assert.assertEquals(1, acCurrent.getBufferCount());
+        Assert.assertEquals(1, tempHumidity.getBufferCount());
+    }
+
+    @Test
+    public void itSamplesCurrentWhileTheTemperatureConverts() throws Exception {
+        acCurrent.register(8, 500);
+        sensor = sensor(5);
+        sensor.start();
+        List<WsnData> datas = awaitTemperatureAndHumidity();
+
+        Assert.assertEquals(DataType.AMBIENT_TEMP, datas.get(0).getDataType());
+        Assert.assertEquals(66.28, datas.get(0).getValue(), 0.01);
+        Assert.assertEquals(DataType.AMBIENT_HUMIDITY, datas.get(1).getDataType());
+        Assert.assertEquals(56.5, datas.get(1).getValue(), 0.01);
+
+        List<FakeI2CDevice.Transaction> transactions = tempHumidity.getTransactions();
+        long reset = find(transactions, "write fe");
+        long readReg = find(transactions, "write e7");
+        long readTemp = find(transactions, "write e3");
+        long readHum = find(transactions, "write e5");
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(readReg - reset) >= 15);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(readHum - readTemp) >= 50);
+
+        // the sampler thread wasn't held by the conversion wait
+        int currentSamples = 0;
+        for (FakeI2CDevice.Transaction transaction : acCurrent.getTransactions()) {
+            if (transaction.nanos > readTemp && transaction.nanos < readHum) {
+                currentSamples++;
+            }
+        }
+        Assert.assertTrue(currentSamples >= 3);
+    }
+
+    private TS7970WiredCurrentSensor sensor(long sampleMillis) {
+        Properties props = new Properties();
+        props.setProperty("sensor.accurrent.sample.millis", Long.toString(sampleMillis));
+        return new TS7970WiredCurrentSensor(props, sampler, acCurrent, tempHumidity);
+    }
+
+    /**
+     * 4-20 mA over the 166 ohm shunt is 670 - 3320 mV, the 10 bit adc spans 4000 mV, scaled to the 30 amp sensor range
+     */
+    private static double amps(int adc) {
+        return (adc - 670 * 1024 / 4000.0) / ((3320 - 670) * 1024 / 4000.0) * 30;
+    }
+
+    private static List<WsnData> current(List<WsnData> datas) {
+        datas.removeIf(data -> data.getDataType() != DataType.PUMP_AC_CURRENT);
+        return datas;
+    }
+
+    private List<WsnData> awaitTemperatureAndHumidity() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            List<WsnData> datas = sensor.processWiredSensors();
+            datas.removeIf(data -> data.getDataType() == DataType.PUMP_AC_CURRENT);
+            if (!datas.isEmpty()) {
+                return datas;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("no temperature and humidity within 5 seconds");
+    }
+
+    private static long find(List<FakeI2CDevice.Transaction> transactions, String operation) {
+        for (FakeI2CDevice.Transaction transaction : transactions) {
+            if (transaction.operation.equals(operation)) {
+                return transaction.nanos;
+            }
+        }
+        throw new AssertionError(operation + " never happened");
+    }
+}
@@ -0,0 +1,97 @@
+package com.tritonsvc.sw_upgrade;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds deltas in the format {@link DeltaPatcher} applies, the way an upgrade server would. Blocks of the base are
+ * indexed by a polynomial hash that is rolled over the target a byte at a time.
+ */
+public class DeltaEncoder {
+    private static final int BLOCK_SIZE = 2048;
+    private static final long PRIME = 1_000_003L;
+
+    private final long outgoingFactor;
+
+    public DeltaEncoder() {
+        long factor = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            factor *= PRIME;
+        }
+        outgoingFactor = factor;
+    }
+
+    public byte[] encode(byte[] base, byte[] target) throws IOException {
+        Map<Long, Integer> blocks = new HashMap<>();
+        for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            blocks.putIfAbsent(hash(base, offset), offset);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(DeltaPatcher.MAGIC);
+            out.writeByte(DeltaPatcher.VERSION);
+            out.writeLong(target.length);
+
+            int literalStart = 0;
+            int position = 0;
+            long hash = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+            while (position + BLOCK_SIZE <= target.length) {
+                Integer match = blocks.get(hash);
+                if (match != null && sameBytes(base, match, target, position)) {
+                    int length = BLOCK_SIZE;
+                    while (match + length < base.length && position + length < target.length &&
+                            base[match + length] == target[position + length]) {
+                        length++;
+                    }
+                    writeAdd(out, target, literalStart, position);
+                    out.writeByte(DeltaPatcher.OP_COPY);
+                    out.writeLong(match);
+                    out.writeInt(length);
+                    position += length;
+                    literalStart = position;
+                    if (position + BLOCK_SIZE <= target.length) {
+                        hash = hash(target, position);
+                    }
+                } else {
+                    if (position + BLOCK_SIZE < target.length) {
+                        hash = (hash - (target[position] & 0xff) * outgoingFactor) * PRIME + (target[position + BLOCK_SIZE] & 0xff);
+                    }
+                    position++;
+                }
+            }
+            writeAdd(out, target, literalStart, target.length);
+            out.writeByte(DeltaPatcher.OP_END);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeAdd(DataOutputStream out, byte[] target, int from, int to) throws IOException {
+        if (to > from) {
+            out.writeByte(DeltaPatcher.OP_ADD);
+            out.writeInt(to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static boolean sameBytes(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (base[baseOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(byte[] data, int offset) {
+        long hash = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            hash = hash * PRIME + (data[offset + i] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,159 @@
+package com.tritonsvc.sw_upgrade;
+
+import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResumableDownloadTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(ResumableDownloadTest.class);
+    private static final int PACKAGE_SIZE = 512 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] payload;
+    private String sha256;
+    private volatile int dropAfterBytes;
+    private volatile boolean honourRanges = true;
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private String url;
+    private File destination;
+
+    @Before
+    public void setUp() throws Exception {
+        payload = new byte[PACKAGE_SIZE];
+        new Random(7).nextBytes(payload);
+        sha256 = BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(payload));
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upgrade", this::serve);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/upgrade?currentBuildNumber=10";
+        destination = new File(folder.getRoot(), "upgradePackage.tar.gz");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void itResumesDroppedConnectionsWithoutRefetchingBytes() throws Exception {
+        dropAfterBytes = 100 * 1024;
+        ResumableDownload download = new ResumableDownload(destination, 0, 10, 1, 32 * 1024);
+
+        assertEquals(ResumableDownload.Outcome.COMPLETE, download.fetch(url));
+        LOGGER.info("downloaded {} bytes with {} requests, server sent {} bytes", PACKAGE_SIZE, requests.get(), bytesServed.get());
+        assertArrayEquals(payload, FileUtils.readFileToByteArray(destination));
+        assertEquals("package-11.tar.gz", download.getPackageName());
+        assertEquals(6, requests.get());
+        assertEquals(5, rangeRequests.get());
+        assertEquals(PACKAGE_SIZE, bytesServed.get());
+        assertFalse(new File(destination.getPath() + ".part").exists());
+        assertFalse(new File(destination.getPath() + ".part.state").exists());
+    }
+
+    @Test
+    public void itResumesFromThePersistedOffsetAfterARestart() throws Exception {
+        dropAfterBytes = 200 * 1024;
+        ResumableDownload interrupted = new ResumableDownload(destination, 0, 1, 1, 32 * 1024);
+        assertEquals(ResumableDownload.Outcome.FAILED, interrupted.fetch(url));
+        assertTrue(new File(destination.getPath() + ".part.state").exists());
+
+        dropAfterBytes = 0;
+        ResumableDownload resumed = new ResumableDownload(destination, 0, 3, 1, 32 * 1024);
+        assertEquals(ResumableDownload.Outcome.COMPLETE, resumed.fetch(url));
+        assertArrayEquals(payload, FileUtils.readFileToByteArray(destination));
+        assertEquals(PACKAGE_SIZE - interrupted.getBytesTransferred(), resumed.getBytesTransferred());
+        assertEquals(PACKAGE_SIZE, bytesServed.get());
+    }
+
+    @Test
+    public void itStartsOverWhenTheServerIgnoresRanges() throws Exception {
+        honourRanges = false;
+        dropAfterBytes = 200 * 1024;
+        ResumableDownload interrupted = new ResumableDownload(destination, 0, 1, 1, 32 * 1024);
+        assertEquals(ResumableDownload.Outcome.FAILED, interrupted.fetch(url));
+
+        dropAfterBytes = 0;
+        ResumableDownload restarted = new ResumableDownload(destination, 0, 3, 1, 32 * 1024);
+        assertEquals(ResumableDownload.Outcome.COMPLETE, restarted.fetch(url));
+        assertArrayEquals(payload, FileUtils.readFileToByteArray(destination));
+        assertEquals(PACKAGE_SIZE, restarted.getBytesTransferred());
+    }
+
+    @Test
+    public void itDiscardsAPackageThatFailsItsChecksum() throws Exception {
+        sha256 = "00" + sha256.substring(2);
+        ResumableDownload download = new ResumableDownload(destination, 0, 3, 1, 32 * 1024);
+
+        assertEquals(ResumableDownload.Outcome.FAILED, download.fetch(url));
+        assertFalse(destination.exists());
+        assertFalse(new File(destination.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void itCapsBandwidth() throws Exception {
+        ResumableDownload download = new ResumableDownload(destination, PACKAGE_SIZE, 1, 1, 32 * 1024);
+
+        long start = System.nanoTime();
+        assertEquals(ResumableDownload.Outcome.COMPLETE, download.fetch(url));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.info("capped download of {} bytes took {} ms", PACKAGE_SIZE, elapsedMillis);
+        assertTrue(elapsedMillis >= 750);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int start = 0;
+        if (range != null && honourRanges) {
+            rangeRequests.incrementAndGet();
+            start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (PACKAGE_SIZE - 1) + "/" + PACKAGE_SIZE);
+        }
+        exchange.getResponseHeaders().set("UPGRADE_PACKAGE_NAME", "package-11.tar.gz");
+        exchange.getResponseHeaders().set("UPGRADE_PACKAGE_SHA256", sha256);
+        exchange.getResponseHeaders().set("ETag", "\"11\"");
+        exchange.sendResponseHeaders(start > 0 ? 206 : 200, PACKAGE_SIZE - start);
+
+        int end = dropAfterBytes > 0 ? Math.min(PACKAGE_SIZE, start + dropAfterBytes) : PACKAGE_SIZE;
+        OutputStream body = exchange.getResponseBody();
+        try {
+            for (int position = start; position < end; position += 4096) {
+                int length = Math.min(4096, end - position);
+                body.write(payload, position, length);
+                bytesServed.addAndGet(length);
+            }
+            body.flush();
+        } finally {
+            // closing short of the content length drops the connection
+            exchange.close();
+        }
+    }
+}
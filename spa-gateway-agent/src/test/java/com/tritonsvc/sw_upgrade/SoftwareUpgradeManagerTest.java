@@ -0,0 +1,179 @@
+package com.tritonsvc.sw_upgrade;
+
+import com.google.common.io.BaseEncoding;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SoftwareUpgradeManagerTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(SoftwareUpgradeManagerTest.class);
+    private static final int JARS = 24;
+    private static final int JAR_SIZE = 48 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] build10;
+    private byte[] build11;
+    private byte[] delta;
+    private String targetSha256;
+    private final AtomicInteger deltaRequests = new AtomicInteger();
+    private final AtomicInteger fullRequests = new AtomicInteger();
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        build10 = build(false);
+        build11 = build(true);
+        long start = System.nanoTime();
+        delta = new DeltaEncoder().encode(build10, build11);
+        LOGGER.info("encoded a {} byte delta between {} and {} byte builds in {} ms", delta.length, build10.length,
+                build11.length, (System.nanoTime() - start) / 1000000);
+        targetSha256 = sha256(build11);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upgrade", this::serve);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/upgrade";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void itRebuildsTheUpgradeFromADelta() throws Exception {
+        File deltaFolder = folder.newFolder("delta");
+        FileUtils.writeByteArrayToFile(new File(deltaFolder, ".upgr_delta_base.tar.gz"), build10);
+        SoftwareUpgradeManager deltaManager = newManager(deltaFolder);
+        File fullFolder = folder.newFolder("full");
+        SoftwareUpgradeManager fullManager = newManager(fullFolder);
+
+        long start = System.nanoTime();
+        assertEquals(ResumableDownload.Outcome.COMPLETE, deltaManager.obtainUpgradePackage(url, "10"));
+        long deltaMillis = (System.nanoTime() - start) / 1000000;
+        start = System.nanoTime();
+        assertEquals(ResumableDownload.Outcome.COMPLETE, fullManager.obtainUpgradePackage(url, "10"));
+        long fullMillis = (System.nanoTime() - start) / 1000000;
+        LOGGER.info("delta upgrade downloaded {} bytes and rebuilt the package in {} ms ({} ms total), full upgrade downloaded {} bytes ({} ms total)",
+                deltaManager.getBytesDownloaded(), deltaManager.getReconstructMillis(), deltaMillis,
+                fullManager.getBytesDownloaded(), fullMillis);
+
+        assertArrayEquals(build11, FileUtils.readFileToByteArray(new File(deltaFolder, "upgradePackage.tar.gz")));
+        assertArrayEquals(build11, FileUtils.readFileToByteArray(new File(fullFolder, "upgradePackage.tar.gz")));
+        assertEquals(delta.length, deltaManager.getBytesDownloaded());
+        assertEquals(build11.length, fullManager.getBytesDownloaded());
+        assertTrue(deltaManager.getBytesDownloaded() * 5 < fullManager.getBytesDownloaded());
+        // both keep the new package as the base for the next delta
+        assertArrayEquals(build11, FileUtils.readFileToByteArray(new File(deltaFolder, ".upgr_delta_base.tar.gz")));
+        assertArrayEquals(build11, FileUtils.readFileToByteArray(new File(fullFolder, ".upgr_delta_base.tar.gz")));
+        assertEquals(1, deltaRequests.get());
+        assertEquals(1, fullRequests.get());
+    }
+
+    @Test
+    public void itFallsBackToTheFullPackageWhenTheBaseDiffers() throws Exception {
+        byte[] drifted = build10.clone();
+        drifted[drifted.length / 2] ^= 1;
+        FileUtils.writeByteArrayToFile(new File(folder.getRoot(), ".upgr_delta_base.tar.gz"), drifted);
+        SoftwareUpgradeManager manager = newManager(folder.getRoot());
+
+        assertEquals(ResumableDownload.Outcome.COMPLETE, manager.obtainUpgradePackage(url, "10"));
+        assertArrayEquals(build11, FileUtils.readFileToByteArray(new File(folder.getRoot(), "upgradePackage.tar.gz")));
+        assertEquals(delta.length + build11.length, manager.getBytesDownloaded());
+        assertEquals(1, deltaRequests.get());
+        assertEquals(1, fullRequests.get());
+    }
+
+    @Test
+    public void itFallsBackToTheFullPackageWhenTheRebuiltPackageFailsItsChecksum() throws Exception {
+        targetSha256 = "00" + targetSha256.substring(2);
+        FileUtils.writeByteArrayToFile(new File(folder.getRoot(), ".upgr_delta_base.tar.gz"), build10);
+        SoftwareUpgradeManager manager = newManager(folder.getRoot());
+
+        assertEquals(ResumableDownload.Outcome.COMPLETE, manager.obtainUpgradePackage(url, "10"));
+        assertArrayEquals(build11, FileUtils.readFileToByteArray(new File(folder.getRoot(), "upgradePackage.tar.gz")));
+        assertEquals(1, deltaRequests.get());
+        assertEquals(1, fullRequests.get());
+    }
+
+    private SoftwareUpgradeManager newManager(File packageFolder) {
+        Properties properties = new Properties();
+        properties.setProperty("softwareUpgrade.packageFolder", packageFolder.getPath());
+        properties.setProperty("softwareUpgrade.maxBytesPerSecond", "0");
+        SoftwareUpgradeManager manager = new SoftwareUpgradeManager(properties);
+        manager.shutdown();
+        return manager;
+    }
+
+    /**
+     * a package of jars, the next build changes two of them and adds one in the middle
+     */
+    private static byte[] build(boolean next) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int jar = 0; jar < JARS; jar++) {
+            byte[] contents = new byte[JAR_SIZE];
+            new Random(next && (jar == 5 || jar == 17) ? 1000 + jar : jar).nextBytes(contents);
+            out.write(contents);
+            if (next && jar == 9) {
+                byte[] added = new byte[30001];
+                new Random(99).nextBytes(added);
+                out.write(added);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String query = exchange.getRequestURI().getQuery();
+            byte[] body;
+            if (query.contains("currentBuildNumber=10") && query.contains("acceptDelta=true")) {
+                deltaRequests.incrementAndGet();
+                body = delta;
+                exchange.getResponseHeaders().set("UPGRADE_PACKAGE_DELTA_BASE_SHA256", sha256(build10));
+                exchange.getResponseHeaders().set("UPGRADE_PACKAGE_TARGET_SHA256", targetSha256);
+            } else {
+                fullRequests.incrementAndGet();
+                body = build11;
+            }
+            exchange.getResponseHeaders().set("UPGRADE_PACKAGE_NAME", "package-11.tar.gz");
+            exchange.getResponseHeaders().set("UPGRADE_PACKAGE_SHA256", sha256(body));
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.tritonsvc.wifi;
 
+import com.tritonsvc.CommandRunner.CommandResult;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.WifiConnectionHealth;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.WifiStat;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.WifiStat.WifiConnectionDiagnostics;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -16,16 +18,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
-import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
-import static org.mockito.Mockito.when;
 
 public class ParserIwconfigTest {
 
     private ParserIwconfig parser;
-    private Process unixProcess;
 
     @Rule
     public TemporaryFolder folder = new TemporaryFolder();
@@ -34,8 +32,6 @@ public class ParserIwconfigTest {
     public void setUp() throws IOException {
         parser = new ParserIwconfig();
         parser = spy(parser);
-        unixProcess = mock(Process.class);
-        doReturn(unixProcess).when(parser).executeUnixCommand(any());
         File file = new File(folder.getRoot(), "test1");
         FileUtils.writeStringToFile(file, "up");
         doReturn(file).when(parser).getSystemFile(any());
@@ -43,9 +39,7 @@ public class ParserIwconfigTest {
 
     @Test
     public void itParsesConnectedWifi() throws Exception {
-        when(unixProcess.getInputStream())
-                .thenReturn(ParserIwconfigTest.class.getResourceAsStream("/connectedIwConfig.txt"))
-                .thenReturn(ParserIwconfigTest.class.getResourceAsStream("/eth0.txt"));
+        doReturn(iwconfigOutput("/connectedIwConfig.txt")).when(parser).runCommand(any());
 
         WifiConnectionDiagnostics diag = WifiConnectionDiagnostics.newBuilder()
                 .setDataRate(1)
@@ -96,9 +90,7 @@ public class ParserIwconfigTest {
 
     @Test
     public void itParsesDisConnectedWifi() throws Exception {
-        when(unixProcess.getInputStream())
-                .thenReturn(ParserIwconfigTest.class.getResourceAsStream("/disconnectedIwConfig.txt"))
-                .thenReturn(ParserIwconfigTest.class.getResourceAsStream("/eth0.txt"));
+        doReturn(iwconfigOutput("/disconnectedIwConfig.txt")).when(parser).runCommand(any());
 
         WifiStat newStat = parser.parseStat("wlan0", null, "iwconfig", "eth0");
         assertFalse(newStat.hasApMacAddress());
@@ -123,4 +115,8 @@ public class ParserIwconfigTest {
         assertFalse(newStat.getConnectedDiag().hasDeltaSignalLevelUnits());
         assertFalse(newStat.getConnectedDiag().hasDeltaTxExcessiveRetries());
     }
+
+    private CommandResult iwconfigOutput(String fixture) throws IOException {
+        return new CommandResult(0, IOUtils.toString(ParserIwconfigTest.class.getResourceAsStream(fixture)), false, false, false);
+    }
 }
@@ -0,0 +1,167 @@
+package com.tritonsvc.wifi;
+
+import com.tritonsvc.CommandRunner;
+import com.tritonsvc.CommandRunner.CommandResult;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Constants.WifiConnectionHealth;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.WifiStat;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class WifiStatCollectorTest {
+    private static Logger LOGGER = LoggerFactory.getLogger(WifiStatCollectorTest.class);
+
+    private ParserIwconfig parser;
+    private WifiStatCollector collector;
+    private String iwconfigFixture;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        parser = spy(new ParserIwconfig());
+        doAnswer(invocation -> new CommandResult(0, IOUtils.toString(fixture(iwconfigFixture)), false, false, false))
+                .when(parser).runCommand(any());
+        File ethernet = new File(folder.getRoot(), "eth0");
+        FileUtils.writeStringToFile(ethernet, "up");
+        doReturn(ethernet).when(parser).getSystemFile(any());
+
+        collector = spy(new WifiStatCollector(parser, 3600000));
+        doAnswer(invocation -> new File(folder.getRoot(), (String) invocation.getArguments()[0])).when(collector).getSystemFile(anyString());
+    }
+
+    @Test
+    public void itMatchesIwconfigWhenConnected() throws Exception {
+        iwconfigFixture = "/connectedIwConfig.txt";
+        kernelFiles("/connectedProcNetWireless.txt", "up", "1");
+
+        WifiStat previous = collector.collect("wlan0", null, "iwconfig", "eth0");
+        WifiStat fromIwconfig = parser.parseStat("wlan0", previous, "iwconfig", "eth0");
+        WifiStat fromKernel = collector.collect("wlan0", previous, "iwconfig", "eth0");
+
+        assertEquals(1, collector.getIwconfigReads());
+        assertEquals(1, collector.getNativeReads());
+        assertEquals(WifiConnectionHealth.WEAK, fromKernel.getWifiConnectionHealth());
+        assertEquals("00:24:17:44:35:28", fromKernel.getApMacAddress());
+        assertEquals(withoutTimes(fromIwconfig), withoutTimes(fromKernel));
+    }
+
+    @Test
+    public void itMatchesIwconfigWhenDisconnected() throws Exception {
+        iwconfigFixture = "/disconnectedIwConfig.txt";
+        kernelFiles("/disconnectedProcNetWireless.txt", "dormant", "0");
+
+        WifiStat previous = collector.collect("wlan0", null, "iwconfig", "eth0");
+        WifiStat fromIwconfig = parser.parseStat("wlan0", previous, "iwconfig", "eth0");
+        WifiStat fromKernel = collector.collect("wlan0", previous, "iwconfig", "eth0");
+
+        assertEquals(1, collector.getNativeReads());
+        assertEquals(WifiConnectionHealth.DISCONNECTED, fromKernel.getWifiConnectionHealth());
+        assertFalse(fromKernel.hasApMacAddress());
+        assertFalse(fromKernel.getConnectedDiag().hasLinkQualityPercentage());
+        assertEquals(withoutTimes(fromIwconfig), withoutTimes(fromKernel));
+    }
+
+    @Test
+    public void itRunsIwconfigWhenAssociationChanges() throws Exception {
+        iwconfigFixture = "/disconnectedIwConfig.txt";
+        kernelFiles("/disconnectedProcNetWireless.txt", "dormant", "0");
+        collector.collect("wlan0", null, "iwconfig", "eth0");
+
+        iwconfigFixture = "/connectedIwConfig.txt";
+        kernelFiles("/connectedProcNetWireless.txt", "up", "1");
+        WifiStat connected = collector.collect("wlan0", null, "iwconfig", "eth0");
+
+        assertEquals(2, collector.getIwconfigReads());
+        assertEquals(0, collector.getNativeReads());
+        assertEquals("00:24:17:44:35:28", connected.getApMacAddress());
+    }
+
+    @Test
+    public void itFallsBackToIwconfigWithoutProcNetWireless() throws Exception {
+        iwconfigFixture = "/connectedIwConfig.txt";
+        kernelFiles(null, "up", "1");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(WifiConnectionHealth.WEAK, collector.collect("wlan0", null, "iwconfig", "eth0").getWifiConnectionHealth());
+        }
+        assertEquals(3, collector.getIwconfigReads());
+        assertEquals(0, collector.getNativeReads());
+        verify(parser, times(3)).runCommand(any());
+    }
+
+    @Test
+    public void itIsCheaperPerSampleThanForkingIwconfig() throws Exception {
+        File cat = new File("/bin/cat");
+        Assume.assumeTrue(cat.canExecute());
+        File connected = new File(WifiStatCollectorTest.class.getResource("/connectedIwConfig.txt").toURI());
+        kernelFiles("/connectedProcNetWireless.txt", "up", "1");
+
+        // stand in for iwconfig with a real fork of cat on the fixture
+        ParserIwconfig forking = spy(new ParserIwconfig());
+        doAnswer(invocation -> CommandRunner.instance().run("iwconfig", cat.getPath() + " " + connected.getPath(), 10000))
+                .when(forking).runCommand(any());
+        doReturn(new File(folder.getRoot(), "eth0")).when(forking).getSystemFile(any());
+        WifiStatCollector kernel = spy(new WifiStatCollector(forking, 3600000));
+        doAnswer(invocation -> new File(folder.getRoot(), (String) invocation.getArguments()[0])).when(kernel).getSystemFile(anyString());
+
+        int samples = 50;
+        WifiStat previous = kernel.collect("wlan0", null, "iwconfig", "eth0");
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            previous = forking.parseStat("wlan0", previous, "iwconfig", "eth0");
+        }
+        long iwconfigNanos = (System.nanoTime() - start) / samples;
+
+        start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            previous = kernel.collect("wlan0", previous, "iwconfig", "eth0");
+        }
+        long kernelNanos = (System.nanoTime() - start) / samples;
+
+        LOGGER.info("wifi stat cost per sample, iwconfig fork {} us, kernel files {} us", iwconfigNanos / 1000, kernelNanos / 1000);
+        assertEquals(samples, kernel.getNativeReads());
+        assertTrue(kernelNanos < iwconfigNanos);
+    }
+
+    private void kernelFiles(String procNetWireless, String operstate, String carrier) throws IOException {
+        File wireless = new File(folder.getRoot(), "/proc/net/wireless");
+        if (procNetWireless != null) {
+            FileUtils.copyInputStreamToFile(fixture(procNetWireless), wireless);
+        } else {
+            FileUtils.deleteQuietly(wireless);
+        }
+        FileUtils.writeStringToFile(new File(folder.getRoot(), "/sys/class/net/wlan0/operstate"), operstate + "\n");
+        FileUtils.writeStringToFile(new File(folder.getRoot(), "/sys/class/net/wlan0/carrier"), carrier + "\n");
+    }
+
+    private InputStream fixture(String name) {
+        return WifiStatCollectorTest.class.getResourceAsStream(name);
+    }
+
+    private WifiStat withoutTimes(WifiStat stat) {
+        return stat.toBuilder().clearRecordedDate().clearElapsedDeltaMilliseconds().build();
+    }
+}
@@ -2,7 +2,9 @@ package com.tritonsvc.messageprocessor;
 
 import com.bwg.iot.model.ProcessedResult;
 import com.bwg.iot.model.SpaCommand;
+import com.google.common.annotations.VisibleForTesting;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaCommandRepository;
+import com.tritonsvc.messageprocessor.mqtt.DownlinkBatch;
 import com.tritonsvc.messageprocessor.mqtt.DownlinkRequestor;
 import com.tritonsvc.messageprocessor.state.SpaCommandExecutionWatcher;
 import com.tritonsvc.messageprocessor.util.Watchdog;
@@ -10,18 +12,30 @@ import com.tritonsvc.messageprocessor.util.WatchedThreadCreator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
 /**
  * this class is entry point responsible for performing all Downlink processing
  * namely scanning the mongodb Requests collection for any unprocessed
@@ -34,6 +48,7 @@ public class DownlinkProcessor implements WatchedThreadCreator {
     private static final long DOWNLINK_PROCESSOR_THREAD_SLEEP_MILLISECONDS = 5000;
     private static final long WATCHDOG_SLEEP_MILLISECONDS = 30000;
     private static final long WATCHDOG_THRESHOLD_MILLISECONDS = DOWNLINK_PROCESSOR_THREAD_SLEEP_MILLISECONDS + 15000;
+    private static final long SEND_TIMEOUT_MILLISECONDS = 10000;
 
     private static final Logger log = LoggerFactory.getLogger(DownlinkProcessor.class);
 
@@ -46,6 +61,9 @@ public class DownlinkProcessor implements WatchedThreadCreator {
     @Autowired
     private SpaCommandExecutionWatcher spaCommandExecutionWatcher;
 
+    @Autowired
+    private MongoOperations mongoOps;
+
     private final ExecutorService es = Executors.newCachedThreadPool();
     private Future<Void> currentDownlinkProcessor;
     private Future<Void> watchdog;
@@ -85,41 +103,76 @@ public class DownlinkProcessor implements WatchedThreadCreator {
         final List<SpaCommand> commands = spaCommandRepository.findFirst25ByProcessedTimestampIsNullOrderBySentTimestampAsc();
 
         if (commands != null && commands.size() > 0) {
-            for (final SpaCommand command : commands) {
-                final boolean sent = sendCommand(command);
-                command.setProcessedTimestamp(new Date());
-                command.setProcessedResult(sent ? ProcessedResult.SENT : ProcessedResult.INVALID);
-                spaCommandRepository.save(command);
-                log.info("Spa command processed successfully");
-            }
+            processBatch(commands);
         } else {
             log.info("No commands, sleeping");
         }
     }
 
-    private boolean sendCommand(final SpaCommand command) {
+    /**
+     * publish a batch of commands without waiting on each one, then record their results and the spas' new target
+     * states, the commands with one update per result
+     *
+     * @param commands
+     * @throws InterruptedException
+     */
+    @VisibleForTesting
+    void processBatch(final List<SpaCommand> commands) throws InterruptedException {
+        final DownlinkBatch batch = downlinkRequestor.prefetch(commands);
+        final List<CompletableFuture<Boolean>> results = new ArrayList<>(commands.size());
+        for (final SpaCommand command : commands) {
+            results.add(sendCommand(command, batch));
+        }
+
+        final long deadline = System.currentTimeMillis() + SEND_TIMEOUT_MILLISECONDS;
+        final Map<ProcessedResult, List<String>> processedIds = new EnumMap<>(ProcessedResult.class);
+        for (int i = 0; i < commands.size(); i++) {
+            final SpaCommand command = commands.get(i);
+            boolean sent;
+            try {
+                sent = results.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (final ExecutionException | TimeoutException e) {
+                log.error("Spa command {} was not acknowledged by the broker", command.get_id());
+                sent = false;
+            }
+            command.setProcessedResult(sent ? ProcessedResult.SENT : ProcessedResult.INVALID);
+            processedIds.computeIfAbsent(command.getProcessedResult(), result -> new ArrayList<>()).add(command.get_id());
+        }
+        final Date processed = new Date();
+        commands.forEach(command -> command.setProcessedTimestamp(processed));
+        downlinkRequestor.saveTargetStates(batch);
+        // only the processed fields, the ack of a command may have been recorded while the batch was sent
+        for (final Map.Entry<ProcessedResult, List<String>> entry : processedIds.entrySet()) {
+            mongoOps.updateMulti(query(where("_id").in(entry.getValue())),
+                    new Update().set("processedTimestamp", processed).set("processedResult", entry.getKey()),
+                    SpaCommand.class);
+        }
+        log.info("{} spa commands processed", commands.size());
+    }
+
+    private CompletableFuture<Boolean> sendCommand(final SpaCommand command, final DownlinkBatch batch) {
         log.info("Processing command {}", command);
-        boolean sent = false;
+        CompletableFuture<Boolean> sent = CompletableFuture.completedFuture(false);
 
         if (command == null) {
             log.error("Spa command is null, not processing");
         } else if (command.getRequestTypeId() != null) {
             try {
                 if (SpaCommand.RequestType.HEATER.getCode() == command.getRequestTypeId().intValue()) {
-                    sent = downlinkRequestor.sendHeaterUpdateCommand(command);
+                    sent = downlinkRequestor.sendHeaterUpdateCommand(command, batch);
                     spaCommandExecutionWatcher.watchCommand(command);
                 } else if (SpaCommand.RequestType.FILTER.getCode() == command.getRequestTypeId().intValue()) {
-                    sent = downlinkRequestor.sendFilterUpdateCommand(command);
+                    sent = downlinkRequestor.sendFilterUpdateCommand(command, batch);
                 } else if (SpaCommand.RequestType.UPDATE_AGENT_SETTINGS.getCode() == command.getRequestTypeId().intValue()) {
-                    sent = downlinkRequestor.sendUpdateAgentSettingsCommand(command);
+                    sent = downlinkRequestor.sendUpdateAgentSettingsCommand(command, batch);
                 } else if (SpaCommand.RequestType.RESTART_AGENT.getCode() == command.getRequestTypeId().intValue()) {
-                    sent = downlinkRequestor.sendPlainCommand(command);
+                    sent = downlinkRequestor.sendPlainCommand(command, batch);
                 } else if (SpaCommand.RequestType.REBOOT_GATEWAY.getCode() == command.getRequestTypeId().intValue()) {
-                    sent = downlinkRequestor.sendPlainCommand(command);
+                    sent = downlinkRequestor.sendPlainCommand(command, batch);
                 } else if (SpaCommand.RequestType.SET_TIME.getCode() == command.getRequestTypeId().intValue()) {
-                    sent = downlinkRequestor.sendPlainCommand(command);
+                    sent = downlinkRequestor.sendPlainCommand(command, batch);
                 } else {
-                    sent = downlinkRequestor.sendPeripheralStateUpdateCommand(command);
+                    sent = downlinkRequestor.sendPeripheralStateUpdateCommand(command, batch);
                 }
             } catch (Throwable th) {
                 log.error("Unable to send downlink command ", th);
@@ -1,5 +1,6 @@
 package com.tritonsvc.messageprocessor;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.tritonsvc.messageprocessor.notifications.NotnoopApnsSenderBuilder;
 import com.tritonsvc.messageprocessor.notifications.PushNotificationService;
 import org.slf4j.Logger;
@@ -47,6 +48,10 @@ public class MessageProcessorConfiguration {
     @Value("${apnsUseProduction:true}")
     private boolean apnsUseProduction;
 
+    private final Object pkiLock = new Object();
+    private PkiInfo cachedPki;
+    private String cachedPkiFingerprint;
+
     public String getDownlinkTopicName() {
         return downlinkTopicName;
     }
@@ -69,9 +74,40 @@ public class MessageProcessorConfiguration {
      * check the runtime parameters and derive crypto objects
      * if certs/keys were specified as parameters
      *
+     * the result is cached until one of the files changes, reconnects then skip reading and parsing the pem files and,
+     * because they keep using the same SSLContext, can resume their previous tls session instead of a full handshake
+     *
      * @return PkiInfo
      */
     public PkiInfo obtainPKIArtifacts() {
+        final String fingerprint = pkiFingerprint();
+        synchronized (pkiLock) {
+            if (cachedPki == null || !fingerprint.equals(cachedPkiFingerprint)) {
+                if (cachedPki != null) {
+                    log.info("certificate or key files changed, reloading crypto");
+                }
+                cachedPki = loadPKIArtifacts();
+                cachedPkiFingerprint = fingerprint;
+            }
+            return cachedPki;
+        }
+    }
+
+    private String pkiFingerprint() {
+        final StringBuilder fingerprint = new StringBuilder();
+        for (final String path : new String[]{caRootFilePem, clientCertFilePem, clientKeyFilePkcs8}) {
+            final File file = new File(path);
+            fingerprint.append(path).append('=');
+            if (file.exists()) {
+                fingerprint.append(file.lastModified()).append('/').append(file.length());
+            }
+            fingerprint.append(';');
+        }
+        return fingerprint.toString();
+    }
+
+    @VisibleForTesting
+    PkiInfo loadPKIArtifacts() {
         File caRootCert = new File(caRootFilePem);
         File clientPubCert = new File(clientCertFilePem);
         File clientPrivKey = new File(clientKeyFilePkcs8);
@@ -2,15 +2,21 @@ package com.tritonsvc.messageprocessor.messagehandler;
 
 import com.bwg.iot.model.SpaCommand;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaCommandRepository;
+import com.tritonsvc.messageprocessor.mqtt.SpaCommandIndex;
 import com.tritonsvc.spa.communication.proto.Bwg;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.DownlinkAcknowledge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
 import java.util.Date;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
 /**
  * process downlink acks from spa systems
  */
@@ -22,6 +28,12 @@ public class DownlinkAckMessageHandler extends AbstractMessageHandler<DownlinkAc
     @Autowired
     private SpaCommandRepository spaCommandRepository;
 
+    @Autowired
+    private SpaCommandIndex spaCommandIndex;
+
+    @Autowired
+    private MongoOperations mongoOps;
+
     @Override
     public Class<DownlinkAcknowledge> handles() {
         return DownlinkAcknowledge.class;
@@ -31,15 +43,21 @@ public class DownlinkAckMessageHandler extends AbstractMessageHandler<DownlinkAc
     public void processMessage(final Bwg.Header header, final Bwg.Uplink.UplinkHeader uplinkHeader, final DownlinkAcknowledge ackMessage) {
         log.info("Processing downlink ack message for originator {}, and hw id {}, response code {} {} ", header.getOriginator(), uplinkHeader.getHardwareId(), ackMessage.getCode().name(), ackMessage.getDescription() == null ? "" : ackMessage.getDescription());
 
-        SpaCommand request = spaCommandRepository.findByOriginatorIdAndSpaId(header.getOriginator(), uplinkHeader.getHardwareId());
+        final SpaCommandIndex.SentCommand sent = spaCommandIndex.get(header.getOriginator(), uplinkHeader.getHardwareId());
+        String requestId = sent != null ? sent.getId() : null;
+        if (requestId == null) {
+            final SpaCommand request = spaCommandRepository.findByOriginatorIdAndSpaId(header.getOriginator(), uplinkHeader.getHardwareId());
+            requestId = request != null ? request.get_id() : null;
+        }
 
-        if (request == null) {
+        if (requestId == null) {
             log.error("Received an ack for prior downlink, however no originator {} and hardwareid {} exists.", header.getOriginator(), uplinkHeader.getHardwareId());
             return;
         }
 
-        request.setAckResponseCode(ackMessage.getCode().name());
-        request.setAckTimestamp(new Date());
-        spaCommandRepository.save(request);
+        // only the ack fields, the downlink processor may be recording the command's processed result at the same time
+        mongoOps.updateFirst(query(where("_id").is(requestId)),
+                new Update().set("ackResponseCode", ackMessage.getCode().name()).set("ackTimestamp", new Date()),
+                SpaCommand.class);
     }
 }
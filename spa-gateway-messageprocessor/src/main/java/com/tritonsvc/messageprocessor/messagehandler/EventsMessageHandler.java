@@ -6,6 +6,7 @@ import com.bwg.iot.model.SpaCommand;
 import com.tritonsvc.messageprocessor.mongo.repository.EventRepository;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaCommandRepository;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
+import com.tritonsvc.messageprocessor.mqtt.SpaCommandIndex;
 import com.tritonsvc.spa.communication.proto.Bwg;
 import com.tritonsvc.spa.communication.proto.BwgHelper;
 import org.slf4j.Logger;
@@ -16,6 +17,7 @@ import org.springframework.stereotype.Component;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * process events from spa systems
@@ -34,6 +36,9 @@ public class EventsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.Mode
     @Autowired
     private SpaCommandRepository spaCommandRepository;
 
+    @Autowired
+    private SpaCommandIndex spaCommandIndex;
+
     @Override
     public Class<Bwg.Uplink.Model.Events> handles() {
         return Bwg.Uplink.Model.Events.class;
@@ -77,9 +82,17 @@ public class EventsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.Mode
 
         // if REQUEST event has originatorId, add metadata from spaCommand
         if (eventEntity.getMetadata() != null && eventEntity.getMetadata().containsKey("originatorId")) {
-            List<SpaCommand> sc = spaCommandRepository.findByOriginatorIdOrderBySentTimestampDesc(eventEntity.getMetadata().get("originatorId"));
-            if (!sc.isEmpty()) {
-                sc.get(0).getMetadata().forEach((k, v) -> {
+            final String originatorId = eventEntity.getMetadata().get("originatorId");
+            final SpaCommandIndex.SentCommand sent = spaCommandIndex.get(originatorId);
+            Map<String, String> commandMetadata = null;
+            if (sent != null) {
+                commandMetadata = sent.getMetadata();
+            } else {
+                List<SpaCommand> sc = spaCommandRepository.findByOriginatorIdOrderBySentTimestampDesc(originatorId);
+                commandMetadata = sc.isEmpty() ? null : sc.get(0).getMetadata();
+            }
+            if (commandMetadata != null) {
+                commandMetadata.forEach((k, v) -> {
                     eventEntity.getMetadata().put(k, v);
                 });
             }
@@ -1,15 +1,24 @@
 package com.tritonsvc.messageprocessor.messagehandler;
 
 import com.bwg.iot.model.*;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
 import com.tritonsvc.messageprocessor.mongo.repository.*;
 import com.tritonsvc.messageprocessor.notifications.PushNotificationService;
 import com.tritonsvc.spa.communication.proto.Bwg;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 /**
  * process fault logs from spa systems
@@ -19,7 +28,17 @@ public class FaultLogsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.M
 
     private static final Logger log = LoggerFactory.getLogger(FaultLogsMessageHandler.class);
     private static final String ALERT_NAME_FAULT_LOG = "Fault Log";
-    private final Map<String, FaultLogDescription> cache = new HashMap<>();
+    // serializes the duplicate check and save of fault logs of the same spa
+    private final Striped<Lock> spaLocks = Striped.lock(64);
+    // codes without a description are cached too, so unknown codes don't cost a query each
+    private Cache<String, Optional<FaultLogDescription>> descriptions;
+
+    @Value("${faultLogDescriptionCacheSize:2000}")
+    private int descriptionCacheSize;
+    @Value("${faultLogDescriptionCacheMinutes:60}")
+    private int descriptionCacheMinutes;
+    @Value("${faultLogDescriptionPreload:true}")
+    private boolean descriptionPreload;
 
     @Autowired
     private SpaRepository spaRepository;
@@ -39,6 +58,35 @@ public class FaultLogsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.M
     @Autowired
     private PushNotificationService pushNotificationService;
 
+    @PostConstruct
+    public void init() {
+        descriptions = CacheBuilder.newBuilder()
+                .maximumSize(descriptionCacheSize)
+                .expireAfterWrite(descriptionCacheMinutes, TimeUnit.MINUTES)
+                .build();
+        if (descriptionPreload) {
+            preloadDescriptions();
+        }
+    }
+
+    /**
+     * fill the description cache with known descriptions, the query only reads as many as the cache holds
+     */
+    public void preloadDescriptions() {
+        if (descriptionCacheSize < 1) {
+            return;
+        }
+        try {
+            final List<FaultLogDescription> loaded = faultLogDescriptionRepository.findAll(new PageRequest(0, descriptionCacheSize)).getContent();
+            for (final FaultLogDescription description : loaded) {
+                descriptions.put(description.getControllerType() + description.getCode(), Optional.of(description));
+            }
+            log.info("Preloaded {} fault log descriptions", loaded.size());
+        } catch (final Exception e) {
+            log.error("Unable to preload fault log descriptions, they will be loaded on demand", e);
+        }
+    }
+
     @Override
     public Class<Bwg.Uplink.Model.FaultLogs> handles() {
         return Bwg.Uplink.Model.FaultLogs.class;
@@ -59,36 +107,52 @@ public class FaultLogsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.M
             final String controllerType = spa.getCurrentState() != null && spa.getCurrentState().getControllerType() != null ?
                     spa.getCurrentState().getControllerType() : "NGSC";
 
-            for (final Bwg.Uplink.Model.FaultLog faultLog : faultLogs.getFaultLogsList()) {
-
-                final int code = faultLog.getFaultCode();
-                Date occurDate = new Date(faultLog.getOccurenceDate());
-
-                // check if db contains already entry like this
-                FaultLog faultLogEntity = faultLogRepository.findFirstBySpaIdAndCodeAndTimestamp(spaId, code, occurDate);
-                if (faultLogEntity == null) {
-                    faultLogEntity = createFaultLogEntity(spaId, controllerType, code, spa, faultLog);
-                    faultLogRepository.save(faultLogEntity);
-                    log.info("Saved new fault log with code {} for spa {} and occur date {}", code, spaId, occurDate);
+            final List<FaultLog> saved = new ArrayList<>();
+            final Lock lock = spaLocks.get(spaId);
+            lock.lock();
+            try {
+                // resolve all duplicates with one query, entries repeated within the message count as duplicates too
+                final Set<Date> occurDates = new HashSet<>();
+                for (final Bwg.Uplink.Model.FaultLog faultLog : faultLogs.getFaultLogsList()) {
+                    occurDates.add(new Date(faultLog.getOccurenceDate()));
+                }
+                final Set<String> existing = new HashSet<>();
+                for (final FaultLog faultLogEntity : faultLogRepository.findBySpaIdAndTimestampIn(spaId, occurDates)) {
+                    existing.add(faultLogKey(faultLogEntity.getCode(), faultLogEntity.getTimestamp()));
+                }
 
-                    final Alert alert = mapFaultLogToAlert(spa, faultLogEntity);
-                    pushNotification(spa, alert);
-                } else {
-                    log.info("Skipped fault log with code {} for spa {} and occur date {}, was a duplicate", code, spaId, occurDate);
+                for (final Bwg.Uplink.Model.FaultLog faultLog : faultLogs.getFaultLogsList()) {
+                    final int code = faultLog.getFaultCode();
+                    final Date occurDate = new Date(faultLog.getOccurenceDate());
+                    if (existing.add(faultLogKey(code, occurDate))) {
+                        saved.add(createFaultLogEntity(spaId, controllerType, code, spa, faultLog));
+                    } else {
+                        log.info("Skipped fault log with code {} for spa {} and occur date {}, was a duplicate", code, spaId, occurDate);
+                    }
                 }
+                if (!saved.isEmpty()) {
+                    faultLogRepository.save(saved);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            for (final FaultLog faultLogEntity : saved) {
+                log.info("Saved new fault log with code {} for spa {} and occur date {}", faultLogEntity.getCode(), spaId, faultLogEntity.getTimestamp());
+                final Alert alert = mapFaultLogToAlert(spa, faultLogEntity);
+                pushNotification(spa, alert);
             }
         }
     }
 
+    private static String faultLogKey(final int code, final Date timestamp) {
+        return code + "@" + timestamp.getTime();
+    }
+
     private FaultLog createFaultLogEntity(final String spaId, final String controllerType, final int code,
                                           final Spa spa, final Bwg.Uplink.Model.FaultLog faultLog) {
 
-        final String cacheKey = controllerType + code;
-        FaultLogDescription description = cache.get(cacheKey);
-        if (description == null && !cache.containsKey(cacheKey)) {
-            description = faultLogDescriptionRepository.findFirstByCodeAndControllerType(code, controllerType);
-            cache.put(cacheKey, description);
-        }
+        final FaultLogDescription description = getDescription(controllerType, code);
 
         final FaultLog faultLogEntity = new FaultLog();
         faultLogEntity.setSpaId(spaId);
@@ -108,6 +172,16 @@ public class FaultLogsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.M
         return faultLogEntity;
     }
 
+    private FaultLogDescription getDescription(final String controllerType, final int code) {
+        try {
+            return descriptions.get(controllerType + code,
+                    () -> Optional.ofNullable(faultLogDescriptionRepository.findFirstByCodeAndControllerType(code, controllerType))).orElse(null);
+        } catch (final ExecutionException e) {
+            log.error("Unable to load fault log description for code {} of controller {}", code, controllerType, e);
+            return null;
+        }
+    }
+
     private Alert mapFaultLogToAlert(final Spa spa, final FaultLog faultLog) {
         log.debug("Entering mapFaultLogToAlert");
         if (olderThanThreeDays(faultLog.getTimestamp())) {
@@ -158,6 +232,9 @@ public class FaultLogsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.M
     }
 
     private String getSeverityLevel(final FaultLogSeverity severity) {
+        if (severity == null) {
+            return null;
+        }
         switch (severity) {
             case FATAL:
                 return Alert.SeverityLevelEnum.SEVERE.name();
@@ -3,23 +3,32 @@ package com.tritonsvc.messageprocessor.messagehandler;
 import com.bwg.iot.model.Component.ComponentType;
 import com.bwg.iot.model.MeasurementReading;
 import com.bwg.iot.model.Spa;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.tritonsvc.messageprocessor.mongo.repository.ComponentRepository;
 import com.tritonsvc.messageprocessor.mongo.repository.MeasurementReadingRepository;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
+import com.tritonsvc.messageprocessor.mongo.timeseries.SeriesSample;
+import com.tritonsvc.messageprocessor.mongo.timeseries.TimeSeriesStore;
 import com.tritonsvc.spa.communication.proto.Bwg;
 import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Measurement;
 import com.tritonsvc.spa.communication.proto.BwgHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.collect.Lists.newArrayList;
 import static java.util.stream.Collectors.toMap;
@@ -41,6 +50,19 @@ public class MeasurementsMessageHandler extends AbstractMessageHandler<Bwg.Uplin
     @Autowired
     private MeasurementReadingRepository measurementReadingRepository;
 
+    @Autowired
+    private TimeSeriesStore timeSeriesStore;
+
+    // one document per reading as well as the hourly series buckets, until all readers moved to the buckets
+    @Value("${timeSeriesWriteRawDocuments:true}")
+    private boolean writeRawDocuments;
+
+    // parents are rarely moved between spas, an entry is reloaded now and then to pick up spa ownership changes
+    private final Cache<String, SensorRegistry> sensorRegistries = CacheBuilder.newBuilder()
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .maximumSize(100000)
+            .build();
+
     @Override
     public Class<Bwg.Uplink.Model.Measurements> handles() {
         return Bwg.Uplink.Model.Measurements.class;
@@ -50,50 +72,131 @@ public class MeasurementsMessageHandler extends AbstractMessageHandler<Bwg.Uplin
     public void processMessage(final Bwg.Header header, final Bwg.Uplink.UplinkHeader uplinkHeader, final Bwg.Uplink.Model.Measurements measurements) {
         log.info("Processing measurements from originator {}, with hw id {}", header.getOriginator(), uplinkHeader.getHardwareId());
 
-        final com.bwg.iot.model.Component sensorParent = componentRepository.findOne(uplinkHeader.getHardwareId());
-        if (sensorParent == null) {
-            log.error("Received measurement for sensor parent component id of {} which is not registered yet", uplinkHeader.getHardwareId());
+        final SensorRegistry registry = getSensorRegistry(uplinkHeader.getHardwareId());
+        if (registry == null) {
             return;
         }
+        final Spa spa = registry.spa;
+        final com.bwg.iot.model.Component sensorParent = registry.parent;
+
+        final Map<String, String> sensorIdentifiers = measurements.getMeasurementsList().stream()
+                .filter(Measurement::hasSensorIdentifier)
+                .collect(toMap(Measurement::getSensorIdentifier, measurement -> measurement.getType().name(), (first, second) -> first));
+        final Map<String, com.bwg.iot.model.Component> lookup = resolveSensors(registry, sensorIdentifiers);
+
+        if (measurements.getMeasurementsCount() > 0) {
+            if (writeRawDocuments) {
+                final List<MeasurementReading> readings = new ArrayList<>(measurements.getMeasurementsCount());
+                for (final Bwg.Uplink.Model.Measurement measurement : measurements.getMeasurementsList()) {
+                    com.bwg.iot.model.Component sensor = lookup.get(measurement.getSensorIdentifier());
+                    readings.add(processMeasurement(sensor, spa, measurement, sensorParent));
+                }
+                measurementReadingRepository.save(readings);
+            }
+            recordSeries(spa, sensorParent, lookup, measurements.getMeasurementsList());
+        }
+    }
+
+    @VisibleForTesting
+    void clearSensorRegistries() {
+        sensorRegistries.invalidateAll();
+    }
+
+    private SensorRegistry getSensorRegistry(final String hardwareId) {
+        final SensorRegistry cached = sensorRegistries.getIfPresent(hardwareId);
+        if (cached != null) {
+            return cached;
+        }
+
+        final com.bwg.iot.model.Component sensorParent = componentRepository.findOne(hardwareId);
+        if (sensorParent == null) {
+            log.error("Received measurement for sensor parent component id of {} which is not registered yet", hardwareId);
+            return null;
+        }
 
         final Spa spa = spaRepository.findOne(sensorParent.getSpaId());
         if (spa == null) {
             log.error("Received measurement from component {} with unknown spaId: {}", sensorParent.get_id(), sensorParent.getSpaId());
-            return;
+            return null;
         }
 
-        Map<String,String> sensorIdentifiers = measurements.getMeasurementsList().stream()
-                .filter(Measurement::hasSensorIdentifier)
-                .collect(toMap(Measurement::getSensorIdentifier, measurement -> measurement.getType().name()));
-
-        Map<String, com.bwg.iot.model.Component> lookup =
-                componentRepository.findByParentComponentIdAndComponentTypeAndSerialNumberIn(sensorParent.get_id(), ComponentType.SENSOR.name(), newArrayList(sensorIdentifiers.keySet())).stream()
-                        .collect(toMap(com.bwg.iot.model.Component::getSerialNumber, Function.identity()));
-
-        sensorIdentifiers.keySet().removeAll(lookup.keySet());
-
-        for (Map.Entry<String, String> sensorIdentifier : sensorIdentifiers.entrySet()) {
-            com.bwg.iot.model.Component comp = new com.bwg.iot.model.Component();
-            comp.setSpaId(spa.get_id());
-            comp.setComponentType(ComponentType.SENSOR.name());
-            comp.setSerialNumber(sensorIdentifier.getKey());
-            comp.setDealerId(spa.getDealerId());
-            comp.setOemId(spa.getOemId());
-            comp.setOwnerId(spa.getOwner() != null ? spa.getOwner().get_id() : null);
-            comp.setRegistrationDate(new Date());
-            comp.setParentComponentId(sensorParent.get_id());
-            comp.setName("sensor " + sensorIdentifier.getValue());
-            componentRepository.save(comp);
-            lookup.put(comp.getSerialNumber(), comp);
+        final SensorRegistry registry = new SensorRegistry(sensorParent, spa);
+        for (final com.bwg.iot.model.Component sensor : componentRepository.findByParentComponentIdAndComponentType(sensorParent.get_id(), ComponentType.SENSOR.name())) {
+            registry.sensors.put(sensor.getSerialNumber(), sensor);
         }
+        sensorRegistries.put(hardwareId, registry);
+        return registry;
+    }
 
-        if (measurements.getMeasurementsCount() > 0) {
-            final List<MeasurementReading> readings = new ArrayList<>(measurements.getMeasurementsCount());
-            for (final Bwg.Uplink.Model.Measurement measurement : measurements.getMeasurementsList()) {
-                com.bwg.iot.model.Component sensor = lookup.get(measurement.getSensorIdentifier());
-                readings.add(processMeasurement(sensor, spa, measurement, sensorParent));
+    /**
+     * @return sensors by serial number, the ones not registered yet get created
+     */
+    private Map<String, com.bwg.iot.model.Component> resolveSensors(final SensorRegistry registry, final Map<String, String> sensorIdentifiers) {
+        if (registry.sensors.keySet().containsAll(sensorIdentifiers.keySet())) {
+            return registry.sensors;
+        }
+
+        synchronized (registry) {
+            final Map<String, String> missing = new HashMap<>(sensorIdentifiers);
+            missing.keySet().removeAll(registry.sensors.keySet());
+            if (missing.isEmpty()) {
+                return registry.sensors;
+            }
+
+            // another processor may have created them since the registry was loaded
+            for (final com.bwg.iot.model.Component sensor : componentRepository.findByParentComponentIdAndComponentTypeAndSerialNumberIn(
+                    registry.parent.get_id(), ComponentType.SENSOR.name(), newArrayList(missing.keySet()))) {
+                registry.sensors.put(sensor.getSerialNumber(), sensor);
+                missing.remove(sensor.getSerialNumber());
+            }
+
+            final Spa spa = registry.spa;
+            for (final Map.Entry<String, String> sensorIdentifier : missing.entrySet()) {
+                com.bwg.iot.model.Component comp = new com.bwg.iot.model.Component();
+                comp.setSpaId(spa.get_id());
+                comp.setComponentType(ComponentType.SENSOR.name());
+                comp.setSerialNumber(sensorIdentifier.getKey());
+                comp.setDealerId(spa.getDealerId());
+                comp.setOemId(spa.getOemId());
+                comp.setOwnerId(spa.getOwner() != null ? spa.getOwner().get_id() : null);
+                comp.setRegistrationDate(new Date());
+                comp.setParentComponentId(registry.parent.get_id());
+                comp.setName("sensor " + sensorIdentifier.getValue());
+                componentRepository.save(comp);
+                registry.sensors.put(comp.getSerialNumber(), comp);
             }
-            measurementReadingRepository.save(readings);
+        }
+        return registry.sensors;
+    }
+
+    /**
+     * append the valid readings to the hourly buckets of their sensors
+     */
+    private void recordSeries(final Spa spa, final com.bwg.iot.model.Component parent, final Map<String, com.bwg.iot.model.Component> lookup, final List<Measurement> measurements) {
+        final Map<String, List<SeriesSample>> samples = new LinkedHashMap<>();
+        final Map<String, Measurement> firstMeasurements = new HashMap<>();
+        for (final Measurement measurement : measurements) {
+            final com.bwg.iot.model.Component sensor = lookup.get(measurement.getSensorIdentifier());
+            if (sensor == null || !measurement.hasValue() || !measurement.hasTimestamp() ||
+                    (measurement.hasQuality() && measurement.getQuality() != Measurement.QualityType.VALID)) {
+                continue;
+            }
+            samples.computeIfAbsent(sensor.get_id(), id -> new ArrayList<>()).add(new SeriesSample(measurement.getTimestamp(), measurement.getValue()));
+            firstMeasurements.putIfAbsent(sensor.get_id(), measurement);
+        }
+
+        for (final Map.Entry<String, List<SeriesSample>> series : samples.entrySet()) {
+            final Measurement measurement = firstMeasurements.get(series.getKey());
+            final Map<String, Object> attributes = new HashMap<>();
+            attributes.put("spaId", spa.get_id());
+            attributes.put("ownerId", spa.getOwner() != null ? spa.getOwner().get_id() : null);
+            attributes.put("dealerId", spa.getDealerId());
+            attributes.put("oemId", spa.getOemId());
+            attributes.put("moteId", Objects.equals(parent.getComponentType(), ComponentType.MOTE.name()) ? parent.get_id() : null);
+            attributes.put("sensorId", series.getKey());
+            attributes.put("type", measurement.hasType() ? measurement.getType().name() : null);
+            attributes.put("unitOfMeasure", measurement.hasUom() ? measurement.getUom() : null);
+            timeSeriesStore.record(TimeSeriesStore.MEASUREMENT_SERIES, series.getKey(), attributes, series.getValue());
         }
     }
 
@@ -126,4 +229,18 @@ public class MeasurementsMessageHandler extends AbstractMessageHandler<Bwg.Uplin
 
         return reading;
     }
+
+    /**
+     * a sensor parent (gateway or mote) with its spa and all its sensors keyed by serial number
+     */
+    private static final class SensorRegistry {
+        private final com.bwg.iot.model.Component parent;
+        private final Spa spa;
+        private final Map<String, com.bwg.iot.model.Component> sensors = new ConcurrentHashMap<>();
+
+        private SensorRegistry(final com.bwg.iot.model.Component parent, final Spa spa) {
+            this.parent = parent;
+            this.spa = spa;
+        }
+    }
 }
@@ -6,15 +6,21 @@ import com.bwg.iot.model.WifiConnectionHealth;
 import com.bwg.iot.model.WifiStat;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
 import com.tritonsvc.messageprocessor.mongo.repository.WifiStatRepository;
+import com.tritonsvc.messageprocessor.mongo.timeseries.SeriesSample;
+import com.tritonsvc.messageprocessor.mongo.timeseries.TimeSeriesStore;
 import com.tritonsvc.spa.communication.proto.Bwg;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * process wifi stats from spa systems
@@ -30,6 +36,13 @@ public class WifiStatsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.M
     @Autowired
     private WifiStatRepository wifiStatRepository;
 
+    @Autowired
+    private TimeSeriesStore timeSeriesStore;
+
+    // one document per stat as well as the hourly series buckets, until all readers moved to the buckets
+    @Value("${timeSeriesWriteRawDocuments:true}")
+    private boolean writeRawDocuments;
+
     @Override
     public Class<Bwg.Uplink.Model.WifiStats> handles() {
         return Bwg.Uplink.Model.WifiStats.class;
@@ -47,12 +60,57 @@ public class WifiStatsMessageHandler extends AbstractMessageHandler<Bwg.Uplink.M
         }
 
         if (wifiStats.getWifiStatsCount() > 0) {
-            final List<WifiStat> statsEntities = new ArrayList<>(wifiStats.getWifiStatsCount());
-            for (final Bwg.Uplink.Model.WifiStat wifiStat : wifiStats.getWifiStatsList()) {
-                statsEntities.add(processWifiStat(spa, wifiStat));
+            if (writeRawDocuments) {
+                final List<WifiStat> statsEntities = new ArrayList<>(wifiStats.getWifiStatsCount());
+                for (final Bwg.Uplink.Model.WifiStat wifiStat : wifiStats.getWifiStatsList()) {
+                    statsEntities.add(processWifiStat(spa, wifiStat));
+                }
+                wifiStatRepository.save(statsEntities);
+            }
+            recordSeries(spa, wifiStats.getWifiStatsList());
+        }
+    }
+
+    /**
+     * append the numeric wifi metrics to the hourly buckets of the spa, one series per metric
+     */
+    private void recordSeries(final Spa spa, final List<Bwg.Uplink.Model.WifiStat> wifiStats) {
+        final Map<String, List<SeriesSample>> samples = new LinkedHashMap<>();
+        for (final Bwg.Uplink.Model.WifiStat wifiStat : wifiStats) {
+            final long timestamp = wifiStat.getRecordedDate();
+            if (wifiStat.hasTxPowerDbm()) {
+                addSample(samples, "txPowerDbm", timestamp, wifiStat.getTxPowerDbm());
+            }
+            if (wifiStat.hasConnectedDiag()) {
+                final Bwg.Uplink.Model.WifiStat.WifiConnectionDiagnostics diag = wifiStat.getConnectedDiag();
+                if (diag.hasLinkQualityPercentage()) {
+                    addSample(samples, "linkQualityPercentage", timestamp, diag.getLinkQualityPercentage());
+                }
+                if (diag.hasSignalLevelUnits()) {
+                    addSample(samples, "signalLevelUnits", timestamp, diag.getSignalLevelUnits());
+                }
+                if (diag.hasNoiseLevel()) {
+                    addSample(samples, "noiseLevel", timestamp, diag.getNoiseLevel());
+                }
+                if (diag.hasDataRate()) {
+                    addSample(samples, "dataRate", timestamp, diag.getDataRate());
+                }
             }
-            wifiStatRepository.save(statsEntities);
         }
+
+        for (final Map.Entry<String, List<SeriesSample>> series : samples.entrySet()) {
+            final Map<String, Object> attributes = new HashMap<>();
+            attributes.put("spaId", spa.get_id());
+            attributes.put("ownerId", spa.getOwner() != null ? spa.getOwner().get_id() : null);
+            attributes.put("dealerId", spa.getDealerId());
+            attributes.put("oemId", spa.getOemId());
+            attributes.put("metric", series.getKey());
+            timeSeriesStore.record(TimeSeriesStore.WIFI_STAT_SERIES, TimeSeriesStore.wifiSeriesId(spa.get_id(), series.getKey()), attributes, series.getValue());
+        }
+    }
+
+    private static void addSample(final Map<String, List<SeriesSample>> samples, final String metric, final long timestamp, final double value) {
+        samples.computeIfAbsent(metric, key -> new ArrayList<>()).add(new SeriesSample(timestamp, value));
     }
 
     private WifiStat processWifiStat(final Spa spa, final Bwg.Uplink.Model.WifiStat wifiStat) {
@@ -7,6 +7,7 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RestResource;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -14,8 +15,10 @@ import java.util.List;
  */
 public interface ComponentRepository extends MongoRepository<Component, String> {
     Page<Component> findBySpaIdAndComponentType(@Param("spaId") String spaId, @Param("componentType") String type, Pageable p);
+    List<Component> findBySpaIdInAndComponentType(@Param("spaIds") Collection<String> spaIds, @Param("componentType") String type);
     Component findOneBySpaIdAndComponentTypeAndSerialNumber(@Param("spaId") String spaId, @Param("componentType") String type, @Param("serialNumber") String serialNumber);
     Page<Component> findByComponentTypeAndSerialNumber(@Param("componentType") String type, @Param("serialNumber") String serialNumber, Pageable p);
+    List<Component> findByParentComponentIdAndComponentType(@Param("parentComponentId") String parentComponentId, @Param("componentType") String componentType);
     List<Component> findByParentComponentIdAndComponentTypeAndSerialNumberIn(@Param("parentComponentId") String parentComponentId,  @Param("componentType") String componentType, @Param("serialNumbers") List<String> serialNumbers);
     Component findOneBySpaIdAndComponentTypeAndPort(@Param("spaId") String spaId, @Param("componentType") String type, @Param("port") String port);
 }
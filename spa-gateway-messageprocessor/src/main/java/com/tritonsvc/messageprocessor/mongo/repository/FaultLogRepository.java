@@ -3,7 +3,9 @@ package com.tritonsvc.messageprocessor.mongo.repository;
 import com.bwg.iot.model.FaultLog;
 import org.springframework.data.mongodb.repository.MongoRepository;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Created by holow on 5/8/2016.
@@ -12,4 +14,6 @@ public interface FaultLogRepository extends MongoRepository<FaultLog, String> {
 
     FaultLog findFirstBySpaIdAndCodeAndTimestamp(String spaId, int code, Date timestamp);
 
+    List<FaultLog> findBySpaIdAndTimestampIn(String spaId, Collection<Date> timestamps);
+
 }
@@ -0,0 +1,49 @@
+package com.tritonsvc.messageprocessor.mongo.timeseries;
+
+import java.util.Date;
+
+/**
+ * aggregate of the samples of a time series that fall in one window of a downsampled read
+ */
+public final class SeriesPoint {
+
+    private final Date start;
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    SeriesPoint(final Date start) {
+        this.start = start;
+    }
+
+    void add(final long count, final double sum, final double min, final double max) {
+        this.count += count;
+        this.sum += sum;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+    }
+
+    /**
+     * @return start of the window
+     */
+    public Date getStart() {
+        return start;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getAvg() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+}
@@ -0,0 +1,23 @@
+package com.tritonsvc.messageprocessor.mongo.timeseries;
+
+/**
+ * a single reading of a time series
+ */
+public final class SeriesSample {
+
+    private final long timestamp;
+    private final double value;
+
+    public SeriesSample(final long timestamp, final double value) {
+        this.timestamp = timestamp;
+        this.value = value;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public double getValue() {
+        return value;
+    }
+}
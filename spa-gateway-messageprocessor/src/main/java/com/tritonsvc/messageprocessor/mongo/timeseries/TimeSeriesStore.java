@@ -0,0 +1,189 @@
+package com.tritonsvc.messageprocessor.mongo.timeseries;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores time series in hourly buckets, one document per series and hour holding the samples of that hour along with
+ * their count, sum, min and max. Samples are appended with upserts, so a series costs one document and one index entry
+ * per hour instead of one per reading, and coarse reads are answered from the bucket aggregates alone.
+ */
+@Component
+public class TimeSeriesStore {
+
+    private static final Logger log = LoggerFactory.getLogger(TimeSeriesStore.class);
+
+    public static final String MEASUREMENT_SERIES = "measurementSeries";
+    public static final String WIFI_STAT_SERIES = "wifiStatSeries";
+    public static final long BUCKET_MILLISECONDS = TimeUnit.HOURS.toMillis(1);
+
+    @Autowired
+    private MongoOperations mongoOps;
+
+    @PostConstruct
+    public void init() {
+        ensureIndexes(MEASUREMENT_SERIES);
+        ensureIndexes(WIFI_STAT_SERIES);
+    }
+
+    /**
+     * @param collection
+     */
+    public void ensureIndexes(final String collection) {
+        mongoOps.indexOps(collection).ensureIndex(new Index().on("seriesId", Sort.Direction.ASC).on("start", Sort.Direction.ASC));
+    }
+
+    /**
+     * append samples to a series, one upsert per hour the samples fall in
+     *
+     * @param collection
+     * @param seriesId
+     * @param attributes stored on the bucket when it gets created, null values are left out
+     * @param samples
+     * @return number of buckets written
+     */
+    public int record(final String collection, final String seriesId, final Map<String, Object> attributes, final Collection<SeriesSample> samples) {
+        final Map<Long, List<SeriesSample>> buckets = new TreeMap<>();
+        for (final SeriesSample sample : samples) {
+            buckets.computeIfAbsent(bucketStart(sample.getTimestamp()), start -> new ArrayList<>()).add(sample);
+        }
+
+        final DBCollection dbCollection = mongoOps.getCollection(collection);
+        for (final Map.Entry<Long, List<SeriesSample>> bucket : buckets.entrySet()) {
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            final BasicDBList pushed = new BasicDBList();
+            for (final SeriesSample sample : bucket.getValue()) {
+                sum += sample.getValue();
+                min = Math.min(min, sample.getValue());
+                max = Math.max(max, sample.getValue());
+                pushed.add(new BasicDBObject("t", new Date(sample.getTimestamp())).append("v", sample.getValue()));
+            }
+
+            final BasicDBObject onInsert = new BasicDBObject("seriesId", seriesId).append("start", new Date(bucket.getKey()));
+            if (attributes != null) {
+                for (final Map.Entry<String, Object> attribute : attributes.entrySet()) {
+                    if (attribute.getValue() != null) {
+                        onInsert.append(attribute.getKey(), attribute.getValue());
+                    }
+                }
+            }
+
+            final BasicDBObject update = new BasicDBObject("$setOnInsert", onInsert)
+                    .append("$inc", new BasicDBObject("count", bucket.getValue().size()).append("sum", sum))
+                    .append("$min", new BasicDBObject("min", min))
+                    .append("$max", new BasicDBObject("max", max))
+                    .append("$push", new BasicDBObject("samples", new BasicDBObject("$each", pushed)));
+            dbCollection.update(new BasicDBObject("_id", bucketId(seriesId, bucket.getKey())), update, true, false);
+        }
+        log.debug("recorded {} samples of series {} in {} buckets", samples.size(), seriesId, buckets.size());
+        return buckets.size();
+    }
+
+    /**
+     * read a series downsampled to windows of the given resolution, empty windows are left out. A resolution of whole
+     * hours is served from the bucket aggregates without loading samples, in which case from and to are widened to
+     * whole hours.
+     *
+     * @param collection
+     * @param seriesId
+     * @param from inclusive
+     * @param to exclusive
+     * @param resolutionMilliseconds window length
+     * @return windows in ascending order
+     */
+    public List<SeriesPoint> read(final String collection, final String seriesId, final Date from, final Date to, final long resolutionMilliseconds) {
+        if (resolutionMilliseconds <= 0) {
+            throw new IllegalArgumentException("resolution must be positive, was " + resolutionMilliseconds);
+        }
+        final boolean fromAggregates = resolutionMilliseconds % BUCKET_MILLISECONDS == 0;
+        final DBObject query = new BasicDBObject("seriesId", seriesId)
+                .append("start", new BasicDBObject("$gte", new Date(bucketStart(from.getTime()))).append("$lt", to));
+        final DBObject fields = fromAggregates ? new BasicDBObject("samples", 0) : new BasicDBObject("samples", 1);
+
+        final TreeMap<Long, SeriesPoint> points = new TreeMap<>();
+        try (final DBCursor cursor = mongoOps.getCollection(collection).find(query, fields).sort(new BasicDBObject("start", 1))) {
+            for (final DBObject bucket : cursor) {
+                if (fromAggregates) {
+                    final long start = ((Date) bucket.get("start")).getTime();
+                    point(points, start, resolutionMilliseconds).add(((Number) bucket.get("count")).longValue(),
+                            ((Number) bucket.get("sum")).doubleValue(), ((Number) bucket.get("min")).doubleValue(), ((Number) bucket.get("max")).doubleValue());
+                    continue;
+                }
+                final List<?> samples = (List<?>) bucket.get("samples");
+                if (samples == null) {
+                    continue;
+                }
+                for (final Object entry : samples) {
+                    final DBObject sample = (DBObject) entry;
+                    final long timestamp = ((Date) sample.get("t")).getTime();
+                    if (timestamp < from.getTime() || timestamp >= to.getTime()) {
+                        continue;
+                    }
+                    final double value = ((Number) sample.get("v")).doubleValue();
+                    point(points, timestamp, resolutionMilliseconds).add(1, value, value, value);
+                }
+            }
+        }
+        return new ArrayList<>(points.values());
+    }
+
+    /**
+     * @param seriesId
+     * @param from inclusive
+     * @param to exclusive
+     * @param resolutionMilliseconds
+     * @return downsampled readings of a sensor
+     */
+    public List<SeriesPoint> readMeasurements(final String seriesId, final Date from, final Date to, final long resolutionMilliseconds) {
+        return read(MEASUREMENT_SERIES, seriesId, from, to, resolutionMilliseconds);
+    }
+
+    /**
+     * @param spaId
+     * @param metric one of the wifi metrics recorded by the wifi stats handler, e.g. signalLevelUnits
+     * @param from inclusive
+     * @param to exclusive
+     * @param resolutionMilliseconds
+     * @return downsampled wifi stat of a spa
+     */
+    public List<SeriesPoint> readWifiStats(final String spaId, final String metric, final Date from, final Date to, final long resolutionMilliseconds) {
+        return read(WIFI_STAT_SERIES, wifiSeriesId(spaId, metric), from, to, resolutionMilliseconds);
+    }
+
+    public static String wifiSeriesId(final String spaId, final String metric) {
+        return spaId + "/" + metric;
+    }
+
+    private static SeriesPoint point(final TreeMap<Long, SeriesPoint> points, final long timestamp, final long resolutionMilliseconds) {
+        return points.computeIfAbsent(Math.floorDiv(timestamp, resolutionMilliseconds) * resolutionMilliseconds, start -> new SeriesPoint(new Date(start)));
+    }
+
+    private static long bucketStart(final long timestamp) {
+        return Math.floorDiv(timestamp, BUCKET_MILLISECONDS) * BUCKET_MILLISECONDS;
+    }
+
+    private static String bucketId(final String seriesId, final long start) {
+        return seriesId + "@" + start;
+    }
+}
@@ -0,0 +1,62 @@
+package com.tritonsvc.messageprocessor.mqtt;
+
+import com.bwg.iot.model.Spa;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * spa documents prefetched for one batch of commands, and the target states set by its sent commands
+ */
+public final class DownlinkBatch {
+
+    private final Map<String, Spa> spas;
+    private final Map<String, String> targetDesiredTemps = new ConcurrentHashMap<>();
+    private final Queue<ComponentTarget> componentTargets = new ConcurrentLinkedQueue<>();
+
+    DownlinkBatch(final Map<String, Spa> spas) {
+        this.spas = spas;
+    }
+
+    /**
+     * the prefetched spas are read only, uplink handlers keep writing the stored ones while the batch is sent
+     *
+     * @param spaId
+     * @return Spa
+     */
+    public Spa getSpa(final String spaId) {
+        return spaId != null ? spas.get(spaId) : null;
+    }
+
+    void setTargetDesiredTemp(final String spaId, final String desiredTemp) {
+        targetDesiredTemps.put(spaId, desiredTemp);
+    }
+
+    void setComponentTargetState(final String spaId, final String componentType, final String port, final String targetValue) {
+        componentTargets.add(new ComponentTarget(spaId, componentType, port, targetValue));
+    }
+
+    Map<String, String> getTargetDesiredTemps() {
+        return targetDesiredTemps;
+    }
+
+    Queue<ComponentTarget> getComponentTargets() {
+        return componentTargets;
+    }
+
+    static final class ComponentTarget {
+        final String spaId;
+        final String componentType;
+        final String port;
+        final String targetValue;
+
+        ComponentTarget(final String spaId, final String componentType, final String port, final String targetValue) {
+            this.spaId = spaId;
+            this.componentType = componentType;
+            this.port = port;
+            this.targetValue = targetValue;
+        }
+    }
+}
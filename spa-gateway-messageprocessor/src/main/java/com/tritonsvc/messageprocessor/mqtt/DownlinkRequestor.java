@@ -4,9 +4,10 @@ import com.bwg.iot.model.Component.ComponentType;
 import com.bwg.iot.model.ComponentState;
 import com.bwg.iot.model.Spa;
 import com.bwg.iot.model.SpaCommand;
-import com.bwg.iot.model.SpaState;
 import com.bwg.iot.model.util.SpaRequestUtil;
-import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.WriteResult;
 import com.tritonsvc.messageprocessor.MessageProcessorConfiguration;
 import com.tritonsvc.messageprocessor.mongo.repository.ComponentRepository;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
@@ -19,10 +20,20 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
-import java.io.IOException;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toSet;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 /**
  * Created by holow on 3/8/2016.
@@ -31,6 +42,7 @@ import java.util.Collection;
 public final class DownlinkRequestor {
 
     private static final Logger log = LoggerFactory.getLogger(DownlinkRequestor.class);
+    private static final CompletableFuture<Boolean> NOT_SENT = CompletableFuture.completedFuture(false);
 
     @Autowired
     private SpaRepository spaRepository;
@@ -44,10 +56,81 @@ public final class DownlinkRequestor {
     @Autowired
     private MessageProcessorConfiguration messageProcessorConfiguration;
 
-    public boolean sendHeaterUpdateCommand(final SpaCommand command) {
-        boolean sent = false;
+    @Autowired
+    private SpaCommandIndex spaCommandIndex;
+
+    @Autowired
+    private MongoOperations mongoOps;
+
+    // gateways are rarely moved between spas, an entry only lives long enough to cover bursts of commands
+    private final Cache<String, String> gatewaySerialNumbers = CacheBuilder.newBuilder()
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .maximumSize(100000)
+            .build();
+
+    /**
+     * load the spas of a batch of commands and the serial numbers of their gateways up front, one query each
+     * instead of several round trips per command
+     *
+     * @param commands
+     * @return DownlinkBatch
+     */
+    public DownlinkBatch prefetch(final Collection<SpaCommand> commands) {
+        final Set<String> spaIds = commands.stream()
+                .filter(command -> command != null)
+                .map(SpaCommand::getSpaId)
+                .filter(spaId -> spaId != null)
+                .collect(toSet());
+        final Map<String, Spa> spas = new HashMap<>();
+        if (!spaIds.isEmpty()) {
+            for (final Spa spa : spaRepository.findAll(spaIds)) {
+                spas.put(spa.get_id(), spa);
+            }
+            final Set<String> unknownGateways = spaIds.stream()
+                    .filter(spaId -> gatewaySerialNumbers.getIfPresent(spaId) == null)
+                    .collect(toSet());
+            if (!unknownGateways.isEmpty()) {
+                for (final com.bwg.iot.model.Component gateway : componentRepository.findBySpaIdInAndComponentType(unknownGateways, ComponentType.GATEWAY.name())) {
+                    if (gateway.getSpaId() != null && gateway.getSerialNumber() != null) {
+                        gatewaySerialNumbers.put(gateway.getSpaId(), gateway.getSerialNumber());
+                    }
+                }
+            }
+        }
+        return new DownlinkBatch(spas);
+    }
+
+    /**
+     * write the target states set by sent commands of the batch, only those fields are updated since uplinks may
+     * have changed the rest of the spa's current state while the batch was sent
+     *
+     * @param batch
+     */
+    public void saveTargetStates(final DownlinkBatch batch) {
+        for (final Map.Entry<String, String> entry : batch.getTargetDesiredTemps().entrySet()) {
+            mongoOps.updateFirst(query(where("_id").is(entry.getKey())),
+                    new Update().set("currentState.targetDesiredTemp", entry.getValue()), Spa.class);
+        }
+        for (final DownlinkBatch.ComponentTarget target : batch.getComponentTargets()) {
+            final WriteResult result = mongoOps.updateFirst(
+                    query(where("_id").is(target.spaId).and("currentState.components")
+                            .elemMatch(where("componentType").is(target.componentType).and("port").is(target.port))),
+                    new Update().set("currentState.components.$.targetValue", target.targetValue), Spa.class);
+            if (result.getN() < 1) {
+                final ComponentState state = new ComponentState();
+                state.setTargetValue(target.targetValue);
+                state.setComponentType(target.componentType);
+                state.setPort(target.port);
+                mongoOps.updateFirst(query(where("_id").is(target.spaId)),
+                        new Update().push("currentState.components", state), Spa.class);
+            }
+        }
+    }
+
+    public CompletableFuture<Boolean> sendHeaterUpdateCommand(final SpaCommand command, final DownlinkBatch batch) {
+        CompletableFuture<Boolean> sent = NOT_SENT;
 
-        final Spa spa = spaRepository.findOne(command.getSpaId());
+        final Spa spa = batch.getSpa(command.getSpaId());
         final Bwg.Downlink.Model.RequestType requestType = BwgHelper.getRequestTypeByCode(command.getRequestTypeId());
 
         if (spa == null) {
@@ -61,23 +144,21 @@ public final class DownlinkRequestor {
             if (!NumberHelper.isInt(desiredTemp)) {
                 log.error("Desired temp passed with command is invalid {}", desiredTemp);
             } else {
-                sent = sendDownlinkMessage(spa, command, requestType);
-                if (sent) {
-                    if (spa.getCurrentState() == null) {
-                        spa.setCurrentState(new SpaState());
+                sent = sendDownlinkMessage(spa, command, requestType).thenApply(published -> {
+                    if (published) {
+                        batch.setTargetDesiredTemp(spa.get_id(), desiredTemp);
                     }
-                    spa.getCurrentState().setTargetDesiredTemp(desiredTemp);
-                    spaRepository.save(spa);
-                }
+                    return published;
+                });
             }
         }
         return sent;
     }
 
-    public boolean sendFilterUpdateCommand(final SpaCommand command) {
-        boolean sent = false;
+    public CompletableFuture<Boolean> sendFilterUpdateCommand(final SpaCommand command, final DownlinkBatch batch) {
+        CompletableFuture<Boolean> sent = NOT_SENT;
 
-        final Spa spa = spaRepository.findOne(command.getSpaId());
+        final Spa spa = batch.getSpa(command.getSpaId());
         final Bwg.Downlink.Model.RequestType requestType = BwgHelper.getRequestTypeByCode(command.getRequestTypeId());
 
         if (spa == null) {
@@ -107,10 +188,10 @@ public final class DownlinkRequestor {
         return sent;
     }
 
-    public boolean sendPlainCommand(final SpaCommand command) {
-        boolean sent = false;
+    public CompletableFuture<Boolean> sendPlainCommand(final SpaCommand command, final DownlinkBatch batch) {
+        CompletableFuture<Boolean> sent = NOT_SENT;
 
-        final Spa spa = spaRepository.findOne(command.getSpaId());
+        final Spa spa = batch.getSpa(command.getSpaId());
         final Bwg.Downlink.Model.RequestType requestType = BwgHelper.getRequestTypeByCode(command.getRequestTypeId());
 
         if (spa == null) {
@@ -125,10 +206,10 @@ public final class DownlinkRequestor {
         return sent;
     }
 
-    public boolean sendPeripheralStateUpdateCommand(final SpaCommand command) {
-        boolean sent = false;
+    public CompletableFuture<Boolean> sendPeripheralStateUpdateCommand(final SpaCommand command, final DownlinkBatch batch) {
+        CompletableFuture<Boolean> sent = NOT_SENT;
 
-        final Spa spa = spaRepository.findOne(command.getSpaId());
+        final Spa spa = batch.getSpa(command.getSpaId());
         final Bwg.Downlink.Model.RequestType requestType = BwgHelper.getRequestTypeByCode(command.getRequestTypeId());
 
         if (spa == null) {
@@ -149,26 +230,22 @@ public final class DownlinkRequestor {
             } else if (!SpaRequestUtil.validState(command.getRequestTypeId(), desiredState)) {
                 log.error("Desired state passed with command is invalid {} for request {}", desiredState, requestType);
             } else {
-                sent = sendDownlinkMessage(spa, command, requestType);
-                if (sent) {
-                    if (spa.getCurrentState() == null) {
-                        spa.setCurrentState(new SpaState());
-                    }
+                sent = sendDownlinkMessage(spa, command, requestType).thenApply(published -> {
                     com.bwg.iot.model.Component.ComponentType componentType = getComponentForRequestId(command.getRequestTypeId());
-                    if (componentType != null) {
-                        setComponentTargetState(componentType, port, desiredState, spa.getCurrentState().getComponents());
-                        spaRepository.save(spa);
+                    if (published && componentType != null) {
+                        batch.setComponentTargetState(spa.get_id(), componentType.name(), port, desiredState);
                     }
-                }
+                    return published;
+                });
             }
         }
         return sent;
     }
 
-    public boolean sendUpdateAgentSettingsCommand(final SpaCommand command) {
-        boolean sent = false;
+    public CompletableFuture<Boolean> sendUpdateAgentSettingsCommand(final SpaCommand command, final DownlinkBatch batch) {
+        CompletableFuture<Boolean> sent = NOT_SENT;
 
-        final Spa spa = spaRepository.findOne(command.getSpaId());
+        final Spa spa = batch.getSpa(command.getSpaId());
         final Bwg.Downlink.Model.RequestType requestType = BwgHelper.getRequestTypeByCode(command.getRequestTypeId());
 
         if (spa == null) {
@@ -180,25 +257,23 @@ public final class DownlinkRequestor {
 
             final String intervalSeconds = command.getValues().get(Bwg.Downlink.Model.SpaCommandAttribName.INTERVAL_SECONDS.name());
             final String durationMinutes = command.getValues().get(Bwg.Downlink.Model.SpaCommandAttribName.DURATION_MINUTES.name());
+            final String reportingMode = command.getValues().get(Bwg.Downlink.Model.SpaCommandAttribName.REPORTING_MODE.name());
             if (intervalSeconds != null && !NumberUtils.isNumber(intervalSeconds)) {
                 log.error("Interval seconds passed with command is invalid {}", intervalSeconds);
             } else if (durationMinutes != null && !NumberUtils.isNumber(durationMinutes)) {
                 log.error("Duration minutes passed with command is invalid {}", durationMinutes);
-            } else if ((intervalSeconds != null && durationMinutes == null) || (intervalSeconds == null && durationMinutes != null)) {
+            } else if (reportingMode != null && !"LIVE".equals(reportingMode) && !"HEARTBEAT".equals(reportingMode)) {
+                log.error("Reporting mode passed with command is invalid {}", reportingMode);
+            } else if ((intervalSeconds != null && durationMinutes == null) || (intervalSeconds == null && durationMinutes != null && reportingMode == null)) {
                 log.error("Duration and interval are required together");
             } else {
                 sent = sendDownlinkMessage(spa, command, requestType);
-                if (sent) {
-                    if (spa.getCurrentState() == null) {
-                        spa.setCurrentState(new SpaState());
-                    }
-                }
             }
         }
         return sent;
     }
 
-    private boolean sendDownlinkMessage(final Spa spa, final SpaCommand command, Bwg.Downlink.Model.RequestType requestType) {
+    private CompletableFuture<Boolean> sendDownlinkMessage(final Spa spa, final SpaCommand command, Bwg.Downlink.Model.RequestType requestType) {
         try {
             final Bwg.Downlink.Model.Request request = BwgHelper.buildRequest(requestType, command.getValues());
             final byte[] messageData = BwgHelper.buildDownlinkMessage(command.getOriginatorId(), command.getSpaId(), Bwg.Downlink.DownlinkCommandType.REQUEST, request);
@@ -206,19 +281,27 @@ public final class DownlinkRequestor {
                 final String serialNumber = getGatewaySerialNumber(spa.get_id());
                 if (serialNumber == null) {
                     log.error("Error, not gateway serial number is available for spa with db id {}", spa.get_id());
-                    return false;
+                    return NOT_SENT;
                 }
                 final String downlinkTopic = messageProcessorConfiguration.getDownlinkTopicName(serialNumber);
                 log.info("Sending downlink message to topic {}", downlinkTopic);
-                mqttSendService.sendMessage(downlinkTopic, messageData);
-                return true;
+                // indexed before publishing, the gateway's ack can arrive before the broker acknowledged the publish
+                spaCommandIndex.put(command);
+                return mqttSendService.sendMessageAsync(downlinkTopic, messageData).handle((ignored, failure) -> {
+                    if (failure != null) {
+                        log.error("Error while sending downlink message to topic {}", downlinkTopic, failure);
+                        spaCommandIndex.remove(command);
+                        return false;
+                    }
+                    return true;
+                });
             } else {
                 log.error("Message data is empty - not sending anything");
-                return false;
+                return NOT_SENT;
             }
         } catch (final Exception e) {
             log.error("Error while sending downlink message", e);
-            return false;
+            return NOT_SENT;
         }
     }
 
@@ -246,24 +329,18 @@ public final class DownlinkRequestor {
     }
 
     private String getGatewaySerialNumber(String spaId) {
+        final String cached = gatewaySerialNumbers.getIfPresent(spaId);
+        if (cached != null) {
+            return cached;
+        }
         Page<com.bwg.iot.model.Component> results = componentRepository.findBySpaIdAndComponentType(spaId, ComponentType.GATEWAY.name(), new PageRequest(0, 1));
         if (results.getTotalElements() < 1) {
             return null;
         }
-        return results.getContent().get(0).getSerialNumber();
-    }
-
-    private void setComponentTargetState(com.bwg.iot.model.Component.ComponentType type, String port, String targetValue, Collection<ComponentState> componentStates) {
-        for (ComponentState comp : componentStates) {
-            if (Objects.equal(comp.getComponentType(), type.name()) && Objects.equal(comp.getPort(), port)) {
-                comp.setTargetValue(targetValue);
-                return;
-            }
+        final String serialNumber = results.getContent().get(0).getSerialNumber();
+        if (serialNumber != null) {
+            gatewaySerialNumbers.put(spaId, serialNumber);
         }
-        ComponentState state = new ComponentState();
-        state.setTargetValue(targetValue);
-        state.setComponentType(type.name());
-        state.setPort(port);
-        componentStates.add(state);
+        return serialNumber;
     }
 }
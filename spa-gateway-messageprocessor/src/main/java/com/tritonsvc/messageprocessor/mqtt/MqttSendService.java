@@ -1,9 +1,10 @@
 package com.tritonsvc.messageprocessor.mqtt;
 
+import com.google.common.base.Splitter;
 import com.google.common.base.Throwables;
 import com.tritonsvc.messageprocessor.MessageProcessorConfiguration;
 import com.tritonsvc.messageprocessor.PkiInfo;
-import org.fusesource.mqtt.client.BlockingConnection;
+import org.fusesource.mqtt.client.Callback;
 import org.fusesource.mqtt.client.FutureConnection;
 import org.fusesource.mqtt.client.MQTT;
 import org.fusesource.mqtt.client.QoS;
@@ -14,9 +15,21 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Mqtt service class. Responsible for sending and receiving messages from mqtt.
+ *
+ * Publishes go out over a small pool of connections, a topic always maps to the same connection so messages to one
+ * gateway stay in order. The number of messages not yet acknowledged by the broker is bounded, a sender that finds
+ * the bound reached waits for room up to a timeout and then fails.
  */
 @Service
 public final class MqttSendService {
@@ -36,61 +49,295 @@ public final class MqttSendService {
     private String mqttUserName;
     @Value("${mqttPassword:#{null}}")
     private String mqttPassword;
+    @Value("${mqttSendPoolSize:4}")
+    private int mqttSendPoolSize;
+    @Value("${mqttSendMaxPending:1000}")
+    private int mqttSendMaxPending;
+    @Value("${mqttSendQueueTimeoutMillis:5000}")
+    private long mqttSendQueueTimeoutMillis;
+    @Value("${mqttConnectTimeoutMillis:10000}")
+    private long mqttConnectTimeoutMillis;
+    @Value("${mqttSendQos:EXACTLY_ONCE}")
+    private QoS mqttSendQos;
+    // topic prefix=qos pairs, e.g. BWG/spa/downlink=AT_LEAST_ONCE, the longest matching prefix wins
+    @Value("${mqttSendTopicQos:}")
+    private String mqttSendTopicQos;
 
-    private MQTT mqtt;
-    private FutureConnection connection;
+    private Channel[] channels;
+    private Map<String, QoS> topicQos;
+    private Semaphore pending;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
 
     @PreDestroy
     public void cleanup() {
         log.info("cleaning up mqtt service");
 
-        if (connection != null && connection.isConnected()) {
-            try {
-                connection.disconnect();
-            } catch (Exception e) {
-                log.error("error when closing connection with mqtt broker {}:{}", mqttHostname, mqttPort);
+        final Channel[] current = channels;
+        if (current != null) {
+            for (final Channel channel : current) {
+                channel.disconnect();
             }
         }
     }
 
+    /**
+     * publish without waiting for the broker, with the qos configured for the topic
+     *
+     * @param topic
+     * @param message
+     * @throws Exception if the pending messages stay at their bound for longer than the queue timeout
+     */
     public void sendMessage(final String topic, byte[] message) throws Exception {
         log.info("sending data to topic {}", topic);
-        checkConnection();
-        connection.publish(topic, message, QoS.EXACTLY_ONCE, false);
+        final CompletableFuture<Void> result = sendMessageAsync(topic, message);
+        if (result.isCompletedExceptionally()) {
+            // surface failures that happened before the message got to a connection
+            result.get();
+        }
     }
 
-    private void checkConnection() throws Exception {
-        if (connection == null || !connection.isConnected()) {
-            connect();
-        }
+    /**
+     * publish without waiting for the broker, with the qos configured for the topic
+     *
+     * @param topic
+     * @param message
+     * @return completes once the broker acknowledged the message, or exceptionally if it couldn't be published
+     */
+    public CompletableFuture<Void> sendMessageAsync(final String topic, byte[] message) {
+        return sendMessageAsync(topic, message, qosFor(topic));
     }
 
-    private void connect() throws Exception {
-        log.info("connecting to mqtt {}:{}...", mqttHostname, mqttPort);
+    /**
+     * publish without waiting for the broker
+     *
+     * @param topic
+     * @param message
+     * @param qos
+     * @return completes once the broker acknowledged the message, or exceptionally if it couldn't be published
+     */
+    public CompletableFuture<Void> sendMessageAsync(final String topic, byte[] message, final QoS qos) {
+        log.debug("sending data to topic {}", topic);
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        init();
+        try {
+            if (!pending.tryAcquire()) {
+                final long start = System.nanoTime();
+                final boolean acquired = pending.tryAcquire(mqttSendQueueTimeoutMillis, TimeUnit.MILLISECONDS);
+                blockedNanos.addAndGet(System.nanoTime() - start);
+                if (!acquired) {
+                    rejected.incrementAndGet();
+                    throw new TimeoutException(mqttSendMaxPending + " messages waiting for the broker, not sending to " + topic);
+                }
+            }
+        } catch (final Throwable t) {
+            result.completeExceptionally(t);
+            return result;
+        }
+
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
         try {
-            mqtt = new MQTT();
+            channelFor(topic).connection().publish(topic, message, qos, false).then(new Callback<Void>() {
+                @Override
+                public void onSuccess(Void value) {
+                    published.incrementAndGet();
+                    release();
+                    result.complete(null);
+                }
+
+                @Override
+                public void onFailure(Throwable value) {
+                    failed.incrementAndGet();
+                    release();
+                    result.completeExceptionally(value);
+                }
+            });
+        } catch (final Throwable t) {
+            failed.incrementAndGet();
+            release();
+            result.completeExceptionally(t);
+        }
+        return result;
+    }
+
+    /**
+     * @param topic
+     * @return qos of the longest configured topic prefix that matches, the default qos otherwise
+     */
+    public QoS qosFor(final String topic) {
+        init();
+        QoS qos = mqttSendQos;
+        int matched = -1;
+        for (final Map.Entry<String, QoS> entry : topicQos.entrySet()) {
+            if (topic.startsWith(entry.getKey()) && entry.getKey().length() > matched) {
+                qos = entry.getValue();
+                matched = entry.getKey().length();
+            }
+        }
+        return qos;
+    }
+
+    public int getPoolSize() {
+        init();
+        return channels.length;
+    }
+
+    /**
+     * @return messages handed to a connection and not yet acknowledged
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return sends that gave up waiting for room in the outbound queue
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return total time senders spent waiting for room in the outbound queue
+     */
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+    }
+
+    /**
+     * @return broker connections established by the pool
+     */
+    public long getConnects() {
+        return connects.get();
+    }
 
-            PkiInfo pki = messageProcessorConfiguration.obtainPKIArtifacts();
-            if (pki.getSslContext() != null) {
-                mqttPort = pki.getPort();
-                log.info("server ssl being used, mqtt port will be {}", mqttPort);
+    private synchronized void init() {
+        if (channels != null) {
+            return;
+        }
+        final Map<String, QoS> overrides = new LinkedHashMap<>();
+        if (mqttSendTopicQos != null && !mqttSendTopicQos.trim().isEmpty()) {
+            for (final Map.Entry<String, String> entry : Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(mqttSendTopicQos).entrySet()) {
+                overrides.put(entry.getKey(), QoS.valueOf(entry.getValue().trim()));
             }
+        }
+        if (mqttSendQos == null) {
+            mqttSendQos = QoS.EXACTLY_ONCE;
+        }
+        if (mqttConnectTimeoutMillis <= 0) {
+            mqttConnectTimeoutMillis = 10000;
+        }
+        topicQos = overrides;
+        pending = new Semaphore(Math.max(1, mqttSendMaxPending));
+        final Channel[] created = new Channel[Math.max(1, mqttSendPoolSize)];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new Channel(i);
+        }
+        channels = created;
+        log.info("mqtt send pool of {} connections, at most {} pending messages", created.length, mqttSendMaxPending);
+    }
+
+    private Channel channelFor(final String topic) {
+        return channels[(topic.hashCode() & Integer.MAX_VALUE) % channels.length];
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        pending.release();
+    }
+
+    /**
+     * one pooled broker connection, connected lazily and reconnected when found disconnected. Senders wait for the
+     * connect to finish, so a burst of sends to a cold channel shares one connection instead of each starting its own.
+     */
+    private final class Channel {
+        private final int index;
+        private FutureConnection connection;
+
+        private Channel(final int index) {
+            this.index = index;
+        }
 
-            mqtt.setHost(pki.getProtocolPrefix() + mqttHostname + ":" + mqttPort);
-            mqtt.setKeepAlive(mqttKeepAliveSeconds);
-            mqtt.setSslContext(pki.getSslContext());
-            if (pki.getClientPublic() == null && mqttPassword != null) {
-                mqtt.setPassword(mqttPassword);
+        private synchronized FutureConnection connection() throws Exception {
+            if (connection == null || !connection.isConnected()) {
+                connect();
             }
-            if (pki.getClientPublic() == null && mqttUserName != null) {
-                mqtt.setUserName(mqttUserName);
+            return connection;
+        }
+
+        private void connect() throws Exception {
+            log.info("connecting mqtt send connection {} to {}:{}...", index, mqttHostname, mqttPort);
+            try {
+                final MQTT mqtt = new MQTT();
+
+                PkiInfo pki = messageProcessorConfiguration.obtainPKIArtifacts();
+                int port = mqttPort;
+                if (pki.getSslContext() != null) {
+                    port = pki.getPort();
+                    log.info("server ssl being used, mqtt port will be {}", port);
+                }
+
+                mqtt.setHost(pki.getProtocolPrefix() + mqttHostname + ":" + port);
+                mqtt.setKeepAlive(mqttKeepAliveSeconds);
+                mqtt.setSslContext(pki.getSslContext());
+                if (pki.getClientPublic() == null && mqttPassword != null) {
+                    mqtt.setPassword(mqttPassword);
+                }
+                if (pki.getClientPublic() == null && mqttUserName != null) {
+                    mqtt.setUserName(mqttUserName);
+                }
+                mqtt.setCleanSession(true);
+
+                final FutureConnection created = mqtt.futureConnection();
+                try {
+                    created.connect().await(mqttConnectTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (final Throwable t) {
+                    close(created);
+                    throw t;
+                }
+                // the one it replaces lost its broker connection, close it so it doesn't keep reconnecting
+                if (connection != null) {
+                    close(connection);
+                }
+                connection = created;
+                connects.incrementAndGet();
+            } catch (final Throwable t) {
+                throw Throwables.propagate(t);
             }
-            mqtt.setCleanSession(true);
+        }
 
-            connection = mqtt.futureConnection();
-            connection.connect();
-        } catch (final Throwable t) {
-            throw Throwables.propagate(t);
+        private void close(final FutureConnection stale) {
+            try {
+                stale.disconnect();
+            } catch (Exception e) {
+                log.error("error when closing connection with mqtt broker {}:{}", mqttHostname, mqttPort);
+            }
+        }
+
+        private synchronized void disconnect() {
+            if (connection != null && connection.isConnected()) {
+                try {
+                    connection.disconnect();
+                } catch (Exception e) {
+                    log.error("error when closing connection with mqtt broker {}:{}", mqttHostname, mqttPort);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,115 @@
+package com.tritonsvc.messageprocessor.mqtt;
+
+import com.bwg.iot.model.SpaCommand;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recently sent spa commands by originator id. Gateways answer every command with a RECEIVED ack and a REQUEST event
+ * shortly after it was sent, the handlers of those find the command here and only query mongo for older ones.
+ *
+ * The index keeps an immutable copy of what the handlers need, the command itself stays with the downlink processor.
+ */
+@Component
+public class SpaCommandIndex {
+
+    @Autowired
+    private MongoOperations mongoOps;
+
+    @Value("${spaCommandIndexMinutes:10}")
+    private int expiryMinutes;
+    @Value("${spaCommandIndexSize:100000}")
+    private int maximumSize;
+
+    private Cache<String, SentCommand> commands;
+
+    @PostConstruct
+    public void init() {
+        commands = CacheBuilder.newBuilder()
+                .expireAfterWrite(expiryMinutes, TimeUnit.MINUTES)
+                .maximumSize(maximumSize)
+                .build();
+        if (mongoOps != null) {
+            // for the lookups that miss the index
+            mongoOps.indexOps(SpaCommand.class).ensureIndex(new Index().on("originatorId", Sort.Direction.ASC).on("sentTimestamp", Sort.Direction.DESC));
+            mongoOps.indexOps(SpaCommand.class).ensureIndex(new Index().on("originatorId", Sort.Direction.ASC).on("spaId", Sort.Direction.ASC));
+        }
+    }
+
+    /**
+     * @param command about to be sent
+     */
+    public void put(final SpaCommand command) {
+        if (command.getOriginatorId() != null) {
+            commands.put(command.getOriginatorId(), new SentCommand(command));
+        }
+    }
+
+    /**
+     * @param command that couldn't be sent
+     */
+    public void remove(final SpaCommand command) {
+        if (command.getOriginatorId() != null) {
+            commands.asMap().computeIfPresent(command.getOriginatorId(),
+                    (originatorId, sent) -> Objects.equals(sent.getId(), command.get_id()) ? null : sent);
+        }
+    }
+
+    /**
+     * @param originatorId
+     * @return the command, null if it wasn't sent recently
+     */
+    public SentCommand get(final String originatorId) {
+        return originatorId != null ? commands.getIfPresent(originatorId) : null;
+    }
+
+    /**
+     * @param originatorId
+     * @param spaId
+     * @return the command if it was sent recently to the spa, null otherwise
+     */
+    public SentCommand get(final String originatorId, final String spaId) {
+        final SentCommand command = get(originatorId);
+        return command != null && Objects.equals(command.getSpaId(), spaId) ? command : null;
+    }
+
+    /**
+     * id, spa and metadata of a sent command as they were when it was sent
+     */
+    public static final class SentCommand {
+        private final String id;
+        private final String spaId;
+        private final Map<String, String> metadata;
+
+        SentCommand(final SpaCommand command) {
+            this.id = command.get_id();
+            this.spaId = command.getSpaId();
+            this.metadata = command.getMetadata() != null ? Collections.unmodifiableMap(new HashMap<>(command.getMetadata())) : null;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getSpaId() {
+            return spaId;
+        }
+
+        public Map<String, String> getMetadata() {
+            return metadata;
+        }
+    }
+}
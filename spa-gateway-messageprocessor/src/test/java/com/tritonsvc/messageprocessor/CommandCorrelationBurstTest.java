@@ -0,0 +1,215 @@
+package com.tritonsvc.messageprocessor;
+
+import com.bwg.iot.model.Event;
+import com.bwg.iot.model.Spa;
+import com.bwg.iot.model.SpaCommand;
+import com.tritonsvc.messageprocessor.messagehandler.DownlinkAckMessageHandler;
+import com.tritonsvc.messageprocessor.messagehandler.EventsMessageHandler;
+import com.tritonsvc.messageprocessor.mongo.repository.ComponentRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.EventRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.SpaCommandRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
+import com.tritonsvc.messageprocessor.mqtt.SpaCommandIndex;
+import com.tritonsvc.spa.communication.proto.Bwg;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * sends a burst of commands and feeds the RECEIVED ack and REQUEST event every gateway answers with back to the
+ * handlers, once finding the commands in the originator index and once in mongo
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = {SpaGatewayMessageProcessorApplication.class, UnitTestHelper.class})
+public class CommandCorrelationBurstTest {
+
+    private static final Logger log = LoggerFactory.getLogger(CommandCorrelationBurstTest.class);
+    private static final int SPAS = 100;
+    private static final int COMMANDS_PER_SPA = 3;
+    private static final int HISTORY = 5000;
+
+    @Autowired
+    private SpaRepository spaRepository;
+
+    @Autowired
+    private ComponentRepository componentRepository;
+
+    @Autowired
+    private SpaCommandRepository spaCommandRepository;
+
+    @Autowired
+    private EventRepository eventRepository;
+
+    @Autowired
+    private SpaCommandIndex spaCommandIndex;
+
+    @Autowired
+    private DownlinkProcessor downlinkProcessor;
+
+    @Autowired
+    private UnitTestHelper unitTestHelper;
+
+    @Autowired
+    private MongoOperations mongoOps;
+
+    @After
+    @Before
+    public void cleanup() {
+        spaRepository.deleteAll();
+        componentRepository.deleteAll();
+        spaCommandRepository.deleteAll();
+        eventRepository.deleteAll();
+    }
+
+    @Test
+    public void itCorrelatesAcksAndEventsWithoutQueryingMongo() throws Exception {
+        final List<SpaCommand> burst = createBurst();
+        downlinkProcessor.processBatch(burst);
+
+        final SpaCommandRepository counted = unitTestHelper.counting(SpaCommandRepository.class, spaCommandRepository);
+        final long nanos = correlate(burst, spaCommandIndex, counted);
+
+        verify(counted, never()).findByOriginatorIdAndSpaId(anyString(), anyString());
+        verify(counted, never()).findByOriginatorIdOrderBySentTimestampDesc(anyString());
+        assertCorrelated(burst);
+        log.info("correlated {} commands from the index, {} us per command", burst.size(), TimeUnit.NANOSECONDS.toMicros(nanos / burst.size()));
+    }
+
+    @Test
+    public void itCorrelatesFasterFromTheIndexThanFromMongo() throws Exception {
+        final List<SpaCommand> burst = createBurst();
+        downlinkProcessor.processBatch(burst);
+
+        // a fresh index knows none of the commands, every lookup falls back to mongo
+        final SpaCommandIndex empty = new SpaCommandIndex();
+        ReflectionTestUtils.setField(empty, "expiryMinutes", 10);
+        ReflectionTestUtils.setField(empty, "maximumSize", 1000);
+        empty.init();
+        final SpaCommandRepository counted = unitTestHelper.counting(SpaCommandRepository.class, spaCommandRepository);
+        final long fallbackNanos = correlate(burst, empty, counted);
+        verify(counted, times(burst.size())).findByOriginatorIdAndSpaId(anyString(), anyString());
+        verify(counted, times(burst.size())).findByOriginatorIdOrderBySentTimestampDesc(anyString());
+
+        eventRepository.deleteAll();
+        final long indexedNanos = correlate(burst, spaCommandIndex, spaCommandRepository);
+        assertCorrelated(burst);
+
+        log.info("correlated {} commands, {} us per command from mongo, {} us per command from the index", burst.size(),
+                TimeUnit.NANOSECONDS.toMicros(fallbackNanos / burst.size()), TimeUnit.NANOSECONDS.toMicros(indexedNanos / burst.size()));
+        Assert.assertTrue(indexedNanos < fallbackNanos);
+    }
+
+    /**
+     * @return time spent in the handlers
+     */
+    private long correlate(final List<SpaCommand> commands, final SpaCommandIndex index, final SpaCommandRepository repository) {
+        final DownlinkAckMessageHandler ackHandler = new DownlinkAckMessageHandler();
+        ReflectionTestUtils.setField(ackHandler, "spaCommandRepository", repository);
+        ReflectionTestUtils.setField(ackHandler, "spaCommandIndex", index);
+        ReflectionTestUtils.setField(ackHandler, "mongoOps", mongoOps);
+        final EventsMessageHandler eventsHandler = new EventsMessageHandler();
+        ReflectionTestUtils.setField(eventsHandler, "spaRepository", spaRepository);
+        ReflectionTestUtils.setField(eventsHandler, "eventRepository", eventRepository);
+        ReflectionTestUtils.setField(eventsHandler, "spaCommandRepository", repository);
+        ReflectionTestUtils.setField(eventsHandler, "spaCommandIndex", index);
+
+        final long start = System.nanoTime();
+        for (final SpaCommand command : commands) {
+            final Bwg.Header header = Bwg.Header.newBuilder()
+                    .setCommand(Bwg.CommandType.UPLINK)
+                    .setOriginator(command.getOriginatorId())
+                    .setSentTimestamp(System.currentTimeMillis())
+                    .build();
+            ackHandler.processMessage(header, uplinkHeader(command, Bwg.Uplink.UplinkCommandType.ACKNOWLEDGEMENT),
+                    Bwg.Uplink.Model.DownlinkAcknowledge.newBuilder().setCode(Bwg.AckResponseCode.RECEIVED).build());
+
+            final Bwg.Uplink.Model.Events events = Bwg.Uplink.Model.Events.newBuilder().addEvents(Bwg.Uplink.Model.Event.newBuilder()
+                    .setEventType(Bwg.Uplink.Model.Constants.EventType.REQUEST)
+                    .setEventOccuredTimestamp(System.currentTimeMillis())
+                    .setEventReceivedTimestamp(System.currentTimeMillis())
+                    .addMetadata(Bwg.Metadata.newBuilder().setName("originatorId").setValue(command.getOriginatorId())))
+                    .build();
+            eventsHandler.processMessage(header, uplinkHeader(command, Bwg.Uplink.UplinkCommandType.EVENT), events);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void assertCorrelated(final List<SpaCommand> commands) {
+        for (final SpaCommand command : commands) {
+            Assert.assertEquals("RECEIVED", spaCommandRepository.findOne(command.get_id()).getAckResponseCode());
+        }
+        final List<Event> events = eventRepository.findAll();
+        Assert.assertEquals(commands.size(), events.size());
+        for (final Event event : events) {
+            Assert.assertEquals("mobile", event.getMetadata().get("Via"));
+        }
+    }
+
+    private static Bwg.Uplink.UplinkHeader uplinkHeader(final SpaCommand command, final Bwg.Uplink.UplinkCommandType type) {
+        return Bwg.Uplink.UplinkHeader.newBuilder().setCommand(type).setHardwareId(command.getSpaId()).build();
+    }
+
+    /**
+     * commands already carry a processed timestamp so the background downlink processor leaves them alone
+     */
+    private List<SpaCommand> createBurst() {
+        final List<Spa> spas = new ArrayList<>();
+        for (int i = 0; i < SPAS; i++) {
+            final Spa spa = unitTestHelper.createSpa();
+            unitTestHelper.createGateway(spa, "burst" + i);
+            spas.add(spa);
+        }
+
+        // older commands of the same spas the fallback queries have to get past
+        final List<SpaCommand> history = new ArrayList<>(HISTORY);
+        for (int i = 0; i < HISTORY; i++) {
+            history.add(createCommand(spas.get(i % SPAS)));
+        }
+        spaCommandRepository.save(history);
+
+        final List<SpaCommand> burst = new ArrayList<>(SPAS * COMMANDS_PER_SPA);
+        for (int i = 0; i < SPAS * COMMANDS_PER_SPA; i++) {
+            burst.add(createCommand(spas.get(i % SPAS)));
+        }
+        spaCommandRepository.save(burst);
+        return burst;
+    }
+
+    private static SpaCommand createCommand(final Spa spa) {
+        final HashMap<String, String> values = new HashMap<>();
+        values.put(Bwg.Downlink.Model.SpaCommandAttribName.DESIREDTEMP.name(), "78");
+        final HashMap<String, String> meta = new HashMap<>();
+        meta.put("Requested By", "Dan");
+        meta.put("Via", "mobile");
+        final SpaCommand command = new SpaCommand();
+        command.setSpaId(spa.get_id());
+        command.setSentTimestamp(new Date());
+        command.setProcessedTimestamp(new Date());
+        command.setRequestTypeId(SpaCommand.RequestType.HEATER.getCode());
+        command.setValues(values);
+        command.setMetadata(meta);
+        command.setOriginatorId(UUID.randomUUID().toString());
+        return command;
+    }
+}
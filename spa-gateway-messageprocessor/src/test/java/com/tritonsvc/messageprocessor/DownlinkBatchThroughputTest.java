@@ -0,0 +1,123 @@
+package com.tritonsvc.messageprocessor;
+
+import com.bwg.iot.model.ProcessedResult;
+import com.bwg.iot.model.Spa;
+import com.bwg.iot.model.SpaCommand;
+import com.tritonsvc.messageprocessor.mongo.repository.ComponentRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.SpaCommandRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
+import com.tritonsvc.spa.communication.proto.Bwg;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * dispatches the same number of heater commands through the batch path in batches of one, where each command pays
+ * for its own lookups and waits for its own publish, and in the batches of 25 the downlink processor picks up
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = {SpaGatewayMessageProcessorApplication.class, UnitTestHelper.class})
+public class DownlinkBatchThroughputTest {
+
+    private static final Logger log = LoggerFactory.getLogger(DownlinkBatchThroughputTest.class);
+    private static final int SPAS = 100;
+    private static final int COMMANDS_PER_SPA = 5;
+    private static final int BATCH_SIZE = 25;
+
+    @Autowired
+    private SpaRepository spaRepository;
+
+    @Autowired
+    private ComponentRepository componentRepository;
+
+    @Autowired
+    private SpaCommandRepository spaCommandRepository;
+
+    @Autowired
+    private UnitTestHelper unitTestHelper;
+
+    @Autowired
+    private DownlinkProcessor downlinkProcessor;
+
+    @After
+    @Before
+    public void cleanup() {
+        spaRepository.deleteAll();
+        componentRepository.deleteAll();
+        spaCommandRepository.deleteAll();
+    }
+
+    @Test
+    public void itDispatchesFullBatchesFasterThanBatchesOfOne() throws Exception {
+        // separate spas for each run so both start without cached gateway serial numbers
+        final List<SpaCommand> batchesOfOne = createCommands("one");
+        final List<SpaCommand> batched = createCommands("batched");
+
+        final long batchesOfOneStart = System.nanoTime();
+        for (final SpaCommand command : batchesOfOne) {
+            downlinkProcessor.processBatch(Collections.singletonList(command));
+        }
+        final double batchesOfOneSeconds = (System.nanoTime() - batchesOfOneStart) / 1e9;
+
+        final long batchedStart = System.nanoTime();
+        for (int i = 0; i < batched.size(); i += BATCH_SIZE) {
+            downlinkProcessor.processBatch(batched.subList(i, Math.min(batched.size(), i + BATCH_SIZE)));
+        }
+        final double batchedSeconds = (System.nanoTime() - batchedStart) / 1e9;
+
+        for (final SpaCommand command : batchesOfOne) {
+            Assert.assertEquals(ProcessedResult.SENT, command.getProcessedResult());
+        }
+        for (final SpaCommand command : batched) {
+            Assert.assertEquals(ProcessedResult.SENT, command.getProcessedResult());
+            Assert.assertEquals(ProcessedResult.SENT, spaCommandRepository.findOne(command.get_id()).getProcessedResult());
+        }
+        Assert.assertEquals("78", spaRepository.findOne(batched.get(0).getSpaId()).getCurrentState().getTargetDesiredTemp());
+
+        final double batchesOfOneRate = batchesOfOne.size() / batchesOfOneSeconds;
+        final double batchedRate = batched.size() / batchedSeconds;
+        log.info("dispatched {} commands/s in batches of one, {} commands/s in batches of {}", (int) batchesOfOneRate, (int) batchedRate, BATCH_SIZE);
+        Assert.assertTrue(batchedRate > batchesOfOneRate * 1.5);
+    }
+
+    /**
+     * the stored commands start out with a processed timestamp, which hides them from the background downlink processor
+     */
+    private List<SpaCommand> createCommands(final String prefix) {
+        final List<SpaCommand> commands = new ArrayList<>();
+        for (int i = 0; i < SPAS; i++) {
+            final Spa spa = unitTestHelper.createSpa();
+            unitTestHelper.createGateway(spa, prefix + i);
+            for (int j = 0; j < COMMANDS_PER_SPA; j++) {
+                final HashMap<String, String> values = new HashMap<>();
+                values.put(Bwg.Downlink.Model.SpaCommandAttribName.DESIREDTEMP.name(), "78");
+                final SpaCommand command = new SpaCommand();
+                command.setSpaId(spa.get_id());
+                command.setSentTimestamp(new Date());
+                command.setProcessedTimestamp(new Date());
+                command.setRequestTypeId(SpaCommand.RequestType.HEATER.getCode());
+                command.setValues(values);
+                command.setOriginatorId(UUID.randomUUID().toString());
+                commands.add(command);
+            }
+        }
+        // interleave spas the way commands from many users arrive
+        Collections.shuffle(commands);
+        spaCommandRepository.save(commands);
+        return commands;
+    }
+}
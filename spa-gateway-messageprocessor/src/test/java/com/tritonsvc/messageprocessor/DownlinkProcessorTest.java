@@ -1,12 +1,16 @@
 package com.tritonsvc.messageprocessor;
 
 import com.bwg.iot.model.Component;
+import com.bwg.iot.model.ComponentState;
 import com.bwg.iot.model.LightState;
 import com.bwg.iot.model.ProcessedResult;
 import com.bwg.iot.model.Spa;
 import com.bwg.iot.model.SpaCommand;
+import com.bwg.iot.model.SpaState;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaCommandRepository;
 import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
+import com.tritonsvc.messageprocessor.mqtt.DownlinkBatch;
+import com.tritonsvc.messageprocessor.mqtt.DownlinkRequestor;
 import com.tritonsvc.messageprocessor.mqtt.MqttSendService;
 import com.tritonsvc.spa.communication.proto.Bwg;
 import org.junit.After;
@@ -18,7 +22,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @SpringApplicationConfiguration(classes = {SpaGatewayMessageProcessorApplication.class, UnitTestHelper.class})
@@ -39,6 +48,9 @@ public class DownlinkProcessorTest {
     @Autowired
     private MessageProcessorConfiguration messageProcessorConfiguration;
 
+    @Autowired
+    private DownlinkRequestor downlinkRequestor;
+
     @After
     @Before
     public void cleanup() {
@@ -159,4 +171,52 @@ public class DownlinkProcessorTest {
         Assert.assertNotNull(processed.getProcessedTimestamp());
         Assert.assertEquals(ProcessedResult.SENT, processed.getProcessedResult());
     }
+
+    @Test
+    public void itKeepsStateUplinkedWhileTheBatchWasSent() throws Exception {
+        final Spa spa = unitTestHelper.createSpa();
+        unitTestHelper.createGateway(spa, "1");
+        // kept in memory so the background downlink processor doesn't pick them up
+        final HashMap<String, String> heaterValues = new HashMap<>();
+        heaterValues.put(Bwg.Downlink.Model.SpaCommandAttribName.DESIREDTEMP.name(), "78");
+        final SpaCommand heater = newCommand(spa, SpaCommand.RequestType.HEATER.getCode(), heaterValues);
+        final HashMap<String, String> lightValues = new HashMap<>();
+        lightValues.put(Bwg.Downlink.Model.SpaCommandAttribName.DESIREDSTATE.name(), LightState.HIGH.toString());
+        lightValues.put(Bwg.Downlink.Model.SpaCommandAttribName.PORT.name(), "0");
+        final SpaCommand light = newCommand(spa, SpaCommand.RequestType.LIGHT.getCode(), lightValues);
+        final DownlinkBatch batch = downlinkRequestor.prefetch(Arrays.asList(heater, light));
+
+        // a spa state uplink is stored after the batch was prefetched
+        final Spa uplinked = spaRepository.findOne(spa.get_id());
+        final ComponentState lightState = new ComponentState();
+        lightState.setComponentType(Component.ComponentType.LIGHT.name());
+        lightState.setPort("0");
+        lightState.setValue(LightState.OFF.toString());
+        final SpaState spaState = new SpaState();
+        spaState.setCurrentTemp("100");
+        spaState.setComponents(new ArrayList<>(Collections.singletonList(lightState)));
+        uplinked.setCurrentState(spaState);
+        spaRepository.save(uplinked);
+
+        Assert.assertTrue(downlinkRequestor.sendHeaterUpdateCommand(heater, batch).get(10, TimeUnit.SECONDS));
+        Assert.assertTrue(downlinkRequestor.sendPeripheralStateUpdateCommand(light, batch).get(10, TimeUnit.SECONDS));
+        downlinkRequestor.saveTargetStates(batch);
+
+        final SpaState saved = spaRepository.findOne(spa.get_id()).getCurrentState();
+        Assert.assertEquals("100", saved.getCurrentTemp());
+        Assert.assertEquals("78", saved.getTargetDesiredTemp());
+        Assert.assertEquals(1, saved.getComponents().size());
+        Assert.assertEquals(LightState.OFF.toString(), saved.getComponents().get(0).getValue());
+        Assert.assertEquals(LightState.HIGH.toString(), saved.getComponents().get(0).getTargetValue());
+    }
+
+    private static SpaCommand newCommand(final Spa spa, final int requestType, final HashMap<String, String> values) {
+        final SpaCommand command = new SpaCommand();
+        command.setSpaId(spa.get_id());
+        command.setSentTimestamp(new Date());
+        command.setRequestTypeId(requestType);
+        command.setValues(values);
+        command.setOriginatorId("originator");
+        return command;
+    }
 }
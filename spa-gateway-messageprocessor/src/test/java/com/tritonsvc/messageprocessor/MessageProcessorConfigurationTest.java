@@ -1,18 +1,41 @@
 package com.tritonsvc.messageprocessor;
 
+import com.google.common.io.ByteStreams;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class MessageProcessorConfigurationTest {
+    private static final Logger log = LoggerFactory.getLogger(MessageProcessorConfigurationTest.class);
+    private static final int RECONNECTS = 20;
 
     private MessageProcessorConfiguration config;
 
@@ -49,4 +72,103 @@ public class MessageProcessorConfigurationTest {
         assertThat("cert dn not obtained correctly", pki.getCaRoot().getSubjectDN().getName().equals("CN=test ca, O=Test CA, L=San Diego, ST=CA, C=US"));
         assertThat("cert dn not obtained correctly", pki.getClientPublic().getSubjectDN().getName().equals("CN=test1, OU=unit_test, O=test, L=san diego, ST=CA, C=US"));
     }
+
+    @Test
+    public void itReusesTheCryptoUntilTheFilesChange() throws Exception {
+        useClientCert();
+
+        PkiInfo pki = config.obtainPKIArtifacts();
+        assertSame(pki, config.obtainPKIArtifacts());
+        assertSame(pki.getSslContext(), config.obtainPKIArtifacts().getSslContext());
+
+        File cert = new File(folder.getRoot(), "mprocessor_cert.pem");
+        assertTrue(cert.setLastModified(cert.lastModified() + 2000));
+        PkiInfo rotated = config.obtainPKIArtifacts();
+        assertNotSame(pki, rotated);
+        assertNotSame(pki.getSslContext(), rotated.getSslContext());
+        assertSame(rotated, config.obtainPKIArtifacts());
+    }
+
+    @Test
+    public void itReconnectsFasterWithTheCachedContext() throws Exception {
+        useClientCert();
+
+        SSLServerSocket server = (SSLServerSocket) brokerContext().getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        server.setNeedClientAuth(true);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (SSLSocket socket = (SSLSocket) server.accept()) {
+                    socket.startHandshake();
+                } catch (IOException ex) {
+                    // closed or client went away
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        try {
+            // warm up both paths
+            reconnect(server.getLocalPort(), config::loadPKIArtifacts);
+            reconnect(server.getLocalPort(), config::obtainPKIArtifacts);
+
+            long uncachedNanos = 0;
+            long cachedNanos = 0;
+            for (int i = 0; i < RECONNECTS; i++) {
+                uncachedNanos += reconnect(server.getLocalPort(), config::loadPKIArtifacts);
+                cachedNanos += reconnect(server.getLocalPort(), config::obtainPKIArtifacts);
+            }
+            log.info("average reconnect without cache {} us, with cache {} us",
+                    TimeUnit.NANOSECONDS.toMicros(uncachedNanos / RECONNECTS), TimeUnit.NANOSECONDS.toMicros(cachedNanos / RECONNECTS));
+            assertTrue(cachedNanos < uncachedNanos);
+        } finally {
+            server.close();
+        }
+    }
+
+    private void useClientCert() throws Exception {
+        Files.copy(MessageProcessorConfigurationTest.class.getResourceAsStream("/ca_root_cert.pem"), folder.newFile("ca_root_cert.pem").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(MessageProcessorConfigurationTest.class.getResourceAsStream("/mprocessor_cert.pem"), folder.newFile("mprocessor_cert.pem").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(MessageProcessorConfigurationTest.class.getResourceAsStream("/mprocessor_key.pkcs8"), folder.newFile("mprocessor_key.pkcs8").toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        ReflectionTestUtils.setField(config, "caRootFilePem",new File(folder.getRoot(), "ca_root_cert.pem").getAbsolutePath());
+        ReflectionTestUtils.setField(config, "clientCertFilePem",new File(folder.getRoot(), "mprocessor_cert.pem").getAbsolutePath());
+        ReflectionTestUtils.setField(config, "clientKeyFilePkcs8",new File(folder.getRoot(), "mprocessor_key.pkcs8").getAbsolutePath());
+    }
+
+    /**
+     * obtain the crypto the way a reconnect does and complete a handshake with it
+     */
+    private long reconnect(int port, Supplier<PkiInfo> pkiSource) throws Exception {
+        long start = System.nanoTime();
+        SSLContext context = pkiSource.get().getSslContext();
+        try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), port)) {
+            socket.startHandshake();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * the broker side of the handshake, uses the broker test cert signed by the same test ca
+     */
+    private SSLContext brokerContext() throws Exception {
+        CertificateFactory fact = CertificateFactory.getInstance("X.509");
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null);
+        try (InputStream caRoot = MessageProcessorConfigurationTest.class.getResourceAsStream("/ca_root_cert.pem");
+             InputStream brokerCert = MessageProcessorConfigurationTest.class.getResourceAsStream("/broker_cert.pem");
+             InputStream brokerKey = MessageProcessorConfigurationTest.class.getResourceAsStream("/broker_key.pkcs8")) {
+            ks.setCertificateEntry("caRoot", fact.generateCertificate(caRoot));
+            Certificate cert = fact.generateCertificate(brokerCert);
+            PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(ByteStreams.toByteArray(brokerKey));
+            ks.setKeyEntry("broker", KeyFactory.getInstance("RSA").generatePrivate(spec), "bwgkey".toCharArray(), new Certificate[]{cert});
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, "bwgkey".toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new java.security.SecureRandom());
+        return context;
+    }
 }
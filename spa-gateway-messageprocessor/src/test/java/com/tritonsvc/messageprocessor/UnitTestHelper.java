@@ -22,6 +22,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.UUID;
 
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.mock;
+
 /**
  * Helper class for unit testting.
  */
@@ -62,6 +65,15 @@ public class UnitTestHelper extends AbstractMongoConfiguration {
         mqttServer.stopServer();
     }
 
+    /**
+     * @param type
+     * @param repository fongo backed repository
+     * @return mock passing every call on to the repository, to verify which queries a handler makes
+     */
+    public <T> T counting(Class<T> type, T repository) {
+        return mock(type, delegatesTo(repository));
+    }
+
     public Spa createSpa() {
         final Spa spa = new Spa();
         spaRepository.save(spa);
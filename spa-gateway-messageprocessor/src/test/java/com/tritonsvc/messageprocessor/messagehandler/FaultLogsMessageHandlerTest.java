@@ -0,0 +1,210 @@
+package com.tritonsvc.messageprocessor.messagehandler;
+
+import com.bwg.iot.model.FaultLog;
+import com.bwg.iot.model.FaultLogDescription;
+import com.bwg.iot.model.FaultLogSeverity;
+import com.bwg.iot.model.Spa;
+import com.tritonsvc.messageprocessor.SpaGatewayMessageProcessorApplication;
+import com.tritonsvc.messageprocessor.UnitTestHelper;
+import com.tritonsvc.messageprocessor.mongo.repository.AlertRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.FaultLogDescriptionRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.FaultLogRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.UserRepository;
+import com.tritonsvc.messageprocessor.notifications.PushNotificationService;
+import com.tritonsvc.spa.communication.proto.Bwg;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = {SpaGatewayMessageProcessorApplication.class, UnitTestHelper.class})
+public class FaultLogsMessageHandlerTest {
+
+    private static final int CODES = 40;
+    // old enough to not raise alerts
+    private static final long OCCURRED = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(10);
+
+    @Autowired
+    private SpaRepository spaRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private FaultLogRepository faultLogRepository;
+
+    @Autowired
+    private FaultLogDescriptionRepository faultLogDescriptionRepository;
+
+    @Autowired
+    private AlertRepository alertRepository;
+
+    @Autowired
+    private UnitTestHelper unitTestHelper;
+
+    private FaultLogRepository countedFaultLogRepository;
+    private FaultLogDescriptionRepository countedDescriptionRepository;
+    private FaultLogsMessageHandler handler;
+
+    @After
+    public void cleanup() {
+        spaRepository.deleteAll();
+        faultLogRepository.deleteAll();
+        faultLogDescriptionRepository.deleteAll();
+    }
+
+    @Before
+    public void setUp() {
+        cleanup();
+        for (int code = 0; code < CODES; code++) {
+            final FaultLogDescription description = new FaultLogDescription();
+            description.setCode(code);
+            description.setControllerType("NGSC");
+            description.setSeverity(FaultLogSeverity.WARNING);
+            description.setDescription("fault " + code);
+            faultLogDescriptionRepository.save(description);
+        }
+
+        countedFaultLogRepository = unitTestHelper.counting(FaultLogRepository.class, faultLogRepository);
+        countedDescriptionRepository = unitTestHelper.counting(FaultLogDescriptionRepository.class, faultLogDescriptionRepository);
+        handler = new FaultLogsMessageHandler();
+        ReflectionTestUtils.setField(handler, "spaRepository", spaRepository);
+        ReflectionTestUtils.setField(handler, "userRepository", userRepository);
+        ReflectionTestUtils.setField(handler, "faultLogRepository", countedFaultLogRepository);
+        ReflectionTestUtils.setField(handler, "faultLogDescriptionRepository", countedDescriptionRepository);
+        ReflectionTestUtils.setField(handler, "alertRepository", alertRepository);
+        ReflectionTestUtils.setField(handler, "pushNotificationService", mock(PushNotificationService.class));
+        ReflectionTestUtils.setField(handler, "descriptionCacheSize", 100);
+        ReflectionTestUtils.setField(handler, "descriptionCacheMinutes", 60);
+        ReflectionTestUtils.setField(handler, "descriptionPreload", true);
+        handler.init();
+    }
+
+    @Test
+    public void itChecksALargeBatchForDuplicatesWithOneQuery() {
+        final Spa spa = unitTestHelper.createSpa();
+
+        process(spa, 0, 500);
+        process(spa, 250, 500);
+
+        verify(countedFaultLogRepository, times(2)).findBySpaIdAndTimestampIn(eq(spa.get_id()), anyCollectionOf(Date.class));
+        verify(countedFaultLogRepository, never()).findFirstBySpaIdAndCodeAndTimestamp(anyString(), anyInt(), any(Date.class));
+        // preloaded with one capped query, never looked up per entry
+        verify(countedDescriptionRepository, times(1)).findAll(new PageRequest(0, 100));
+        verify(countedDescriptionRepository, never()).findAll();
+        verify(countedDescriptionRepository, never()).findFirstByCodeAndControllerType(anyInt(), anyString());
+
+        final List<FaultLog> logs = faultLogRepository.findAll();
+        Assert.assertEquals(750, logs.size());
+        Assert.assertEquals(FaultLogSeverity.WARNING, logs.get(0).getSeverity());
+        Assert.assertEquals("fault " + logs.get(0).getCode(), logs.get(0).getFaultLogDescription().getDescription());
+    }
+
+    @Test
+    public void itLoadsEachCodeOnceWithoutPreload() {
+        faultLogDescriptionRepository.delete(faultLogDescriptionRepository.findFirstByCodeAndControllerType(0, "NGSC"));
+        ReflectionTestUtils.setField(handler, "descriptionPreload", false);
+        handler.init();
+        final Spa spa = unitTestHelper.createSpa();
+
+        process(spa, 0, CODES * 3);
+        process(spa, CODES * 3, CODES * 3);
+
+        verify(countedDescriptionRepository, times(CODES)).findFirstByCodeAndControllerType(anyInt(), eq("NGSC"));
+        // code 0 has no description, which is remembered as well
+        verify(countedDescriptionRepository, times(1)).findFirstByCodeAndControllerType(0, "NGSC");
+        Assert.assertEquals(CODES * 6, faultLogRepository.count());
+    }
+
+    @Test
+    public void itSavesEachFaultLogOnceUnderConcurrentMessages() throws Exception {
+        final List<Spa> spas = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            spas.add(unitTestHelper.createSpa());
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Void>> results = new ArrayList<>();
+            for (int round = 0; round < 8; round++) {
+                for (final Spa spa : spas) {
+                    // overlapping windows, gateways resend what they think wasn't acknowledged
+                    final int offset = round * 100;
+                    results.add(executor.submit((Callable<Void>) () -> {
+                        process(spa, offset, 300);
+                        return null;
+                    }));
+                }
+            }
+            for (final Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // 8 rounds of 300 entries shifted by 100, entries 0 to 999 of each spa
+        final List<FaultLog> logs = faultLogRepository.findAll();
+        Assert.assertEquals(spas.size() * 1000, logs.size());
+        final Set<String> unique = new HashSet<>();
+        for (final FaultLog log : logs) {
+            Assert.assertTrue(unique.add(log.getSpaId() + "/" + log.getCode() + "@" + log.getTimestamp().getTime()));
+        }
+        verify(countedFaultLogRepository, times(spas.size() * 8)).findBySpaIdAndTimestampIn(anyString(), anyCollectionOf(Date.class));
+        verify(countedDescriptionRepository, never()).findFirstByCodeAndControllerType(anyInt(), anyString());
+    }
+
+    /**
+     * entries first to first + count - 1, entry n occurred n seconds after OCCURRED with code n % CODES
+     */
+    private void process(final Spa spa, final int first, final int count) {
+        final Bwg.Uplink.Model.FaultLogs.Builder faultLogs = Bwg.Uplink.Model.FaultLogs.newBuilder();
+        for (int i = first; i < first + count; i++) {
+            faultLogs.addFaultLogs(Bwg.Uplink.Model.FaultLog.newBuilder()
+                    .setOccurenceDate(OCCURRED + i * 1000L)
+                    .setFaultCode(i % CODES)
+                    .setTargetTemp(100)
+                    .setSensorATemp(101)
+                    .setSensorBTemp(102)
+                    .setCelcius(false));
+        }
+        final Bwg.Header header = Bwg.Header.newBuilder()
+                .setCommand(Bwg.CommandType.UPLINK)
+                .setSentTimestamp(System.currentTimeMillis())
+                .build();
+        final Bwg.Uplink.UplinkHeader uplinkHeader = Bwg.Uplink.UplinkHeader.newBuilder()
+                .setCommand(Bwg.Uplink.UplinkCommandType.FAULT_LOGS)
+                .setHardwareId(spa.get_id())
+                .build();
+        handler.processMessage(header, uplinkHeader, faultLogs.build());
+    }
+}
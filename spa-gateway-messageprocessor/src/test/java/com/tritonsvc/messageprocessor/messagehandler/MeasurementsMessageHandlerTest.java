@@ -0,0 +1,190 @@
+package com.tritonsvc.messageprocessor.messagehandler;
+
+import com.bwg.iot.model.Component;
+import com.bwg.iot.model.Component.ComponentType;
+import com.bwg.iot.model.Spa;
+import com.tritonsvc.messageprocessor.SpaGatewayMessageProcessorApplication;
+import com.tritonsvc.messageprocessor.UnitTestHelper;
+import com.tritonsvc.messageprocessor.mongo.repository.ComponentRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.MeasurementReadingRepository;
+import com.tritonsvc.messageprocessor.mongo.repository.SpaRepository;
+import com.tritonsvc.messageprocessor.mongo.timeseries.TimeSeriesStore;
+import com.tritonsvc.spa.communication.proto.Bwg;
+import com.tritonsvc.spa.communication.proto.Bwg.Uplink.Model.Measurement;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = {SpaGatewayMessageProcessorApplication.class, UnitTestHelper.class})
+public class MeasurementsMessageHandlerTest {
+
+    private static final Logger log = LoggerFactory.getLogger(MeasurementsMessageHandlerTest.class);
+    private static final int SENSORS_PER_GATEWAY = 3;
+
+    @Autowired
+    private SpaRepository spaRepository;
+
+    @Autowired
+    private ComponentRepository componentRepository;
+
+    @Autowired
+    private MeasurementReadingRepository measurementReadingRepository;
+
+    @Autowired
+    private TimeSeriesStore timeSeriesStore;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UnitTestHelper unitTestHelper;
+
+    private SpaRepository countedSpaRepository;
+    private ComponentRepository countedComponentRepository;
+    private MeasurementsMessageHandler handler;
+
+    @Before
+    @After
+    public void cleanup() {
+        spaRepository.deleteAll();
+        componentRepository.deleteAll();
+        measurementReadingRepository.deleteAll();
+        mongoTemplate.dropCollection(TimeSeriesStore.MEASUREMENT_SERIES);
+    }
+
+    @Before
+    public void setUp() {
+        countedSpaRepository = unitTestHelper.counting(SpaRepository.class, spaRepository);
+        countedComponentRepository = unitTestHelper.counting(ComponentRepository.class, componentRepository);
+        handler = new MeasurementsMessageHandler();
+        ReflectionTestUtils.setField(handler, "spaRepository", countedSpaRepository);
+        ReflectionTestUtils.setField(handler, "componentRepository", countedComponentRepository);
+        ReflectionTestUtils.setField(handler, "measurementReadingRepository", measurementReadingRepository);
+        ReflectionTestUtils.setField(handler, "timeSeriesStore", timeSeriesStore);
+        ReflectionTestUtils.setField(handler, "writeRawDocuments", true);
+    }
+
+    @Test
+    public void itReadsNothingOnceTheSensorsAreKnown() {
+        final Spa spa = unitTestHelper.createSpa();
+        final Component gateway = unitTestHelper.createGateway(spa, "gw1");
+        createSensor(spa, gateway, "s1");
+
+        process(gateway, "s1", "s2");
+        verify(countedComponentRepository).findOne(gateway.get_id());
+        verify(countedSpaRepository).findOne(spa.get_id());
+        verify(countedComponentRepository).findByParentComponentIdAndComponentType(gateway.get_id(), ComponentType.SENSOR.name());
+        verify(countedComponentRepository).findByParentComponentIdAndComponentTypeAndSerialNumberIn(anyString(), anyString(), anyListOf(String.class));
+        verify(countedComponentRepository).save(any(Component.class));
+
+        for (int i = 0; i < 10; i++) {
+            process(gateway, "s1", "s2");
+        }
+        verifyNoMoreInteractions(countedComponentRepository, countedSpaRepository);
+
+        Assert.assertEquals(22, measurementReadingRepository.count());
+        Assert.assertEquals(2, componentRepository.findByParentComponentIdAndComponentType(gateway.get_id(), ComponentType.SENSOR.name()).size());
+    }
+
+    @Test
+    public void itCreatesASensorOnlyOnce() {
+        final Spa spa = unitTestHelper.createSpa();
+        final Component gateway = unitTestHelper.createGateway(spa, "gw1");
+
+        process(gateway, "s1", "s1");
+        process(gateway, "s1");
+        handler.clearSensorRegistries();
+        process(gateway, "s1");
+
+        verify(countedComponentRepository, times(1)).save(any(Component.class));
+        Assert.assertEquals(1, componentRepository.findByParentComponentIdAndComponentType(gateway.get_id(), ComponentType.SENSOR.name()).size());
+    }
+
+    @Test
+    public void itIngestsFasterAsTheFleetGrows() {
+        // leave the raw documents out, the lookups are what differs
+        ReflectionTestUtils.setField(handler, "writeRawDocuments", false);
+        final List<Component> gateways = new ArrayList<>();
+        double speedup = 0;
+        for (final int fleet : new int[]{10, 100, 400}) {
+            while (gateways.size() < fleet) {
+                final Spa spa = unitTestHelper.createSpa();
+                final Component gateway = unitTestHelper.createGateway(spa, "gw" + gateways.size());
+                for (int i = 0; i < SENSORS_PER_GATEWAY; i++) {
+                    createSensor(spa, gateway, "s" + i);
+                }
+                gateways.add(gateway);
+            }
+
+            // every message pays for the lookups the way it did before the registry
+            long start = System.nanoTime();
+            for (final Component gateway : gateways) {
+                handler.clearSensorRegistries();
+                process(gateway, "s0", "s1", "s2");
+            }
+            final double uncachedRate = fleet / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            for (final Component gateway : gateways) {
+                process(gateway, "s0", "s1", "s2");
+            }
+            final double cachedRate = fleet / ((System.nanoTime() - start) / 1e9);
+
+            speedup = cachedRate / uncachedRate;
+            log.info("fleet of {} gateways ingested {} messages/s with lookups, {} messages/s from the registry",
+                    fleet, (int) uncachedRate, (int) cachedRate);
+        }
+        Assert.assertTrue(speedup > 1);
+    }
+
+    private void createSensor(final Spa spa, final Component parent, final String serialNumber) {
+        final Component sensor = new Component();
+        sensor.setSpaId(spa.get_id());
+        sensor.setComponentType(ComponentType.SENSOR.name());
+        sensor.setSerialNumber(serialNumber);
+        sensor.setParentComponentId(parent.get_id());
+        componentRepository.save(sensor);
+    }
+
+    private void process(final Component parent, final String... sensorIdentifiers) {
+        final Bwg.Uplink.Model.Measurements.Builder measurements = Bwg.Uplink.Model.Measurements.newBuilder();
+        for (final String sensorIdentifier : sensorIdentifiers) {
+            measurements.addMeasurements(Measurement.newBuilder()
+                    .setTimestamp(System.currentTimeMillis())
+                    .setType(Measurement.DataType.AMBIENT_TEMP)
+                    .setValue(21.5)
+                    .setUom("celsius")
+                    .setQuality(Measurement.QualityType.VALID)
+                    .setSensorIdentifier(sensorIdentifier));
+        }
+        final Bwg.Header header = Bwg.Header.newBuilder()
+                .setCommand(Bwg.CommandType.UPLINK)
+                .setSentTimestamp(System.currentTimeMillis())
+                .build();
+        final Bwg.Uplink.UplinkHeader uplinkHeader = Bwg.Uplink.UplinkHeader.newBuilder()
+                .setCommand(Bwg.Uplink.UplinkCommandType.MEASUREMENT)
+                .setHardwareId(parent.get_id())
+                .build();
+        handler.processMessage(header, uplinkHeader, measurements.build());
+    }
+}
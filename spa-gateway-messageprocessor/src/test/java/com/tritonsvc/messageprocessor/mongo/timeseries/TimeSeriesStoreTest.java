@@ -0,0 +1,195 @@
+package com.tritonsvc.messageprocessor.mongo.timeseries;
+
+import com.bwg.iot.model.MeasurementReading;
+import com.github.fakemongo.Fongo;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.BasicBSONEncoder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Checks the hourly buckets and compares them with one document per reading. The benchmark defaults to a size that
+ * suits a unit test run, pass -DtimeSeriesBenchmarkReadings=2000000 to run it with millions of readings.
+ */
+public class TimeSeriesStoreTest {
+
+    private static final Logger log = LoggerFactory.getLogger(TimeSeriesStoreTest.class);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long START = 1464739200000L; // 2016-06-01T00:00:00Z
+
+    private MongoTemplate mongoTemplate;
+    private TimeSeriesStore store;
+
+    @Before
+    public void setUp() {
+        mongoTemplate = new MongoTemplate(new Fongo("timeseries").getMongo(), "timeseries");
+        store = new TimeSeriesStore();
+        ReflectionTestUtils.setField(store, "mongoOps", mongoTemplate);
+        store.init();
+    }
+
+    @Test
+    public void itAppendsSamplesToHourlyBuckets() {
+        final Map<String, Object> attributes = new HashMap<>();
+        attributes.put("spaId", "spa1");
+        attributes.put("moteId", null);
+
+        final List<SeriesSample> first = new ArrayList<>();
+        first.add(new SeriesSample(START + 1000, 3));
+        first.add(new SeriesSample(START + HOUR - 1, 9));
+        first.add(new SeriesSample(START + HOUR, 4));
+        Assert.assertEquals(2, store.record(TimeSeriesStore.MEASUREMENT_SERIES, "sensor1", attributes, first));
+
+        final List<SeriesSample> second = new ArrayList<>();
+        second.add(new SeriesSample(START + 20 * 60000, 6));
+        Assert.assertEquals(1, store.record(TimeSeriesStore.MEASUREMENT_SERIES, "sensor1", attributes, second));
+
+        final DBCollection buckets = mongoTemplate.getCollection(TimeSeriesStore.MEASUREMENT_SERIES);
+        Assert.assertEquals(2, buckets.count());
+        final DBObject firstHour = buckets.findOne("sensor1@" + START);
+        Assert.assertEquals("spa1", firstHour.get("spaId"));
+        Assert.assertFalse(firstHour.containsField("moteId"));
+        Assert.assertEquals(3, ((Number) firstHour.get("count")).intValue());
+        Assert.assertEquals(18, ((Number) firstHour.get("sum")).doubleValue(), 0.0001);
+        Assert.assertEquals(3, ((Number) firstHour.get("min")).doubleValue(), 0.0001);
+        Assert.assertEquals(9, ((Number) firstHour.get("max")).doubleValue(), 0.0001);
+
+        final List<SeriesPoint> hourly = store.readMeasurements("sensor1", new Date(START), new Date(START + 2 * HOUR), HOUR);
+        Assert.assertEquals(2, hourly.size());
+        Assert.assertEquals(START, hourly.get(0).getStart().getTime());
+        Assert.assertEquals(6, hourly.get(0).getAvg(), 0.0001);
+        Assert.assertEquals(4, hourly.get(1).getMin(), 0.0001);
+
+        final List<SeriesPoint> quarterly = store.readMeasurements("sensor1", new Date(START), new Date(START + HOUR), TimeUnit.MINUTES.toMillis(15));
+        Assert.assertEquals(3, quarterly.size());
+        Assert.assertEquals(3, quarterly.get(0).getMax(), 0.0001);
+        Assert.assertEquals(START + TimeUnit.MINUTES.toMillis(15), quarterly.get(1).getStart().getTime());
+        Assert.assertEquals(6, quarterly.get(1).getAvg(), 0.0001);
+        Assert.assertEquals(1, quarterly.get(2).getCount());
+    }
+
+    @Test
+    public void itStoresAndReadsSeriesMoreCompactlyThanOneDocumentPerReading() {
+        final int readings = Integer.getInteger("timeSeriesBenchmarkReadings", 200000);
+        final int sensors = Math.max(1, readings / 2880);
+        final int perSensor = readings / sensors;
+        // one reading per sensor every 30 seconds, as uploaded by the gateways in batches of 20
+        final long interval = TimeUnit.SECONDS.toMillis(30);
+        final int batch = 20;
+        final Random random = new Random(7);
+
+        mongoTemplate.indexOps(MeasurementReading.class).ensureIndex(new Index().on("sensorId", Sort.Direction.ASC).on("timestamp", Sort.Direction.ASC));
+
+        long rawNanos = 0;
+        long bucketedNanos = 0;
+        for (int offset = 0; offset < perSensor; offset += batch) {
+            for (int sensor = 0; sensor < sensors; sensor++) {
+                final List<MeasurementReading> raw = new ArrayList<>(batch);
+                final List<SeriesSample> samples = new ArrayList<>(batch);
+                for (int i = offset; i < Math.min(perSensor, offset + batch); i++) {
+                    final long timestamp = START + i * interval;
+                    final double value = 20 + random.nextDouble() * 10;
+                    raw.add(reading("sensor" + sensor, timestamp, value));
+                    samples.add(new SeriesSample(timestamp, value));
+                }
+
+                long start = System.nanoTime();
+                mongoTemplate.insert(raw, MeasurementReading.class);
+                rawNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                store.record(TimeSeriesStore.MEASUREMENT_SERIES, "sensor" + sensor, attributes(), samples);
+                bucketedNanos += System.nanoTime() - start;
+            }
+        }
+
+        final String rawCollection = mongoTemplate.getCollectionName(MeasurementReading.class);
+        final long rawDocuments = mongoTemplate.getCollection(rawCollection).count();
+        final long bucketDocuments = mongoTemplate.getCollection(TimeSeriesStore.MEASUREMENT_SERIES).count();
+        final long rawBytes = size(mongoTemplate.getCollection(rawCollection));
+        final long bucketBytes = size(mongoTemplate.getCollection(TimeSeriesStore.MEASUREMENT_SERIES));
+
+        // a day of one sensor downsampled to hours
+        final Date from = new Date(START);
+        final Date to = new Date(START + TimeUnit.DAYS.toMillis(1));
+        final int queries = 50;
+        long rawQueryNanos = 0;
+        long bucketQueryNanos = 0;
+        for (int i = 0; i < queries; i++) {
+            final String sensorId = "sensor" + random.nextInt(sensors);
+            long start = System.nanoTime();
+            final List<MeasurementReading> found = mongoTemplate.find(query(where("sensorId").is(sensorId).and("timestamp").gte(from).lt(to)), MeasurementReading.class);
+            rawQueryNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final List<SeriesPoint> points = store.readMeasurements(sensorId, from, to, HOUR);
+            bucketQueryNanos += System.nanoTime() - start;
+
+            Assert.assertEquals(found.size(), points.stream().mapToLong(SeriesPoint::getCount).sum());
+        }
+
+        log.info("{} readings of {} sensors: {} documents/{} KB one per reading, {} documents/{} KB bucketed",
+                rawDocuments, sensors, rawDocuments, rawBytes / 1024, bucketDocuments, bucketBytes / 1024);
+        log.info("inserted {} readings/s one per reading, {} readings/s bucketed",
+                (long) (rawDocuments / (rawNanos / 1e9)), (long) (rawDocuments / (bucketedNanos / 1e9)));
+        log.info("day range query took {} ms one per reading, {} ms bucketed at hourly resolution",
+                TimeUnit.NANOSECONDS.toMillis(rawQueryNanos / queries), TimeUnit.NANOSECONDS.toMillis(bucketQueryNanos / queries));
+
+        Assert.assertEquals(sensors * perSensor, rawDocuments);
+        Assert.assertTrue(bucketDocuments * 100 < rawDocuments);
+        Assert.assertTrue(bucketBytes < rawBytes);
+        Assert.assertTrue(bucketQueryNanos < rawQueryNanos);
+    }
+
+    private static MeasurementReading reading(final String sensorId, final long timestamp, final double value) {
+        final MeasurementReading reading = new MeasurementReading();
+        reading.setSpaId("spa");
+        reading.setDealerId("dealer");
+        reading.setOemId("oem");
+        reading.setSensorId(sensorId);
+        reading.setTimestamp(new Date(timestamp));
+        reading.setType("AMBIENT_TEMP");
+        reading.setUnitOfMeasure("celsius");
+        reading.setQuality("VALID");
+        reading.setValue(value);
+        return reading;
+    }
+
+    private static Map<String, Object> attributes() {
+        final Map<String, Object> attributes = new HashMap<>();
+        attributes.put("spaId", "spa");
+        attributes.put("dealerId", "dealer");
+        attributes.put("oemId", "oem");
+        attributes.put("type", "AMBIENT_TEMP");
+        attributes.put("unitOfMeasure", "celsius");
+        return attributes;
+    }
+
+    private static long size(final DBCollection collection) {
+        final BasicBSONEncoder encoder = new BasicBSONEncoder();
+        long bytes = 0;
+        for (final DBObject document : collection.find()) {
+            bytes += encoder.encode(document).length;
+        }
+        return bytes;
+    }
+}
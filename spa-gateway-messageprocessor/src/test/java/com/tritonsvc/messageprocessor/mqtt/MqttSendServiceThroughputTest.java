@@ -0,0 +1,148 @@
+package com.tritonsvc.messageprocessor.mqtt;
+
+import com.tritonsvc.messageprocessor.MessageProcessorConfiguration;
+import com.tritonsvc.messageprocessor.SpaGatewayMessageProcessorApplication;
+import com.tritonsvc.messageprocessor.UnitTestHelper;
+import org.fusesource.mqtt.client.QoS;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * publishes downlinks to thousands of gateway topics on the embedded broker through send services of different pool sizes
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = {SpaGatewayMessageProcessorApplication.class, UnitTestHelper.class})
+public class MqttSendServiceThroughputTest {
+
+    private static final Logger log = LoggerFactory.getLogger(MqttSendServiceThroughputTest.class);
+    private static final int GATEWAYS = 4000;
+    private static final int MESSAGES = 12000;
+
+    @Autowired
+    private MessageProcessorConfiguration messageProcessorConfiguration;
+
+    private final List<MqttSendService> services = new ArrayList<>();
+
+    @After
+    public void cleanup() {
+        services.forEach(MqttSendService::cleanup);
+    }
+
+    @Test
+    public void itScalesThroughputWithThePoolSize() throws Exception {
+        // warm up the broker and the jit before measuring
+        publish(createService(2, 1000), 2000);
+
+        final double singleRate = publish(createService(1, 1000), MESSAGES);
+        final double pooledRate = publish(createService(4, 1000), MESSAGES);
+
+        log.info("published {} downlinks/s over 1 connection, {} downlinks/s over 4", (int) singleRate, (int) pooledRate);
+        Assert.assertTrue(pooledRate > singleRate);
+    }
+
+    @Test
+    public void itBoundsTheMessagesWaitingForTheBroker() throws Exception {
+        final MqttSendService service = createService(2, 16);
+        publish(service, 2000);
+
+        Assert.assertEquals(0, service.getInFlight());
+        Assert.assertEquals(0, service.getRejected());
+        Assert.assertTrue(service.getPeakInFlight() <= 16);
+        log.info("peak of {} pending messages, senders waited {} ms for room", service.getPeakInFlight(), service.getBlockedMillis());
+    }
+
+    @Test
+    public void itConnectsAColdChannelOnceForConcurrentSends() throws Exception {
+        final MqttSendService service = createService(1, 1000);
+        final byte[] payload = new byte[64];
+        final ExecutorService senders = Executors.newFixedThreadPool(16);
+        final CountDownLatch go = new CountDownLatch(1);
+        final List<Future<CompletableFuture<Void>>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                final String topic = "BWG/spa/downlink/cold" + i;
+                results.add(senders.submit(() -> {
+                    go.await();
+                    return service.sendMessageAsync(topic, payload);
+                }));
+            }
+            go.countDown();
+            for (final Future<CompletableFuture<Void>> result : results) {
+                result.get(30, TimeUnit.SECONDS).get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            senders.shutdownNow();
+        }
+
+        Assert.assertEquals(1, service.getConnects());
+        Assert.assertEquals(200, service.getPublished());
+        Assert.assertEquals(0, service.getFailed());
+    }
+
+    @Test
+    public void itPicksQosByTopic() {
+        final MqttSendService service = createService(1, 10);
+        ReflectionTestUtils.setField(service, "mqttSendQos", QoS.AT_LEAST_ONCE);
+        ReflectionTestUtils.setField(service, "mqttSendTopicQos", "BWG/spa/downlink=EXACTLY_ONCE, BWG/spa/downlink/noisy=AT_MOST_ONCE");
+
+        Assert.assertEquals(QoS.EXACTLY_ONCE, service.qosFor("BWG/spa/downlink/123"));
+        Assert.assertEquals(QoS.AT_MOST_ONCE, service.qosFor("BWG/spa/downlink/noisy1"));
+        Assert.assertEquals(QoS.AT_LEAST_ONCE, service.qosFor("BWG/spa/uplink/123"));
+    }
+
+    private MqttSendService createService(final int poolSize, final int maxPending) {
+        final MqttSendService service = new MqttSendService();
+        ReflectionTestUtils.setField(service, "messageProcessorConfiguration", messageProcessorConfiguration);
+        ReflectionTestUtils.setField(service, "mqttHostname", "localhost");
+        ReflectionTestUtils.setField(service, "mqttPort", 11883);
+        ReflectionTestUtils.setField(service, "mqttKeepAliveSeconds", (short) 60);
+        ReflectionTestUtils.setField(service, "mqttSendPoolSize", poolSize);
+        ReflectionTestUtils.setField(service, "mqttSendMaxPending", maxPending);
+        ReflectionTestUtils.setField(service, "mqttSendQueueTimeoutMillis", 30000L);
+        ReflectionTestUtils.setField(service, "mqttConnectTimeoutMillis", 10000L);
+        ReflectionTestUtils.setField(service, "mqttSendQos", QoS.EXACTLY_ONCE);
+        services.add(service);
+        return service;
+    }
+
+    /**
+     * @return messages per second
+     */
+    private double publish(final MqttSendService service, final int messages) throws Exception {
+        final byte[] payload = new byte[64];
+        // connect the pool up front so only publishing is measured
+        for (int i = 0; i < service.getPoolSize() * 8; i++) {
+            service.sendMessageAsync("BWG/spa/downlink/warmup" + i, payload).get(10, TimeUnit.SECONDS);
+        }
+        final long published = service.getPublished();
+
+        final List<CompletableFuture<Void>> results = new ArrayList<>(messages);
+        final long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            results.add(service.sendMessageAsync("BWG/spa/downlink/" + (i % GATEWAYS), payload));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()])).get(60, TimeUnit.SECONDS);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        Assert.assertEquals(messages, service.getPublished() - published);
+        Assert.assertEquals(0, service.getFailed());
+        return messages / seconds;
+    }
+}